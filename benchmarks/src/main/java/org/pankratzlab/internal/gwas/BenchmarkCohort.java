@@ -0,0 +1,90 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.StringJoiner;
+
+import org.pankratzlab.kdmatch.KDMatch;
+
+/**
+ * Synthetic input files for the {@link MatchSamples} and {@link REval} benchmarks, which need
+ * exact numbers of cases and controls and matched pairs that {@link SyntheticCohort} does not
+ * provide. They are generated from a fixed seed so that every run and every baseline sees the same
+ * data. Factors are standard normal and cases are shifted by half a standard deviation.
+ */
+final class BenchmarkCohort {
+  static final long SEED = 42;
+
+  private BenchmarkCohort() {}
+
+  /** @return PC1,...,PCn */
+  static String[] factorNames(int dimensions) {
+    String[] names = new String[dimensions];
+    for (int d = 0; d < dimensions; d++) {
+      names[d] = "PC" + (d + 1);
+    }
+    return names;
+  }
+
+  /**
+   * Write the {@link MatchSamples} samples file (id, status) and factors file (id, factors) of the
+   * given numbers of cases and controls
+   */
+  static void writeMatchSamplesFiles(Path samplesFile, Path factorFile, int cases, int controls,
+                                     int dimensions) throws IOException {
+    Random random = new Random(SEED);
+    try (PrintWriter samples = new PrintWriter(Files.newBufferedWriter(samplesFile));
+         PrintWriter factors = new PrintWriter(Files.newBufferedWriter(factorFile))) {
+      samples.println("id\tstatus");
+      factors.println("id\t" + String.join("\t", factorNames(dimensions)));
+      for (int i = 0; i < cases + controls; i++) {
+        int status = i < cases ? 1 : 0;
+        samples.println("s" + i + "\t" + status);
+        StringJoiner line = new StringJoiner("\t");
+        line.add("s" + i);
+        for (int d = 0; d < dimensions; d++) {
+          line.add(Double.toString(random.nextGaussian() + 0.5 * status));
+        }
+        factors.println(line);
+      }
+    }
+  }
+
+  /**
+   * Write a {@link KDMatch#STATUS_FILE_HEADER} status file pairing every case with
+   * controlsPerCase controls, and a phenotype file with the factors and a binary sex column, for
+   * {@link REval}
+   */
+  static void writeEvalFiles(Path statusFile, Path phenotypeFile, int cases, int controlsPerCase,
+                             int dimensions) throws IOException {
+    Random random = new Random(SEED);
+    try (PrintWriter status = new PrintWriter(Files.newBufferedWriter(statusFile));
+         PrintWriter phenotypes = new PrintWriter(Files.newBufferedWriter(phenotypeFile))) {
+      status.println(KDMatch.STATUS_FILE_HEADER);
+      phenotypes.println("id\t" + String.join("\t", factorNames(dimensions)) + "\tsex");
+      int next = 0;
+      for (int c = 0; c < cases; c++) {
+        String caseId = "s" + next++;
+        status.println(caseId + "\t1\t" + caseId);
+        phenotypes.println(phenotypeLine(caseId, random, dimensions, 0.5));
+        for (int k = 0; k < controlsPerCase; k++) {
+          String controlId = "s" + next++;
+          status.println(controlId + "\t0\t" + caseId);
+          phenotypes.println(phenotypeLine(controlId, random, dimensions, 0));
+        }
+      }
+    }
+  }
+
+  private static String phenotypeLine(String id, Random random, int dimensions, double shift) {
+    StringJoiner line = new StringJoiner("\t");
+    line.add(id);
+    for (int d = 0; d < dimensions; d++) {
+      line.add(Double.toString(random.nextGaussian() + shift));
+    }
+    return line.add(Integer.toString(random.nextInt(2))).toString();
+  }
+}
@@ -0,0 +1,131 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Multimap;
+
+/**
+ * Reading the phenotypes of an evaluation with {@link REval#readPhenotypeFile} and each of the
+ * {@link DataBox} statistics, with four controls per case
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EvalBenchmark {
+  private static final int CONTROLS_PER_CASE = 4;
+
+  @Param({"1000", "10000"})
+  public int cases;
+
+  @Param({"4", "16"})
+  public int dimensions;
+
+  private File statusFile;
+  private File phenotypeFile;
+  private DataBox dataBox;
+  private REval rEval;
+
+  private MatchingVariable[] matchingVariables() {
+    String[] names = BenchmarkCohort.factorNames(dimensions);
+    MatchingVariable[] variables = new MatchingVariable[names.length + 1];
+    for (int i = 0; i < names.length; i++) {
+      variables[i] = new MatchingVariable(names[i]);
+    }
+    variables[names.length] = new MatchingVariable("sex");
+    return variables;
+  }
+
+  @Setup(Level.Trial)
+  public void writeCohort() throws IOException {
+    Path dir = Files.createTempDirectory("evalBenchmark");
+    statusFile = dir.resolve("status.txt").toFile();
+    phenotypeFile = dir.resolve("phenotypes.txt").toFile();
+    BenchmarkCohort.writeEvalFiles(statusFile.toPath(), phenotypeFile.toPath(), cases,
+                                   CONTROLS_PER_CASE, dimensions);
+
+    MatchingVariable[] variables = matchingVariables();
+    ImmutableSetMultimap.Builder<String, String> pairings = ImmutableSetMultimap.builder();
+    try (BufferedReader reader = Files.newBufferedReader(statusFile.toPath())) {
+      reader.readLine();
+      String inputLine = reader.readLine();
+      while (inputLine != null) {
+        String[] line = inputLine.split("\t");
+        if (!line[1].equals("1")) {
+          pairings.put(line[0], line[2]);
+        }
+        inputLine = reader.readLine();
+      }
+    }
+    Multimap<String, String> controlCasePairings = pairings.build();
+    dataBox = new DataBox(variables, controlCasePairings);
+    try (BufferedReader reader = Files.newBufferedReader(phenotypeFile.toPath())) {
+      String[] header = reader.readLine().split("\t");
+      for (MatchingVariable variable : variables) {
+        variable.findIndexInHeader(header);
+      }
+      String inputLine = reader.readLine();
+      while (inputLine != null) {
+        dataBox.recordData(inputLine.split("\t"));
+        inputLine = reader.readLine();
+      }
+    }
+  }
+
+  /** phenotypes can only be read once per evaluation */
+  @Setup(Level.Invocation)
+  public void newEvaluation() throws IOException {
+    rEval = new REval(matchingVariables(), statusFile, phenotypeFile);
+  }
+
+  @Benchmark
+  public REval readPhenotypeFile() throws IOException {
+    rEval.readPhenotypeFile();
+    return rEval;
+  }
+
+  @Benchmark
+  public DataBox computeConcordances() {
+    dataBox.computeConcordances();
+    return dataBox;
+  }
+
+  @Benchmark
+  public DataBox computeAverages() {
+    dataBox.computeAverages();
+    return dataBox;
+  }
+
+  @Benchmark
+  public DataBox computeUnivariateP() {
+    dataBox.computeUnivariateP();
+    return dataBox;
+  }
+
+  @Benchmark
+  public DataBox computeMultivariateP() {
+    dataBox.computeMultivariateP();
+    return dataBox;
+  }
+}
@@ -0,0 +1,46 @@
+package org.pankratzlab.internal.gwas;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs every benchmark of the gwas package with the GC profiler, which reports allocation rates
+ * and GC counts next to the timings, and writes the results as JSON. Run it before and after a
+ * change and compare the two files, e.g. with the JMH visualizer.
+ */
+public class GwasBenchmarks {
+
+  public static void main(String[] args) throws RunnerException {
+    String resultsFile = "benchmarks/baseline.json";
+    String include = GwasBenchmarks.class.getPackageName() + ".*Benchmark";
+
+    String usage = "\n" + "gwas.GwasBenchmarks requires 0-2 arguments\n"
+                   + "(1) JSON results file (e.g. out=" + resultsFile + " (default))\n"
+                   + "(2) Regular expression of the benchmarks to run (e.g. include=" + include
+                   + " (default))\n";
+
+    for (String arg : args) {
+      if (arg.equals("-h") || arg.equals("-help") || arg.equals("/h") || arg.equals("/help")) {
+        System.err.println(usage);
+        System.exit(1);
+      } else if (arg.startsWith("out=")) {
+        resultsFile = arg.split("=")[1];
+      } else if (arg.startsWith("include=")) {
+        include = arg.split("=")[1];
+      } else {
+        System.err.println("Error - invalid argument: " + arg);
+        System.exit(1);
+      }
+    }
+
+    new java.io.File(resultsFile).getAbsoluteFile().getParentFile().mkdirs();
+    Options options = new OptionsBuilder().include(include).addProfiler(GCProfiler.class)
+                                          .resultFormat(ResultFormatType.JSON).result(resultsFile)
+                                          .build();
+    new Runner(options).run();
+  }
+}
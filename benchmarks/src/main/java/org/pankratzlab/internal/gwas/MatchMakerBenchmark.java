@@ -0,0 +1,92 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Preprocessing of a {@link MatchMaker} samples file and the kdmatch tree build and queries of
+ * {@link MatchMaker#kdMatchMaker}, over cohort size, dimensionality and number of strata. The
+ * strata are the levels of the {@link SyntheticCohort} batch factor.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MatchMakerBenchmark {
+  private static final int INITIAL_NUM_SELECT = 20;
+  private static final int FINAL_NUM_SELECT = 2;
+
+  @Param({"10000", "100000"})
+  public int samples;
+
+  @Param({"4", "16"})
+  public int dimensions;
+
+  @Param({"1", "16"})
+  public int strata;
+
+  private final Logger log = Logger.getAnonymousLogger();
+  private Path dir;
+  private Path samplesFile;
+  private FactorLoadings factorLoadings;
+  private FactorLoadings nominalLoadings;
+  private PreparedCohort cohort;
+
+  @Setup
+  public void prepare() throws IOException {
+    log.setLevel(Level.WARNING);
+    dir = Files.createTempDirectory("matchMakerBenchmark");
+    samplesFile = dir.resolve("samples.txt");
+    SyntheticCohort synthetic = new SyntheticCohort();
+    synthetic.samples = samples;
+    synthetic.pcs = dimensions;
+    synthetic.batches = Math.max(2, strata);
+    synthetic.writeSamples(samplesFile);
+    factorLoadings = new FactorLoadings(synthetic.factorsArg(false, strata > 1, false));
+    nominalLoadings = new FactorLoadings(synthetic.factorsArg(false, false, true));
+    cohort = MatchMaker.prepareCohort(dir, samplesFile, factorLoadings, false, log);
+  }
+
+  @Benchmark
+  public Path normalizeFactors() throws IOException {
+    return MatchMaker.normalizeFactors(dir, samplesFile, factorLoadings, log);
+  }
+
+  @Benchmark
+  public Path handleNominalVariables() {
+    return MatchMaker.handleNominalVariables(dir, samplesFile, nominalLoadings);
+  }
+
+  /** parsing and grouping into strata, without normalization */
+  @Benchmark
+  public PreparedCohort prepareCohort() throws IOException {
+    return MatchMaker.prepareCohort(dir, samplesFile, factorLoadings, false, log);
+  }
+
+  @Benchmark
+  public void kdMatchMaker() throws IOException {
+    for (Stratum stratum : cohort.getStrata()) {
+      MatchMaker.kdMatchMaker(dir, samplesFile, stratum, cohort.numericColumns,
+                              INITIAL_NUM_SELECT, FINAL_NUM_SELECT, factorLoadings, true, 1,
+                              new MatchOptions(), log);
+    }
+  }
+}
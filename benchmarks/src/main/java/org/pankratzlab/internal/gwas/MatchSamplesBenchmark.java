@@ -0,0 +1,96 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The all-pairs distance matrix of {@link MatchSamples#matchMaker} and the greedy selection of
+ * {@link MatchSamples#matchPairs}, with four controls per case
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MatchSamplesBenchmark {
+  private static final int CONTROLS_PER_CASE = 4;
+  private static final String SAMPLES = "samples.txt";
+  private static final String FACTORS = "factors.txt";
+
+  @Param({"500", "2000"})
+  public int cases;
+
+  @Param({"2", "10"})
+  public int dimensions;
+
+  private String dir;
+  private String[] factorTargets;
+  private double[] factorLoadings;
+  private String distanceFile;
+
+  @Setup(Level.Trial)
+  public void writeCohort() throws IOException {
+    Path directory = Files.createTempDirectory("matchSamplesBenchmark");
+    dir = directory + File.separator;
+    BenchmarkCohort.writeMatchSamplesFiles(directory.resolve(SAMPLES), directory.resolve(FACTORS),
+                                           cases, cases * CONTROLS_PER_CASE, dimensions);
+    factorTargets = BenchmarkCohort.factorNames(dimensions);
+    factorLoadings = new double[dimensions];
+    Arrays.fill(factorLoadings, 1);
+    distanceFile = MatchSamples.matchMaker(dir, SAMPLES, FACTORS, factorTargets, factorLoadings,
+                                           false);
+  }
+
+  /** matchMaker only computes distances when its output file does not exist yet */
+  @Setup(Level.Invocation)
+  public void deleteDistances() throws IOException {
+    Files.deleteIfExists(Path.of(dir + distanceFile));
+  }
+
+  @Benchmark
+  public String matchMakerDistances() {
+    return MatchSamples.matchMaker(dir, SAMPLES, FACTORS, factorTargets, factorLoadings, false);
+  }
+
+  @State(Scope.Benchmark)
+  public static class Distances {
+    String dir;
+    String distanceFile;
+
+    @Setup(Level.Trial)
+    public void writeDistances(MatchSamplesBenchmark benchmark) throws IOException {
+      Path directory = Files.createTempDirectory("matchPairsBenchmark");
+      dir = directory + File.separator;
+      BenchmarkCohort.writeMatchSamplesFiles(directory.resolve(SAMPLES),
+                                             directory.resolve(FACTORS), benchmark.cases,
+                                             benchmark.cases * CONTROLS_PER_CASE,
+                                             benchmark.dimensions);
+      distanceFile = MatchSamples.matchMaker(dir, SAMPLES, FACTORS,
+                                             BenchmarkCohort.factorNames(benchmark.dimensions),
+                                             benchmark.factorLoadings, false);
+    }
+  }
+
+  @Benchmark
+  public String matchPairsGreedy(Distances distances) {
+    return MatchSamples.matchPairs(distances.dir, distances.distanceFile, true, 1);
+  }
+}
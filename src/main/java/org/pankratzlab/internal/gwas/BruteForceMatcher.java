@@ -0,0 +1,76 @@
+package org.pankratzlab.internal.gwas;
+
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+/**
+ * Exact nearest neighbor matching of a {@link Stratum} by computing every case-control distance,
+ * for strata too small for an index to pay off. The controls are copied into one flat array and
+ * scanned in blocks of {@value #CONTROL_BLOCK} against groups of {@value #CASE_BLOCK} cases, so
+ * each block is reused from cache by all cases of a group. Groups of cases run in parallel.
+ */
+public class BruteForceMatcher {
+  /** controls per block; 512 controls of 16 dimensions take 64 KiB */
+  static final int CONTROL_BLOCK = 512;
+  static final int CASE_BLOCK = 64;
+
+  private BruteForceMatcher() {}
+
+  /**
+   * @return up to {@code numCandidates} nearest controls within the caliper for every case
+   */
+  public static StratumMatches findCandidates(Stratum stratum, int numCandidates, Caliper caliper,
+                                              Logger log) {
+    int numCases = stratum.numCases();
+    int numControls = stratum.numControls();
+    int dimensions = stratum.dimensions();
+    double[] controls = new double[numControls * dimensions];
+    for (int j = 0; j < numControls; j++) {
+      System.arraycopy(stratum.getControlCoords(j), 0, controls, j * dimensions, dimensions);
+    }
+    double maxDistance = TreeMatcher.resolveCaliper(stratum, caliper);
+    if (caliper.isSet()) {
+      log.info("Caliper for " + stratum.getKey() + " is a distance of " + maxDistance);
+    }
+    log.info("Computing all " + (long) numCases * numControls + " distances of "
+             + stratum.getKey());
+    StratumMatches candidates = new StratumMatches(stratum, numCandidates);
+    int numGroups = (numCases + CASE_BLOCK - 1) / CASE_BLOCK;
+    IntStream.range(0, numGroups).parallel().forEach(g -> {
+      int from = g * CASE_BLOCK;
+      int to = Math.min(numCases, from + CASE_BLOCK);
+      Neighbors.Heap[] heaps = new Neighbors.Heap[to - from];
+      double[][] cases = new double[to - from][];
+      for (int c = from; c < to; c++) {
+        heaps[c - from] = new Neighbors.Heap(Math.min(numCandidates, numControls), maxDistance);
+        cases[c - from] = stratum.getCaseCoords(c);
+      }
+      for (int block = 0; block < numControls; block += CONTROL_BLOCK) {
+        int blockEnd = Math.min(numControls, block + CONTROL_BLOCK);
+        for (int c = 0; c < cases.length; c++) {
+          double[] point = cases[c];
+          Neighbors.Heap heap = heaps[c];
+          for (int j = block; j < blockEnd; j++) {
+            double bound = heap.bound();
+            int offset = j * dimensions;
+            double sum = 0;
+            // stop adding dimensions once the control can no longer make the heap
+            for (int d = 0; d < dimensions && sum <= bound; d++) {
+              double diff = point[d] - controls[offset + d];
+              sum += diff * diff;
+            }
+            heap.offer(j, sum);
+          }
+        }
+      }
+      for (int c = from; c < to; c++) {
+        Neighbors neighbors = heaps[c - from].toNeighbors();
+        for (int i = 0; i < neighbors.size(); i++) {
+          candidates.set(c, i, neighbors.getIndex(i), neighbors.getDistance(i));
+        }
+      }
+    });
+    TreeMatcher.reportUnmatchable(candidates, caliper, log);
+    return candidates;
+  }
+}
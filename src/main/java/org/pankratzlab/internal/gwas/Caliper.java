@@ -0,0 +1,70 @@
+package org.pankratzlab.internal.gwas;
+
+/**
+ * Maximum allowed case-control distance. A caliper is either an absolute distance or a multiple of
+ * the standard deviation of the case-control distance distribution, parsed from arguments like
+ * {@code caliper=1.5} or {@code caliper=0.5sd}.
+ */
+public class Caliper {
+  public static final Caliper NONE = new Caliper(Double.POSITIVE_INFINITY, false);
+
+  private static final String SD_SUFFIX = "sd";
+
+  private final double value;
+  private final boolean inStandardDeviations;
+
+  public Caliper(double value, boolean inStandardDeviations) {
+    if (!(value > 0)) {
+      throw new IllegalArgumentException("Caliper must be positive, found " + value);
+    }
+    this.value = value;
+    this.inStandardDeviations = inStandardDeviations;
+  }
+
+  public static Caliper parse(String arg) {
+    String a = arg.strip().toLowerCase();
+    if (a.equals("none")) {
+      return NONE;
+    }
+    try {
+      if (a.endsWith(SD_SUFFIX)) {
+        return new Caliper(Double.parseDouble(a.substring(0, a.length() - SD_SUFFIX.length())),
+                           true);
+      }
+      return new Caliper(Double.parseDouble(a), false);
+    } catch (NumberFormatException nfe) {
+      throw new IllegalArgumentException("Caliper " + arg
+                                         + " not recognized, expected e.g. 1.5 or 0.5sd");
+    }
+  }
+
+  public boolean isSet() {
+    return value != Double.POSITIVE_INFINITY;
+  }
+
+  public boolean isInStandardDeviations() {
+    return inStandardDeviations;
+  }
+
+  /**
+   * @param distanceSd standard deviation of the case-control distances, only used if this caliper
+   *          is in standard deviations
+   * @return the maximum allowed distance
+   */
+  public double resolve(double distanceSd) {
+    return inStandardDeviations ? value * distanceSd : value;
+  }
+
+  /**
+   * @return a short label for file names, e.g. "1.5" or "0.5sd"
+   */
+  public String label() {
+    return (value == Math.rint(value) ? Long.toString((long) value) : Double.toString(value))
+           + (inStandardDeviations ? SD_SUFFIX : "");
+  }
+
+  @Override
+  public String toString() {
+    return isSet() ? label() : "none";
+  }
+}
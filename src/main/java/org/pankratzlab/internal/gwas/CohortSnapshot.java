@@ -0,0 +1,251 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Binary snapshot of a {@link PreparedCohort}, so that a rerun on the same samples and factors can
+ * skip normalization, nominal expansion, parsing and stratification. Snapshots are named by a hash
+ * of the contents of the samples file, the factor loadings and whether factors are normalized, and
+ * are kept in a directory pruned to a size cap, least recently used first.
+ * <p>
+ * A snapshot holds the numeric columns with their loadings, and per stratum its key, an id
+ * dictionary and the coordinates of all of its samples as one block of doubles. It also records
+ * the prepared samples file (normalized or with nominal factors expanded), which later steps such
+ * as visualization still read; the snapshot is only used while that file is unchanged.
+ */
+public class CohortSnapshot {
+  static final String DIRECTORY = "cohort_snapshots";
+  static final String EXTENSION = ".cohort";
+  private static final int MAGIC = 0x4b44434f;
+  private static final int VERSION = 1;
+  private static final int BUFFER_SIZE = 1 << 20;
+
+  private CohortSnapshot() {}
+
+  /**
+   * @return the snapshot prepared from inputSamples with these settings, or one newly prepared
+   *         and written to snapshotDir; preparation errors are thrown as usual, snapshot errors of
+   *         any kind are logged and otherwise ignored
+   */
+  @SuppressWarnings("try")
+  public static PreparedCohort loadOrPrepare(Path dir, Path inputSamples,
+                                             FactorLoadings factorLoadings, boolean normalize,
+                                             Path snapshotDir, long capBytes,
+                                             MatchMetrics metrics, MatchProgress progress,
+                                             Logger log) throws IOException {
+    Path snapshot;
+    try (MatchMetrics.Phase phase = metrics.start(MatchMetrics.SNAPSHOT)) {
+      snapshot = snapshotDir.resolve(key(inputSamples, factorLoadings, normalize) + EXTENSION);
+    } catch (IOException | RuntimeException e) {
+      log.warning("Could not hash " + inputSamples + " for a cohort snapshot: " + e.getMessage());
+      return MatchMaker.prepareCohort(dir, inputSamples, factorLoadings, normalize, metrics,
+                                      progress, log);
+    }
+    if (Files.exists(snapshot)) {
+      try {
+        PreparedCohort cohort;
+        try (MatchMetrics.Phase phase = metrics.start(MatchMetrics.SNAPSHOT)) {
+          cohort = read(snapshot);
+        }
+        if (cohort != null) {
+          Files.setLastModifiedTime(snapshot, FileTime.fromMillis(System.currentTimeMillis()));
+          log.info("Loaded " + cohort.strata.size() + " prepared strata from " + snapshot);
+          return cohort;
+        }
+        log.info("The prepared samples of " + snapshot + " changed, preparing the cohort again");
+      } catch (IOException | RuntimeException e) {
+        log.warning("Could not read cohort snapshot " + snapshot + ": " + e.getMessage());
+      }
+    }
+    PreparedCohort cohort = MatchMaker.prepareCohort(dir, inputSamples, factorLoadings, normalize,
+                                                     metrics, progress, log);
+    Path temp = null;
+    try (MatchMetrics.Phase phase = metrics.start(MatchMetrics.SNAPSHOT)) {
+      Files.createDirectories(snapshotDir);
+      // a unique name, so concurrent runs preparing the same cohort do not write the same file
+      temp = Files.createTempFile(snapshotDir, "partial.", ".tmp");
+      write(cohort, temp);
+      MatchOutput.moveAtomically(temp.toString(), snapshot.toString());
+      log.info("Wrote cohort snapshot " + snapshot);
+      prune(snapshotDir, capBytes, snapshot, log);
+    } catch (IOException | RuntimeException e) {
+      log.warning("Could not write cohort snapshot " + snapshot + ": " + e.getMessage());
+      try {
+        if (temp != null) {
+          Files.deleteIfExists(temp);
+        }
+      } catch (IOException ignored) {
+        // a leftover is never read or counted, as it lacks the snapshot extension
+      }
+    }
+    return cohort;
+  }
+
+  /** @return hex SHA-256 of the contents of samples, the factor loadings and normalize */
+  static String key(Path samples, FactorLoadings factorLoadings,
+                    boolean normalize) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    byte[] buffer = new byte[BUFFER_SIZE];
+    try (InputStream in = Files.newInputStream(samples)) {
+      int read;
+      while ((read = in.read(buffer)) > 0) {
+        digest.update(buffer, 0, read);
+      }
+    }
+    StringBuilder settings = new StringBuilder("\n");
+    for (Entry<String, String> factor : factorLoadings.getFactors().entrySet()) {
+      settings.append(factor.getKey()).append(':').append(factor.getValue()).append(',');
+    }
+    settings.append("normalize=").append(normalize);
+    digest.update(settings.toString().getBytes(StandardCharsets.UTF_8));
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest()) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+
+  static void write(PreparedCohort cohort, Path file) throws IOException {
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file),
+                                                                              BUFFER_SIZE))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      Path samples = cohort.inputSamples.toAbsolutePath();
+      out.writeUTF(samples.toString());
+      out.writeLong(Files.size(samples));
+      out.writeLong(Files.getLastModifiedTime(samples).toMillis());
+      out.writeInt(cohort.numericColumns.size());
+      for (Entry<Integer, Double> column : cohort.numericColumns.entrySet()) {
+        out.writeInt(column.getKey());
+        out.writeDouble(column.getValue());
+      }
+      out.writeInt(cohort.strata.size());
+      for (Stratum stratum : cohort.strata) {
+        int dimensions = stratum.dimensions();
+        out.writeUTF(stratum.getKey());
+        out.writeInt(dimensions);
+        out.writeInt(stratum.numCases());
+        out.writeInt(stratum.numControls());
+        for (int i = 0; i < stratum.numCases(); i++) {
+          out.writeUTF(stratum.getCaseId(i));
+        }
+        for (int i = 0; i < stratum.numControls(); i++) {
+          out.writeUTF(stratum.getControlId(i));
+        }
+        // sample by sample, as a block of all of them can exceed the largest array
+        for (int i = 0; i < stratum.numCases(); i++) {
+          writeCoords(out, stratum.getCaseCoords(i));
+        }
+        for (int i = 0; i < stratum.numControls(); i++) {
+          writeCoords(out, stratum.getControlCoords(i));
+        }
+      }
+    }
+  }
+
+  private static void writeCoords(DataOutputStream out, double[] coords) throws IOException {
+    for (double coord : coords) {
+      out.writeDouble(coord);
+    }
+  }
+
+  /**
+   * @return the cohort of a snapshot, or null if its prepared samples file is missing or changed
+   * @throws IOException if the file is not a readable snapshot
+   */
+  static PreparedCohort read(Path file) throws IOException {
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file),
+                                                                          BUFFER_SIZE))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("not a cohort snapshot of this version");
+      }
+      Path samples = Path.of(in.readUTF());
+      long size = in.readLong();
+      long modified = in.readLong();
+      if (!Files.exists(samples) || Files.size(samples) != size
+          || Files.getLastModifiedTime(samples).toMillis() != modified) {
+        return null;
+      }
+      HashMap<Integer, Double> numericColumns = new HashMap<>();
+      int numColumns = in.readInt();
+      for (int i = 0; i < numColumns; i++) {
+        numericColumns.put(in.readInt(), in.readDouble());
+      }
+      int numStrata = in.readInt();
+      List<Stratum> strata = new ArrayList<>(numStrata);
+      for (int s = 0; s < numStrata; s++) {
+        Stratum stratum = new Stratum(in.readUTF());
+        int dimensions = in.readInt();
+        int numCases = in.readInt();
+        int numControls = in.readInt();
+        String[] ids = new String[numCases + numControls];
+        for (int i = 0; i < ids.length; i++) {
+          ids[i] = in.readUTF();
+        }
+        for (int i = 0; i < ids.length; i++) {
+          double[] sample = new double[dimensions];
+          for (int d = 0; d < dimensions; d++) {
+            sample[d] = in.readDouble();
+          }
+          stratum.add(ids[i], sample,
+                      i < numCases ? Stratum.CASE_STATUS : Stratum.CONTROL_STATUS);
+        }
+        strata.add(stratum);
+      }
+      return new PreparedCohort(samples, numericColumns, strata);
+    }
+  }
+
+  /**
+   * Delete the least recently used snapshots of snapshotDir until the rest fit in capBytes, always
+   * keeping the snapshot just written
+   */
+  static void prune(Path snapshotDir, long capBytes, Path keep, Logger log) throws IOException {
+    List<Path> snapshots;
+    try (Stream<Path> files = Files.list(snapshotDir)) {
+      snapshots = files.filter(p -> p.getFileName().toString().endsWith(EXTENSION))
+                       .collect(Collectors.toList());
+    }
+    Comparator<Path> newestFirst = Comparator.comparing(p -> {
+      try {
+        return Files.getLastModifiedTime(p);
+      } catch (IOException e) {
+        return FileTime.fromMillis(0);
+      }
+    });
+    snapshots.sort(newestFirst.reversed());
+    long total = 0;
+    for (Path snapshot : snapshots) {
+      total += Files.size(snapshot);
+      if (total > capBytes && !snapshot.equals(keep)) {
+        log.info("Removing cohort snapshot " + snapshot + " to stay under "
+                 + capBytes / (1024 * 1024) + " MB");
+        Files.deleteIfExists(snapshot);
+      }
+    }
+  }
+}
@@ -11,6 +11,9 @@ import org.pankratzlab.common.ext;
 import org.pankratzlab.common.stats.LogisticRegression;
 import org.pankratzlab.common.stats.RegressionModel;
 
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Multimap;
+
 public class DataBox {
 
   private final MatchingVariable[] matchingVariables;
@@ -21,7 +24,8 @@ public class DataBox {
   private final int totalSampleCount;
   private final double[][] data;
 
-  private final Map<String, String> controlCasePairings;
+  // a control may be paired with several cases when matching with replacement
+  private final Multimap<String, String> controlCasePairings;
   private final Map<String, Integer> sampleIndexById;
   private final String[] sampleIdByIndex;
   private final Set<String> caseIds;
@@ -43,8 +47,19 @@ public class DataBox {
   private boolean multivariatePValuesComputed = false;
 
   private final Logger log = Logger.getAnonymousLogger();
+  private MatchMetrics metrics = MatchMetrics.NONE;
+  private String metricsLabel = MatchMetrics.ALL_STRATA;
 
   public DataBox(MatchingVariable[] matchingVariables, Map<String, String> controlCasePairings) {
+    this(matchingVariables, ImmutableSetMultimap.copyOf(controlCasePairings.entrySet()));
+  }
+
+  /**
+   * @param controlCasePairings control -> matched cases. A control paired with more than one case
+   *          is weighted by its number of pairings in all averages, concordances and regressions.
+   */
+  public DataBox(MatchingVariable[] matchingVariables,
+                 Multimap<String, String> controlCasePairings) {
     this.matchingVariables = matchingVariables;
 
     this.matchingVariableIndexMap = new HashMap<>();
@@ -64,6 +79,17 @@ public class DataBox {
     this.sampleIdByIndex = new String[totalSampleCount];
   }
 
+  /** Record the time of each statistic in metrics, under the given label in place of a stratum */
+  public void setMetrics(MatchMetrics metrics, String label) {
+    this.metrics = metrics;
+    this.metricsLabel = label;
+  }
+
+  /** @return a running phase of the statistics, sized by the paired cases and controls */
+  private MatchMetrics.Phase startPhase(String phase) {
+    return metrics.start(phase, metricsLabel).stratum(caseIds.size(), controlIds.size());
+  }
+
   public void recordData(String[] line) {
     String sampleId = line[0];
     if (caseIds.contains(sampleId) || controlIds.contains(sampleId)) {
@@ -83,7 +109,14 @@ public class DataBox {
     }
   }
 
+  @SuppressWarnings("try")
   public void computeConcordances() {
+    try (MatchMetrics.Phase phase = startPhase(MatchMetrics.EVAL_CONCORDANCE)) {
+      computeConcordancesUntimed();
+    }
+  }
+
+  private void computeConcordancesUntimed() {
     int[] matchCounts = new int[matchingVariables.length];
     this.concordances = new double[matchingVariables.length];
 
@@ -94,14 +127,15 @@ public class DataBox {
         continue;
       }
       // From here onwards we know the sample in question is a control
-      int caseIndex = getCaseIndexForControlIndex(si);
-      // iterate over variables
-      for (int vi = 0; vi < matchCounts.length; vi++) {
-        if (matchingVariables[vi].isBinary()) {
-          double controlValue = data[si][vi];
-          double caseValue = data[caseIndex][vi];
-          if (controlValue == caseValue) {
-            matchCounts[vi]++;
+      for (int caseIndex : getCaseIndicesForControlIndex(si)) {
+        // iterate over variables
+        for (int vi = 0; vi < matchCounts.length; vi++) {
+          if (matchingVariables[vi].isBinary()) {
+            double controlValue = data[si][vi];
+            double caseValue = data[caseIndex][vi];
+            if (controlValue == caseValue) {
+              matchCounts[vi]++;
+            }
           }
         }
       }
@@ -109,7 +143,7 @@ public class DataBox {
 
     for (int i = 0; i < concordances.length; i++) {
       if (matchingVariables[i].isBinary()) {
-        // divide by the number of controls
+        // divide by the number of control-case pairs
         concordances[i] = (double) matchCounts[i] / controlCasePairings.size();
       } else {
         concordances[i] = Double.NaN;
@@ -118,26 +152,35 @@ public class DataBox {
     concordancesComputed = true;
   }
 
+  @SuppressWarnings("try")
   public void computeAverages() {
+    try (MatchMetrics.Phase phase = startPhase(MatchMetrics.EVAL_AVERAGES)) {
+      computeAveragesUntimed();
+    }
+  }
+
+  private void computeAveragesUntimed() {
     this.caseAverages = new double[matchingVariables.length];
     this.controlAverages = new double[matchingVariables.length];
 
     // iterate over samples
     for (int si = 0; si < totalSampleCount; si++) {
+      boolean isCase = caseIds.contains(sampleIdByIndex[si]);
+      int weight = isCase ? 1 : getWeight(si);
       // iterate over variables
       for (int vi = 0; vi < matchingVariables.length; vi++) {
         if (matchingVariables[vi].isContinuous()) {
-          if (caseIds.contains(sampleIdByIndex[si])) {
+          if (isCase) {
             caseAverages[vi] += data[si][vi];
           } else {
-            controlAverages[vi] += data[si][vi];
+            controlAverages[vi] += weight * data[si][vi];
           }
         }
       }
     }
     for (int i = 0; i < matchingVariables.length; i++) {
       if (matchingVariables[i].isContinuous()) {
-        // divide by number of cases and controls, respectively
+        // divide by number of cases and (weighted) controls, respectively
         caseAverages[i] /= caseIds.size();
         controlAverages[i] /= controlCasePairings.size();
       } else {
@@ -147,19 +190,28 @@ public class DataBox {
     averagesComputed = true;
   }
 
+  @SuppressWarnings("try")
   public void computeUnivariateP() {
-    double[] deps = Arrays.stream(sampleIdByIndex)
-                          .mapToDouble(sampleId -> caseIds.contains(sampleId) ? 1 : 0).toArray();
+    try (MatchMetrics.Phase phase = startPhase(MatchMetrics.EVAL_UNIVARIATE)) {
+      computeUnivariatePUntimed();
+    }
+  }
+
+  private void computeUnivariatePUntimed() {
+    int[] rows = getWeightedRows();
+    double[] deps = Arrays.stream(rows)
+                          .mapToDouble(si -> caseIds.contains(sampleIdByIndex[si]) ? 1 : 0)
+                          .toArray();
 
     this.univariatePValues = new double[matchingVariables.length];
 
     for (int mvIndex = 0; mvIndex < matchingVariables.length; mvIndex++) {
       MatchingVariable mv = matchingVariables[mvIndex];
 
-      double[] indeps = new double[totalSampleCount];
+      double[] indeps = new double[rows.length];
 
-      for (int si = 0; si < totalSampleCount; si++) {
-        indeps[si] = data[si][mvIndex];
+      for (int r = 0; r < rows.length; r++) {
+        indeps[r] = data[rows[r]][mvIndex];
       }
 
       RegressionModel model = new LogisticRegression(deps, indeps);
@@ -168,18 +220,28 @@ public class DataBox {
     univariatePValuesComputed = true;
   }
 
+  @SuppressWarnings("try")
   public void computeMultivariateP() {
+    try (MatchMetrics.Phase phase = startPhase(MatchMetrics.EVAL_MULTIVARIATE)) {
+      computeMultivariatePUntimed();
+    }
+  }
+
+  private void computeMultivariatePUntimed() {
     this.multivariatePValues = new double[matchingVariables.length];
     // dependent variables: we just have one, case/control status
     // this is represented as an array of 1s for cases and 0s for controls
-    double[] deps = Arrays.stream(sampleIdByIndex)
-                          .mapToDouble(sampleId -> caseIds.contains(sampleId) ? 1 : 0).toArray();
+    int[] rows = getWeightedRows();
+    double[] deps = Arrays.stream(rows)
+                          .mapToDouble(si -> caseIds.contains(sampleIdByIndex[si]) ? 1 : 0)
+                          .toArray();
+    double[][] indeps = Arrays.stream(rows).mapToObj(si -> data[si]).toArray(double[][]::new);
 
     String[] indepVariableNames = Arrays.stream(matchingVariables)
                                         .map(matchingVariable -> matchingVariable.headerName)
                                         .toArray(String[]::new);
 
-    RegressionModel model = new LogisticRegression(deps, data, indepVariableNames, false, true);
+    RegressionModel model = new LogisticRegression(deps, indeps, indepVariableNames, false, true);
 
     for (MatchingVariable mv : matchingVariables) {
       int indexInModelSigs = ext.indexOfStr(mv.headerName, model.getVarNames());
@@ -257,14 +319,40 @@ public class DataBox {
     return multivariatePValues[combinedMvIndex];
   }
 
-  private int getCaseIndexForControlIndex(int controlIndex) {
-    String controlId = sampleIdByIndex[controlIndex];
-    String caseId = controlCasePairings.get(controlId);
-    if (sampleIndexById.containsKey(caseId)) {
-      return sampleIndexById.get(caseId);
-    } else {
-      throw new IllegalStateException("No index exists for this case: " + caseId
-                                      + ", which is the control for " + controlId);
+  /**
+   * @return the number of cases the control at this index was paired with
+   */
+  private int getWeight(int sampleIndex) {
+    return controlCasePairings.get(sampleIdByIndex[sampleIndex]).size();
+  }
+
+  /**
+   * Frequency weights are applied to the regressions by repeating each control's row once per
+   * pairing. Without replacement every control has exactly one pairing and this is just every
+   * recorded sample index.
+   * @return the sample index of each regression row
+   */
+  private int[] getWeightedRows() {
+    int[] rows = new int[caseIds.size() + controlCasePairings.size()];
+    int r = 0;
+    for (int si = 0; si < totalSampleCount && r < rows.length; si++) {
+      int weight = caseIds.contains(sampleIdByIndex[si]) ? 1 : getWeight(si);
+      for (int w = 0; w < weight; w++) {
+        rows[r++] = si;
+      }
     }
+    return r == rows.length ? rows : Arrays.copyOf(rows, r);
+  }
+
+  private int[] getCaseIndicesForControlIndex(int controlIndex) {
+    String controlId = sampleIdByIndex[controlIndex];
+    return controlCasePairings.get(controlId).stream().mapToInt(caseId -> {
+      if (sampleIndexById.containsKey(caseId)) {
+        return sampleIndexById.get(caseId);
+      } else {
+        throw new IllegalStateException("No index exists for this case: " + caseId
+                                        + ", which is the control for " + controlId);
+      }
+    }).toArray();
   }
 }
@@ -0,0 +1,550 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.stream.Stream;
+
+/**
+ * Correlates two distance matrices in the {@link MatchSamples#matchMaker} format by streaming both
+ * files in lockstep, so memory does not grow with the matrices. Moments are accumulated with
+ * Welford's updates, which stay accurate over billions of values. The rank correlation ranks each
+ * matrix by an external sort: values are written to sorted runs of {@value #RUN_LENGTH} on disk
+ * and merged at most {@value #MERGE_FAN_IN} at a time, and the ranks of the first matrix are kept
+ * in a {@link DistanceStore}, mapped from a file beyond the RAM budget. Pairs with a pruned or
+ * otherwise non-finite distance are skipped.
+ */
+public class DistanceCorrelation {
+  /** values per sorted run of the external sort, 64 MB of values and indices */
+  static final int RUN_LENGTH = 1 << 22;
+  /** most runs read at once by a merge, so large matrices do not exhaust file handles */
+  static final int MERGE_FAN_IN = 64;
+  private static final int RUN_BUFFER_BYTES = 1 << 15;
+
+  private DistanceCorrelation() {}
+
+  /** Running moments of pairs of values */
+  public static class Moments {
+    private long n = 0;
+    private double meanX = 0;
+    private double meanY = 0;
+    private double m2X = 0;
+    private double m2Y = 0;
+    private double coMoment = 0;
+
+    public void add(double x, double y) {
+      n++;
+      double dx = x - meanX;
+      double dy = y - meanY;
+      meanX += dx / n;
+      meanY += dy / n;
+      m2X += dx * (x - meanX);
+      m2Y += dy * (y - meanY);
+      coMoment += dx * (y - meanY);
+    }
+
+    public long n() {
+      return n;
+    }
+
+    public double meanX() {
+      return meanX;
+    }
+
+    public double meanY() {
+      return meanY;
+    }
+
+    public double varianceX() {
+      return n < 2 ? Double.NaN : m2X / (n - 1);
+    }
+
+    public double varianceY() {
+      return n < 2 ? Double.NaN : m2Y / (n - 1);
+    }
+
+    /** @return Pearson's correlation of x and y */
+    public double correlation() {
+      return coMoment / Math.sqrt(m2X * m2Y);
+    }
+
+    /** @return two-sided p-value of the correlation, from its t statistic */
+    public double correlationP() {
+      double r = correlation();
+      if (n < 3 || Double.isNaN(r)) {
+        return Double.NaN;
+      }
+      if (Math.abs(r) >= 1) {
+        return 0;
+      }
+      double df = n - 2;
+      return Distributions.studentTwoSidedP(r * Math.sqrt(df / (1 - r * r)), df);
+    }
+
+    /**
+     * @return two-sided p-value of the pooled-variance t-test for a difference between the means
+     *         of x and y, as {@link org.pankratzlab.common.stats.Ttest} computes it in memory
+     */
+    public double ttestP() {
+      if (n < 2) {
+        return Double.NaN;
+      }
+      double pooled = (m2X + m2Y) / (2 * n - 2);
+      if (pooled == 0) {
+        return meanX == meanY ? 1 : 0;
+      }
+      return Distributions.studentTwoSidedP((meanX - meanY) / Math.sqrt(pooled * 2 / n),
+                                            2 * n - 2);
+    }
+  }
+
+  /** Moments of the values of the two matrices and, if requested, of their ranks */
+  public static class Result {
+    public final Moments values;
+    /** null unless ranks were requested */
+    public final Moments ranks;
+
+    Result(Moments values, Moments ranks) {
+      this.values = values;
+      this.ranks = ranks;
+    }
+  }
+
+  private interface PairConsumer {
+    void accept(double x, double y) throws IOException;
+  }
+
+  interface RankConsumer {
+    void accept(long index, double rank) throws IOException;
+  }
+
+  /**
+   * @param ranks also rank both matrices, for Spearman's correlation
+   * @param tempDir directory for the sorted runs and ranks, removed afterwards
+   * @param ramBudgetBytes largest rank array held in memory
+   * @throws IllegalArgumentException if the files do not have the same anchors and barnacles
+   */
+  public static Result correlate(Path file1, Path file2, boolean ranks, Path tempDir,
+                                 long ramBudgetBytes) throws IOException {
+    return correlate(file1, file2, ranks, tempDir, new DistanceStore.Budget(ramBudgetBytes));
+  }
+
+  /**
+   * @param budget memory shared with other distance matrices for the rank array
+   * @see #correlate(Path, Path, boolean, Path, long)
+   */
+  public static Result correlate(Path file1, Path file2, boolean ranks, Path tempDir,
+                                 DistanceStore.Budget budget) throws IOException {
+    return correlate(file1, file2, ranks, tempDir, budget, RUN_LENGTH, MERGE_FAN_IN);
+  }
+
+  static Result correlate(Path file1, Path file2, boolean ranks, Path tempDir,
+                          DistanceStore.Budget budget, int runLength,
+                          int fanIn) throws IOException {
+    Moments values = new Moments();
+    if (!ranks) {
+      lockstep(file1, file2, values::add);
+      return new Result(values, null);
+    }
+    try (Ranker xs = new Ranker(tempDir, runLength, fanIn);
+         Ranker ys = new Ranker(tempDir, runLength, fanIn)) {
+      lockstep(file1, file2, (x, y) -> {
+        values.add(x, y);
+        xs.add(x);
+        ys.add(y);
+      });
+      Moments rankMoments = new Moments();
+      try (DistanceStore xRanks = DistanceStore.allocate(1, xs.count(), budget, xs.directory())) {
+        xs.rank((index, rank) -> xRanks.set(0, index, rank));
+        ys.rank((index, rank) -> rankMoments.add(xRanks.get(0, index), rank));
+      }
+      return new Result(values, rankMoments);
+    }
+  }
+
+  /**
+   * Ranks a sequence of values by the external sort, ties getting their average rank. Values are
+   * written to sorted runs in a directory of their own, removed on close.
+   */
+  static class Ranker implements Closeable {
+    private final Path runDir;
+    private final RunWriter runs;
+    private final int fanIn;
+
+    /** @param tempDir directory the runs are written in a new directory of */
+    Ranker(Path tempDir) throws IOException {
+      this(tempDir, RUN_LENGTH, MERGE_FAN_IN);
+    }
+
+    Ranker(Path tempDir, int runLength, int fanIn) throws IOException {
+      Files.createDirectories(tempDir);
+      runDir = Files.createTempDirectory(tempDir, "ranks");
+      runs = new RunWriter(runDir, "v", runLength);
+      this.fanIn = fanIn;
+    }
+
+    /** Add the value with the next index, counting from 0 */
+    void add(double value) throws IOException {
+      runs.add(value);
+    }
+
+    long count() {
+      return runs.count;
+    }
+
+    /** @return the directory of the runs, for other temporary files removed along with them */
+    Path directory() {
+      return runDir;
+    }
+
+    /** Pass the index and rank of every value added to consumer, in order of value */
+    void rank(RankConsumer consumer) throws IOException {
+      runs.finish();
+      DistanceCorrelation.rank(reduce(runs.runs, fanIn), consumer);
+    }
+
+    @Override
+    public void close() throws IOException {
+      try (Stream<Path> files = Files.list(runDir)) {
+        for (Path file : (Iterable<Path>) files::iterator) {
+          Files.deleteIfExists(file);
+        }
+      }
+      Files.deleteIfExists(runDir);
+    }
+  }
+
+  /** Pass every pair of finite distances at the same position of both files to consumer */
+  private static void lockstep(Path file1, Path file2, PairConsumer consumer) throws IOException {
+    try (MatrixReader reader1 = new MatrixReader(file1);
+         MatrixReader reader2 = new MatrixReader(file2)) {
+      if (reader1.rows != reader2.rows || reader1.barnacles.length != reader2.barnacles.length) {
+        throw new IllegalArgumentException("the two files have different numbers of anchors and "
+                                           + "barnacles");
+      }
+      for (int j = 0; j < reader1.barnacles.length; j++) {
+        if (!reader1.barnacles[j].equals(reader2.barnacles[j])) {
+          throw new IllegalArgumentException("the two files have different barnacles");
+        }
+      }
+      double[] row1 = new double[reader1.barnacles.length];
+      double[] row2 = new double[reader2.barnacles.length];
+      for (long i = 0; i < reader1.rows; i++) {
+        String anchor = reader1.nextRow(row1);
+        if (!anchor.equals(reader2.nextRow(row2))) {
+          throw new IllegalArgumentException("the two files have different anchors");
+        }
+        for (int j = 0; j < row1.length; j++) {
+          if (Double.isFinite(row1[j]) && Double.isFinite(row2[j])) {
+            // -0.0 sorts like 0.0
+            consumer.accept(row1[j] + 0.0, row2[j] + 0.0);
+          }
+        }
+      }
+    }
+  }
+
+  /** Reads a distance file a row at a time */
+  private static class MatrixReader implements Closeable {
+    private final Path file;
+    private final BufferedReader reader;
+    final long rows;
+    final String[] barnacles;
+
+    MatrixReader(Path file) throws IOException {
+      this.file = file;
+      reader = Files.newBufferedReader(file);
+      String[] counts = readLine().trim().split("\\s+");
+      rows = Long.parseLong(counts[0]);
+      String[] header = readLine().trim().split("\\s+");
+      barnacles = new String[Integer.parseInt(counts[1])];
+      if (header.length != barnacles.length + 1) {
+        throw new IOException("Expected " + barnacles.length + " barnacles in the header of "
+                              + file + " but found " + (header.length - 1));
+      }
+      System.arraycopy(header, 1, barnacles, 0, barnacles.length);
+    }
+
+    private String readLine() throws IOException {
+      String line = reader.readLine();
+      if (line == null) {
+        throw new IOException("Unexpected end of " + file);
+      }
+      return line;
+    }
+
+    /** @return the anchor of the next row, with its distances in values */
+    String nextRow(double[] values) throws IOException {
+      String line = readLine();
+      int end = line.length();
+      int pos = skipWhitespace(line, 0, end);
+      int tokenEnd = token(line, pos, end);
+      String anchor = line.substring(pos, tokenEnd);
+      pos = tokenEnd;
+      for (int j = 0; j < values.length; j++) {
+        pos = skipWhitespace(line, pos, end);
+        if (pos == end) {
+          throw new IOException("Expected " + values.length + " distances for " + anchor + " in "
+                                + file + " but found " + j);
+        }
+        tokenEnd = token(line, pos, end);
+        String value = line.substring(pos, tokenEnd);
+        values[j] = value.equals(MatchSamples.PRUNED_DISTANCE) ? Double.POSITIVE_INFINITY
+                                                               : Double.parseDouble(value);
+        pos = tokenEnd;
+      }
+      return anchor;
+    }
+
+    private static int skipWhitespace(String line, int pos, int end) {
+      while (pos < end && Character.isWhitespace(line.charAt(pos))) {
+        pos++;
+      }
+      return pos;
+    }
+
+    private static int token(String line, int pos, int end) {
+      while (pos < end && !Character.isWhitespace(line.charAt(pos))) {
+        pos++;
+      }
+      return pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+      reader.close();
+    }
+  }
+
+  /** Writes values with their position as runs sorted by value */
+  private static class RunWriter {
+    private final Path dir;
+    private final String prefix;
+    private final double[] values;
+    private final long[] indices;
+    private int size = 0;
+    long count = 0;
+    final List<Path> runs = new ArrayList<>();
+
+    RunWriter(Path dir, String prefix, int runLength) {
+      this.dir = dir;
+      this.prefix = prefix;
+      values = new double[runLength];
+      indices = new long[runLength];
+    }
+
+    void add(double value) throws IOException {
+      values[size] = value;
+      indices[size++] = count++;
+      if (size == values.length) {
+        flush();
+      }
+    }
+
+    void finish() throws IOException {
+      if (size > 0) {
+        flush();
+      }
+    }
+
+    private void flush() throws IOException {
+      sort(values, indices, 0, size);
+      Path run = dir.resolve(prefix + runs.size() + ".run");
+      try (DataOutputStream out = newRun(run)) {
+        for (int i = 0; i < size; i++) {
+          out.writeDouble(values[i]);
+          out.writeLong(indices[i]);
+        }
+      }
+      runs.add(run);
+      size = 0;
+    }
+  }
+
+  private static DataOutputStream newRun(Path run) throws IOException {
+    return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run),
+                                                         RUN_BUFFER_BYTES));
+  }
+
+  /** Sort values[from, to) ascending, moving indices along */
+  static void sort(double[] values, long[] indices, int from, int to) {
+    while (to - from > 16) {
+      int mid = (from + to) >>> 1;
+      double a = values[from];
+      double b = values[mid];
+      double c = values[to - 1];
+      double pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+      int i = from;
+      int j = to - 1;
+      while (i <= j) {
+        while (values[i] < pivot) {
+          i++;
+        }
+        while (values[j] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          swap(values, indices, i++, j--);
+        }
+      }
+      // recurse into the smaller side, so the stack stays logarithmic
+      if (j - from < to - i) {
+        sort(values, indices, from, j + 1);
+        from = i;
+      } else {
+        sort(values, indices, i, to);
+        to = j + 1;
+      }
+    }
+    for (int i = from + 1; i < to; i++) {
+      for (int k = i; k > from && values[k - 1] > values[k]; k--) {
+        swap(values, indices, k - 1, k);
+      }
+    }
+  }
+
+  private static void swap(double[] values, long[] indices, int i, int j) {
+    double value = values[i];
+    values[i] = values[j];
+    values[j] = value;
+    long index = indices[i];
+    indices[i] = indices[j];
+    indices[j] = index;
+  }
+
+  /** A sorted run being read back */
+  private static class RunReader implements Closeable {
+    private final DataInputStream in;
+    private long remaining;
+    double value;
+    long index;
+
+    RunReader(Path run) throws IOException {
+      in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run),
+                                                       RUN_BUFFER_BYTES));
+      remaining = Files.size(run) / (Double.BYTES + Long.BYTES);
+    }
+
+    boolean advance() throws IOException {
+      if (remaining == 0) {
+        return false;
+      }
+      remaining--;
+      value = in.readDouble();
+      index = in.readLong();
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /** Merges sorted runs into one sorted sequence */
+  private static class Merge implements Closeable {
+    private final PriorityQueue<RunReader> queue;
+    private final List<RunReader> readers = new ArrayList<>();
+
+    Merge(List<Path> runs) throws IOException {
+      queue = new PriorityQueue<>(Math.max(1, runs.size()),
+                                  Comparator.comparingDouble((RunReader r) -> r.value));
+      for (Path run : runs) {
+        RunReader reader = new RunReader(run);
+        readers.add(reader);
+        if (reader.advance()) {
+          queue.add(reader);
+        }
+      }
+    }
+
+    boolean hasNext() {
+      return !queue.isEmpty();
+    }
+
+    double peekValue() {
+      return queue.peek().value;
+    }
+
+    /** @return the index of the smallest remaining value */
+    long next() throws IOException {
+      RunReader reader = queue.poll();
+      long index = reader.index;
+      if (reader.advance()) {
+        queue.add(reader);
+      }
+      return index;
+    }
+
+    @Override
+    public void close() throws IOException {
+      for (RunReader reader : readers) {
+        reader.close();
+      }
+    }
+  }
+
+  /**
+   * Merge groups of fanIn runs into longer runs, replacing them, until at most fanIn are left
+   * @return the remaining runs
+   */
+  private static List<Path> reduce(List<Path> runs, int fanIn) throws IOException {
+    while (runs.size() > fanIn) {
+      List<Path> merged = new ArrayList<>();
+      for (int from = 0; from < runs.size(); from += fanIn) {
+        List<Path> group = runs.subList(from, Math.min(runs.size(), from + fanIn));
+        if (group.size() == 1) {
+          merged.add(group.get(0));
+          continue;
+        }
+        Path run = Files.createTempFile(group.get(0).getParent(), "merged", ".run");
+        try (Merge merge = new Merge(group); DataOutputStream out = newRun(run)) {
+          while (merge.hasNext()) {
+            out.writeDouble(merge.peekValue());
+            out.writeLong(merge.next());
+          }
+        }
+        for (Path done : group) {
+          Files.delete(done);
+        }
+        merged.add(run);
+      }
+      runs = merged;
+    }
+    return runs;
+  }
+
+  /**
+   * Pass the rank of every value of the runs to consumer, ties getting their average rank. A lead
+   * merge counts each group of ties and a trailing merge of the same runs then hands out the
+   * group's rank, so no group is ever held in memory.
+   */
+  private static void rank(List<Path> runs, RankConsumer consumer) throws IOException {
+    try (Merge lead = new Merge(runs); Merge trail = new Merge(runs)) {
+      long position = 0;
+      while (lead.hasNext()) {
+        double value = lead.peekValue();
+        long size = 0;
+        while (lead.hasNext() && lead.peekValue() == value) {
+          lead.next();
+          size++;
+        }
+        double rank = position + (size + 1) / 2.0;
+        for (long k = 0; k < size; k++) {
+          consumer.accept(trail.next(), rank);
+        }
+        position += size;
+      }
+    }
+  }
+}
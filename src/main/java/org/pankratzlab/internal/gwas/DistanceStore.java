@@ -0,0 +1,231 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A dense case by control distance matrix kept off the Java heap, so that the legacy
+ * {@link MatchSamples} matrices neither slow down garbage collection nor hit the limits of Java
+ * arrays. Entries are addressed with 64-bit indices and stored in segments of
+ * {@value #SEGMENT_DOUBLES} doubles, each a direct buffer, or a memory-mapped region of a
+ * temporary file when the matrix does not fit in what is left of its {@link Budget}, which is
+ * shared by every store allocated against it until they are closed. The spill file is deleted when
+ * the store is closed.
+ * <p>
+ * Not thread-safe for concurrent writes to the same entries; rows can be filled by different
+ * threads.
+ */
+public class DistanceStore implements AutoCloseable {
+  /** log2 of the doubles per segment, 1 GiB segments */
+  static final int SEGMENT_SHIFT = 27;
+  static final int SEGMENT_DOUBLES = 1 << SEGMENT_SHIFT;
+  public static final String SPILL_PREFIX = "distances";
+
+  /**
+   * Memory shared by the stores allocated against it: a store reserves its size when it is
+   * allocated and releases it when it is closed, and is mapped from a file if it does not fit in
+   * what is left
+   */
+  public static class Budget {
+    private final long limitBytes;
+    private final AtomicLong reservedBytes = new AtomicLong();
+
+    public Budget(long limitBytes) {
+      this.limitBytes = limitBytes;
+    }
+
+    public long limit() {
+      return limitBytes;
+    }
+
+    /** @return bytes held by the stores that are still open */
+    public long reserved() {
+      return reservedBytes.get();
+    }
+
+    private boolean tryReserve(long bytes) {
+      long reserved;
+      do {
+        reserved = reservedBytes.get();
+        if (bytes > limitBytes - reserved) {
+          return false;
+        }
+      } while (!reservedBytes.compareAndSet(reserved, reserved + bytes));
+      return true;
+    }
+
+    private void release(long bytes) {
+      reservedBytes.addAndGet(-bytes);
+    }
+  }
+
+  private final long rows;
+  private final long columns;
+  private final int segmentShift;
+  private final long segmentMask;
+  private final DoubleBuffer[] segments;
+  private final Path spillFile;
+  private final Budget budget;
+  private long reservedBytes;
+
+  private DistanceStore(long rows, long columns, int segmentShift, DoubleBuffer[] segments,
+                        Path spillFile, Budget budget, long reservedBytes) {
+    this.rows = rows;
+    this.columns = columns;
+    this.segmentShift = segmentShift;
+    this.segmentMask = (1L << segmentShift) - 1;
+    this.segments = segments;
+    this.spillFile = spillFile;
+    this.budget = budget;
+    this.reservedBytes = reservedBytes;
+  }
+
+  /**
+   * @param ramBudgetBytes largest matrix kept in memory; larger ones are mapped from a file
+   * @param spillDir directory of the file of a mapped matrix
+   * @return a matrix of rows by columns, every entry 0
+   */
+  public static DistanceStore allocate(long rows, long columns, long ramBudgetBytes,
+                                       Path spillDir) throws IOException {
+    return allocate(rows, columns, new Budget(ramBudgetBytes), spillDir);
+  }
+
+  /**
+   * @param budget memory shared with the other open stores of the budget; a matrix that does not
+   *          fit in what is left of it is mapped from a file
+   * @see #allocate(long, long, long, Path)
+   */
+  public static DistanceStore allocate(long rows, long columns, Budget budget, Path spillDir)
+      throws IOException {
+    return allocate(rows, columns, budget, spillDir, SEGMENT_SHIFT);
+  }
+
+  static DistanceStore allocate(long rows, long columns, long ramBudgetBytes, Path spillDir,
+                                int segmentShift) throws IOException {
+    return allocate(rows, columns, new Budget(ramBudgetBytes), spillDir, segmentShift);
+  }
+
+  static DistanceStore allocate(long rows, long columns, Budget budget, Path spillDir,
+                                int segmentShift) throws IOException {
+    if (rows < 0 || columns < 0) {
+      throw new IllegalArgumentException("Invalid distance matrix size " + rows + " x " + columns);
+    }
+    long size = Math.multiplyExact(rows, columns);
+    long segmentDoubles = 1L << segmentShift;
+    int numSegments = (int) ((size + segmentDoubles - 1) >>> segmentShift);
+    DoubleBuffer[] segments = new DoubleBuffer[numSegments];
+    long bytes = Math.multiplyExact(size, Double.BYTES);
+    if (budget.tryReserve(bytes)) {
+      try {
+        for (int s = 0; s < numSegments; s++) {
+          segments[s] = ByteBuffer.allocateDirect(Double.BYTES
+                                                    * segmentLength(size, s, segmentShift))
+                                  .order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        }
+      } catch (RuntimeException | Error e) {
+        budget.release(bytes);
+        throw e;
+      }
+      return new DistanceStore(rows, columns, segmentShift, segments, null, budget, bytes);
+    }
+    Files.createDirectories(spillDir);
+    Path file = Files.createTempFile(spillDir, SPILL_PREFIX, ".bin");
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ,
+                                                StandardOpenOption.WRITE)) {
+      for (int s = 0; s < numSegments; s++) {
+        // mappings stay valid after the channel is closed
+        segments[s] = channel.map(FileChannel.MapMode.READ_WRITE,
+                                  (long) s * segmentDoubles * Double.BYTES,
+                                  (long) Double.BYTES * segmentLength(size, s, segmentShift))
+                             .order(ByteOrder.nativeOrder()).asDoubleBuffer();
+      }
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(file);
+      throw e;
+    }
+    file.toFile().deleteOnExit();
+    return new DistanceStore(rows, columns, segmentShift, segments, file, budget, 0);
+  }
+
+  private static int segmentLength(long size, int segment, int segmentShift) {
+    return (int) Math.min(1L << segmentShift, size - ((long) segment << segmentShift));
+  }
+
+  public long rows() {
+    return rows;
+  }
+
+  public long columns() {
+    return columns;
+  }
+
+  /** @return true if the matrix is mapped from a file rather than held in memory */
+  public boolean isMapped() {
+    return spillFile != null;
+  }
+
+  public double get(long row, long column) {
+    long index = row * columns + column;
+    return segments[(int) (index >>> segmentShift)].get((int) (index & segmentMask));
+  }
+
+  public void set(long row, long column, double value) {
+    long index = row * columns + column;
+    segments[(int) (index >>> segmentShift)].put((int) (index & segmentMask), value);
+  }
+
+  /** Copy a row into values, which must hold {@link #columns()} entries */
+  public double[] getRow(long row, double[] values) {
+    for (int j = 0; j < columns; j++) {
+      values[j] = get(row, j);
+    }
+    return values;
+  }
+
+  public void setRow(long row, double[] values) {
+    for (int j = 0; j < columns; j++) {
+      set(row, j, values[j]);
+    }
+  }
+
+  public void fillRow(long row, double value) {
+    for (long j = 0; j < columns; j++) {
+      set(row, j, value);
+    }
+  }
+
+  public void fillColumn(long column, double value) {
+    for (long i = 0; i < rows; i++) {
+      set(i, column, value);
+    }
+  }
+
+  /**
+   * Drop the segments, release their reservation and delete the spill file; direct memory is
+   * returned when the buffers are collected
+   */
+  @Override
+  public void close() {
+    for (int s = 0; s < segments.length; s++) {
+      segments[s] = null;
+    }
+    // a second close releases nothing
+    budget.release(reservedBytes);
+    reservedBytes = 0;
+    if (spillFile != null) {
+      try {
+        Files.deleteIfExists(spillFile);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+}
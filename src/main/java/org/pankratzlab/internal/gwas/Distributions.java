@@ -0,0 +1,97 @@
+package org.pankratzlab.internal.gwas;
+
+/**
+ * Tail probabilities of the distributions used by the streaming statistics of
+ * {@link DistanceCorrelation}, which only has the moments of its values and so cannot use the
+ * array-based tests of the stats library.
+ */
+public class Distributions {
+  /** beyond this many degrees of freedom the t distribution is taken as normal */
+  static final double NORMAL_DF = 1e6;
+
+  private Distributions() {}
+
+  /** @return P(|T| >= |t|) for Student's t distribution with df degrees of freedom */
+  public static double studentTwoSidedP(double t, double df) {
+    if (Double.isNaN(t) || Double.isNaN(df)) {
+      return Double.NaN;
+    }
+    if (df > NORMAL_DF) {
+      return erfc(Math.abs(t) / Math.sqrt(2));
+    }
+    return regularizedBeta(df / (df + t * t), df / 2, 0.5);
+  }
+
+  /** @return the regularized incomplete beta function I_x(a, b) */
+  static double regularizedBeta(double x, double a, double b) {
+    if (x <= 0) {
+      return 0;
+    }
+    if (x >= 1) {
+      return 1;
+    }
+    double front = Math.exp(logGamma(a + b) - logGamma(a) - logGamma(b) + a * Math.log(x)
+                            + b * Math.log(1 - x));
+    if (x < (a + 1) / (a + b + 2)) {
+      return front * betaContinuedFraction(x, a, b) / a;
+    }
+    return 1 - front * betaContinuedFraction(1 - x, b, a) / b;
+  }
+
+  /** Lentz's evaluation of the continued fraction of the incomplete beta function */
+  private static double betaContinuedFraction(double x, double a, double b) {
+    double tiny = 1e-300;
+    double c = 1;
+    double d = 1 - (a + b) * x / (a + 1);
+    d = 1 / (Math.abs(d) < tiny ? tiny : d);
+    double h = d;
+    for (int m = 1; m <= 100000; m++) {
+      int m2 = 2 * m;
+      double aa = m * (b - m) * x / ((a + m2 - 1) * (a + m2));
+      d = 1 + aa * d;
+      d = 1 / (Math.abs(d) < tiny ? tiny : d);
+      c = 1 + aa / c;
+      c = Math.abs(c) < tiny ? tiny : c;
+      h *= d * c;
+      aa = -(a + m) * (a + b + m) * x / ((a + m2) * (a + m2 + 1));
+      d = 1 + aa * d;
+      d = 1 / (Math.abs(d) < tiny ? tiny : d);
+      c = 1 + aa / c;
+      c = Math.abs(c) < tiny ? tiny : c;
+      double delta = d * c;
+      h *= delta;
+      if (Math.abs(delta - 1) < 1e-15) {
+        break;
+      }
+    }
+    return h;
+  }
+
+  /** Lanczos approximation of log(gamma(x)) for x > 0 */
+  static double logGamma(double x) {
+    double[] coefficients = {676.5203681218851, -1259.1392167224028, 771.32342877765313,
+                             -176.61502916214059, 12.507343278686905, -0.13857109526572012,
+                             9.9843695780195716e-6, 1.5056327351493116e-7};
+    if (x < 0.5) {
+      return Math.log(Math.PI / Math.abs(Math.sin(Math.PI * x))) - logGamma(1 - x);
+    }
+    x -= 1;
+    double sum = 0.99999999999980993;
+    for (int i = 0; i < coefficients.length; i++) {
+      sum += coefficients[i] / (x + i + 1);
+    }
+    double t = x + coefficients.length - 0.5;
+    return 0.5 * Math.log(2 * Math.PI) + (x + 0.5) * Math.log(t) - t + Math.log(sum);
+  }
+
+  /** Complementary error function, with a relative error below 1.2e-7 */
+  static double erfc(double x) {
+    double z = Math.abs(x);
+    double t = 1 / (1 + 0.5 * z);
+    double r = t * Math.exp(-z * z - 1.26551223
+                            + t * (1.00002368 + t * (0.37409196 + t * (0.09678418
+                                   + t * (-0.18628806 + t * (0.27886807 + t * (-1.13520398
+                                   + t * (1.48851587 + t * (-0.82215223 + t * 0.17087277)))))))));
+    return x >= 0 ? r : 2 - r;
+  }
+}
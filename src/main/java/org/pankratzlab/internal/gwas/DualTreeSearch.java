@@ -0,0 +1,129 @@
+package org.pankratzlab.internal.gwas;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * All-k-nearest-neighbor search that traverses a tree over the query points together with the
+ * reference tree. A pair of nodes is pruned when the distance between their bounding boxes exceeds
+ * the worst current k-th neighbor distance of any query in the query node, so one box comparison
+ * can rule out a reference subtree for a whole batch of neighboring queries at once. Recursion into
+ * the two halves of a query node runs as separate fork-join tasks, since they update disjoint sets
+ * of heaps. The tasks run in the pool of the calling task, such as the pool of the configured
+ * number of threads that {@link MatchMaker} searches a stratum on, or else in the common pool.
+ */
+public class DualTreeSearch {
+  /** Query nodes with fewer points than this are searched in the current task */
+  static final int MIN_FORK_SIZE = 512;
+
+  private final KDSearchTree queries;
+  private final KDSearchTree references;
+  private final Neighbors.Heap[] heaps;
+  // per query node, the largest squared distance bound of any query below it
+  private final double[] nodeBounds;
+
+  private DualTreeSearch(KDSearchTree queries, KDSearchTree references, int k,
+                         double maxDistance) {
+    this.queries = queries;
+    this.references = references;
+    this.heaps = new Neighbors.Heap[queries.size()];
+    for (int q = 0; q < heaps.length; q++) {
+      heaps[q] = new Neighbors.Heap(k, maxDistance);
+    }
+    this.nodeBounds = new double[queries.numNodes()];
+    Arrays.fill(nodeBounds, maxDistance * maxDistance);
+  }
+
+  /**
+   * @param queries tree over the query points
+   * @param references tree over the points to search
+   * @param k maximum number of neighbors per query
+   * @param maxDistance only points at most this far away are returned; use
+   *          {@link Double#POSITIVE_INFINITY} for an unbounded search
+   * @return for each query point, indexed as in the points the query tree was built from, the same
+   *         neighbors {@link KDSearchTree#nearest} would return, except for the order of ties
+   */
+  public static Neighbors[] allNearest(KDSearchTree queries, KDSearchTree references, int k,
+                                       double maxDistance) {
+    Neighbors[] result = new Neighbors[queries.size()];
+    if (queries.size() == 0 || references.size() == 0 || k <= 0) {
+      Arrays.fill(result, Neighbors.EMPTY);
+      return result;
+    }
+    DualTreeSearch search = new DualTreeSearch(queries, references, k, maxDistance);
+    ForkJoinPool pool = ForkJoinTask.inForkJoinPool() ? ForkJoinTask.getPool()
+                                                      : ForkJoinPool.commonPool();
+    pool.invoke(search.new NodePair(0, 0));
+    for (int q = 0; q < result.length; q++) {
+      result[q] = search.heaps[q].toNeighbors();
+    }
+    return result;
+  }
+
+  private class NodePair extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final int queryNode;
+    private final int referenceNode;
+
+    NodePair(int queryNode, int referenceNode) {
+      this.queryNode = queryNode;
+      this.referenceNode = referenceNode;
+    }
+
+    @Override
+    protected void compute() {
+      traverse(queryNode, referenceNode);
+    }
+
+    private void traverse(int q, int r) {
+      if (queries.squaredDistanceBetweenBoxes(q, references, r) > nodeBounds[q]) {
+        return;
+      }
+      boolean queryLeaf = queries.isLeaf(q);
+      boolean referenceLeaf = references.isLeaf(r);
+      if (queryLeaf && referenceLeaf) {
+        baseCase(q, r);
+      } else if (queryLeaf || (!referenceLeaf && size(references, r) >= size(queries, q))) {
+        // visit the nearer reference child first, which tightens the bounds sooner
+        int near = references.leftChild(r);
+        int far = references.rightChild(r);
+        if (queries.squaredDistanceBetweenBoxes(q, references, far)
+            < queries.squaredDistanceBetweenBoxes(q, references, near)) {
+          near = references.rightChild(r);
+          far = references.leftChild(r);
+        }
+        traverse(q, near);
+        traverse(q, far);
+      } else {
+        int ql = queries.leftChild(q);
+        int qr = queries.rightChild(q);
+        if (size(queries, q) >= MIN_FORK_SIZE) {
+          invokeAll(new NodePair(ql, r), new NodePair(qr, r));
+        } else {
+          traverse(ql, r);
+          traverse(qr, r);
+        }
+        nodeBounds[q] = Math.max(nodeBounds[ql], nodeBounds[qr]);
+      }
+    }
+
+    private void baseCase(int q, int r) {
+      double bound = 0;
+      for (int i = queries.nodeStart(q); i < queries.nodeEnd(q); i++) {
+        Neighbors.Heap heap = heaps[queries.pointAt(i)];
+        for (int j = references.nodeStart(r); j < references.nodeEnd(r); j++) {
+          heap.offer(references.pointAt(j), queries.squaredDistance(i, references, j));
+        }
+        bound = Math.max(bound, heap.bound());
+      }
+      nodeBounds[q] = bound;
+    }
+  }
+
+  private static int size(KDSearchTree tree, int node) {
+    return tree.nodeEnd(node) - tree.nodeStart(node);
+  }
+}
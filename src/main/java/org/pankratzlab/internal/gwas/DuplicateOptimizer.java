@@ -0,0 +1,384 @@
+package org.pankratzlab.internal.gwas;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Iterative replacement for the kdmatch {@code SelectOptimizedNeighbors} duplicate optimization.
+ * It starts from the greedy assignment of {@link TreeMatcher#resolveDuplicates} and improves it in
+ * passes:
+ * <ol>
+ * <li>a case that is short of controls is given one more through a breadth-first augmenting path,
+ * where each case along the path hands its control on and takes another of its candidates</li>
+ * <li>an assigned control is replaced by a closer unused candidate, or swapped with another case
+ * when that lowers the summed distance of both</li>
+ * </ol>
+ * With a {@link KinshipIndex}, no case is given a control related to it or to another of its
+ * controls: the greedy assignment drops such controls and no move makes such an assignment.
+ * Every move keeps the assignment valid and never lowers the number of matched controls or raises
+ * the total distance, so the working assignment is always the best found so far. The optimizer
+ * stops after a number of passes or at a deadline, checked between moves, and returns that
+ * assignment; after every pass that improved it, the assignment is also handed to a checkpoint, so
+ * that a run killed during a long optimization can keep it. Nothing recurses, so the size of a
+ * stratum cannot overflow the stack.
+ */
+public class DuplicateOptimizer {
+  /** Largest number of cases explored by the search for a single augmenting path */
+  static final int MAX_AUGMENT_VISITS = 10000;
+  private static final double EPSILON = 1e-12;
+  private static final int DEADLINE_CHECK_INTERVAL = 256;
+
+  private final StratumMatches candidates;
+  private final int numSelect;
+  private final int[][] assigned;
+  private final double[][] assignedDistances;
+  private final int[] counts;
+  private final int[] owners;
+  private final KinshipIndex kinship;
+  private final int[] caseKinship;
+  private final int[] controlKinship;
+
+  // augmenting path search state, reused across searches
+  private final int[] visitStamps;
+  private int stamp = 0;
+  private final int[] parents;
+  private final int[] handedOn;
+  private final int[] queue;
+
+  private DuplicateOptimizer(StratumMatches candidates, int numSelect, KinshipIndex kinship) {
+    Stratum stratum = candidates.getStratum();
+    this.candidates = candidates;
+    this.numSelect = numSelect;
+    this.kinship = kinship;
+    caseKinship = new int[stratum.numCases()];
+    for (int c = 0; c < caseKinship.length; c++) {
+      caseKinship[c] = kinship.sampleIndex(stratum.getCaseId(c));
+    }
+    controlKinship = new int[stratum.numControls()];
+    for (int x = 0; x < controlKinship.length; x++) {
+      controlKinship[x] = kinship.sampleIndex(stratum.getControlId(x));
+    }
+    int numCases = stratum.numCases();
+    assigned = new int[numCases][numSelect];
+    assignedDistances = new double[numCases][numSelect];
+    counts = new int[numCases];
+    owners = new int[stratum.numControls()];
+    Arrays.fill(owners, StratumMatches.NO_MATCH);
+    visitStamps = new int[numCases];
+    parents = new int[numCases];
+    handedOn = new int[numCases];
+    queue = new int[numCases];
+
+    StratumMatches greedy = TreeMatcher.resolve(candidates, numSelect, new int[numCases]);
+    for (int c = 0; c < numCases; c++) {
+      Arrays.fill(assigned[c], StratumMatches.NO_MATCH);
+      for (int s = 0; s < numSelect; s++) {
+        int control = greedy.getControl(c, s);
+        if (control != StratumMatches.NO_MATCH && allowed(c, control, StratumMatches.NO_MATCH)) {
+          assigned[c][s] = control;
+          assignedDistances[c][s] = greedy.getDistance(c, s);
+          owners[control] = c;
+          counts[c]++;
+        }
+      }
+    }
+  }
+
+  /**
+   * @param candidates candidate controls of each case, nearest first
+   * @param numSelect number of controls wanted per case
+   * @param deadlineNanos {@link System#nanoTime()} after which no further moves are made, or
+   *          {@link Long#MAX_VALUE} for no deadline
+   * @param maxPasses largest number of improvement passes
+   * @return the best assignment found, each case's controls nearest first
+   */
+  public static StratumMatches optimize(StratumMatches candidates, int numSelect,
+                                        long deadlineNanos, int maxPasses, Logger log) {
+    return optimize(candidates, numSelect, deadlineNanos, maxPasses, KinshipIndex.EMPTY, log);
+  }
+
+  /**
+   * @param kinship pairs of samples that must not end up in the same case's set
+   * @see #optimize(StratumMatches, int, long, int, Logger)
+   */
+  public static StratumMatches optimize(StratumMatches candidates, int numSelect,
+                                        long deadlineNanos, int maxPasses, KinshipIndex kinship,
+                                        Logger log) {
+    return optimize(candidates, numSelect, deadlineNanos, maxPasses, kinship, best -> {}, log);
+  }
+
+  /**
+   * @param checkpoint receives the best assignment so far after every pass that improved it
+   * @see #optimize(StratumMatches, int, long, int, KinshipIndex, Logger)
+   */
+  public static StratumMatches optimize(StratumMatches candidates, int numSelect,
+                                        long deadlineNanos, int maxPasses, KinshipIndex kinship,
+                                        Consumer<StratumMatches> checkpoint, Logger log) {
+    return optimize(candidates, numSelect, deadlineNanos, maxPasses, kinship, checkpoint,
+                    new MatchProgress(), log);
+  }
+
+  /**
+   * @param progress counts the cases visited by each pass, out of the cases of every pass allowed
+   * @see #optimize(StratumMatches, int, long, int, KinshipIndex, Consumer, Logger)
+   */
+  public static StratumMatches optimize(StratumMatches candidates, int numSelect,
+                                        long deadlineNanos, int maxPasses, KinshipIndex kinship,
+                                        Consumer<StratumMatches> checkpoint,
+                                        MatchProgress progress, Logger log) {
+    return optimize(candidates, numSelect, deadlineNanos, maxPasses, kinship, checkpoint,
+                    progress, MatchMetrics.NONE, log);
+  }
+
+  /**
+   * @param metrics records each improvement pass as a {@link MatchMetrics#OPTIMIZE_PASS} phase
+   * @see #optimize(StratumMatches, int, long, int, KinshipIndex, Consumer, MatchProgress, Logger)
+   */
+  @SuppressWarnings("try")
+  public static StratumMatches optimize(StratumMatches candidates, int numSelect,
+                                        long deadlineNanos, int maxPasses, KinshipIndex kinship,
+                                        Consumer<StratumMatches> checkpoint,
+                                        MatchProgress progress, MatchMetrics metrics, Logger log) {
+    DuplicateOptimizer optimizer = new DuplicateOptimizer(candidates, numSelect, kinship);
+    String key = candidates.getStratum().getKey();
+    log.info("Greedy assignment for " + key + ": " + optimizer.describe());
+    // the optimizer usually stops well before its last pass, which finishes the task early
+    MatchProgress.Task visited = progress.task(MatchProgress.OPTIMIZED_CASES, key,
+                                               (long) optimizer.counts.length * maxPasses);
+    int passes = 0;
+    boolean improved = true;
+    boolean outOfTime = false;
+    while (improved && passes < maxPasses && !outOfTime) {
+      improved = false;
+      passes++;
+      // a phase per pass, as a single pass over a large stratum can take minutes
+      try (MatchMetrics.Phase pass = metrics.start(MatchMetrics.OPTIMIZE_PASS, key)
+                                            .stratum(optimizer.counts.length,
+                                                     optimizer.owners.length)
+                                            .k(numSelect).pass(passes)) {
+        for (int c = 0; c < optimizer.counts.length; c++) {
+          if (c % DEADLINE_CHECK_INTERVAL == 0 && System.nanoTime() > deadlineNanos) {
+            outOfTime = true;
+            break;
+          }
+          visited.increment();
+          if (optimizer.counts[c] < numSelect && optimizer.augment(c)) {
+            improved = true;
+          }
+          if (optimizer.improve(c)) {
+            improved = true;
+          }
+        }
+      }
+      if (improved) {
+        checkpoint.accept(optimizer.toMatches());
+      }
+    }
+    if (outOfTime) {
+      log.warning("Optimization of " + key + " reached its deadline during pass " + passes
+                  + ", keeping the best assignment so far");
+    } else if (improved) {
+      log.info("Optimization of " + key + " stopped after the maximum of " + maxPasses
+               + " passes");
+    }
+    visited.finish();
+    log.info("Optimized assignment for " + key + " after " + passes + " passes: "
+             + optimizer.describe());
+    return optimizer.toMatches();
+  }
+
+  /**
+   * Search breadth first for a path from case a to an unassigned control, where every case on the
+   * path gives its control to the previous case and takes the next control, then apply it.
+   * @return true if case a received another control
+   */
+  private boolean augment(int a) {
+    stamp++;
+    int head = 0;
+    int tail = 0;
+    queue[tail++] = a;
+    visitStamps[a] = stamp;
+    while (head < tail && tail < MAX_AUGMENT_VISITS) {
+      int u = queue[head++];
+      for (int j = 0; j < candidates.getDepth(u); j++) {
+        int x = candidates.getControl(u, j);
+        if (x == StratumMatches.NO_MATCH) {
+          break;
+        }
+        int v = owners[x];
+        if (v == u || !allowed(u, x, u == a ? StratumMatches.NO_MATCH : handedOn[u])) {
+          continue;
+        }
+        if (v == StratumMatches.NO_MATCH) {
+          applyPath(a, u, x);
+          return true;
+        }
+        if (visitStamps[v] != stamp) {
+          visitStamps[v] = stamp;
+          parents[v] = u;
+          handedOn[v] = x;
+          queue[tail++] = v;
+        }
+      }
+    }
+    return false;
+  }
+
+  private void applyPath(int a, int last, int freeControl) {
+    int current = last;
+    int take = freeControl;
+    while (current != a) {
+      int give = handedOn[current];
+      replace(current, give, take);
+      take = give;
+      current = parents[current];
+    }
+    for (int s = 0; s < numSelect; s++) {
+      if (assigned[a][s] == StratumMatches.NO_MATCH) {
+        assigned[a][s] = take;
+        assignedDistances[a][s] = candidateDistance(a, take);
+        owners[take] = a;
+        counts[a]++;
+        return;
+      }
+    }
+    throw new IllegalStateException("Case " + a + " has no free slot to augment");
+  }
+
+  /**
+   * Replace, for case a, each assigned control with a closer candidate when one is free or when
+   * swapping with its owner lowers the summed distance.
+   * @return true if anything changed
+   */
+  private boolean improve(int a) {
+    boolean changed = false;
+    for (int s = 0; s < numSelect; s++) {
+      int x = assigned[a][s];
+      if (x == StratumMatches.NO_MATCH) {
+        continue;
+      }
+      double dx = assignedDistances[a][s];
+      for (int j = 0; j < candidates.getDepth(a); j++) {
+        int y = candidates.getControl(a, j);
+        double dy = candidates.getDistance(a, j);
+        if (y == StratumMatches.NO_MATCH || dy >= dx - EPSILON) {
+          break;
+        }
+        int b = owners[y];
+        if (b == a || !allowed(a, y, x)) {
+          continue;
+        }
+        if (b == StratumMatches.NO_MATCH) {
+          owners[x] = StratumMatches.NO_MATCH;
+          replace(a, x, y);
+          changed = true;
+          break;
+        }
+        double dbx = candidateDistance(b, x);
+        double dby = slotDistance(b, y);
+        if (!Double.isNaN(dbx) && dy + dbx < dx + dby - EPSILON && allowed(b, x, y)) {
+          replace(b, y, x);
+          replace(a, x, y);
+          changed = true;
+          break;
+        }
+      }
+    }
+    return changed;
+  }
+
+  /** case c gives up control give and takes control take in the same slot */
+  private void replace(int c, int give, int take) {
+    for (int s = 0; s < numSelect; s++) {
+      if (assigned[c][s] == give) {
+        assigned[c][s] = take;
+        assignedDistances[c][s] = candidateDistance(c, take);
+        owners[take] = c;
+        return;
+      }
+    }
+    throw new IllegalStateException("Case " + c + " does not hold control " + give);
+  }
+
+  /**
+   * @return true if case c may hold control x in place of control replaced, or in an empty slot
+   *         if replaced is {@link StratumMatches#NO_MATCH}
+   */
+  private boolean allowed(int c, int x, int replaced) {
+    int xKinship = controlKinship[x];
+    if (xKinship < 0) {
+      return true;
+    }
+    if (kinship.related(caseKinship[c], xKinship)) {
+      return false;
+    }
+    for (int s = 0; s < numSelect; s++) {
+      int y = assigned[c][s];
+      if (y != StratumMatches.NO_MATCH && y != replaced && y != x
+          && kinship.related(controlKinship[y], xKinship)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private double candidateDistance(int c, int control) {
+    for (int j = 0; j < candidates.getDepth(c); j++) {
+      if (candidates.getControl(c, j) == control) {
+        return candidates.getDistance(c, j);
+      }
+    }
+    return Double.NaN;
+  }
+
+  private double slotDistance(int c, int control) {
+    for (int s = 0; s < numSelect; s++) {
+      if (assigned[c][s] == control) {
+        return assignedDistances[c][s];
+      }
+    }
+    return Double.NaN;
+  }
+
+  private String describe() {
+    long matched = 0;
+    double total = 0;
+    for (int c = 0; c < counts.length; c++) {
+      matched += counts[c];
+      for (int s = 0; s < numSelect; s++) {
+        if (assigned[c][s] != StratumMatches.NO_MATCH) {
+          total += assignedDistances[c][s];
+        }
+      }
+    }
+    return matched + " of " + ((long) counts.length * numSelect)
+           + " controls matched with a total distance of " + total;
+  }
+
+  private StratumMatches toMatches() {
+    StratumMatches matches = new StratumMatches(candidates.getStratum(), numSelect);
+    for (int c = 0; c < counts.length; c++) {
+      int caseIndex = c;
+      Integer[] slots = new Integer[numSelect];
+      for (int s = 0; s < numSelect; s++) {
+        slots[s] = s;
+      }
+      Arrays.sort(slots, (s1, s2) -> {
+        boolean empty1 = assigned[caseIndex][s1] == StratumMatches.NO_MATCH;
+        boolean empty2 = assigned[caseIndex][s2] == StratumMatches.NO_MATCH;
+        if (empty1 || empty2) {
+          return Boolean.compare(empty1, empty2);
+        }
+        return Double.compare(assignedDistances[caseIndex][s1], assignedDistances[caseIndex][s2]);
+      });
+      for (int i = 0; i < numSelect; i++) {
+        int s = slots[i];
+        if (assigned[c][s] != StratumMatches.NO_MATCH) {
+          matches.set(c, i, assigned[c][s], assignedDistances[c][s]);
+        }
+      }
+    }
+    return matches;
+  }
+}
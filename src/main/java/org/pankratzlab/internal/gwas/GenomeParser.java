@@ -0,0 +1,292 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Parses the anchor-barnacle pairs of a PLINK .genome file, which has a line for every pair of
+ * samples, into pihat, DST and ratio matrices for {@link MatchSamples#parseClusterfile}. The file
+ * is split into newline-aligned chunks of about {@value #CHUNK_BYTES} bytes that are tokenized in
+ * parallel straight from bytes; sample IDs are resolved with a hash dictionary, and only pairs of
+ * an anchor and a barnacle are converted to numbers. Chunks are applied in file order, so a pair
+ * listed twice keeps its last values, as before.
+ */
+public class GenomeParser {
+  static final int CHUNK_BYTES = 64 << 20;
+  /** columns of the two sample IDs and of the values, as read by parseClusterfile */
+  static final int ID1_COLUMN = 1;
+  static final int ID2_COLUMN = 3;
+  static final int PIHAT_COLUMN = 7;
+  static final int DST_COLUMN = 12;
+  static final int RATIO_COLUMN = 16;
+
+  private GenomeParser() {}
+
+  /** Entries of the matrices from one chunk, in file order */
+  private static class ChunkPairs {
+    long[] cells = new long[64];
+    double[] values = new double[3 * 64];
+    int size;
+
+    void add(long cell, double pihat, double dst, double ratio) {
+      if (size == cells.length) {
+        cells = Arrays.copyOf(cells, 2 * size);
+        values = Arrays.copyOf(values, 6 * size);
+      }
+      cells[size] = cell;
+      values[3 * size] = pihat;
+      values[3 * size + 1] = dst;
+      values[3 * size + 2] = ratio;
+      size++;
+    }
+  }
+
+  /**
+   * Open addressing dictionary from the bytes of an ID to its first index in an array, so IDs can
+   * be looked up without making a String of every ID in the file
+   */
+  static class IdIndex {
+    private final byte[][] keys;
+    private final int[] indices;
+    private final int mask;
+
+    IdIndex(String[] ids) {
+      int capacity = Integer.highestOneBit(Math.max(2, ids.length) * 2 - 1) << 1;
+      keys = new byte[capacity][];
+      indices = new int[capacity];
+      mask = capacity - 1;
+      for (int i = 0; i < ids.length; i++) {
+        byte[] key = ids[i].getBytes(StandardCharsets.UTF_8);
+        int slot = hash(key, 0, key.length) & mask;
+        while (keys[slot] != null && !Arrays.equals(keys[slot], key)) {
+          slot = (slot + 1) & mask;
+        }
+        if (keys[slot] == null) {
+          keys[slot] = key;
+          indices[slot] = i;
+        }
+      }
+    }
+
+    private static int hash(byte[] bytes, int from, int to) {
+      int h = 0x811c9dc5;
+      for (int i = from; i < to; i++) {
+        h = (h ^ bytes[i]) * 0x01000193;
+      }
+      return h ^ (h >>> 16);
+    }
+
+    /** @return the index of the ID in bytes[from, to), or -1 */
+    int get(byte[] bytes, int from, int to) {
+      int slot = hash(bytes, from, to) & mask;
+      while (keys[slot] != null) {
+        if (Arrays.equals(keys[slot], 0, keys[slot].length, bytes, from, to)) {
+          return indices[slot];
+        }
+        slot = (slot + 1) & mask;
+      }
+      return -1;
+    }
+  }
+
+  /**
+   * Set the entry of every anchor-barnacle pair of the file in the matrices, to 1 - pihat,
+   * 1 - DST and 3 - ratio; entries of pairs not in the file are left as they are
+   * @param dataStart offset of the first line after the header
+   */
+  public static void parse(Path genomeFile, long dataStart, String[] anchors, String[] barnacles,
+                           DistanceStore pihats, DistanceStore dsts,
+                           DistanceStore ratios) throws IOException {
+    parse(genomeFile, dataStart, anchors, barnacles, pihats, dsts, ratios, CHUNK_BYTES);
+  }
+
+  static void parse(Path genomeFile, long dataStart, String[] anchors, String[] barnacles,
+                    DistanceStore pihats, DistanceStore dsts, DistanceStore ratios,
+                    int chunkBytes) throws IOException {
+    IdIndex anchorIndex = new IdIndex(anchors);
+    IdIndex barnacleIndex = new IdIndex(barnacles);
+    try (FileChannel channel = FileChannel.open(genomeFile, StandardOpenOption.READ)) {
+      long[] bounds = chunkBounds(channel, dataStart, chunkBytes);
+      int numChunks = bounds.length - 1;
+      // parse a chunk per thread at a time, so only their pairs are held before being applied
+      int batch = ForkJoinPool.getCommonPoolParallelism() + 1;
+      for (int first = 0; first < numChunks; first += batch) {
+        List<ChunkPairs> parsed;
+        try {
+          parsed = IntStream.range(first, Math.min(numChunks, first + batch)).parallel()
+                            .mapToObj(c -> parseChunk(channel, bounds[c], bounds[c + 1],
+                                                      anchorIndex, barnacleIndex,
+                                                      barnacles.length))
+                            .collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+          throw e.getCause();
+        } catch (MalformedLineException e) {
+          throw new IOException("Malformed line in " + genomeFile + ": " + e.getMessage());
+        }
+        for (ChunkPairs pairs : parsed) {
+          for (int p = 0; p < pairs.size; p++) {
+            long row = pairs.cells[p] / barnacles.length;
+            long column = pairs.cells[p] % barnacles.length;
+            pihats.set(row, column, pairs.values[3 * p]);
+            dsts.set(row, column, pairs.values[3 * p + 1]);
+            ratios.set(row, column, pairs.values[3 * p + 2]);
+          }
+        }
+      }
+    }
+  }
+
+  /** @return offset of the line after the header */
+  public static long dataStart(Path genomeFile) throws IOException {
+    try (FileChannel channel = FileChannel.open(genomeFile, StandardOpenOption.READ)) {
+      long[] bounds = chunkBounds(channel, 0, 1);
+      return bounds.length > 1 ? bounds[1] : 0;
+    }
+  }
+
+  /** @return offsets of the chunks, each ending just after a newline or at the end of file */
+  static long[] chunkBounds(FileChannel channel, long dataStart, int chunkBytes)
+      throws IOException {
+    long size = channel.size();
+    List<Long> bounds = new ArrayList<>();
+    bounds.add(dataStart);
+    ByteBuffer probe = ByteBuffer.allocate(4096);
+    long position = dataStart;
+    while (position < size) {
+      long next = position + chunkBytes;
+      while (next < size) {
+        probe.clear();
+        int read = channel.read(probe, next);
+        int newline = -1;
+        for (int i = 0; i < read && newline == -1; i++) {
+          if (probe.get(i) == '\n') {
+            newline = i;
+          }
+        }
+        if (newline != -1) {
+          next += newline + 1;
+          break;
+        }
+        next += Math.max(read, 1);
+      }
+      position = Math.min(next, size);
+      bounds.add(position);
+    }
+    long[] offsets = new long[bounds.size()];
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = bounds.get(i);
+    }
+    return offsets;
+  }
+
+  /** A line of a chunk with too few columns, thrown out of the parallel stream */
+  private static class MalformedLineException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    MalformedLineException(String line) {
+      super(line);
+    }
+  }
+
+  private static ChunkPairs parseChunk(FileChannel channel, long from, long to,
+                                       IdIndex anchorIndex, IdIndex barnacleIndex,
+                                       int numBarnacles) {
+    byte[] bytes = readChunk(channel, from, to);
+    ChunkPairs pairs = new ChunkPairs();
+    int[] starts = new int[RATIO_COLUMN + 1];
+    int[] ends = new int[RATIO_COLUMN + 1];
+    int pos = 0;
+    while (pos < bytes.length) {
+      int lineEnd = pos;
+      while (lineEnd < bytes.length && bytes[lineEnd] != '\n') {
+        lineEnd++;
+      }
+      int fields = tokenize(bytes, pos, lineEnd, starts, ends);
+      if (fields > 0) {
+        if (fields <= ID2_COLUMN) {
+          throw new MalformedLineException(line(bytes, pos, lineEnd));
+        }
+        int iAnch = Math.max(anchorIndex.get(bytes, starts[ID1_COLUMN], ends[ID1_COLUMN]),
+                             anchorIndex.get(bytes, starts[ID2_COLUMN], ends[ID2_COLUMN]));
+        int iBarn = Math.max(barnacleIndex.get(bytes, starts[ID1_COLUMN], ends[ID1_COLUMN]),
+                             barnacleIndex.get(bytes, starts[ID2_COLUMN], ends[ID2_COLUMN]));
+        if (iAnch != -1 && iBarn != -1) {
+          if (fields <= RATIO_COLUMN) {
+            throw new MalformedLineException(line(bytes, pos, lineEnd));
+          }
+          pairs.add((long) iAnch * numBarnacles + iBarn,
+                    1 - parseDouble(bytes, starts[PIHAT_COLUMN], ends[PIHAT_COLUMN]),
+                    1 - parseDouble(bytes, starts[DST_COLUMN], ends[DST_COLUMN]),
+                    3 - parseDouble(bytes, starts[RATIO_COLUMN], ends[RATIO_COLUMN]));
+        }
+      }
+      pos = lineEnd + 1;
+    }
+    return pairs;
+  }
+
+  /**
+   * @return the bytes of the file from offset from to offset to, from any thread
+   * @throws UncheckedIOException if the file cannot be read, to be thrown out of a parallel stream
+   */
+  static byte[] readChunk(FileChannel channel, long from, long to) {
+    byte[] bytes = new byte[(int) (to - from)];
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    try {
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, from + buffer.position()) < 0) {
+          break;
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes;
+  }
+
+  /**
+   * Find the whitespace separated fields of bytes[from, to), up to the length of starts
+   * @return the number of fields found
+   */
+  static int tokenize(byte[] bytes, int from, int to, int[] starts, int[] ends) {
+    int fields = 0;
+    int i = from;
+    while (i < to && fields < starts.length) {
+      while (i < to && isWhitespace(bytes[i])) {
+        i++;
+      }
+      if (i == to) {
+        break;
+      }
+      starts[fields] = i;
+      while (i < to && !isWhitespace(bytes[i])) {
+        i++;
+      }
+      ends[fields++] = i;
+    }
+    return fields;
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t' || b == '\r';
+  }
+
+  private static double parseDouble(byte[] bytes, int from, int to) {
+    return Double.parseDouble(new String(bytes, from, to - from, StandardCharsets.ISO_8859_1));
+  }
+
+  private static String line(byte[] bytes, int from, int to) {
+    return new String(bytes, from, to - from, StandardCharsets.UTF_8).trim();
+  }
+}
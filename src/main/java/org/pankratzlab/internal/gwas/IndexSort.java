@@ -0,0 +1,199 @@
+package org.pankratzlab.internal.gwas;
+
+/**
+ * Orderings of indices by primitive keys, for sorts over millions of samples or candidate pairs
+ * where boxing every index would dominate the run. Ties keep the order of their indices, as the
+ * stable sorts these replace did.
+ */
+final class IndexSort {
+  private static final int INSERTION_SORT_SIZE = 16;
+
+  /** Receives the candidate pairs of {@link IndexSort#forEachPair} */
+  interface PairConsumer {
+    /**
+     * @param position position of the case in the cases visited
+     * @param slot slot of the candidate in that case
+     */
+    void accept(int position, int slot);
+  }
+
+  private IndexSort() {}
+
+  /**
+   * @return indices into {@code values} in ascending order, as {@link Double#compare} orders them
+   */
+  static int[] order(double[] values) {
+    long[] keys = new long[values.length];
+    for (int i = 0; i < values.length; i++) {
+      keys[i] = sortable(values[i]);
+    }
+    return order(keys);
+  }
+
+  /**
+   * @param keys sorted in place
+   * @return indices into {@code keys} in ascending order of the keys
+   */
+  static int[] order(long[] keys) {
+    int[] indices = new int[keys.length];
+    for (int i = 0; i < indices.length; i++) {
+      indices[i] = i;
+    }
+    sort(keys, indices, 0, keys.length);
+    return indices;
+  }
+
+  /**
+   * Visit the filled slots of the given cases in order of increasing distance, ties in order of
+   * the case's position in {@code cases} and then of the slot. The candidates of each case are
+   * ordered on their own and merged, so the number of pairs is not limited by the length of an
+   * array.
+   */
+  static void forEachPair(StratumMatches candidates, int[] cases, PairConsumer consumer) {
+    int[][] slots = new int[cases.length][];
+    for (int p = 0; p < cases.length; p++) {
+      slots[p] = slotsByDistance(candidates, cases[p]);
+    }
+    // a min-heap of the positions whose next slot is not visited yet
+    int[] next = new int[cases.length];
+    double[] heads = new double[cases.length];
+    int[] heap = new int[cases.length];
+    int size = 0;
+    for (int p = 0; p < cases.length; p++) {
+      if (slots[p].length > 0) {
+        heads[p] = candidates.getDistance(cases[p], slots[p][0]);
+        heap[size++] = p;
+      }
+    }
+    for (int i = size / 2 - 1; i >= 0; i--) {
+      siftDown(heap, size, i, heads);
+    }
+    while (size > 0) {
+      int p = heap[0];
+      consumer.accept(p, slots[p][next[p]++]);
+      if (next[p] < slots[p].length) {
+        heads[p] = candidates.getDistance(cases[p], slots[p][next[p]]);
+      } else {
+        heap[0] = heap[--size];
+      }
+      siftDown(heap, size, 0, heads);
+    }
+  }
+
+  /**
+   * @return a long that orders as {@link Double#compare} orders the value
+   */
+  static long sortable(double value) {
+    long bits = Double.doubleToLongBits(value);
+    return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+  }
+
+  /** @return the filled slots of a case, nearest first */
+  private static int[] slotsByDistance(StratumMatches candidates, int c) {
+    int filled = 0;
+    for (int s = 0; s < candidates.getDepth(c); s++) {
+      if (candidates.getControl(c, s) != StratumMatches.NO_MATCH) {
+        filled++;
+      }
+    }
+    int[] slots = new int[filled];
+    long[] keys = new long[filled];
+    boolean sorted = true;
+    for (int s = 0, i = 0; i < filled; s++) {
+      if (candidates.getControl(c, s) != StratumMatches.NO_MATCH) {
+        slots[i] = s;
+        keys[i] = sortable(candidates.getDistance(c, s));
+        sorted &= i == 0 || keys[i - 1] <= keys[i];
+        i++;
+      }
+    }
+    if (!sorted) {
+      // the slots are ascending, so sorting them along with their keys keeps ties in slot order
+      sort(keys, slots, 0, filled);
+    }
+    return slots;
+  }
+
+  private static void siftDown(int[] heap, int size, int i, double[] heads) {
+    int p = heap[i];
+    while (2 * i + 1 < size) {
+      int child = 2 * i + 1;
+      if (child + 1 < size && before(heap[child + 1], heap[child], heads)) {
+        child++;
+      }
+      if (!before(heap[child], p, heads)) {
+        break;
+      }
+      heap[i] = heap[child];
+      i = child;
+    }
+    heap[i] = p;
+  }
+
+  private static boolean before(int a, int b, double[] heads) {
+    int compare = Double.compare(heads[a], heads[b]);
+    return compare < 0 || compare == 0 && a < b;
+  }
+
+  /** Sort keys[from, to) ascending, ties by index, moving indices along */
+  private static void sort(long[] keys, int[] indices, int from, int to) {
+    while (to - from > INSERTION_SORT_SIZE) {
+      int mid = (from + to) >>> 1;
+      int pivot = median(keys, indices, from, mid, to - 1);
+      long pivotKey = keys[pivot];
+      int pivotIndex = indices[pivot];
+      int i = from;
+      int j = to - 1;
+      while (i <= j) {
+        while (less(keys[i], indices[i], pivotKey, pivotIndex)) {
+          i++;
+        }
+        while (less(pivotKey, pivotIndex, keys[j], indices[j])) {
+          j--;
+        }
+        if (i <= j) {
+          swap(keys, indices, i++, j--);
+        }
+      }
+      // recurse into the smaller side, so the stack stays logarithmic
+      if (j - from < to - i) {
+        sort(keys, indices, from, j + 1);
+        from = i;
+      } else {
+        sort(keys, indices, i, to);
+        to = j + 1;
+      }
+    }
+    for (int i = from + 1; i < to; i++) {
+      for (int k = i; k > from && less(keys[k], indices[k], keys[k - 1], indices[k - 1]); k--) {
+        swap(keys, indices, k - 1, k);
+      }
+    }
+  }
+
+  private static int median(long[] keys, int[] indices, int a, int b, int c) {
+    if (less(keys[a], indices[a], keys[b], indices[b])) {
+      if (less(keys[b], indices[b], keys[c], indices[c])) {
+        return b;
+      }
+      return less(keys[a], indices[a], keys[c], indices[c]) ? c : a;
+    }
+    if (less(keys[a], indices[a], keys[c], indices[c])) {
+      return a;
+    }
+    return less(keys[b], indices[b], keys[c], indices[c]) ? c : b;
+  }
+
+  private static boolean less(long key, int index, long otherKey, int otherIndex) {
+    return key < otherKey || key == otherKey && index < otherIndex;
+  }
+
+  private static void swap(long[] keys, int[] indices, int i, int j) {
+    long key = keys[i];
+    keys[i] = keys[j];
+    keys[j] = key;
+    int index = indices[i];
+    indices[i] = indices[j];
+    indices[j] = index;
+  }
+}
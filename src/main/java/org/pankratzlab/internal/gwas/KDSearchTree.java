@@ -0,0 +1,289 @@
+package org.pankratzlab.internal.gwas;
+
+import java.util.Arrays;
+
+/**
+ * A static k-d tree over a fixed set of points with a bounded-radius k nearest neighbor query.
+ * Unlike the kdmatch {@code KDTree}, a query can be limited to a maximum distance, so points
+ * outside a caliper are pruned during the traversal instead of being collected and discarded.
+ * <p>
+ * Nodes split at the median of their widest dimension and are stored in flat arrays, each covering
+ * a contiguous range of {@link #order}, together with their bounding box. Once built, the
+ * coordinates are copied into one flat array in {@link #order}, so a leaf scan reads consecutive
+ * memory instead of chasing one array reference per point; the tree keeps no other copy.
+ */
+public class KDSearchTree {
+  static final int LEAF_SIZE = 8;
+
+  private final int dimensions;
+  // permutation of point indices; each node covers order[start, end)
+  private final int[] order;
+  // coordinates of order[i] at [i * dimensions, (i + 1) * dimensions)
+  private final double[] flat;
+
+  private int numNodes = 0;
+  private int[] start;
+  private int[] end;
+  private int[] left;
+  private int[] right;
+  private double[][] lower;
+  private double[][] upper;
+
+  /**
+   * @param points coordinates of each point; they are copied, so the array may be discarded
+   */
+  public KDSearchTree(double[][] points) {
+    this.dimensions = points.length == 0 ? 0 : points[0].length;
+    this.order = new int[points.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    int capacity = Math.max(1, 4 * points.length / LEAF_SIZE + 1);
+    start = new int[capacity];
+    end = new int[capacity];
+    left = new int[capacity];
+    right = new int[capacity];
+    lower = new double[capacity][];
+    upper = new double[capacity][];
+    if (points.length > 0) {
+      build(points, 0, points.length);
+    }
+    flat = new double[points.length * dimensions];
+    for (int i = 0; i < order.length; i++) {
+      System.arraycopy(points[order[i]], 0, flat, i * dimensions, dimensions);
+    }
+  }
+
+  public int size() {
+    return order.length;
+  }
+
+  public int dimensions() {
+    return dimensions;
+  }
+
+  /**
+   * @param point the query coordinates
+   * @param k maximum number of neighbors to return
+   * @param maxDistance only points at most this far away are returned; use
+   *          {@link Double#POSITIVE_INFINITY} for an unbounded query
+   * @return up to k nearest points within maxDistance, nearest first
+   */
+  public Neighbors nearest(double[] point, int k, double maxDistance) {
+    if (numNodes == 0 || k <= 0) {
+      return Neighbors.EMPTY;
+    }
+    Neighbors.Heap heap = new Neighbors.Heap(k, maxDistance);
+    search(0, point, heap);
+    return heap.toNeighbors();
+  }
+
+  private void search(int node, double[] point, Neighbors.Heap heap) {
+    if (squaredDistanceToBox(node, point) > heap.bound()) {
+      return;
+    }
+    if (left[node] < 0) {
+      for (int i = start[node]; i < end[node]; i++) {
+        heap.offer(order[i], squaredDistance(point, flat, i * dimensions));
+      }
+      return;
+    }
+    // descend first into the child nearest the query, which tightens the bound sooner
+    int near = left[node];
+    int far = right[node];
+    if (squaredDistanceToBox(far, point) < squaredDistanceToBox(near, point)) {
+      near = right[node];
+      far = left[node];
+    }
+    search(near, point, heap);
+    search(far, point, heap);
+  }
+
+  // node structure, for DualTreeSearch
+
+  boolean isLeaf(int node) {
+    return left[node] < 0;
+  }
+
+  int leftChild(int node) {
+    return left[node];
+  }
+
+  int rightChild(int node) {
+    return right[node];
+  }
+
+  int nodeStart(int node) {
+    return start[node];
+  }
+
+  int nodeEnd(int node) {
+    return end[node];
+  }
+
+  /** @return index of the point at position i of the tree order */
+  int pointAt(int i) {
+    return order[i];
+  }
+
+  int numNodes() {
+    return numNodes;
+  }
+
+  /**
+   * @return squared distance between position i of this tree and position j of another tree
+   */
+  double squaredDistance(int i, KDSearchTree other, int j) {
+    double sum = 0;
+    int a = i * dimensions;
+    int b = j * other.dimensions;
+    for (int d = 0; d < dimensions; d++) {
+      double diff = flat[a + d] - other.flat[b + d];
+      sum += diff * diff;
+    }
+    return sum;
+  }
+
+  /**
+   * @return the smallest squared distance between any point in the box of node and any point in
+   *         the box of otherNode of the other tree
+   */
+  double squaredDistanceBetweenBoxes(int node, KDSearchTree other, int otherNode) {
+    double sum = 0;
+    double[] lo = lower[node];
+    double[] hi = upper[node];
+    double[] otherLo = other.lower[otherNode];
+    double[] otherHi = other.upper[otherNode];
+    for (int d = 0; d < dimensions; d++) {
+      double diff = Math.max(0, Math.max(otherLo[d] - hi[d], lo[d] - otherHi[d]));
+      sum += diff * diff;
+    }
+    return sum;
+  }
+
+  double squaredDistanceToBox(int node, double[] point) {
+    double sum = 0;
+    double[] lo = lower[node];
+    double[] hi = upper[node];
+    for (int d = 0; d < dimensions; d++) {
+      double diff = 0;
+      if (point[d] < lo[d]) {
+        diff = lo[d] - point[d];
+      } else if (point[d] > hi[d]) {
+        diff = point[d] - hi[d];
+      }
+      sum += diff * diff;
+    }
+    return sum;
+  }
+
+  static double squaredDistance(double[] a, double[] b) {
+    double sum = 0;
+    for (int d = 0; d < a.length; d++) {
+      double diff = a[d] - b[d];
+      sum += diff * diff;
+    }
+    return sum;
+  }
+
+  private static double squaredDistance(double[] a, double[] flat, int offset) {
+    double sum = 0;
+    for (int d = 0; d < a.length; d++) {
+      double diff = a[d] - flat[offset + d];
+      sum += diff * diff;
+    }
+    return sum;
+  }
+
+  private int build(double[][] points, int from, int to) {
+    int node = newNode(points, from, to);
+    if (to - from <= LEAF_SIZE) {
+      return node;
+    }
+    int splitDim = 0;
+    double widest = -1;
+    for (int d = 0; d < dimensions; d++) {
+      double width = upper[node][d] - lower[node][d];
+      if (width > widest) {
+        widest = width;
+        splitDim = d;
+      }
+    }
+    if (widest <= 0) {
+      // every point in this node is identical, so there is nothing to split on
+      return node;
+    }
+    int mid = (from + to) >>> 1;
+    select(points, from, to - 1, mid, splitDim);
+    int l = build(points, from, mid);
+    int r = build(points, mid, to);
+    left[node] = l;
+    right[node] = r;
+    return node;
+  }
+
+  private int newNode(double[][] points, int from, int to) {
+    if (numNodes == start.length) {
+      int capacity = start.length * 2;
+      start = Arrays.copyOf(start, capacity);
+      end = Arrays.copyOf(end, capacity);
+      left = Arrays.copyOf(left, capacity);
+      right = Arrays.copyOf(right, capacity);
+      lower = Arrays.copyOf(lower, capacity);
+      upper = Arrays.copyOf(upper, capacity);
+    }
+    int node = numNodes++;
+    start[node] = from;
+    end[node] = to;
+    left[node] = -1;
+    right[node] = -1;
+    double[] lo = new double[dimensions];
+    double[] hi = new double[dimensions];
+    Arrays.fill(lo, Double.POSITIVE_INFINITY);
+    Arrays.fill(hi, Double.NEGATIVE_INFINITY);
+    for (int i = from; i < to; i++) {
+      double[] p = points[order[i]];
+      for (int d = 0; d < dimensions; d++) {
+        lo[d] = Math.min(lo[d], p[d]);
+        hi[d] = Math.max(hi[d], p[d]);
+      }
+    }
+    lower[node] = lo;
+    upper[node] = hi;
+    return node;
+  }
+
+  /**
+   * Partially sort order[from..to] so that the point at position k has the k-th smallest value in
+   * dimension dim, with no larger values before it and no smaller values after it.
+   */
+  private void select(double[][] points, int from, int to, int k, int dim) {
+    while (to > from) {
+      double pivot = points[order[(from + to) >>> 1]][dim];
+      int i = from;
+      int j = to;
+      while (i <= j) {
+        while (points[order[i]][dim] < pivot) {
+          i++;
+        }
+        while (points[order[j]][dim] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          int tmp = order[i];
+          order[i] = order[j];
+          order[j] = tmp;
+          i++;
+          j--;
+        }
+      }
+      if (k <= j) {
+        to = j;
+      } else if (k >= i) {
+        from = i;
+      } else {
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,207 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Sparse set of related sample pairs, such as the pairs of a PLINK .genome file with a PI_HAT of
+ * at least a threshold, so that matching can keep relatives apart. Only samples with a relative
+ * get an index; a pair of indices is packed into a long and kept in an open addressing table, so
+ * {@link #related(int, int)} is a hash and a probe or two, without boxing.
+ */
+public class KinshipIndex {
+  /** halfway between the expected PI_HAT of second and third degree relatives */
+  public static final double DEFAULT_PIHAT = 0.1875;
+  public static final String PIHAT_COLUMN = "PI_HAT";
+  /** an index without any related pairs */
+  public static final KinshipIndex EMPTY = new KinshipIndex();
+  private static final long EMPTY_KEY = 0;
+
+  private final Map<String, Integer> sampleIndices = new HashMap<>();
+  private long[] keys = new long[16];
+  private int numPairs = 0;
+
+  /** Record that two samples are related; a sample is never related to itself */
+  public void add(String sample1, String sample2) {
+    if (this == EMPTY) {
+      throw new UnsupportedOperationException("The empty kinship index cannot be changed");
+    }
+    int a = sampleIndices.computeIfAbsent(sample1, s -> sampleIndices.size());
+    int b = sampleIndices.computeIfAbsent(sample2, s -> sampleIndices.size());
+    if (a == b) {
+      return;
+    }
+    if (2 * (numPairs + 1) > keys.length) {
+      long[] old = keys;
+      keys = new long[2 * old.length];
+      for (long key : old) {
+        if (key != EMPTY_KEY) {
+          insert(key);
+        }
+      }
+    }
+    if (insert(key(a, b))) {
+      numPairs++;
+    }
+  }
+
+  private boolean insert(long key) {
+    int mask = keys.length - 1;
+    int slot = hash(key) & mask;
+    while (keys[slot] != EMPTY_KEY) {
+      if (keys[slot] == key) {
+        return false;
+      }
+      slot = (slot + 1) & mask;
+    }
+    keys[slot] = key;
+    return true;
+  }
+
+  /** the smaller index in the high half, so a pair has one key; never 0, as a < b */
+  private static long key(int a, int b) {
+    return a < b ? ((long) a << 32) | b : ((long) b << 32) | a;
+  }
+
+  private static int hash(long key) {
+    key = (key ^ (key >>> 33)) * 0xff51afd7ed558ccdL;
+    key = (key ^ (key >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    return (int) (key ^ (key >>> 33));
+  }
+
+  /** @return the index of the sample for {@link #related(int, int)}, or -1 if it has no relative */
+  public int sampleIndex(String sample) {
+    Integer index = sampleIndices.get(sample);
+    return index == null ? -1 : index;
+  }
+
+  /** @return true if the samples of the two indices from {@link #sampleIndex} are related */
+  public boolean related(int a, int b) {
+    if (a < 0 || b < 0 || a == b) {
+      return false;
+    }
+    long key = key(a, b);
+    int mask = keys.length - 1;
+    int slot = hash(key) & mask;
+    while (keys[slot] != EMPTY_KEY) {
+      if (keys[slot] == key) {
+        return true;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return false;
+  }
+
+  public boolean related(String sample1, String sample2) {
+    return related(sampleIndex(sample1), sampleIndex(sample2));
+  }
+
+  /** @return indices from {@link #sampleIndex} of the samples, -1 for those without a relative */
+  public int[] sampleIndices(List<String> samples) {
+    int[] indices = new int[samples.size()];
+    for (int i = 0; i < indices.length; i++) {
+      indices[i] = sampleIndex(samples.get(i));
+    }
+    return indices;
+  }
+
+  public int numPairs() {
+    return numPairs;
+  }
+
+  public int numSamples() {
+    return sampleIndices.size();
+  }
+
+  /**
+   * Load the pairs of a PLINK .genome file with a PI_HAT of at least minPihat, reading chunks of
+   * the file in parallel like {@link GenomeParser}
+   */
+  public static KinshipIndex load(Path genomeFile, double minPihat) throws IOException {
+    KinshipIndex index = new KinshipIndex();
+    try (FileChannel channel = FileChannel.open(genomeFile, StandardOpenOption.READ)) {
+      long dataStart = GenomeParser.dataStart(genomeFile);
+      byte[] header = GenomeParser.readChunk(channel, 0, dataStart);
+      int[] starts = new int[64];
+      int[] ends = new int[64];
+      int fields = GenomeParser.tokenize(header, 0, header.length, starts, ends);
+      int pihatColumn = -1;
+      for (int f = 0; f < fields && pihatColumn == -1; f++) {
+        if (PIHAT_COLUMN.equals(new String(header, starts[f], ends[f] - starts[f],
+                                           StandardCharsets.UTF_8))) {
+          pihatColumn = f;
+        }
+      }
+      if (pihatColumn <= GenomeParser.ID2_COLUMN) {
+        throw new IOException("No " + PIHAT_COLUMN + " column after the sample IDs in the header of "
+                              + genomeFile);
+      }
+      int column = pihatColumn;
+      long[] bounds = GenomeParser.chunkBounds(channel, dataStart, GenomeParser.CHUNK_BYTES);
+      int numChunks = bounds.length - 1;
+      int batch = ForkJoinPool.getCommonPoolParallelism() + 1;
+      for (int first = 0; first < numChunks; first += batch) {
+        List<List<String[]>> parsed;
+        try {
+          parsed = IntStream.range(first, Math.min(numChunks, first + batch)).parallel()
+                            .mapToObj(c -> relatedPairs(channel, bounds[c], bounds[c + 1], column,
+                                                        minPihat))
+                            .collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+          throw e.getCause();
+        } catch (NumberFormatException e) {
+          throw new IOException("Invalid " + PIHAT_COLUMN + " in " + genomeFile + ": "
+                                + e.getMessage());
+        }
+        for (List<String[]> pairs : parsed) {
+          for (String[] pair : pairs) {
+            index.add(pair[0], pair[1]);
+          }
+        }
+      }
+    }
+    return index;
+  }
+
+  private static List<String[]> relatedPairs(FileChannel channel, long from, long to,
+                                             int pihatColumn, double minPihat) {
+    byte[] bytes = GenomeParser.readChunk(channel, from, to);
+    List<String[]> pairs = new ArrayList<>();
+    int[] starts = new int[pihatColumn + 1];
+    int[] ends = new int[pihatColumn + 1];
+    int pos = 0;
+    while (pos < bytes.length) {
+      int lineEnd = pos;
+      while (lineEnd < bytes.length && bytes[lineEnd] != '\n') {
+        lineEnd++;
+      }
+      if (GenomeParser.tokenize(bytes, pos, lineEnd, starts, ends) > pihatColumn) {
+        String pihat = new String(bytes, starts[pihatColumn], ends[pihatColumn]
+                                                               - starts[pihatColumn],
+                                  StandardCharsets.ISO_8859_1);
+        if (Double.parseDouble(pihat) >= minPihat) {
+          pairs.add(new String[] {id(bytes, starts, ends, GenomeParser.ID1_COLUMN),
+                                  id(bytes, starts, ends, GenomeParser.ID2_COLUMN)});
+        }
+      }
+      pos = lineEnd + 1;
+    }
+    return pairs;
+  }
+
+  private static String id(byte[] bytes, int[] starts, int[] ends, int column) {
+    return new String(bytes, starts[column], ends[column] - starts[column],
+                      StandardCharsets.UTF_8);
+  }
+}
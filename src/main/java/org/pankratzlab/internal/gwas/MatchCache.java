@@ -0,0 +1,87 @@
+package org.pankratzlab.internal.gwas;
+
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Least recently used cache of prepared cohorts, control indexes, phenotype tables and results,
+ * kept under a memory budget for a {@link MatchServer}. Every entry is weighed by an estimate of its
+ * size when it is added, and the least recently used entries are evicted once the estimates add up
+ * to more than the budget. Concurrent requests for a missing entry wait for a single load.
+ */
+public class MatchCache {
+  private static final long KILOBYTE = 1024;
+
+  private static class Entry {
+    final Object value;
+    final int kilobytes;
+
+    Entry(Object value, long bytes) {
+      this.value = value;
+      this.kilobytes = (int) Math.min(Integer.MAX_VALUE, Math.max(1, bytes / KILOBYTE));
+    }
+  }
+
+  private final long budgetBytes;
+  private final Cache<String, Entry> cache;
+
+  public MatchCache(long budgetBytes) {
+    this.budgetBytes = budgetBytes;
+    // a single segment makes eviction strictly least recently used over the whole budget
+    cache = CacheBuilder.newBuilder().concurrencyLevel(1)
+                        .maximumWeight(Math.max(1, budgetBytes / KILOBYTE))
+                        .weigher((String key, Entry entry) -> entry.kilobytes).recordStats()
+                        .build();
+  }
+
+  /**
+   * @param key identifies the value, including everything it was computed from
+   * @param loader computes the value when it is not cached
+   * @param bytes estimates the size of a loaded value in memory
+   * @return the cached or newly loaded value
+   */
+  @SuppressWarnings("unchecked")
+  public <T> T get(String key, Supplier<T> loader, ToLongFunction<T> bytes) {
+    try {
+      return (T) cache.get(key, () -> {
+        T value = loader.get();
+        return new Entry(value, bytes.applyAsLong(value));
+      }).value;
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /** @return the cached value for key, or null */
+  @SuppressWarnings("unchecked")
+  public <T> T getIfPresent(String key) {
+    Entry entry = cache.getIfPresent(key);
+    return entry == null ? null : (T) entry.value;
+  }
+
+  public <T> void put(String key, T value, long bytes) {
+    cache.put(key, new Entry(value, bytes));
+  }
+
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  /** @return entries, estimated size, budget, hits, misses and evictions, one per line */
+  public String stats() {
+    CacheStats stats = cache.stats();
+    long usedKilobytes = cache.asMap().values().stream().mapToLong(e -> e.kilobytes).sum();
+    return "entries\t" + cache.size() + "\nusedBytes\t" + usedKilobytes * KILOBYTE
+           + "\nbudgetBytes\t" + budgetBytes + "\nhits\t" + stats.hitCount() + "\nmisses\t"
+           + stats.missCount() + "\nevictions\t" + stats.evictionCount() + "\n";
+  }
+}
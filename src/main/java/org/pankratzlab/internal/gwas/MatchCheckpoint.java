@@ -0,0 +1,194 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Per-stratum checkpoints for {@link MatchMaker}. Each stratum is matched into its own directory
+ * under {@value #DIRECTORY}, and once all of its output is written the stratum is recorded in a
+ * manifest together with a hash of its samples and coordinates. A later run with the same settings
+ * skips every stratum whose hash is unchanged and only matches the others. When all strata are
+ * done, the per-stratum files are merged into the usual output files, which are written next to
+ * their targets first and then moved into place.
+ */
+public class MatchCheckpoint {
+  static final String DIRECTORY = "checkpoints";
+  static final String MANIFEST = "manifest.txt";
+  private static final String SETTINGS_KEY = "#settings";
+
+  private final Path directory;
+  private final String settingsHash;
+  /** stratum key -> hash of the stratum when it was finished */
+  private final Map<String, String> finished = new LinkedHashMap<>();
+
+  private MatchCheckpoint(Path directory, String settingsHash) {
+    this.directory = directory;
+    this.settingsHash = settingsHash;
+  }
+
+  /**
+   * Open the checkpoints of baseDir, keeping the finished strata of an earlier run only if it used
+   * the same settings
+   * @param settings description of every setting that affects the output of a stratum
+   */
+  public static MatchCheckpoint open(Path baseDir, String settings,
+                                     Logger log) throws IOException {
+    Path directory = baseDir.resolve(DIRECTORY);
+    Files.createDirectories(directory);
+    MatchCheckpoint checkpoint = new MatchCheckpoint(directory,
+                                                     hash(settings.getBytes(StandardCharsets.UTF_8)));
+    Path manifest = directory.resolve(MANIFEST);
+    if (!Files.exists(manifest)) {
+      return checkpoint;
+    }
+    Map<String, String> recorded = new LinkedHashMap<>();
+    String recordedSettings = null;
+    try (BufferedReader reader = Files.newBufferedReader(manifest)) {
+      String inputLine = reader.readLine();
+      while (inputLine != null) {
+        String[] line = inputLine.split("\t");
+        if (line.length == 2 && line[0].equals(SETTINGS_KEY)) {
+          recordedSettings = line[1];
+        } else if (line.length == 2) {
+          recorded.put(line[0], line[1]);
+        }
+        inputLine = reader.readLine();
+      }
+    }
+    if (checkpoint.settingsHash.equals(recordedSettings)) {
+      checkpoint.finished.putAll(recorded);
+      log.info("Resuming from " + recorded.size() + " finished strata in " + directory);
+    } else {
+      log.warning("Settings differ from those of the checkpoints in " + directory
+                  + ", matching all strata again");
+    }
+    return checkpoint;
+  }
+
+  /** @return true if the stratum was finished before and its samples have not changed */
+  public boolean isFinished(Stratum stratum) {
+    return hash(stratum).equals(finished.get(stratum.getKey()))
+           && Files.isDirectory(stratumDirectory(stratum));
+  }
+
+  /**
+   * @return an empty directory for the output of the stratum, with anything left by an interrupted
+   *         run removed
+   */
+  public Path prepare(Stratum stratum) throws IOException {
+    Path stratumDirectory = stratumDirectory(stratum);
+    if (Files.isDirectory(stratumDirectory)) {
+      try (Stream<Path> files = Files.list(stratumDirectory)) {
+        for (Path file : (Iterable<Path>) files::iterator) {
+          Files.delete(file);
+        }
+      }
+    }
+    Files.createDirectories(stratumDirectory);
+    return stratumDirectory;
+  }
+
+  /** Record the stratum as finished, once all of its output is in {@link #prepare}'s directory */
+  public void markFinished(Stratum stratum) throws IOException {
+    finished.put(stratum.getKey(), hash(stratum));
+    Path manifest = directory.resolve(MANIFEST);
+    String tempFile = MatchOutput.tempFileFor(manifest.toString());
+    try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Path.of(tempFile)))) {
+      writer.println(SETTINGS_KEY + "\t" + settingsHash);
+      for (Entry<String, String> e : finished.entrySet()) {
+        writer.println(e.getKey() + "\t" + e.getValue());
+      }
+    }
+    MatchOutput.moveAtomically(tempFile, manifest.toString());
+  }
+
+  /**
+   * Concatenate each output file of the strata into baseDir with
+   * {@link MatchOutput#concatenate}, in stratum order. All merged files are written before any of
+   * them replaces its target.
+   * @param fileNames names of the output files a stratum can have
+   */
+  public void merge(List<Stratum> strata, List<String> fileNames, Path baseDir,
+                    Logger log) throws IOException {
+    Map<String, String> merged = new LinkedHashMap<>();
+    for (String fileName : fileNames) {
+      List<Path> parts = new ArrayList<>();
+      for (Stratum stratum : strata) {
+        Path part = stratumDirectory(stratum).resolve(fileName);
+        if (Files.exists(part)) {
+          parts.add(part);
+        }
+      }
+      if (parts.isEmpty()) {
+        continue;
+      }
+      String target = baseDir.resolve(fileName).toString();
+      String tempFile = MatchOutput.tempFileFor(target);
+      MatchOutput.concatenate(parts, tempFile);
+      merged.put(tempFile, target);
+    }
+    for (Entry<String, String> e : merged.entrySet()) {
+      MatchOutput.moveAtomically(e.getKey(), e.getValue());
+    }
+    log.info("Merged the checkpoints of " + strata.size() + " strata into " + merged.values());
+  }
+
+  private Path stratumDirectory(Stratum stratum) {
+    String keyHash = hash(stratum.getKey().getBytes(StandardCharsets.UTF_8));
+    return directory.resolve("stratum_" + keyHash.substring(0, 16));
+  }
+
+  /** @return a hash of the ids, statuses and coordinates of the samples of a stratum */
+  static String hash(Stratum stratum) {
+    MessageDigest digest = sha256();
+    ByteBuffer coords = ByteBuffer.allocate(Double.BYTES * stratum.dimensions());
+    for (int status : new int[] {Stratum.CASE_STATUS, Stratum.CONTROL_STATUS}) {
+      boolean isCase = status == Stratum.CASE_STATUS;
+      int count = isCase ? stratum.numCases() : stratum.numControls();
+      for (int i = 0; i < count; i++) {
+        String id = isCase ? stratum.getCaseId(i) : stratum.getControlId(i);
+        digest.update((id + "\t" + status + "\t").getBytes(StandardCharsets.UTF_8));
+        coords.clear();
+        for (double c : isCase ? stratum.getCaseCoords(i) : stratum.getControlCoords(i)) {
+          coords.putDouble(c);
+        }
+        digest.update(coords.array(), 0, coords.position());
+      }
+    }
+    return toHex(digest.digest());
+  }
+
+  private static String hash(byte[] bytes) {
+    return toHex(sha256().digest(bytes));
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+}
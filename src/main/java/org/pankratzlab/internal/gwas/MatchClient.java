@@ -0,0 +1,150 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Command line client for a {@link MatchServer}, which doubles as a small load test: the same
+ * request is sent a number of times from a number of threads, and the latencies are summarized.
+ * Every key=value argument other than those of the client itself is passed on to the server.
+ */
+public class MatchClient {
+  private final HttpClient client = HttpClient.newHttpClient();
+  private final String baseUrl;
+
+  public MatchClient(String host, int port) {
+    this.baseUrl = "http://" + host + ":" + port;
+  }
+
+  /**
+   * @param endpoint match, eval or stats
+   * @param args key=value arguments of the request
+   * @return the body of the response
+   * @throws IOException if the server could not be reached or answered with an error
+   */
+  public String send(String endpoint, List<String> args) throws IOException, InterruptedException {
+    StringJoiner form = new StringJoiner("&");
+    for (String arg : args) {
+      int eq = arg.indexOf('=');
+      form.add(URLEncoder.encode(arg.substring(0, eq), StandardCharsets.UTF_8) + "="
+               + URLEncoder.encode(arg.substring(eq + 1), StandardCharsets.UTF_8));
+    }
+    HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/" + endpoint))
+                                     .header("Content-Type", "application/x-www-form-urlencoded")
+                                     .POST(HttpRequest.BodyPublishers.ofString(form.toString()))
+                                     .build();
+    HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+    if (response.statusCode() != 200) {
+      throw new IOException("Server answered " + response.statusCode() + ": " + response.body());
+    }
+    return response.body();
+  }
+
+  /**
+   * Send the request {@code requests} times from {@code threads} threads
+   * @return count, errors, throughput and latency percentiles in milliseconds, one per line
+   */
+  public String loadTest(String endpoint, List<String> args, int requests,
+                         int threads) throws InterruptedException {
+    long[] latencies = new long[requests];
+    AtomicInteger next = new AtomicInteger();
+    AtomicInteger errors = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    long start = System.nanoTime();
+    List<Future<?>> workers = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      workers.add(executor.submit(() -> {
+        int i;
+        while ((i = next.getAndIncrement()) < requests) {
+          long sent = System.nanoTime();
+          try {
+            send(endpoint, args);
+          } catch (IOException e) {
+            errors.incrementAndGet();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+          latencies[i] = System.nanoTime() - sent;
+        }
+      }));
+    }
+    executor.shutdown();
+    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    double seconds = (System.nanoTime() - start) / 1e9;
+    Arrays.sort(latencies);
+    return "requests\t" + requests + "\nerrors\t" + errors.get() + "\nrequestsPerSecond\t"
+           + requests / seconds + "\nmeanMs\t"
+           + Arrays.stream(latencies).average().orElse(0) / 1e6 + "\np50Ms\t"
+           + percentile(latencies, 0.5) + "\np95Ms\t" + percentile(latencies, 0.95) + "\np99Ms\t"
+           + percentile(latencies, 0.99) + "\nmaxMs\t" + percentile(latencies, 1) + "\n";
+  }
+
+  private static double percentile(long[] sorted, double p) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int index = (int) Math.ceil(p * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    String host = "localhost";
+    int port = MatchServer.DEFAULT_PORT;
+    String endpoint = "match";
+    int requests = 1;
+    int threads = 1;
+    List<String> requestArgs = new ArrayList<>();
+
+    String usage = "\n" + "gwas.MatchClient requires at least 1 argument\n"
+                   + "(1) Server host (e.g. host=localhost (default))\n"
+                   + "(2) Server port (e.g. port=" + MatchServer.DEFAULT_PORT + " (default))\n"
+                   + "(3) Endpoint - match, eval or stats (e.g. endpoint=match (default))\n"
+                   + "(4) Number of times to send the request, for a load test (e.g. requests=1 (default))\n"
+                   + "(5) Number of threads sending requests (e.g. clientThreads=1 (default))\n"
+                   + "Every other key=value argument is passed on, such as the MatchMaker arguments for endpoint=match\n";
+
+    for (String arg : args) {
+      if (arg.equals("-h") || arg.equals("-help") || arg.equals("/h") || arg.equals("/help")) {
+        System.err.println(usage);
+        System.exit(1);
+      } else if (arg.startsWith("host=")) {
+        host = arg.split("=")[1];
+      } else if (arg.startsWith("port=")) {
+        port = Integer.parseInt(arg.split("=")[1]);
+      } else if (arg.startsWith("endpoint=")) {
+        endpoint = arg.split("=")[1];
+      } else if (arg.startsWith("requests=")) {
+        requests = Integer.parseInt(arg.split("=")[1]);
+      } else if (arg.startsWith("clientThreads=")) {
+        threads = Integer.parseInt(arg.split("=")[1]);
+      } else if (arg.contains("=")) {
+        requestArgs.add(arg);
+      } else {
+        System.err.println(usage);
+        System.exit(1);
+      }
+    }
+
+    MatchClient client = new MatchClient(host, port);
+    if (requests == 1) {
+      System.out.print(client.send(endpoint, requestArgs));
+    } else {
+      System.out.print(client.loadTest(endpoint, requestArgs, requests, threads));
+    }
+  }
+}
@@ -0,0 +1,42 @@
+package org.pankratzlab.internal.gwas;
+
+/**
+ * The algorithms available to {@link MatchMaker} for selecting controls within a stratum.
+ */
+public enum MatchEngine {
+  /** k nearest neighbors from the kdmatch k-d tree, followed by duplicate optimization */
+  KDTREE("kdtree"),
+  /** nearest logit propensity score within a caliper, see {@link PropensityMatcher} */
+  PROPENSITY("propensity"),
+  /**
+   * approximate nearest neighbors from a {@link RandomProjectionForest}, for strata too large or
+   * high-dimensional for an exact k-d tree search, followed by duplicate optimization
+   */
+  ANN("ann"),
+  /** every case-control distance, in cache-sized blocks, see {@link BruteForceMatcher} */
+  BRUTE("brute"),
+  /**
+   * brute force, the in-project k-d tree or approximate search, chosen per stratum by the
+   * {@link MatchPlanner}
+   */
+  AUTO("auto");
+
+  private final String argName;
+
+  MatchEngine(String argName) {
+    this.argName = argName;
+  }
+
+  public String getArgName() {
+    return argName;
+  }
+
+  public static MatchEngine fromArg(String arg) {
+    for (MatchEngine engine : values()) {
+      if (engine.argName.equalsIgnoreCase(arg)) {
+        return engine;
+      }
+    }
+    throw new IllegalArgumentException("Unknown matching engine: " + arg);
+  }
+}
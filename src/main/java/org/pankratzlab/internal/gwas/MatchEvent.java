@@ -0,0 +1,49 @@
+package org.pankratzlab.internal.gwas;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A Java Flight Recorder event for one {@link MatchMetrics.Phase}, so that a recording shows each
+ * stratum, nearest neighbor search, optimization round, distance matrix and evaluation next to the
+ * GC pauses, allocations and thread states around it. Record with e.g.
+ * {@code java -XX:StartFlightRecording=filename=match.jfr ...} and filter on the
+ * {@value #NAME} event in JDK Mission Control or {@code jfr print --events}. When no recording is
+ * running the event is disabled, and beginning and committing it costs next to nothing.
+ */
+@Name(MatchEvent.NAME)
+@Label("Matching Phase")
+@Category({"Pankratz Lab", "Matching"})
+@Description("A phase of case-control matching or of the evaluation of the matches")
+@StackTrace(false)
+class MatchEvent extends Event {
+  static final String NAME = "org.pankratzlab.gwas.MatchPhase";
+
+  @Label("Phase")
+  String phase;
+
+  @Label("Stratum")
+  String stratum;
+
+  @Label("Cases")
+  long cases;
+
+  @Label("Controls")
+  long controls;
+
+  @Label("Neighbors")
+  @Description("Number of nearest neighbors or controls selected per case")
+  int k;
+
+  @Label("Pass")
+  @Description("Number of the duplicate optimization pass, counting from 1")
+  int pass;
+
+  @Label("Contested Controls")
+  @Description("Controls among the candidates of more than one case")
+  long contestedControls;
+}
@@ -2,14 +2,17 @@ package org.pankratzlab.internal.gwas;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -18,8 +21,13 @@ import java.util.Set;
 import java.util.StringJoiner;
 import java.util.Vector;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import org.pankratzlab.common.ArrayUtils;
 import org.pankratzlab.common.HashVec;
@@ -38,27 +46,78 @@ public class MatchMaker {
   private static final String STATUS_NAIVE_TXT = "status.naive.txt";
   private static final String MATCH_OPTIMIZED_TXT = "match.optimized.txt";
   private static final String STATUS_OPTIMIZED_TXT = "status.optimized.txt";
+  private static final String MATCH_PROPENSITY_TXT = "match.propensity.txt";
+  private static final String STATUS_PROPENSITY_TXT = "status.propensity.txt";
+  private static final String MATCH_REPLACEMENT_TXT = "match.replacement.txt";
+  private static final String STATUS_REPLACEMENT_TXT = "status.replacement.txt";
+  /** moves of an incremental update whose files are all written, listed until all are done */
+  static final String PENDING_MOVES_TXT = "partial.moves.txt";
+  static final List<String> OUTPUT_FILES = List.of(MATCH_NAIVE_TXT, STATUS_NAIVE_TXT,
+                                                           MATCH_OPTIMIZED_TXT,
+                                                           STATUS_OPTIMIZED_TXT,
+                                                           MATCH_PROPENSITY_TXT,
+                                                           STATUS_PROPENSITY_TXT,
+                                                           MATCH_REPLACEMENT_TXT,
+                                                           STATUS_REPLACEMENT_TXT);
+  /** Least time between two checkpoints of the optimized output while duplicates are resolved */
+  private static final long OPTIMIZATION_CHECKPOINT_NANOS = 60_000_000_000L;
+
+  @SuppressWarnings("try")
+  static void kdMatchMaker(Path baseDir, Path inputSamples, Stratum stratum,
+                           HashMap<Integer, Double> numericColumnsToUseForClustering,
+                           int initialNumSelect, int finalNumSelect,
+                           FactorLoadings factorLoadings, boolean skipOptimization,
+                           int threads, MatchOptions options, Logger log) throws IOException {
+    try (MatchMetrics.Phase phase = options.metrics.start(MatchMetrics.STRATUM, stratum.getKey())
+                                                   .stratum(stratum.numCases(),
+                                                            stratum.numControls())
+                                                   .k(finalNumSelect)) {
+      kdMatchStratum(baseDir, inputSamples, stratum, numericColumnsToUseForClustering,
+                     initialNumSelect, finalNumSelect, skipOptimization, threads, options, log);
+    }
+  }
 
-  private static List<Match> kdMatchMaker(Path baseDir, Path inputSamples, List<Sample> caseList,
-                                          List<Sample> controlList,
-                                          HashMap<Integer, Double> numericColumnsToUseForClustering,
-                                          int initialNumSelect, int finalNumSelect,
-                                          FactorLoadings factorLoadings, boolean skipOptimization,
-                                          int threads, Logger log) {
+  @SuppressWarnings("try")
+  private static void kdMatchStratum(Path baseDir, Path inputSamples, Stratum stratum,
+                                     HashMap<Integer, Double> numericColumnsToUseForClustering,
+                                     int initialNumSelect, int finalNumSelect,
+                                     boolean skipOptimization, int threads, MatchOptions options,
+                                     Logger log) throws IOException {
+    List<Sample> caseList = stratum.getCaseSamples();
+    List<Sample> controlList = stratum.getControlSamples();
+    MatchMetrics metrics = options.metrics;
+    countStratum(stratum, metrics);
 
     KDTree<Sample> kdTree = new KDTree<>(numericColumnsToUseForClustering.keySet().size());
     log.info("Assuming 1 ID column and " + (numericColumnsToUseForClustering.keySet().size())
              + " data columns");
     log.info("Building tree for: " + caseList.get(0).getGroup());
 
-    KDTree.addSamplesToTree(kdTree, controlList.stream());
+    // built and queried along the curve, so that consecutive queries visit the same nodes
+    int[][] orders = curveOrders(stratum, options.sampleOrder);
+    try (MatchMetrics.Phase phase = metrics.start(MatchMetrics.TREE_BUILD, stratum.getKey())) {
+      KDTree.addSamplesToTree(kdTree, IntStream.of(orders[1]).mapToObj(controlList::get));
+    }
 
     log.info("selecting initial " + initialNumSelect + " nearest neighbors for "
              + caseList.get(0).getGroup());
 
-    List<Match> naiveMatches = KDTree.getNearestNeighborsForSamples(kdTree, caseList.stream(),
-                                                                    initialNumSelect)
-                                     .collect(Collectors.toList());
+    List<Match> naiveMatches;
+    MatchProgress.Task searched = options.progress.task(MatchProgress.CASES_SEARCHED,
+                                                        stratum.getKey(), caseList.size());
+    try (MatchMetrics.Phase phase = metrics.start(MatchMetrics.KNN, stratum.getKey())
+                                           .stratum(caseList.size(), controlList.size())
+                                           .k(initialNumSelect)) {
+      naiveMatches = KDTree.getNearestNeighborsForSamples(kdTree,
+                                                          IntStream.of(orders[0])
+                                                                   .mapToObj(caseList::get),
+                                                          initialNumSelect)
+                           .peek(m -> searched.increment()).collect(Collectors.toList());
+    }
+    naiveMatches = inCaseOrder(naiveMatches, orders[0]);
+    searched.finish();
+    metrics.count(MatchMetrics.CANDIDATES, stratum.getKey(),
+                  (long) naiveMatches.size() * initialNumSelect);
 
     String outputNaiveFileName = baseDir + File.separator + MATCH_NAIVE_TXT;
     String statusNaiveFileName = baseDir + File.separator + STATUS_NAIVE_TXT;
@@ -66,12 +125,8 @@ public class MatchMaker {
              + outputNaiveFileName);
     LinkedHashSet<String> setConvert = new LinkedHashSet<String>();
 
-    try {
-      BufferedReader headerRead = org.pankratzlab.common.Files.getAppropriateReader(inputSamples.toString());
-      String[] header = headerRead.readLine().trim().split(PSF.Regex.GREEDY_WHITESPACE);
-      for (int i : numericColumnsToUseForClustering.keySet()) {
-        setConvert.add(header[i]);
-      }
+    try (MatchMetrics.Phase phase = metrics.start(MatchMetrics.WRITE, stratum.getKey())) {
+      setConvert = getClusteringColumnNames(inputSamples, numericColumnsToUseForClustering);
       try {
         KDMatch.writeToFile(naiveMatches.stream(), outputNaiveFileName,
                             setConvert.stream().toArray(String[]::new),
@@ -88,24 +143,39 @@ public class MatchMaker {
 
     if (skipOptimization) {
       log.info("Skip optimization was flagged, returning only naive matches");
-      return naiveMatches;
+      return;
 
     } else {
       String outputOptFileName = baseDir + File.separator + MATCH_OPTIMIZED_TXT;
       String statusOptFileName = baseDir + File.separator + STATUS_OPTIMIZED_TXT;
+      if (options.usesIterativeOptimizer()) {
+        optimizeFromMatchFile(outputNaiveFileName, stratum, finalNumSelect, outputOptFileName,
+                              statusOptFileName, options, log);
+        return;
+      }
       log.info("selecting optimized nearest neighbors");
 
-      List<Match> optimizedMatches = null;
+      boolean written = false;
       try {
-        optimizedMatches = SelectOptimizedNeighbors.optimizeDuplicates(naiveMatches, finalNumSelect,
-                                                                       threads, log)
-                                                   .collect(Collectors.toList());
+        List<Match> optimizedMatches;
+        try (MatchMetrics.Phase phase = metrics.start(MatchMetrics.OPTIMIZE, stratum.getKey())
+                                               .stratum(caseList.size(), controlList.size())
+                                               .k(finalNumSelect)) {
+          optimizedMatches = SelectOptimizedNeighbors.optimizeDuplicates(naiveMatches,
+                                                                         finalNumSelect, threads,
+                                                                         log)
+                                                     .collect(Collectors.toList());
+        }
         log.info("reporting optimized selection of " + finalNumSelect + " nearest neighbors to "
                  + outputOptFileName);
-        KDMatch.writeToFile(optimizedMatches.stream(), outputOptFileName,
-                            setConvert.stream().toArray(String[]::new),
-                            setConvert.stream().toArray(String[]::new), finalNumSelect);
-        KDMatch.writeSampleStatusFile(optimizedMatches.stream(), statusOptFileName, finalNumSelect);
+        try (MatchMetrics.Phase phase = metrics.start(MatchMetrics.WRITE, stratum.getKey())) {
+          KDMatch.writeToFile(optimizedMatches.stream(), outputOptFileName,
+                              setConvert.stream().toArray(String[]::new),
+                              setConvert.stream().toArray(String[]::new), finalNumSelect);
+          KDMatch.writeSampleStatusFile(optimizedMatches.stream(), statusOptFileName,
+                                        finalNumSelect);
+        }
+        written = true;
       } catch (StackOverflowError s1) {
         s1.printStackTrace();
         log.info("To potentially prevent this StackOverflowError, try increasing the Thread Stack Size with the -Xss argument passed to the java virtual machine (i.e. java -Xss10m)");
@@ -117,15 +187,603 @@ public class MatchMaker {
         e3.printStackTrace();
       }
 
-      return optimizedMatches;
+      if (!written) {
+        log.warning("kdmatch optimization failed, falling back to the iterative optimizer so that optimized output is still written");
+        optimizeFromMatchFile(outputNaiveFileName, stratum, finalNumSelect, outputOptFileName,
+                              statusOptFileName, options, log);
+      }
+    }
+
+  }
+
+  /**
+   * Resolve duplicates among the naive candidates of a stratum with the in-project
+   * {@link DuplicateOptimizer} and write the optimized match and status files.
+   */
+  @SuppressWarnings("try")
+  private static void optimizeFromMatchFile(String naiveMatchFile, Stratum stratum,
+                                            int finalNumSelect, String outputOptFileName,
+                                            String statusOptFileName, MatchOptions options,
+                                            Logger log) throws IOException {
+    StratumMatches candidates = MatchOutput.readMatchFile(naiveMatchFile, stratum);
+    StratumMatches optimized;
+    long contested = countContestedControls(candidates);
+    try (MatchMetrics.Phase phase = options.metrics.start(MatchMetrics.OPTIMIZE, stratum.getKey())
+                                                   .stratum(stratum.numCases(),
+                                                            stratum.numControls())
+                                                   .k(finalNumSelect)
+                                                   .contestedControls(contested)) {
+      optimized = DuplicateOptimizer.optimize(candidates, finalNumSelect,
+                                              optimizationDeadline(options),
+                                              options.optimizePasses, options.kinship,
+                                              optimizationCheckpoint(List.of(), outputOptFileName,
+                                                                     statusOptFileName,
+                                                                     finalNumSelect, log),
+                                              options.progress, options.metrics, log);
+    }
+    options.metrics.count(MatchMetrics.CONTESTED_CONTROLS, stratum.getKey(), contested);
+    options.metrics.count(MatchMetrics.MATCHED_CASES, stratum.getKey(),
+                          optimized.numMatchedCases());
+    log.info("reporting optimized selection of " + finalNumSelect + " nearest neighbors to "
+             + outputOptFileName);
+    try (MatchMetrics.Phase phase = options.metrics.start(MatchMetrics.WRITE, stratum.getKey())) {
+      MatchOutput.writeMatchFile(List.of(optimized), outputOptFileName, finalNumSelect);
+      MatchOutput.writeStatusFile(List.of(optimized), statusOptFileName, false);
+    }
+  }
+
+  /**
+   * @param finished strata already optimized, written ahead of the one being optimized
+   * @return a checkpoint for the {@link DuplicateOptimizer} that replaces the optimized match and
+   *         status files with the finished strata and the best assignment so far, at most once
+   *         per {@link #OPTIMIZATION_CHECKPOINT_NANOS}, so that a run killed during a long
+   *         optimization keeps it
+   */
+  private static Consumer<StratumMatches> optimizationCheckpoint(List<StratumMatches> finished,
+                                                                 String matchFile,
+                                                                 String statusFile,
+                                                                 int numSelect, Logger log) {
+    long[] lastWritten = {System.nanoTime()};
+    return best -> {
+      if (System.nanoTime() - lastWritten[0] < OPTIMIZATION_CHECKPOINT_NANOS) {
+        return;
+      }
+      List<StratumMatches> matches = new ArrayList<>(finished);
+      matches.add(best);
+      String tempMatchFile = MatchOutput.tempFileFor(matchFile);
+      String tempStatusFile = MatchOutput.tempFileFor(statusFile);
+      try {
+        MatchOutput.writeMatchFile(matches, tempMatchFile, numSelect);
+        MatchOutput.writeStatusFile(matches, tempStatusFile, false);
+        MatchOutput.moveAtomically(tempMatchFile, matchFile);
+        MatchOutput.moveAtomically(tempStatusFile, statusFile);
+        log.info("Checkpointed the best assignment so far of " + best.getStratum().getKey()
+                 + " to " + matchFile);
+      } catch (IOException e) {
+        // the optimization goes on, and its result is written when it ends
+        log.warning("Unable to checkpoint the optimized matches to " + matchFile + ": "
+                    + e.getMessage());
+      }
+      lastWritten[0] = System.nanoTime();
+    };
+  }
+
+  /** Count a stratum and its cases as matched in the progress of the run */
+  private static void finishStratum(Stratum stratum, MatchProgress progress) {
+    progress.task(MatchProgress.STRATA, 0).increment();
+    progress.task(MatchProgress.CASES_MATCHED, 0).add(stratum.numCases());
+  }
+
+  private static void countStratum(Stratum stratum, MatchMetrics metrics) {
+    metrics.count(MatchMetrics.CASES, stratum.getKey(), stratum.numCases());
+    metrics.count(MatchMetrics.CONTROLS, stratum.getKey(), stratum.numControls());
+  }
+
+  /**
+   * @return the indices of the cases and of the controls of a stratum in the order of curve, both
+   *         quantized over the same bounds so that their curve positions agree
+   */
+  private static int[][] curveOrders(Stratum stratum, SpaceFillingCurve curve) {
+    double[][] caseCoords = IntStream.range(0, stratum.numCases()).mapToObj(stratum::getCaseCoords)
+                                     .toArray(double[][]::new);
+    double[][] controlCoords = IntStream.range(0, stratum.numControls())
+                                        .mapToObj(stratum::getControlCoords)
+                                        .toArray(double[][]::new);
+    double[][] bounds = SpaceFillingCurve.bounds(caseCoords, controlCoords);
+    return new int[][] {curve.order(caseCoords, bounds[0], bounds[1]),
+                        curve.order(controlCoords, bounds[0], bounds[1])};
+  }
+
+  /** @return the matches of the cases queried in order, back in the original order of the cases */
+  private static List<Match> inCaseOrder(List<Match> matches, int[] order) {
+    Match[] original = new Match[order.length];
+    for (int i = 0; i < order.length; i++) {
+      original[order[i]] = matches.get(i);
+    }
+    return new ArrayList<>(Arrays.asList(original));
+  }
+
+  /** @return the number of filled candidate slots over all cases */
+  private static long countCandidates(StratumMatches candidates) {
+    long found = 0;
+    for (int i = 0; i < candidates.getStratum().numCases(); i++) {
+      for (int slot = 0; slot < candidates.getDepth(i); slot++) {
+        if (candidates.getControl(i, slot) != StratumMatches.NO_MATCH) {
+          found++;
+        }
+      }
+    }
+    return found;
+  }
+
+  /** @return the number of controls that are candidates of more than one case */
+  private static int countContestedControls(StratumMatches candidates) {
+    int[] cases = new int[candidates.getStratum().numControls()];
+    int contested = 0;
+    for (int i = 0; i < candidates.getStratum().numCases(); i++) {
+      for (int slot = 0; slot < candidates.getDepth(i); slot++) {
+        int control = candidates.getControl(i, slot);
+        if (control != StratumMatches.NO_MATCH && ++cases[control] == 2) {
+          contested++;
+        }
+      }
+    }
+    return contested;
+  }
+
+  private static long optimizationDeadline(MatchOptions options) {
+    return options.optimizeSeconds > 0 ? System.nanoTime() + options.optimizeSeconds * 1_000_000_000L
+                                       : Long.MAX_VALUE;
+  }
+
+  private static LinkedHashSet<String> getClusteringColumnNames(Path inputSamples,
+                                                                HashMap<Integer, Double> numericColumnsToUseForClustering) throws IOException {
+    LinkedHashSet<String> names = new LinkedHashSet<String>();
+    try (BufferedReader headerRead = org.pankratzlab.common.Files.getAppropriateReader(inputSamples.toString())) {
+      String[] header = headerRead.readLine().trim().split(PSF.Regex.GREEDY_WHITESPACE);
+      for (int i : numericColumnsToUseForClustering.keySet()) {
+        names.add(header[i]);
+      }
+    }
+    return names;
+  }
+
+  /**
+   * Matching with replacement: each case simply keeps its {@code finalNumSelect} nearest
+   * neighbors, so there are no duplicates to resolve and the optimization step is skipped entirely.
+   * Results for all strata are written to a single match file and a weighted status file.
+   */
+  @SuppressWarnings("try")
+  private static void kdMatchWithReplacement(Path baseDir, Path inputSamples,
+                                             List<Stratum> strata,
+                                             HashMap<Integer, Double> numericColumnsToUseForClustering,
+                                             int finalNumSelect, SpaceFillingCurve sampleOrder,
+                                             MatchMetrics metrics, MatchProgress progress,
+                                             Logger log) throws IOException {
+    List<Match> matches = new ArrayList<>();
+    for (Stratum stratum : strata) {
+      countStratum(stratum, metrics);
+      KDTree<Sample> kdTree = new KDTree<>(numericColumnsToUseForClustering.keySet().size());
+      log.info("Building tree for: " + stratum.getKey());
+      int[][] orders = curveOrders(stratum, sampleOrder);
+      List<Sample> controls = stratum.getControlSamples();
+      try (MatchMetrics.Phase phase = metrics.start(MatchMetrics.TREE_BUILD, stratum.getKey())) {
+        KDTree.addSamplesToTree(kdTree, IntStream.of(orders[1]).mapToObj(controls::get));
+      }
+      log.info("selecting " + finalNumSelect + " nearest neighbors with replacement for "
+               + stratum.getKey());
+      MatchProgress.Task searched = progress.task(MatchProgress.CASES_SEARCHED, stratum.getKey(),
+                                                  stratum.numCases());
+      try (MatchMetrics.Phase phase = metrics.start(MatchMetrics.KNN, stratum.getKey())
+                                             .stratum(stratum.numCases(), stratum.numControls())
+                                             .k(finalNumSelect)) {
+        List<Sample> cases = stratum.getCaseSamples();
+        List<Match> ordered = KDTree.getNearestNeighborsForSamples(kdTree,
+                                                                   IntStream.of(orders[0])
+                                                                            .mapToObj(cases::get),
+                                                                   finalNumSelect)
+                                    .peek(m -> searched.increment())
+                                    .collect(Collectors.toList());
+        matches.addAll(inCaseOrder(ordered, orders[0]));
+      }
+      searched.finish();
+      finishStratum(stratum, progress);
+      metrics.count(MatchMetrics.CANDIDATES, stratum.getKey(),
+                    (long) stratum.numCases() * finalNumSelect);
+    }
+
+    String outputFileName = baseDir + File.separator + MATCH_REPLACEMENT_TXT;
+    String[] columnNames = getClusteringColumnNames(inputSamples,
+                                                    numericColumnsToUseForClustering).stream()
+                                                                                     .toArray(String[]::new);
+    log.info("reporting selection of " + finalNumSelect
+             + " nearest neighbors with replacement to " + outputFileName);
+    try (MatchMetrics.Phase phase = metrics.start(MatchMetrics.WRITE)) {
+      KDMatch.writeToFile(matches.stream(), outputFileName, columnNames, columnNames,
+                          finalNumSelect);
+      String statusFileName = baseDir + File.separator + STATUS_REPLACEMENT_TXT;
+      MatchOutput.writeWeightedStatusFileFromMatchFile(outputFileName, statusFileName);
+    }
+  }
+
+  /**
+   * Match with an in-project index: the {@link KDSearchTree}, which prunes candidates beyond the
+   * caliper during the query, or for {@link MatchEngine#ANN} the approximate
+   * {@link RandomProjectionForest}. Output files are the same as for {@link #kdMatchMaker} (or
+   * {@link #kdMatchWithReplacement}), combined over all strata.
+   */
+  @SuppressWarnings("try")
+  private static void candidateMatch(Path baseDir, List<Stratum> strata, int initialNumSelect,
+                                     int finalNumSelect, boolean skipOptimization, int threads,
+                                     MatchOptions options, Logger log) {
+    int numCandidates = options.withReplacement ? finalNumSelect : initialNumSelect;
+    boolean adaptive = options.adaptiveDepth && !options.withReplacement
+                       && options.engine != MatchEngine.ANN && options.engine != MatchEngine.BRUTE;
+    List<StratumMatches> candidates = new ArrayList<>();
+    // the partition of each stratum that was split, used again to resolve duplicates
+    Map<StratumMatches, List<PartitionMatcher.Cell>> partitions = new HashMap<>();
+    for (Stratum stratum : strata) {
+      candidates.add(findStratumCandidates(stratum, numCandidates, finalNumSelect, adaptive,
+                                           threads, options, partitions, log));
+      if (options.withReplacement || skipOptimization) {
+        finishStratum(stratum, options.progress);
+      }
+    }
+
+    if (options.withReplacement) {
+      String outputFileName = baseDir + File.separator + MATCH_REPLACEMENT_TXT;
+      log.info("reporting selection of " + finalNumSelect
+               + " nearest neighbors with replacement to " + outputFileName);
+      try (MatchMetrics.Phase phase = options.metrics.start(MatchMetrics.WRITE)) {
+        MatchOutput.writeMatchFile(candidates, outputFileName, finalNumSelect);
+        MatchOutput.writeStatusFile(candidates, baseDir + File.separator + STATUS_REPLACEMENT_TXT,
+                                    true);
+      }
+      return;
+    }
+
+    String outputNaiveFileName = baseDir + File.separator + MATCH_NAIVE_TXT;
+    int naiveNumSelect = initialNumSelect;
+    if (adaptive) {
+      // cases that were never re-queried leave the deeper columns empty
+      naiveNumSelect = candidates.stream().mapToInt(StratumMatches::numSelect).max().orElse(0);
+      long stored = candidates.stream()
+                              .mapToLong(m -> IntStream.range(0, m.getStratum().numCases())
+                                                       .mapToLong(m::getDepth).sum())
+                              .sum();
+      long fixed = (long) initialNumSelect
+                   * candidates.stream().mapToInt(m -> m.getStratum().numCases()).sum();
+      log.info("adaptive depth kept " + stored + " candidates, compared to " + fixed
+               + " with a fixed depth of " + initialNumSelect);
+    }
+    log.info("reporting full baseline selection of up to " + naiveNumSelect
+             + " nearest neighbors to " + outputNaiveFileName);
+    try (MatchMetrics.Phase phase = options.metrics.start(MatchMetrics.WRITE)) {
+      MatchOutput.writeMatchFile(candidates, outputNaiveFileName, naiveNumSelect);
+      MatchOutput.writeStatusFile(candidates, baseDir + File.separator + STATUS_NAIVE_TXT, false);
+    }
+    if (skipOptimization) {
+      log.info("Skip optimization was flagged, returning only naive matches");
+      return;
+    }
+
+    if (options.greedyOptimizer) {
+      log.info("Resolving duplicates greedily by distance, as optimizer=greedy was set");
+    } else if (!options.iterativeOptimizer) {
+      log.info("The kdmatch optimizer only takes candidates of the kdmatch tree, so duplicates are resolved with the iterative optimizer");
+    }
+    String outputOptFileName = baseDir + File.separator + MATCH_OPTIMIZED_TXT;
+    String statusOptFileName = baseDir + File.separator + STATUS_OPTIMIZED_TXT;
+    List<StratumMatches> resolved = new ArrayList<>();
+    for (StratumMatches c : candidates) {
+      resolved.add(resolveStratum(c, finalNumSelect, options, partitions,
+                                  optimizationCheckpoint(resolved, outputOptFileName,
+                                                         statusOptFileName, finalNumSelect,
+                                                         log),
+                                  log));
+      finishStratum(c.getStratum(), options.progress);
+    }
+    log.info("reporting optimized selection of " + finalNumSelect + " nearest neighbors to "
+             + outputOptFileName);
+    try (MatchMetrics.Phase phase = options.metrics.start(MatchMetrics.WRITE)) {
+      MatchOutput.writeMatchFile(resolved, outputOptFileName, finalNumSelect);
+      MatchOutput.writeStatusFile(resolved, statusOptFileName, false);
+    }
+  }
+
+  /**
+   * Candidates of one stratum from the in-project index chosen by the options, searched on a pool
+   * of the given number of threads
+   * @param partitions receives the cells of a stratum that was partitioned
+   */
+  @SuppressWarnings("try")
+  private static StratumMatches findStratumCandidates(Stratum stratum, int numCandidates,
+                                                      int finalNumSelect, boolean adaptive,
+                                                      int threads, MatchOptions options,
+                                                      Map<StratumMatches, List<PartitionMatcher.Cell>> partitions,
+                                                      Logger log) {
+    countStratum(stratum, options.metrics);
+    StratumMatches candidates;
+    // the in-project engines search a stratum at once, so its task only shows that it is running
+    MatchProgress.Task searched = options.progress.task(MatchProgress.CASES_SEARCHED,
+                                                        stratum.getKey(), stratum.numCases());
+    try (MatchMetrics.Phase phase = options.metrics.start(MatchMetrics.KNN, stratum.getKey())
+                                                   .stratum(stratum.numCases(),
+                                                            stratum.numControls())
+                                                   .k(numCandidates)) {
+      // parallel streams and fork-join tasks started by the search run in the pool it runs in
+      ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+      try {
+        candidates = pool.invoke(ForkJoinTask.adapt(() -> searchStratum(stratum, numCandidates,
+                                                                        finalNumSelect, adaptive,
+                                                                        threads, options,
+                                                                        partitions, log)));
+      } finally {
+        pool.shutdown();
+      }
+    }
+    searched.finish();
+    options.metrics.count(MatchMetrics.CANDIDATES, stratum.getKey(), countCandidates(candidates));
+    return candidates;
+  }
+
+  private static StratumMatches searchStratum(Stratum stratum, int numCandidates,
+                                              int finalNumSelect, boolean adaptive, int threads,
+                                              MatchOptions options,
+                                              Map<StratumMatches, List<PartitionMatcher.Cell>> partitions,
+                                              Logger log) {
+    log.info("selecting up to " + numCandidates + " nearest neighbors within caliper "
+             + options.caliper + " for " + stratum.getKey());
+    MatchEngine engine = options.engine;
+    if (engine == MatchEngine.AUTO) {
+      MatchPlanner.StratumPlan plan = MatchPlanner.plan(stratum, numCandidates, threads, options,
+                                                        MatchPlanner.availableHeapBytes());
+      engine = plan.engine;
+      log.info("Planned " + engine.getArgName() + " for " + stratum.getKey() + ": " + plan.reason);
+    }
+    if (engine == MatchEngine.BRUTE) {
+      return BruteForceMatcher.findCandidates(stratum, numCandidates, options.caliper, log);
+    }
+    if (engine == MatchEngine.ANN) {
+      return TreeMatcher.findApproximateCandidates(stratum, numCandidates, options.caliper,
+                                                   options.annTrees, options.annSearchMultiplier,
+                                                   options.annExactRerank, options.cache, log);
+    }
+    if (options.partitionCellSize > 0
+        && stratum.numCases() + stratum.numControls() > options.partitionCellSize) {
+      List<PartitionMatcher.Cell> cells = PartitionMatcher.partition(stratum,
+                                                                     options.partitionCellSize);
+      StratumMatches stratumCandidates = PartitionMatcher.findCandidates(stratum, cells,
+                                                                         numCandidates,
+                                                                         options.caliper, log);
+      partitions.put(stratumCandidates, cells);
+      logPartitionOverrides(stratum, adaptive, options, log);
+      return stratumCandidates;
+    }
+    if (adaptive) {
+      return TreeMatcher.findAdaptiveCandidates(stratum, finalNumSelect, numCandidates,
+                                                options.caliper, options.sampleOrder,
+                                                options.treeSearch, options.cache, log);
+    }
+    return TreeMatcher.findCandidates(stratum, numCandidates, options.caliper,
+                                      options.sampleOrder, options.treeSearch, options.cache,
+                                      log);
+  }
+
+  /**
+   * Partitioned strata are searched per cell and stitched by {@link PartitionMatcher}, which takes
+   * precedence over the options of the single tree search and of the optimizer
+   */
+  private static void logPartitionOverrides(Stratum stratum, boolean adaptive,
+                                            MatchOptions options, Logger log) {
+    List<String> overridden = new ArrayList<>();
+    if (adaptive) {
+      overridden.add("adaptive=true");
+    }
+    if (options.sampleOrder != SpaceFillingCurve.HILBERT) {
+      overridden.add("sampleOrder=" + options.sampleOrder.name().toLowerCase());
+    }
+    if (options.kinship.numPairs() == 0) {
+      if (options.iterativeOptimizer) {
+        overridden.add("optimizer=iterative");
+      } else if (options.greedyOptimizer) {
+        overridden.add("optimizer=greedy");
+      }
+    }
+    if (!overridden.isEmpty()) {
+      log.warning(stratum.getKey() + " was partitioned, so " + String.join(", ", overridden)
+                  + " had no effect on it");
+    }
+  }
+
+  /**
+   * @param checkpoint receives the best assignment so far of the {@link DuplicateOptimizer}
+   */
+  @SuppressWarnings("try")
+  private static StratumMatches resolveStratum(StratumMatches candidates, int finalNumSelect,
+                                               MatchOptions options,
+                                               Map<StratumMatches, List<PartitionMatcher.Cell>> partitions,
+                                               Consumer<StratumMatches> checkpoint, Logger log) {
+    Stratum stratum = candidates.getStratum();
+    String key = stratum.getKey();
+    long contested = countContestedControls(candidates);
+    options.metrics.count(MatchMetrics.CONTESTED_CONTROLS, key, contested);
+    StratumMatches resolved;
+    try (MatchMetrics.Phase phase = options.metrics.start(MatchMetrics.OPTIMIZE, key)
+                                                   .stratum(stratum.numCases(),
+                                                            stratum.numControls())
+                                                   .k(finalNumSelect)
+                                                   .contestedControls(contested)) {
+      resolved = resolveDuplicates(candidates, finalNumSelect, options, partitions, checkpoint,
+                                   log);
+    }
+    options.metrics.count(MatchMetrics.MATCHED_CASES, key, resolved.numMatchedCases());
+    return resolved;
+  }
+
+  private static StratumMatches resolveDuplicates(StratumMatches candidates, int finalNumSelect,
+                                                  MatchOptions options,
+                                                  Map<StratumMatches, List<PartitionMatcher.Cell>> partitions,
+                                                  Consumer<StratumMatches> checkpoint,
+                                                  Logger log) {
+    // the stitching of partition cells does not know about relatives
+    if (partitions.containsKey(candidates) && options.kinship.numPairs() == 0) {
+      return PartitionMatcher.resolve(candidates, partitions.get(candidates), finalNumSelect, log);
+    }
+    if (options.greedyOptimizer && options.kinship.numPairs() == 0) {
+      return TreeMatcher.resolveDuplicates(candidates, finalNumSelect, log);
+    }
+    // the kdmatch optimizer only takes candidates of the kdmatch tree
+    return DuplicateOptimizer.optimize(candidates, finalNumSelect, optimizationDeadline(options),
+                                       options.optimizePasses, options.kinship, checkpoint,
+                                       options.progress, options.metrics, log);
+  }
+
+  /**
+   * Extend the output of a finished run with the cases that are not in it yet, such as cases
+   * appended to the samples file since. Every sample listed in the existing status file keeps its
+   * match; the new cases of each stratum are matched with the in-project index against the controls
+   * that are still unused, including newly added ones (all controls when matching with
+   * replacement), so the work grows with the number of new cases rather than with the cohort. The
+   * new lines are appended to copies of the existing match and status files, which then replace
+   * the originals with atomic moves once all of them are written.
+   * <p>
+   * Each move is atomic, but the set of moves is not: a run stopped between two moves would leave
+   * some files with the new cases and some without. The moves are therefore listed in
+   * {@link #PENDING_MOVES_TXT} before the first one, and the next incremental run finishes any
+   * listed moves before it reads the existing output.
+   * <p>
+   * If factors are normalized, the new samples shift the normalization slightly, so the new
+   * matches are computed on a scale that can differ a little from that of the existing ones.
+   */
+  private static void incrementalMatch(Path baseDir, List<Stratum> strata, int initialNumSelect,
+                                       int finalNumSelect, boolean skipOptimization, int threads,
+                                       MatchOptions options, Logger log) throws IOException {
+    List<String> labels;
+    if (options.withReplacement) {
+      labels = List.of("replacement");
+    } else if (skipOptimization) {
+      labels = List.of("naive");
+    } else {
+      labels = List.of("naive", "optimized");
+    }
+    finishPendingMoves(baseDir, log);
+    for (String label : labels) {
+      for (String file : List.of("match." + label + ".txt", "status." + label + ".txt")) {
+        if (!Files.exists(baseDir.resolve(file))) {
+          throw new FileNotFoundException("Incremental matching needs " + file
+                                          + " from a finished run in " + baseDir);
+        }
+      }
+    }
+    String finalStatusFile = baseDir.resolve("status." + labels.get(labels.size() - 1) + ".txt")
+                                    .toString();
+    Set<String> matched = MatchOutput.readStatusFileIds(finalStatusFile);
+    log.info("Found " + matched.size() + " samples in the existing output " + finalStatusFile);
+
+    int numCandidates = options.withReplacement ? finalNumSelect : initialNumSelect;
+    boolean adaptive = options.adaptiveDepth && !options.withReplacement
+                       && options.engine != MatchEngine.ANN && options.engine != MatchEngine.BRUTE;
+    List<StratumMatches> candidates = new ArrayList<>();
+    Map<StratumMatches, List<PartitionMatcher.Cell>> partitions = new HashMap<>();
+    for (Stratum stratum : strata) {
+      Stratum remaining = new Stratum(stratum.getKey());
+      for (int c = 0; c < stratum.numCases(); c++) {
+        if (!matched.contains(stratum.getCaseId(c))) {
+          remaining.add(stratum.getCaseId(c), stratum.getCaseCoords(c), Stratum.CASE_STATUS);
+        }
+      }
+      if (remaining.numCases() == 0) {
+        continue;
+      }
+      for (int c = 0; c < stratum.numControls(); c++) {
+        if (options.withReplacement || !matched.contains(stratum.getControlId(c))) {
+          remaining.add(stratum.getControlId(c), stratum.getControlCoords(c),
+                        Stratum.CONTROL_STATUS);
+        }
+      }
+      if (remaining.numControls() == 0) {
+        log.warning("No unused controls left for the " + remaining.numCases()
+                    + " new cases in group " + stratum.getKey()
+                    + ", these cases will not be matched");
+        continue;
+      }
+      log.info("Matching " + remaining.numCases() + " new cases in group " + stratum.getKey()
+               + " against " + remaining.numControls() + " available controls");
+      candidates.add(findStratumCandidates(remaining, numCandidates, finalNumSelect, adaptive,
+                                           threads, options, partitions, log));
+    }
+    if (candidates.isEmpty()) {
+      log.info("No new cases to match, the existing output is unchanged");
+      return;
+    }
+
+    // every updated file is first written next to its original, then all are moved into place
+    Map<String, String> updates = new LinkedHashMap<>();
+    if (options.withReplacement) {
+      String matchFile = baseDir.resolve(MATCH_REPLACEMENT_TXT).toString();
+      String tempMatchFile = MatchOutput.appendToMatchFile(candidates, matchFile);
+      String statusFile = baseDir.resolve(STATUS_REPLACEMENT_TXT).toString();
+      String tempStatusFile = MatchOutput.tempFileFor(statusFile);
+      // match counts of existing controls change too, so the weighted status file is rebuilt
+      MatchOutput.writeWeightedStatusFileFromMatchFile(tempMatchFile, tempStatusFile);
+      updates.put(tempMatchFile, matchFile);
+      updates.put(tempStatusFile, statusFile);
+    } else {
+      String naiveMatchFile = baseDir.resolve(MATCH_NAIVE_TXT).toString();
+      String naiveStatusFile = baseDir.resolve(STATUS_NAIVE_TXT).toString();
+      updates.put(MatchOutput.appendToMatchFile(candidates, naiveMatchFile), naiveMatchFile);
+      updates.put(MatchOutput.appendToStatusFile(candidates, naiveStatusFile), naiveStatusFile);
+      if (!skipOptimization) {
+        List<StratumMatches> resolved = new ArrayList<>();
+        // the existing output is only replaced once every update is written
+        for (StratumMatches c : candidates) {
+          resolved.add(resolveStratum(c, finalNumSelect, options, partitions, best -> {}, log));
+        }
+        String optMatchFile = baseDir.resolve(MATCH_OPTIMIZED_TXT).toString();
+        String optStatusFile = baseDir.resolve(STATUS_OPTIMIZED_TXT).toString();
+        updates.put(MatchOutput.appendToMatchFile(resolved, optMatchFile), optMatchFile);
+        updates.put(MatchOutput.appendToStatusFile(resolved, optStatusFile), optStatusFile);
+      }
     }
+    String pendingMoves = baseDir.resolve(PENDING_MOVES_TXT).toString();
+    String tempPendingMoves = MatchOutput.tempFileFor(pendingMoves);
+    Files.write(Paths.get(tempPendingMoves),
+                updates.entrySet().stream().map(u -> u.getKey() + "\t" + u.getValue())
+                       .collect(Collectors.toList()));
+    MatchOutput.moveAtomically(tempPendingMoves, pendingMoves);
+    finishPendingMoves(baseDir, log);
+    int newCases = candidates.stream().mapToInt(m -> m.getStratum().numCases()).sum();
+    log.info("Added matches for " + newCases + " new cases to " + updates.values());
+  }
 
+  /**
+   * Move every file listed in {@link #PENDING_MOVES_TXT} that has not been moved yet, then remove
+   * the list
+   */
+  private static void finishPendingMoves(Path baseDir, Logger log) throws IOException {
+    Path pendingMoves = baseDir.resolve(PENDING_MOVES_TXT);
+    if (!Files.exists(pendingMoves)) {
+      return;
+    }
+    int moved = 0;
+    for (String move : Files.readAllLines(pendingMoves)) {
+      String[] files = move.split("\t");
+      if (Files.exists(Paths.get(files[0]))) {
+        MatchOutput.moveAtomically(files[0], files[1]);
+        moved++;
+      }
+    }
+    Files.delete(pendingMoves);
+    if (moved > 0) {
+      log.info("Finished " + moved + " moves of an interrupted incremental update in " + baseDir);
+    }
   }
 
-  private static Sample parseSample(String[] sampleLine, int idCol,
-                                    HashMap<Integer, Double> numericColumnsToUseForClustering,
-                                    int[] factorColumnsToAssignGroup,
-                                    FactorLoadings factorLoadings) {
+  private static void addSampleToStratum(String[] sampleLine, int idCol,
+                                         HashMap<Integer, Double> numericColumnsToUseForClustering,
+                                         int[] factorColumnsToAssignGroup,
+                                         Map<String, Stratum> strata) {
     StringJoiner group = new StringJoiner("_");
     String id = sampleLine[idCol];
     int status = Integer.parseInt(sampleLine[idCol + 1]);
@@ -142,62 +800,286 @@ public class MatchMaker {
     for (int i = 0; i < factorColumnsToAssignGroup.length; i++) {
       group.add(sampleLine[factorColumnsToAssignGroup[i]]);
     }
-    return new Sample(id, dim, status, group.toString());
+    strata.computeIfAbsent(group.toString(), Stratum::new).add(id, dim, status);
   }
 
   public static Path runMatching(Path dir, Path inputSamples, FactorLoadings factorLoadings,
                                  int initialNumSelect, int finalNumSelect, int threads,
                                  boolean normalize, boolean skipOptimization,
                                  Logger log) throws IOException {
+    return runMatching(dir, inputSamples, factorLoadings, initialNumSelect, finalNumSelect, threads,
+                       normalize, skipOptimization, new MatchOptions(), log);
+  }
+
+  public static Path runMatching(Path dir, Path inputSamples, FactorLoadings factorLoadings,
+                                 int initialNumSelect, int finalNumSelect, int threads,
+                                 boolean normalize, boolean skipOptimization, MatchOptions options,
+                                 Logger log) throws IOException {
+    PreparedCohort cohort;
+    if (options.snapshots) {
+      Path snapshotDir = options.snapshotDir != null ? options.snapshotDir
+                                                     : dir.toAbsolutePath()
+                                                          .resolve(CohortSnapshot.DIRECTORY);
+      cohort = CohortSnapshot.loadOrPrepare(dir, inputSamples, factorLoadings, normalize,
+                                            snapshotDir, options.snapshotCapBytes,
+                                            options.metrics, options.progress, log);
+    } else {
+      cohort = prepareCohort(dir, inputSamples, factorLoadings, normalize, options.metrics,
+                             options.progress, log);
+    }
+    return runMatching(dir, cohort, factorLoadings, initialNumSelect, finalNumSelect, threads,
+                       skipOptimization, options, log);
+  }
+
+  /**
+   * Normalize the factors of a samples file if requested, expand its nominal factors and group its
+   * samples into strata. Strata without cases are dropped, as are strata without controls, with a
+   * warning.
+   */
+  public static PreparedCohort prepareCohort(Path dir, Path inputSamples,
+                                             FactorLoadings factorLoadings, boolean normalize,
+                                             Logger log) throws IOException {
+    return prepareCohort(dir, inputSamples, factorLoadings, normalize, MatchMetrics.NONE,
+                         new MatchProgress(), log);
+  }
 
+  /**
+   * {@link #prepareCohort(Path, Path, FactorLoadings, boolean, Logger)}, recording the time of each
+   * step in metrics and the samples parsed in progress
+   */
+  @SuppressWarnings("try")
+  public static PreparedCohort prepareCohort(Path dir, Path inputSamples,
+                                             FactorLoadings factorLoadings, boolean normalize,
+                                             MatchMetrics metrics, MatchProgress progress,
+                                             Logger log) throws IOException {
     if (normalize) {
-      inputSamples = normalizeFactors(dir, inputSamples, factorLoadings, log);
+      try (MatchMetrics.Phase phase = metrics.start(MatchMetrics.NORMALIZE)) {
+        inputSamples = normalizeFactors(dir, inputSamples, factorLoadings, log);
+      }
       log.info("Normalized input factors and wrote to file: " + inputSamples.toString());
     }
 
-    inputSamples = handleNominalVariables(dir, inputSamples, factorLoadings);
+    try (MatchMetrics.Phase phase = metrics.start(MatchMetrics.NOMINAL)) {
+      inputSamples = handleNominalVariables(dir, inputSamples, factorLoadings);
+    }
 
     HashMap<Integer, Double> numericColumnsToUseForClustering = getNumericColumnsForClustering(inputSamples,
                                                                                                factorLoadings);
     int[] factorColumnsToAssignGroup = getLoadingIndices(inputSamples, factorLoadings.getFactors(),
                                                          true, true, log);
     int idColumn = 0;
-    Map<String, List<Sample>> casesGroupedByStringFactor = new HashMap<String, List<Sample>>();
-    Map<String, List<Sample>> controlsGroupedByStringFactor = new HashMap<String, List<Sample>>();
-    Files.lines(inputSamples).map(l -> l.split("\t")).skip(1)
-         .map(k -> parseSample(k, idColumn, numericColumnsToUseForClustering,
-                               factorColumnsToAssignGroup, factorLoadings))
-         .filter(Sample::isValidCaseOrControl).forEach(s -> {
-           if (s.isCase()) {
-             if (!casesGroupedByStringFactor.containsKey(s.getGroup())) {
-               casesGroupedByStringFactor.put(s.getGroup(), new ArrayList<Sample>());
-             }
-             casesGroupedByStringFactor.get(s.getGroup()).add(s);
-           } else if (s.isControl()) {
-             if (!controlsGroupedByStringFactor.containsKey(s.getGroup())) {
-               controlsGroupedByStringFactor.put(s.getGroup(), new ArrayList<Sample>());
-             }
-             controlsGroupedByStringFactor.get(s.getGroup()).add(s);
-           }
-         });
-    final Path tempInputSamples = inputSamples;
-    List<Match> results = casesGroupedByStringFactor.entrySet().stream()
-                                                    .map(e -> kdMatchMaker(dir, tempInputSamples,
-                                                                           e.getValue(),
-                                                                           controlsGroupedByStringFactor.get(e.getKey()),
-                                                                           numericColumnsToUseForClustering,
-                                                                           initialNumSelect,
-                                                                           finalNumSelect,
-                                                                           factorLoadings,
-                                                                           skipOptimization,
-                                                                           threads, log))
-                                                    .flatMap(List::stream)
-                                                    .collect(Collectors.toList());
+    Map<String, Stratum> strata = new LinkedHashMap<>();
+    MatchProgress.Task parsed = progress.task(MatchProgress.SAMPLES_PARSED, 0);
+    try (MatchMetrics.Phase phase = metrics.start(MatchMetrics.PARSE);
+         Stream<String> lines = Files.lines(inputSamples)) {
+      lines.map(l -> l.split("\t")).skip(1).peek(k -> parsed.increment())
+           .forEach(k -> addSampleToStratum(k, idColumn, numericColumnsToUseForClustering,
+                                            factorColumnsToAssignGroup, strata));
+    }
+    parsed.finish();
+    List<Stratum> matchable = new ArrayList<>();
+    try (MatchMetrics.Phase phase = metrics.start(MatchMetrics.GROUP)) {
+      for (Stratum stratum : strata.values()) {
+        if (stratum.numCases() == 0) {
+          continue;
+        }
+        if (stratum.numControls() == 0) {
+          log.warning("No controls available for the " + stratum.numCases() + " cases in group "
+                      + stratum.getKey() + ", these cases will not be matched");
+          continue;
+        }
+        matchable.add(stratum);
+      }
+    }
+    return new PreparedCohort(inputSamples, numericColumnsToUseForClustering, matchable);
+  }
 
+  /**
+   * Match a prepared cohort and write the output files to dir
+   * @return the samples file of the cohort, after normalization
+   */
+  @SuppressWarnings("try")
+  public static Path runMatching(Path dir, PreparedCohort cohort, FactorLoadings factorLoadings,
+                                 int initialNumSelect, int finalNumSelect, int threads,
+                                 boolean skipOptimization, MatchOptions options,
+                                 Logger log) throws IOException {
+    long cases = cohort.strata.stream().mapToLong(Stratum::numCases).sum();
+    long controls = cohort.strata.stream().mapToLong(Stratum::numControls).sum();
+    try (MatchMetrics.Phase phase = options.metrics.start(MatchMetrics.MATCH)
+                                                   .stratum(cases, controls)
+                                                   .k(finalNumSelect)) {
+      return matchCohort(dir, cohort, factorLoadings, initialNumSelect, finalNumSelect, threads,
+                         skipOptimization, options, log);
+    } finally {
+      options.metrics.write(dir, log);
+    }
+  }
+
+  private static Path matchCohort(Path dir, PreparedCohort cohort, FactorLoadings factorLoadings,
+                                  int initialNumSelect, int finalNumSelect, int threads,
+                                  boolean skipOptimization, MatchOptions options,
+                                  Logger log) throws IOException {
+    Path inputSamples = cohort.inputSamples;
+    HashMap<Integer, Double> numericColumnsToUseForClustering = cohort.numericColumns;
+    List<Stratum> matchable = new ArrayList<>(cohort.strata);
+
+    if (options.engine == MatchEngine.PROPENSITY
+        && (options.kinshipFile != null || options.kinship.numPairs() > 0)) {
+      throw new IllegalArgumentException("Relatives cannot be kept apart with engine=propensity, since its pairs are not resolved by the iterative optimizer");
+    }
+
+    if (options.strata != null) {
+      matchable.removeIf(stratum -> !options.strata.contains(stratum.getKey()));
+      log.info("Matching the " + matchable.size() + " strata listed for this run");
+    }
+
+    if (options.explain) {
+      int numCandidates = options.withReplacement ? finalNumSelect : initialNumSelect;
+      MatchPlanner.explain(MatchPlanner.planAll(matchable, numCandidates, threads, options),
+                           dir.resolve(MatchPlanner.PLAN_FILE), log);
+      return inputSamples;
+    }
+
+    if (options.shards > 1) {
+      List<String> expectedFiles = new ArrayList<>();
+      for (String label : resultLabels(options, skipOptimization)) {
+        expectedFiles.add("match." + label + ".txt");
+        expectedFiles.add("status." + label + ".txt");
+      }
+      ShardCoordinator.run(dir, matchable, expectedFiles, OUTPUT_FILES, options, log);
+      return inputSamples;
+    }
+
+    if (options.kinshipFile != null && options.kinship == KinshipIndex.EMPTY) {
+      options.kinship = KinshipIndex.load(options.kinshipFile, options.kinshipPihat);
+      log.info("Keeping apart " + options.kinship.numPairs() + " related pairs of "
+               + options.kinship.numSamples() + " samples with a PI_HAT of at least "
+               + options.kinshipPihat + " in " + options.kinshipFile);
+    }
+    if (options.kinship.numPairs() > 0 && (options.withReplacement || skipOptimization)) {
+      log.warning("Relatives are only kept apart when duplicates are resolved, which "
+                  + (options.withReplacement ? "matching with replacement" : "skipOptimization=true")
+                  + " skips");
+    }
+
+    if (options.incremental) {
+      if (options.checkpoint) {
+        throw new IllegalArgumentException("Incremental matching extends finished output and cannot be combined with checkpoints");
+      }
+      if (options.engine == MatchEngine.PROPENSITY) {
+        throw new IllegalArgumentException("Incremental matching is not available for engine=propensity, since new samples change the fitted propensity model");
+      }
+      incrementalMatch(dir, matchable, initialNumSelect, finalNumSelect, skipOptimization,
+                       threads, options, log);
+      return inputSamples;
+    }
+
+    options.progress.task(MatchProgress.STRATA, matchable.size());
+    options.progress.task(MatchProgress.CASES_MATCHED,
+                          matchable.stream().mapToLong(Stratum::numCases).sum());
+    if (options.checkpoint) {
+      checkpointedMatch(dir, inputSamples, matchable, numericColumnsToUseForClustering,
+                        initialNumSelect, finalNumSelect, threads, factorLoadings,
+                        skipOptimization, options, log);
+      return inputSamples;
+    }
+
+    matchStrata(dir, inputSamples, matchable, numericColumnsToUseForClustering, initialNumSelect,
+                finalNumSelect, threads, factorLoadings, skipOptimization, options, log);
     return inputSamples;
 
   }
 
+  /**
+   * Match the strata with the engine chosen by the options and write the output files to dir
+   */
+  @SuppressWarnings("try")
+  private static void matchStrata(Path dir, Path inputSamples, List<Stratum> matchable,
+                                  HashMap<Integer, Double> numericColumnsToUseForClustering,
+                                  int initialNumSelect, int finalNumSelect, int threads,
+                                  FactorLoadings factorLoadings, boolean skipOptimization,
+                                  MatchOptions options, Logger log) throws IOException {
+    if (options.engine == MatchEngine.PROPENSITY) {
+      List<StratumMatches> results = new ArrayList<>();
+      for (Stratum stratum : matchable) {
+        countStratum(stratum, options.metrics);
+        try (MatchMetrics.Phase phase = options.metrics.start(MatchMetrics.PROPENSITY,
+                                                              stratum.getKey())) {
+          results.add(PropensityMatcher.match(stratum, finalNumSelect,
+                                              options.propensityCaliperSd,
+                                              options.withReplacement, log));
+        }
+        finishStratum(stratum, options.progress);
+      }
+      String matchFile = dir + File.separator + MATCH_PROPENSITY_TXT;
+      log.info("reporting propensity score selection of " + finalNumSelect + " controls to "
+               + matchFile);
+      try (MatchMetrics.Phase phase = options.metrics.start(MatchMetrics.WRITE)) {
+        MatchOutput.writeMatchFile(results, matchFile, finalNumSelect);
+        MatchOutput.writeStatusFile(results, dir + File.separator + STATUS_PROPENSITY_TXT,
+                                    options.withReplacement);
+      }
+      return;
+    }
+
+    // the kdmatch tree only has single queries, so strata worth a dual-tree search move the run to
+    // the in-project tree, where each stratum still gets the search its tree search picks
+    boolean dualTree = options.engine == MatchEngine.KDTREE
+                       && matchable.stream().anyMatch(options.treeSearch::useDualTree);
+    if (options.caliper.isSet() || options.engine == MatchEngine.ANN
+        || options.engine == MatchEngine.BRUTE || options.engine == MatchEngine.AUTO
+        || options.adaptiveDepth || options.partitionCellSize > 0 || dualTree) {
+      candidateMatch(dir, matchable, initialNumSelect, finalNumSelect, skipOptimization, threads,
+                     options, log);
+      return;
+    }
+
+    if (options.withReplacement) {
+      kdMatchWithReplacement(dir, inputSamples, matchable, numericColumnsToUseForClustering,
+                             finalNumSelect, options.sampleOrder, options.metrics,
+                             options.progress, log);
+      return;
+    }
+
+    for (Stratum stratum : matchable) {
+      kdMatchMaker(dir, inputSamples, stratum, numericColumnsToUseForClustering, initialNumSelect,
+                   finalNumSelect, factorLoadings, skipOptimization, threads, options, log);
+      finishStratum(stratum, options.progress);
+    }
+  }
+
+  /**
+   * Match every stratum into its own {@link MatchCheckpoint} directory, skipping strata finished by
+   * an earlier run with the same settings and samples, then merge them into the output files of dir
+   */
+  private static void checkpointedMatch(Path dir, Path inputSamples, List<Stratum> matchable,
+                                        HashMap<Integer, Double> numericColumnsToUseForClustering,
+                                        int initialNumSelect, int finalNumSelect, int threads,
+                                        FactorLoadings factorLoadings, boolean skipOptimization,
+                                        MatchOptions options, Logger log) throws IOException {
+    String settings = "factors=" + factorLoadings.getFactors() + ";initialNumSelect="
+                      + initialNumSelect + ";finalNumSelect=" + finalNumSelect
+                      + ";skipOptimization=" + skipOptimization + ";" + options;
+    MatchCheckpoint checkpoint = MatchCheckpoint.open(dir, settings, log);
+    int skipped = 0;
+    for (Stratum stratum : matchable) {
+      if (checkpoint.isFinished(stratum)) {
+        skipped++;
+        finishStratum(stratum, options.progress);
+        continue;
+      }
+      Path stratumDir = checkpoint.prepare(stratum);
+      matchStrata(stratumDir, inputSamples, List.of(stratum), numericColumnsToUseForClustering,
+                  initialNumSelect, finalNumSelect, threads, factorLoadings, skipOptimization,
+                  options, log);
+      checkpoint.markFinished(stratum);
+      log.info("Checkpointed " + stratum.getKey());
+    }
+    log.info("Skipped " + skipped + " of " + matchable.size()
+             + " strata that were finished in an earlier run");
+    checkpoint.merge(matchable, OUTPUT_FILES, dir, log);
+  }
+
   /**
    * Find the index of each factor name in the sample file header and return a map from index to
    * loading (index of factor in header) -> (factor loading)
@@ -226,8 +1108,8 @@ public class MatchMaker {
     return columnsToUse;
   }
 
-  private static Path handleNominalVariables(Path dir, Path inputSamples,
-                                             FactorLoadings factorLoadings) {
+  static Path handleNominalVariables(Path dir, Path inputSamples,
+                                     FactorLoadings factorLoadings) {
 
     try (BufferedReader origSamplesFile = org.pankratzlab.common.Files.getAppropriateReader(inputSamples.toString())) {
       String line = origSamplesFile.readLine();
@@ -336,8 +1218,8 @@ public class MatchMaker {
     return noms;
   }
 
-  private static Path normalizeFactors(Path dir, Path inputSamples, FactorLoadings factors,
-                                       Logger log) throws IOException {
+  static Path normalizeFactors(Path dir, Path inputSamples, FactorLoadings factors,
+                               Logger log) throws IOException {
     String normalizedSamples = dir + "/normalized.txt";
     String[][] matrix;
     double[][] allData;
@@ -539,6 +1421,7 @@ public class MatchMaker {
     boolean skipEval = false;
     boolean skipOptimization = false;
     List<String> evalArgs = null;
+    MatchOptions options = new MatchOptions();
     Logger log;
 
     String usage = "\n" + "gwas.MatchMaker requires at least 1 argument\n"
@@ -554,7 +1437,36 @@ public class MatchMaker {
                    + "(10) Only build the visualizer files to run separately - (e.g. onlyBuildVisFiles=false (default))\n"
                    + "(11) Skip evaluation - skip generating statistical analysis of matchmaking quality (e.g. skipEval=false (default))\n"
                    + "(12) Skip optimization - skip optimization of matches (e.g. skipOptimization=false (default))\n"
-                   + "(13) Number of threads to use (default = Runtime.getRuntime().availableProcessors()) (e.g. threads=10) ";
+                   + "(13) Number of threads to use (default = Runtime.getRuntime().availableProcessors()) (e.g. threads=10)\n"
+                   + "(14) Matching engine - kdtree for k-d tree nearest neighbors, propensity for logit propensity score matching, ann for approximate nearest neighbors, brute for all distances or auto to choose brute, kdtree or ann per stratum (e.g. engine=kdtree (default))\n"
+                   + "(15) Propensity caliper - maximum logit score difference in standard deviations, used with engine=propensity (e.g. propensityCaliper="
+                   + PropensityMatcher.DEFAULT_CALIPER_SD + " (default))\n"
+                   + "(16) Match with replacement - controls may be reused; skips optimization and records each control's match count in the status file (e.g. replacement=false (default))\n"
+                   + "(17) Caliper - maximum case-control distance, absolute or in standard deviations of the distance distribution (e.g. caliper=1.5 or caliper=0.5sd, default=none)\n"
+                   + "(18) Sample order - space-filling curve used to order samples before building and querying the tree; output keeps the input order (e.g. sampleOrder=hilbert (default), morton or none)\n"
+                   + "(19) Tree search - single queries per case, or a dual-tree search over a case tree and the control tree; auto uses the dual-tree search for strata whose cases are at least " + (int) (TreeSearch.AUTO_MIN_CASE_CONTROL_RATIO * 100) + "% of their controls, and with engine=kdtree any such stratum moves the run from the kdmatch tree to the in-project tree and optimizer (e.g. treeSearch=auto (default), single or dual)\n"
+                   + "(20) Approximate nearest neighbor trees - random projection trees used with engine=ann (e.g. annTrees=10 (default))\n"
+                   + "(21) Approximate nearest neighbor search - candidates examined per case as a multiple of the controls wanted, higher is slower with better recall (e.g. annSearch=10 (default))\n"
+                   + "(22) Approximate nearest neighbor exact re-ranking - report exact distances for engine=ann (e.g. annExact=true (default))\n"
+                   + "(23) Adaptive depth - start with twice iterations candidates per case and query deeper, up to iterations*multiplier, only for cases whose candidates all went to other cases (e.g. adaptive=false (default))\n"
+                   + "(24) Optimizer - kdmatch, or iterative for the in-project optimizer that keeps its best assignment and stops at a time or pass budget; iterative is also used if kdmatch fails and for the candidates of a caliper or another engine, unless greedy is set to take them by increasing distance (e.g. optimizer=kdmatch (default))\n"
+                   + "(25) Optimization time limit in seconds per stratum for optimizer=iterative, 0 for none (e.g. optimizeTime=0 (default))\n"
+                   + "(26) Optimization pass limit for optimizer=iterative (e.g. optimizePasses=100 (default))\n"
+                   + "(27) Partition cell size - split strata with more samples than this spatially, match the cells in parallel and stitch the results, 0 to never split (e.g. partition=0 (default))\n"
+                   + "(28) Incremental - match only cases missing from the existing output against the controls it has not used, and update the output in place (e.g. incremental=false (default))\n"
+                   + "(29) Checkpoint - match each stratum into its own checkpoint directory and merge when all are done; a rerun resumes by skipping strata whose samples and settings are unchanged (e.g. checkpoint=false (default))\n"
+                   + "(30) Shards - split the strata into this many shards matched by separate worker JVMs, rerunning a worker that dies, and merge their output (e.g. shards=0 (default))\n"
+                   + "(31) Shard hosts - ssh hosts sharing this filesystem to run the shard workers on, in turn (e.g. shardHosts=node1,node2, default=this host)\n"
+                   + "(32) Shard retries - times a failed shard worker is started again (e.g. shardRetries=2 (default))\n"
+                   + "(33) Worker JVM arguments - separated by commas (e.g. workerJvm=-Xmx16g,-Xss10m)\n"
+                   + "(34) Strata - file with the keys of the only strata to match, one per line; used by shard workers (e.g. strata=strata.txt, default=all)\n"
+                   + "(35) Cohort snapshots - reuse the prepared samples of an earlier run on the same samples file and factors (e.g. snapshots=false (default))\n"
+                   + "(36) Cohort snapshot directory (e.g. snapshotDir=/scratch/snapshots, default=cohort_snapshots in the output directory)\n"
+                   + "(37) Cohort snapshot size cap in MB, least recently used snapshots are removed beyond it (e.g. snapshotCap=2048 (default))\n"
+                   + "(38) Progress - seconds between progress reports to the log and to " + MatchProgress.STATUS_FILE + ", 0 for none (e.g. progress=60 (default))\n"
+                   + "(39) Explain - write the engine, estimated time and memory of every stratum to " + MatchPlanner.PLAN_FILE + " and stop before matching (e.g. explain=false (default))\n"
+                   + "(40) Kinship - PLINK .genome file of related samples; no case is matched to a relative or to two related controls, using the iterative optimizer; rejected for engine=propensity and ignored with skipOptimization=true (e.g. kinship=plink.genome, default=none)\n"
+                   + "(41) Kinship PI_HAT - pairs of the kinship file with at least this PI_HAT are related (e.g. kinshipPihat=" + KinshipIndex.DEFAULT_PIHAT + " (default))\n";
 
     for (String arg : args) {
       if (arg.equals("-h") || arg.equals("-help") || arg.equals("/h") || arg.equals("/help")) {
@@ -587,8 +1499,18 @@ public class MatchMaker {
         skipOptimization = Boolean.parseBoolean(splitEq(arg));
       } else if (arg.startsWith("threads=")) {
         threads = Integer.parseInt(splitEq(arg));
+      } else if (arg.startsWith("strata=")) {
+        try {
+          options.strata = new HashSet<>(Files.readAllLines(Paths.get(splitEq(arg))));
+        } catch (IOException e) {
+          System.err.println("Unable to read strata from " + splitEq(arg));
+          System.exit(1);
+        }
+      } else {
+        options.parseArg(arg);
       }
     }
+    options.workerArgs.addAll(ShardCoordinator.workerArgs(args, options));
 
     if (factorLoadings == null) {
       System.err.println("No factors supplied, unable to continue");
@@ -597,25 +1519,36 @@ public class MatchMaker {
     }
 
     int initialNumSelect = finalNumSelect * multiplier;
-    samples = Paths.get(d + File.separator + samples);
+    if (!samples.isAbsolute()) {
+      samples = Paths.get(d + File.separator + samples);
+    }
+    options.workerArgs.add("samples=" + samples.toAbsolutePath());
 
     log = Logger.getAnonymousLogger();
     log.info("Starting sample match using k-d tree nearest neighbors.");
 
     try {
-      List<String> fileNames = List.of(MATCH_NAIVE_TXT, STATUS_NAIVE_TXT, MATCH_OPTIMIZED_TXT,
-                                       STATUS_OPTIMIZED_TXT);
       final Path finalD = d;
-      boolean outputExists = fileNames.stream()
+      boolean outputExists = OUTPUT_FILES.stream()
                                       .map(name -> new File(finalD + File.separator + name))
                                       .anyMatch(File::exists);
-      if (outputExists) {
+      if (outputExists && !options.incremental) {
         log.info("Output already exists.");
         System.exit(0);
+      } else if (!outputExists && options.incremental) {
+        log.info("No existing output to extend, matching all samples");
+        options.incremental = false;
       }
+      options.progress.start(d.resolve(MatchProgress.STATUS_FILE), options.progressSeconds, log);
       Path normalizedSamples = runMatching(d, samples, factorLoadings, initialNumSelect,
                                            finalNumSelect, threads, normalize, skipOptimization,
-                                           log);
+                                           options, log);
+      if (options.explain) {
+        log.info("Dry run with explain=true, nothing was matched");
+        return;
+      }
+      List<String> resultLabels = resultLabels(options, skipOptimization);
+      String resultsFileName = "match." + resultLabels.get(resultLabels.size() - 1) + ".txt";
       if (vis) {
         HashMap<Integer, Double> temp = getNumericColumnsForClustering(normalizedSamples,
                                                                        factorLoadings);
@@ -630,7 +1563,7 @@ public class MatchMaker {
         }
         for (int i = 0; i < finalNumSelect; i++) {
           Path resultsFile = Paths.get(new File(d + File.separator
-                                                + MATCH_OPTIMIZED_TXT).toString());
+                                                + resultsFileName).toString());
           buildVisHelpers(d, resultsFile, normalizedSamples, i, log);
           if (!onlyBuildVisFiles) {
             new MatchesVisualized(d.toString(), normalizedSamples.toString(),
@@ -651,32 +1584,41 @@ public class MatchMaker {
           matchingVariables = MatchingVariable.fromNames(evalArgs);
         }
 
-        File naiveStatusFile = new File(d + File.separator + STATUS_NAIVE_TXT);
-        REval rEvalNaive = new REval(matchingVariables, naiveStatusFile, samples.toFile());
-        rEvalNaive.readPhenotypeFile();
-        File naiveRevalOutputFile = new File(d + File.separator + "eval_results_naive.tsv");
-        rEvalNaive.writeTableOutputToFile(naiveRevalOutputFile);
-        log.info("Wrote eval output to " + naiveRevalOutputFile.getName());
-
-        if (skipOptimization) {
+        if (skipOptimization && options.engine != MatchEngine.PROPENSITY
+            && !options.withReplacement) {
           log.info("Skip optimization was flagged, skipping evaluation of optimized matches");
-        } else {
-          File optimizedStatusFile = new File(d + File.separator + STATUS_OPTIMIZED_TXT);
-          REval rEvalOptimized = new REval(matchingVariables, optimizedStatusFile,
-                                           samples.toFile());
-          rEvalOptimized.readPhenotypeFile();
-          File optimizedRevalOutputFile = new File(d + File.separator
-                                                   + "eval_results_optimized.tsv");
-          rEvalOptimized.writeTableOutputToFile(optimizedRevalOutputFile);
-          log.info("Wrote eval output to " + optimizedRevalOutputFile.getName());
         }
+        for (String label : resultLabels) {
+          File statusFile = new File(d + File.separator + "status." + label + ".txt");
+          REval rEval = new REval(matchingVariables, statusFile, samples.toFile());
+          rEval.setMetrics(options.metrics, label);
+          rEval.readPhenotypeFile();
+          File revalOutputFile = new File(d + File.separator + "eval_results_" + label + ".tsv");
+          rEval.writeTableOutputToFile(revalOutputFile);
+          log.info("Wrote eval output to " + revalOutputFile.getName());
+        }
+        options.metrics.write(d, log);
         // obviously there's an opportunity for optimization here because this is reading the entire
         // phenotype file twice, when only the statuses have changed.
       }
 
     } catch (IOException e) {
       e.printStackTrace();
+    } finally {
+      options.progress.close();
+    }
+  }
+
+  /** every result set is written as match.&lt;label&gt;.txt and status.&lt;label&gt;.txt */
+  private static List<String> resultLabels(MatchOptions options, boolean skipOptimization) {
+    if (options.engine == MatchEngine.PROPENSITY) {
+      return List.of("propensity");
+    } else if (options.withReplacement) {
+      return List.of("replacement");
+    } else if (skipOptimization) {
+      return List.of("naive");
     }
+    return List.of("naive", "optimized");
   }
 
   private static String splitEq(String arg) {
@@ -0,0 +1,354 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+import java.util.logging.Logger;
+
+/**
+ * Wall time, CPU time and allocated bytes of each phase of a matching run, per stratum, and
+ * counters such as the number of candidates found. Phases are timed with
+ * {@code try (MatchMetrics.Phase p = metrics.start(MatchMetrics.KNN, stratum.getKey())) {...}}.
+ * The CPU time and allocations of a phase are those of the thread that started it only, and are
+ * labeled as such, so work a phase hands to other threads only shows in its wall time; the CPU
+ * time of the whole process is reported next to them. The totals are written as
+ * {@value #JSON_FILE} and as a Prometheus text-format snapshot, {@value #PROMETHEUS_FILE}, next to
+ * the output files.
+ * <p>
+ * Every phase is also a {@link MatchEvent} for Java Flight Recorder, whether or not metrics are
+ * collected, carrying the sizes given with {@link Phase#stratum}, {@link Phase#k} and
+ * {@link Phase#contestedControls}.
+ */
+public class MatchMetrics {
+  /** a whole matching run */
+  public static final String MATCH = "match";
+  /** all steps of matching one stratum with kdmatch */
+  public static final String STRATUM = "stratum";
+  public static final String SNAPSHOT = "snapshot";
+  public static final String NORMALIZE = "normalize";
+  public static final String NOMINAL = "nominal";
+  /** reading the samples file; samples are grouped into strata as they are read */
+  public static final String PARSE = "parse";
+  /** dropping strata without cases or controls */
+  public static final String GROUP = "group";
+  public static final String TREE_BUILD = "tree_build";
+  /** nearest neighbor queries, including the index build of the in-project engines */
+  public static final String KNN = "knn";
+  /** fitting the propensity model and matching on the score */
+  public static final String PROPENSITY = "propensity";
+  public static final String OPTIMIZE = "optimize";
+  /** one improvement pass of {@link DuplicateOptimizer} */
+  public static final String OPTIMIZE_PASS = "optimize_pass";
+  public static final String WRITE = "write";
+  /** the case-control distance matrices of {@link MatchSamples} */
+  public static final String DISTANCES = "distances";
+  /** the greedy pairing of {@link MatchSamples#matchPairs} */
+  public static final String PAIRING = "pairing";
+  public static final String EVAL_READ = "eval_read";
+  public static final String EVAL_CONCORDANCE = "eval_concordance";
+  public static final String EVAL_AVERAGES = "eval_averages";
+  public static final String EVAL_UNIVARIATE = "eval_univariate";
+  public static final String EVAL_MULTIVARIATE = "eval_multivariate";
+
+  public static final String CASES = "cases";
+  public static final String CONTROLS = "controls";
+  public static final String CANDIDATES = "candidates";
+  /** controls among the candidates of more than one case */
+  public static final String CONTESTED_CONTROLS = "contested_controls";
+  public static final String MATCHED_CASES = "matched_cases";
+
+  /** stratum of the phases and counters that cover the whole run */
+  public static final String ALL_STRATA = "all";
+  public static final String JSON_FILE = "metrics.json";
+  public static final String PROMETHEUS_FILE = "metrics.prom";
+
+  /** records no metrics, for callers that do not collect them; its phases still emit events */
+  public static final MatchMetrics NONE = new MatchMetrics(false);
+
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+  /** the HotSpot extension that reports allocations per thread, or null */
+  private static final com.sun.management.ThreadMXBean ALLOCATIONS = allocationBean();
+  /** the HotSpot extension that reports the CPU time of the process, or null */
+  private static final com.sun.management.OperatingSystemMXBean PROCESS = processBean();
+
+  private static class Totals {
+    final LongAdder calls = new LongAdder();
+    final LongAdder wallNanos = new LongAdder();
+    final LongAdder cpuNanos = new LongAdder();
+    final LongAdder allocatedBytes = new LongAdder();
+  }
+
+  private final boolean enabled;
+  private final long startNanos = System.nanoTime();
+  /** phase -> stratum -> totals */
+  private final Map<String, Map<String, Totals>> phases = new ConcurrentHashMap<>();
+  /** counter -> stratum -> count */
+  private final Map<String, Map<String, LongAdder>> counters = new ConcurrentHashMap<>();
+
+  public MatchMetrics() {
+    this(true);
+  }
+
+  private MatchMetrics(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /** A running phase, recorded when it is closed */
+  public class Phase implements AutoCloseable {
+    private final String phase;
+    private final String stratum;
+    private final long wall;
+    private final long cpu;
+    private final long allocated;
+    private final MatchEvent event = new MatchEvent();
+
+    private Phase(String phase, String stratum) {
+      this.phase = phase;
+      this.stratum = stratum;
+      this.wall = enabled ? System.nanoTime() : 0;
+      this.cpu = enabled ? cpuTime() : 0;
+      this.allocated = enabled ? allocatedBytes() : 0;
+      event.begin();
+    }
+
+    /** Record the size of the stratum in the event of this phase */
+    public Phase stratum(long cases, long controls) {
+      event.cases = cases;
+      event.controls = controls;
+      return this;
+    }
+
+    /** Record the number of neighbors selected per case in the event of this phase */
+    public Phase k(int k) {
+      event.k = k;
+      return this;
+    }
+
+    /** Record the number of the optimization pass in the event of this phase */
+    public Phase pass(int pass) {
+      event.pass = pass;
+      return this;
+    }
+
+    /** Record the number of controls wanted by more than one case in the event of this phase */
+    public Phase contestedControls(long contestedControls) {
+      event.contestedControls = contestedControls;
+      return this;
+    }
+
+    @Override
+    public void close() {
+      if (event.shouldCommit()) {
+        event.phase = phase;
+        event.stratum = stratum;
+        event.commit();
+      }
+      if (!enabled) {
+        return;
+      }
+      Totals totals = phases.computeIfAbsent(phase, p -> new ConcurrentHashMap<>())
+                            .computeIfAbsent(stratum, s -> new Totals());
+      totals.calls.increment();
+      totals.wallNanos.add(System.nanoTime() - wall);
+      totals.cpuNanos.add(cpuTime() - cpu);
+      totals.allocatedBytes.add(allocatedBytes() - allocated);
+    }
+  }
+
+  public Phase start(String phase) {
+    return start(phase, ALL_STRATA);
+  }
+
+  public Phase start(String phase, String stratum) {
+    return new Phase(phase, stratum);
+  }
+
+  public void count(String counter, String stratum, long delta) {
+    if (enabled) {
+      counters.computeIfAbsent(counter, c -> new ConcurrentHashMap<>())
+              .computeIfAbsent(stratum, s -> new LongAdder()).add(delta);
+    }
+  }
+
+  /** @return total wall time of a phase over all strata, in nanoseconds */
+  public long wallNanos(String phase) {
+    return phases.getOrDefault(phase, Map.of()).values().stream()
+                 .mapToLong(t -> t.wallNanos.sum()).sum();
+  }
+
+  /** @return the total of a counter over all strata */
+  public long count(String counter) {
+    return counters.getOrDefault(counter, Map.of()).values().stream().mapToLong(LongAdder::sum)
+                   .sum();
+  }
+
+  private static long cpuTime() {
+    return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0;
+  }
+
+  private static com.sun.management.ThreadMXBean allocationBean() {
+    if (THREADS instanceof com.sun.management.ThreadMXBean) {
+      return (com.sun.management.ThreadMXBean) THREADS;
+    }
+    return null;
+  }
+
+  private static com.sun.management.OperatingSystemMXBean processBean() {
+    java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    if (os instanceof com.sun.management.OperatingSystemMXBean) {
+      return (com.sun.management.OperatingSystemMXBean) os;
+    }
+    return null;
+  }
+
+  /** @return CPU time of all threads of the process since it started, or -1 if unavailable */
+  private static long processCpuNanos() {
+    return PROCESS == null ? -1 : PROCESS.getProcessCpuTime();
+  }
+
+  private static long allocatedBytes() {
+    if (ALLOCATIONS == null || !ALLOCATIONS.isThreadAllocatedMemorySupported()) {
+      return 0;
+    }
+    return ALLOCATIONS.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /** @return the sum of the peak usage of the heap memory pools since the JVM started */
+  private static long peakHeapBytes() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+
+  /** Write {@value #JSON_FILE} and {@value #PROMETHEUS_FILE} to dir, logging any failure */
+  public void write(Path dir, Logger log) {
+    if (!enabled) {
+      return;
+    }
+    try {
+      writeJson(dir.resolve(JSON_FILE));
+      writePrometheus(dir.resolve(PROMETHEUS_FILE));
+      log.info("Wrote metrics to " + dir.resolve(JSON_FILE));
+    } catch (IOException e) {
+      log.warning("Could not write metrics to " + dir + ": " + e.getMessage());
+    }
+  }
+
+  public void writeJson(Path file) throws IOException {
+    try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(file))) {
+      writer.println("{");
+      writer.println("  \"elapsedSeconds\": " + (System.nanoTime() - startNanos) / 1e9 + ",");
+      writer.println("  \"processCpuSeconds\": " + processCpuNanos() / 1e9 + ",");
+      writer.println("  \"peakHeapBytes\": " + peakHeapBytes() + ",");
+      writer.println("  \"phases\": [");
+      String separator = "";
+      for (Entry<String, Map<String, Totals>> phase : sorted(phases).entrySet()) {
+        for (Entry<String, Totals> stratum : sorted(phase.getValue()).entrySet()) {
+          Totals totals = stratum.getValue();
+          writer.print(separator + "    {\"phase\": " + quote(phase.getKey()) + ", \"stratum\": "
+                       + quote(stratum.getKey()) + ", \"calls\": " + totals.calls.sum()
+                       + ", \"wallSeconds\": " + totals.wallNanos.sum() / 1e9
+                       + ", \"threadCpuSeconds\": " + totals.cpuNanos.sum() / 1e9
+                       + ", \"threadAllocatedBytes\": " + totals.allocatedBytes.sum() + "}");
+          separator = ",\n";
+        }
+      }
+      writer.println();
+      writer.println("  ],");
+      writer.println("  \"counters\": [");
+      separator = "";
+      for (Entry<String, Map<String, LongAdder>> counter : sorted(counters).entrySet()) {
+        for (Entry<String, LongAdder> stratum : sorted(counter.getValue()).entrySet()) {
+          writer.print(separator + "    {\"counter\": " + quote(counter.getKey())
+                       + ", \"stratum\": " + quote(stratum.getKey()) + ", \"value\": "
+                       + stratum.getValue().sum() + "}");
+          separator = ",\n";
+        }
+      }
+      writer.println();
+      writer.println("  ]");
+      writer.println("}");
+    }
+  }
+
+  public void writePrometheus(Path file) throws IOException {
+    try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(file))) {
+      writeFamily(writer, "matchmaker_phase_calls_total", "Times a matching phase ran",
+                  t -> (double) t.calls.sum());
+      writeFamily(writer, "matchmaker_phase_wall_seconds_total",
+                  "Wall time spent in a matching phase", t -> t.wallNanos.sum() / 1e9);
+      writeFamily(writer, "matchmaker_phase_thread_cpu_seconds_total",
+                  "CPU time of the thread that started a matching phase only",
+                  t -> t.cpuNanos.sum() / 1e9);
+      writeFamily(writer, "matchmaker_phase_thread_allocated_bytes_total",
+                  "Bytes allocated by the thread that started a matching phase only",
+                  t -> (double) t.allocatedBytes.sum());
+      writer.println("# HELP matchmaker_count_total Counts of the matching run, by stratum");
+      writer.println("# TYPE matchmaker_count_total counter");
+      for (Entry<String, Map<String, LongAdder>> counter : sorted(counters).entrySet()) {
+        for (Entry<String, LongAdder> stratum : sorted(counter.getValue()).entrySet()) {
+          writer.println("matchmaker_count_total{counter=\"" + label(counter.getKey())
+                         + "\",stratum=\"" + label(stratum.getKey()) + "\"} "
+                         + stratum.getValue().sum());
+        }
+      }
+      writer.println("# HELP matchmaker_process_cpu_seconds_total CPU time of every thread of the"
+                     + " JVM");
+      writer.println("# TYPE matchmaker_process_cpu_seconds_total counter");
+      writer.println("matchmaker_process_cpu_seconds_total " + processCpuNanos() / 1e9);
+      writer.println("# HELP matchmaker_peak_heap_bytes Peak heap usage of the JVM");
+      writer.println("# TYPE matchmaker_peak_heap_bytes gauge");
+      writer.println("matchmaker_peak_heap_bytes " + peakHeapBytes());
+    }
+  }
+
+  private void writeFamily(PrintWriter writer, String name, String help,
+                           ToDoubleFunction<Totals> value) {
+    writer.println("# HELP " + name + " " + help);
+    writer.println("# TYPE " + name + " counter");
+    for (Entry<String, Map<String, Totals>> phase : sorted(phases).entrySet()) {
+      for (Entry<String, Totals> stratum : sorted(phase.getValue()).entrySet()) {
+        writer.println(name + "{phase=\"" + label(phase.getKey()) + "\",stratum=\""
+                       + label(stratum.getKey()) + "\"} "
+                       + value.applyAsDouble(stratum.getValue()));
+      }
+    }
+  }
+
+  private static <V> Map<String, V> sorted(Map<String, V> map) {
+    return new TreeMap<>(map);
+  }
+
+  private static String label(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  private static String quote(String value) {
+    StringBuilder quoted = new StringBuilder("\"");
+    for (char c : value.toCharArray()) {
+      if (c == '"' || c == '\\') {
+        quoted.append('\\').append(c);
+      } else if (c < 0x20) {
+        quoted.append(String.format("\\u%04x", (int) c));
+      } else {
+        quoted.append(c);
+      }
+    }
+    return quoted.append('"').toString();
+  }
+}
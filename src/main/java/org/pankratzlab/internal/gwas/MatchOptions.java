@@ -0,0 +1,274 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Optional settings for {@link MatchMaker#runMatching}. The defaults reproduce the original k-d
+ * tree behavior, except that strata with many cases per control are searched with a dual-tree
+ * search, see {@link #treeSearch}.
+ */
+public class MatchOptions {
+  public MatchEngine engine = MatchEngine.KDTREE;
+  /** caliper for {@link MatchEngine#PROPENSITY}, in standard deviations of the logit score */
+  public double propensityCaliperSd = PropensityMatcher.DEFAULT_CALIPER_SD;
+  /** allow a control to be matched to more than one case, skipping duplicate optimization */
+  public boolean withReplacement = false;
+  /**
+   * maximum case-control distance; when set, strata are matched with the in-project
+   * {@link KDSearchTree} since the kdmatch tree has no bounded-radius query
+   */
+  public Caliper caliper = Caliper.NONE;
+  /**
+   * order in which the k-d trees of every engine but propensity are built and queried; output is
+   * always in the original sample order
+   */
+  public SpaceFillingCurve sampleOrder = SpaceFillingCurve.HILBERT;
+  /**
+   * single or dual-tree search for the in-project {@link KDSearchTree}; with
+   * {@link MatchEngine#KDTREE}, a stratum that gets the dual-tree search moves the run from the
+   * kdmatch tree to the in-project tree
+   */
+  public TreeSearch treeSearch = TreeSearch.AUTO;
+  /** number of trees in the {@link RandomProjectionForest} for {@link MatchEngine#ANN} */
+  public int annTrees = 10;
+  /**
+   * for {@link MatchEngine#ANN}, candidates gathered per case as a multiple of the number of
+   * controls wanted; higher values raise recall and take longer
+   */
+  public int annSearchMultiplier = 10;
+  /** for {@link MatchEngine#ANN}, re-rank candidates with exact distances */
+  public boolean annExactRerank = true;
+  /**
+   * start with few candidates per case and query deeper only for contested cases, up to the
+   * initial number of candidates; uses the in-project {@link KDSearchTree}
+   */
+  public boolean adaptiveDepth = false;
+  /**
+   * resolve duplicates with the in-project {@link DuplicateOptimizer} instead of the kdmatch
+   * optimizer; the in-project optimizer is also used whenever the kdmatch one fails or cannot take
+   * the candidates, see {@link #greedyOptimizer}
+   */
+  public boolean iterativeOptimizer = false;
+  /**
+   * resolve duplicates among the candidates of the in-project indexes greedily, by increasing
+   * distance, instead of with the {@link DuplicateOptimizer}; faster, but matches fewer cases
+   */
+  public boolean greedyOptimizer = false;
+  /** time budget of the {@link DuplicateOptimizer} per stratum in seconds, 0 for none */
+  public long optimizeSeconds = 0;
+  /** largest number of improvement passes of the {@link DuplicateOptimizer} */
+  public int optimizePasses = 100;
+  /**
+   * PLINK .genome file of samples that must not share a case's set of controls, nor be matched to
+   * a case they are related to; null for none
+   */
+  public Path kinshipFile = null;
+  /** pairs of the kinship file with at least this PI_HAT are related */
+  public double kinshipPihat = KinshipIndex.DEFAULT_PIHAT;
+  /**
+   * related pairs, loaded from the kinship file when matching starts; duplicates are resolved by
+   * the {@link DuplicateOptimizer} whenever there are any
+   */
+  public KinshipIndex kinship = KinshipIndex.EMPTY;
+  /**
+   * strata with more cases and controls than this are split spatially and matched cell by cell by
+   * {@link PartitionMatcher}; 0 to never split
+   */
+  public int partitionCellSize = 0;
+  /**
+   * extend the output of a finished run with the cases it does not contain yet, using only the
+   * controls it has not used; see {@link MatchMaker#runMatching}
+   */
+  public boolean incremental = false;
+  /**
+   * match each stratum into a {@link MatchCheckpoint} so that an interrupted run can resume with
+   * the strata it did not finish
+   */
+  public boolean checkpoint = false;
+
+  /**
+   * split the strata into this many shards, each matched by a worker process run by
+   * {@link ShardCoordinator}; 0 or 1 to match in this process
+   */
+  public int shards = 0;
+  /** number of times the worker of a shard is started again after it fails */
+  public int shardRetries = 2;
+  /** ssh hosts for the shard workers, used in turn; empty to run every worker on this host */
+  public List<String> shardHosts = new ArrayList<>();
+  /** JVM arguments of the shard workers, such as a maximum heap size */
+  public List<String> workerJvmArgs = new ArrayList<>();
+  /** {@link MatchMaker} arguments passed on to every shard worker */
+  public List<String> workerArgs = new ArrayList<>();
+  /** keys of the only strata to match, as in a shard worker; null for all */
+  public Set<String> strata = null;
+  /**
+   * control indexes shared by the runs of a {@link MatchServer}; null to build every index when
+   * it is needed
+   */
+  public MatchCache cache = null;
+  /** timings and counts of the run, written next to its output */
+  public MatchMetrics metrics = new MatchMetrics();
+  /** counters of the work done so far, reported while {@link MatchMaker#main} runs */
+  public MatchProgress progress = new MatchProgress();
+  /** seconds between progress reports to the log and the status file, 0 for none */
+  public long progressSeconds = 60;
+  /** write the {@link MatchPlanner} plan of every stratum and stop before matching */
+  public boolean explain = false;
+  /**
+   * reuse a {@link CohortSnapshot} of the prepared samples when the samples file and factors are
+   * unchanged, and write one when there is none
+   */
+  public boolean snapshots = false;
+  /** directory of the cohort snapshots; null for {@value CohortSnapshot#DIRECTORY} in the output */
+  public Path snapshotDir = null;
+  /** size the cohort snapshots are pruned to, least recently used first */
+  public long snapshotCapBytes = 2048L * 1024 * 1024;
+
+  /**
+   * Set the option named by a {@link MatchMaker} key=value argument
+   * @return false if the argument is not a matching option
+   * @throws IllegalArgumentException if the value is not valid for the option
+   */
+  public boolean parseArg(String arg) {
+    int eq = arg.indexOf('=');
+    if (eq < 0) {
+      return false;
+    }
+    String value = arg.substring(eq + 1);
+    switch (arg.substring(0, eq)) {
+      case "engine":
+        engine = MatchEngine.fromArg(value);
+        break;
+      case "propensityCaliper":
+        propensityCaliperSd = Double.parseDouble(value);
+        break;
+      case "replacement":
+        withReplacement = Boolean.parseBoolean(value);
+        break;
+      case "caliper":
+        caliper = Caliper.parse(value);
+        break;
+      case "sampleOrder":
+        sampleOrder = SpaceFillingCurve.fromArg(value);
+        break;
+      case "treeSearch":
+        treeSearch = TreeSearch.fromArg(value);
+        break;
+      case "annTrees":
+        annTrees = Integer.parseInt(value);
+        break;
+      case "annSearch":
+        annSearchMultiplier = Integer.parseInt(value);
+        break;
+      case "annExact":
+        annExactRerank = Boolean.parseBoolean(value);
+        break;
+      case "adaptive":
+        adaptiveDepth = Boolean.parseBoolean(value);
+        break;
+      case "optimizer":
+        if (!value.equalsIgnoreCase("kdmatch") && !value.equalsIgnoreCase("iterative")
+            && !value.equalsIgnoreCase("greedy")) {
+          throw new IllegalArgumentException("Unknown optimizer " + value
+                                             + ", expected kdmatch, iterative or greedy");
+        }
+        iterativeOptimizer = value.equalsIgnoreCase("iterative");
+        greedyOptimizer = value.equalsIgnoreCase("greedy");
+        break;
+      case "optimizeTime":
+        optimizeSeconds = Long.parseLong(value);
+        break;
+      case "optimizePasses":
+        optimizePasses = Integer.parseInt(value);
+        break;
+      case "kinship":
+        kinshipFile = Path.of(value).toAbsolutePath();
+        break;
+      case "kinshipPihat":
+        kinshipPihat = Double.parseDouble(value);
+        break;
+      case "partition":
+        partitionCellSize = Integer.parseInt(value);
+        break;
+      case "incremental":
+        incremental = Boolean.parseBoolean(value);
+        break;
+      case "checkpoint":
+        checkpoint = Boolean.parseBoolean(value);
+        break;
+      case "shards":
+        shards = Integer.parseInt(value);
+        break;
+      case "shardHosts":
+        shardHosts = List.of(value.split(","));
+        break;
+      case "shardRetries":
+        shardRetries = Integer.parseInt(value);
+        break;
+      case "workerJvm":
+        workerJvmArgs = List.of(value.split(","));
+        break;
+      case "snapshots":
+        snapshots = Boolean.parseBoolean(value);
+        break;
+      case "snapshotDir":
+        snapshotDir = Path.of(value).toAbsolutePath();
+        break;
+      case "snapshotCap":
+        snapshotCapBytes = Long.parseLong(value) * 1024 * 1024;
+        break;
+      case "progress":
+        progressSeconds = Long.parseLong(value);
+        break;
+      case "explain":
+        explain = Boolean.parseBoolean(value);
+        break;
+      default:
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return true if duplicates are resolved by the {@link DuplicateOptimizer}, as requested or
+   *         because only it keeps relatives apart
+   */
+  public boolean usesIterativeOptimizer() {
+    return iterativeOptimizer || kinship.numPairs() > 0;
+  }
+
+  /** @return every setting that affects the matches, for recognizing compatible checkpoints */
+  @Override
+  public String toString() {
+    return "engine=" + engine + ";propensityCaliperSd=" + propensityCaliperSd
+           + ";withReplacement=" + withReplacement + ";caliper=" + caliper + ";sampleOrder="
+           + sampleOrder + ";treeSearch=" + treeSearch + ";annTrees=" + annTrees
+           + ";annSearchMultiplier=" + annSearchMultiplier + ";annExactRerank=" + annExactRerank
+           + ";adaptiveDepth=" + adaptiveDepth + ";iterativeOptimizer=" + iterativeOptimizer
+           + ";greedyOptimizer=" + greedyOptimizer + ";optimizeSeconds=" + optimizeSeconds
+           + ";optimizePasses=" + optimizePasses
+           + ";partitionCellSize=" + partitionCellSize + ";kinshipFile=" + kinshipStamp()
+           + ";kinshipPihat=" + kinshipPihat;
+  }
+
+  /**
+   * @return the kinship file with its size and modification time, so that edited relatives are
+   *         not matched from output of the old file
+   */
+  String kinshipStamp() {
+    if (kinshipFile == null) {
+      return "null";
+    }
+    try {
+      return kinshipFile + ":" + Files.size(kinshipFile) + ":"
+             + Files.getLastModifiedTime(kinshipFile).toMillis();
+    } catch (IOException e) {
+      return kinshipFile.toString();
+    }
+  }
+}
@@ -0,0 +1,336 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.StringJoiner;
+
+import org.pankratzlab.common.Files;
+import org.pankratzlab.common.PSF;
+import org.pankratzlab.kdmatch.KDMatch;
+
+/**
+ * Writes {@link StratumMatches} in the same match and status file layouts used for the kdmatch
+ * output, so results from any engine can be visualized and evaluated with {@link REval}.
+ */
+public class MatchOutput {
+  /**
+   * Status file header for matching with replacement. The extra column is the number of cases each
+   * control was matched to, which {@link REval} uses as a frequency weight.
+   */
+  public static final String WEIGHTED_STATUS_FILE_HEADER = KDMatch.STATUS_FILE_HEADER
+                                                           + "\tmatch_count";
+
+  private MatchOutput() {}
+
+  /**
+   * Write one line per case with each selected control and its distance. The column names follow
+   * the "control_N_id" convention that {@link MatchMaker#buildVisHelpers} relies on.
+   */
+  public static void writeMatchFile(List<StratumMatches> matches, String outputFile,
+                                    int numSelect) {
+    try (PrintWriter writer = Files.getAppropriateWriter(outputFile)) {
+      StringJoiner header = new StringJoiner("\t");
+      header.add("id");
+      for (int i = 1; i <= numSelect; i++) {
+        header.add("control_" + i + "_id");
+        header.add("control_" + i + "_distance");
+      }
+      writer.println(header);
+      writeMatchLines(writer, matches, numSelect);
+    }
+  }
+
+  private static void writeMatchLines(PrintWriter writer, List<StratumMatches> matches,
+                                      int numSelect) {
+    for (StratumMatches stratumMatches : matches) {
+      Stratum stratum = stratumMatches.getStratum();
+      for (int c = 0; c < stratum.numCases(); c++) {
+        StringJoiner line = new StringJoiner("\t");
+        line.add(stratum.getCaseId(c));
+        for (int slot = 0; slot < numSelect; slot++) {
+          int control = slot < stratumMatches.numSelect() ? stratumMatches.getControl(c, slot)
+                                                          : StratumMatches.NO_MATCH;
+          if (control == StratumMatches.NO_MATCH) {
+            line.add(MatchingVariable.NA);
+            line.add(MatchingVariable.NA);
+          } else {
+            line.add(stratum.getControlId(control));
+            line.add(Double.toString(stratumMatches.getDistance(c, slot)));
+          }
+        }
+        writer.println(line);
+      }
+    }
+  }
+
+  /**
+   * Write the {@link KDMatch#STATUS_FILE_HEADER} status file: every case is listed as matched to
+   * itself, followed by each of its selected controls.
+   * @param withReplacement if true, write the {@link #WEIGHTED_STATUS_FILE_HEADER} layout instead,
+   *          where a control appears once per case it was matched to
+   */
+  public static void writeStatusFile(List<StratumMatches> matches, String outputFile,
+                                     boolean withReplacement) {
+    try (PrintWriter writer = Files.getAppropriateWriter(outputFile)) {
+      writer.println(withReplacement ? WEIGHTED_STATUS_FILE_HEADER : KDMatch.STATUS_FILE_HEADER);
+      writeStatusLines(writer, matches, withReplacement);
+    }
+  }
+
+  private static void writeStatusLines(PrintWriter writer, List<StratumMatches> matches,
+                                       boolean withReplacement) {
+    for (StratumMatches stratumMatches : matches) {
+      Stratum stratum = stratumMatches.getStratum();
+      int[] useCounts = new int[stratum.numControls()];
+      for (int c = 0; c < stratum.numCases(); c++) {
+        for (int slot = 0; slot < stratumMatches.numSelect(); slot++) {
+          int control = stratumMatches.getControl(c, slot);
+          if (control != StratumMatches.NO_MATCH) {
+            useCounts[control]++;
+          }
+        }
+      }
+      for (int c = 0; c < stratum.numCases(); c++) {
+        String caseId = stratum.getCaseId(c);
+        writer.println(statusLine(caseId, Stratum.CASE_STATUS, caseId, 1, withReplacement));
+        for (int slot = 0; slot < stratumMatches.numSelect(); slot++) {
+          int control = stratumMatches.getControl(c, slot);
+          if (control != StratumMatches.NO_MATCH) {
+            writer.println(statusLine(stratum.getControlId(control), Stratum.CONTROL_STATUS,
+                                      caseId, useCounts[control], withReplacement));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Write a {@link #WEIGHTED_STATUS_FILE_HEADER} status file from a kdmatch match file, reading the
+   * case from the first column and the selected controls from the "control_N_id" columns.
+   */
+  public static void writeWeightedStatusFileFromMatchFile(String matchFile,
+                                                          String outputFile) throws IOException {
+    Map<String, List<String>> controlsByCase = new LinkedHashMap<>();
+    Map<String, Integer> useCounts = new HashMap<>();
+    try (BufferedReader reader = Files.getAppropriateReader(matchFile)) {
+      String[] header = reader.readLine().trim().split(PSF.Regex.GREEDY_WHITESPACE);
+      List<Integer> controlColumns = new ArrayList<>();
+      for (int i = 0; i < header.length; i++) {
+        if (header[i].startsWith("control_") && header[i].endsWith("_id")) {
+          controlColumns.add(i);
+        }
+      }
+      String inputLine = reader.readLine();
+      while (inputLine != null) {
+        String[] line = inputLine.trim().split(PSF.Regex.GREEDY_WHITESPACE);
+        List<String> controls = new ArrayList<>(controlColumns.size());
+        for (int column : controlColumns) {
+          if (column < line.length && !line[column].equals(MatchingVariable.NA)) {
+            controls.add(line[column]);
+            useCounts.merge(line[column], 1, Integer::sum);
+          }
+        }
+        controlsByCase.put(line[0], controls);
+        inputLine = reader.readLine();
+      }
+    }
+
+    try (PrintWriter writer = Files.getAppropriateWriter(outputFile)) {
+      writer.println(WEIGHTED_STATUS_FILE_HEADER);
+      for (Entry<String, List<String>> e : controlsByCase.entrySet()) {
+        String caseId = e.getKey();
+        writer.println(statusLine(caseId, Stratum.CASE_STATUS, caseId, 1, true));
+        for (String control : e.getValue()) {
+          writer.println(statusLine(control, Stratum.CONTROL_STATUS, caseId,
+                                    useCounts.get(control), true));
+        }
+      }
+    }
+  }
+
+  /**
+   * Read the candidates of a stratum back from a match file, such as a kdmatch naive match file,
+   * using the "control_N_id" columns. Lines for cases of other strata are skipped, and distances
+   * are recomputed from the stratum coordinates.
+   */
+  public static StratumMatches readMatchFile(String matchFile,
+                                             Stratum stratum) throws IOException {
+    Map<String, Integer> caseIndices = new HashMap<>();
+    for (int c = 0; c < stratum.numCases(); c++) {
+      caseIndices.put(stratum.getCaseId(c), c);
+    }
+    Map<String, Integer> controlIndices = new HashMap<>();
+    for (int c = 0; c < stratum.numControls(); c++) {
+      controlIndices.put(stratum.getControlId(c), c);
+    }
+    try (BufferedReader reader = Files.getAppropriateReader(matchFile)) {
+      String[] header = reader.readLine().trim().split(PSF.Regex.GREEDY_WHITESPACE);
+      List<Integer> controlColumns = new ArrayList<>();
+      for (int i = 0; i < header.length; i++) {
+        if (header[i].startsWith("control_") && header[i].endsWith("_id")) {
+          controlColumns.add(i);
+        }
+      }
+      StratumMatches matches = new StratumMatches(stratum, controlColumns.size());
+      String inputLine = reader.readLine();
+      while (inputLine != null) {
+        String[] line = inputLine.trim().split(PSF.Regex.GREEDY_WHITESPACE);
+        Integer caseIndex = caseIndices.get(line[0]);
+        if (caseIndex != null) {
+          int slot = 0;
+          for (int column : controlColumns) {
+            Integer control = column < line.length ? controlIndices.get(line[column]) : null;
+            if (control != null) {
+              double distance = Math.sqrt(KDSearchTree.squaredDistance(stratum.getCaseCoords(caseIndex),
+                                                                       stratum.getControlCoords(control)));
+              matches.set(caseIndex, slot++, control, distance);
+            }
+          }
+        }
+        inputLine = reader.readLine();
+      }
+      return matches;
+    }
+  }
+
+  /**
+   * @return the id in the first column of every line of a status file, so every case and control
+   *         it lists
+   */
+  public static Set<String> readStatusFileIds(String statusFile) throws IOException {
+    Set<String> ids = new HashSet<>();
+    try (BufferedReader reader = Files.getAppropriateReader(statusFile)) {
+      reader.readLine();
+      String inputLine = reader.readLine();
+      while (inputLine != null) {
+        String[] line = inputLine.trim().split(PSF.Regex.GREEDY_WHITESPACE);
+        if (line.length > 0 && !line[0].isEmpty()) {
+          ids.add(line[0]);
+        }
+        inputLine = reader.readLine();
+      }
+    }
+    return ids;
+  }
+
+  /**
+   * Copy a match file to {@link #tempFileFor} and append the matches to the copy, with as many
+   * control columns as the existing header has
+   * @return the name of the copy, to be moved over the original with {@link #moveAtomically}
+   */
+  public static String appendToMatchFile(List<StratumMatches> matches,
+                                         String matchFile) throws IOException {
+    String tempFile = tempFileFor(matchFile);
+    try (BufferedReader reader = Files.getAppropriateReader(matchFile);
+         PrintWriter writer = Files.getAppropriateWriter(tempFile)) {
+      String header = reader.readLine();
+      writer.println(header);
+      int numSelect = (int) Arrays.stream(header.trim().split(PSF.Regex.GREEDY_WHITESPACE))
+                                  .filter(h -> h.startsWith("control_") && h.endsWith("_id"))
+                                  .count();
+      copyLines(reader, writer);
+      writeMatchLines(writer, matches, numSelect);
+    }
+    return tempFile;
+  }
+
+  /**
+   * Copy a {@link KDMatch#STATUS_FILE_HEADER} status file to {@link #tempFileFor} and append the
+   * matches to the copy
+   * @return the name of the copy, to be moved over the original with {@link #moveAtomically}
+   */
+  public static String appendToStatusFile(List<StratumMatches> matches,
+                                          String statusFile) throws IOException {
+    String tempFile = tempFileFor(statusFile);
+    try (BufferedReader reader = Files.getAppropriateReader(statusFile);
+         PrintWriter writer = Files.getAppropriateWriter(tempFile)) {
+      writer.println(reader.readLine());
+      copyLines(reader, writer);
+      writeStatusLines(writer, matches, false);
+    }
+    return tempFile;
+  }
+
+  /**
+   * @return a file next to outputFile, with the same extension, for writing its replacement
+   */
+  public static String tempFileFor(String outputFile) {
+    Path path = Paths.get(outputFile);
+    return path.resolveSibling("partial." + path.getFileName()).toString();
+  }
+
+  /**
+   * Concatenate output files of the same kind under a single header. Lines shorter than the widest
+   * header, such as match files with fewer candidate columns, are padded with
+   * {@link MatchingVariable#NA}.
+   */
+  public static void concatenate(List<Path> parts, String outputFile) throws IOException {
+    String widestHeader = null;
+    int width = 0;
+    for (Path part : parts) {
+      try (BufferedReader reader = java.nio.file.Files.newBufferedReader(part)) {
+        String header = reader.readLine();
+        int columns = header == null ? 0 : header.trim().split(PSF.Regex.GREEDY_WHITESPACE).length;
+        if (columns > width) {
+          width = columns;
+          widestHeader = header;
+        }
+      }
+    }
+    try (PrintWriter writer = Files.getAppropriateWriter(outputFile)) {
+      writer.println(widestHeader);
+      for (Path part : parts) {
+        try (BufferedReader reader = java.nio.file.Files.newBufferedReader(part)) {
+          reader.readLine();
+          String inputLine = reader.readLine();
+          while (inputLine != null) {
+            if (!inputLine.isEmpty()) {
+              StringBuilder line = new StringBuilder(inputLine);
+              int columns = inputLine.trim().split(PSF.Regex.GREEDY_WHITESPACE).length;
+              for (int i = columns; i < width; i++) {
+                line.append('\t').append(MatchingVariable.NA);
+              }
+              writer.println(line);
+            }
+            inputLine = reader.readLine();
+          }
+        }
+      }
+    }
+  }
+
+  /** Replace target with tempFile in a single step, so readers never see a partial file */
+  public static void moveAtomically(String tempFile, String target) throws IOException {
+    java.nio.file.Files.move(Paths.get(tempFile), Paths.get(target),
+                             StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static void copyLines(BufferedReader reader, PrintWriter writer) throws IOException {
+    String inputLine = reader.readLine();
+    while (inputLine != null) {
+      if (!inputLine.isEmpty()) {
+        writer.println(inputLine);
+      }
+      inputLine = reader.readLine();
+    }
+  }
+
+  private static String statusLine(String id, int status, String caseId, int useCount,
+                                   boolean withReplacement) {
+    String line = id + "\t" + status + "\t" + caseId;
+    return withReplacement ? line + "\t" + useCount : line;
+  }
+}
@@ -0,0 +1,216 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+/**
+ * Chooses the search engine of each stratum for {@link MatchEngine#AUTO} from a simple cost model
+ * of the case and control counts, the dimensionality and the free heap:
+ * <ul>
+ * <li>{@link MatchEngine#BRUTE} computes every distance, which is cheapest for small strata</li>
+ * <li>{@link MatchEngine#KDTREE}, the in-project {@link KDSearchTree}, pays for its build with
+ * queries that visit a fraction of the controls, a fraction that grows with the dimensionality</li>
+ * <li>{@link MatchEngine#ANN} is only chosen when an exact search would take far longer, since its
+ * candidates are approximate</li>
+ * </ul>
+ * An engine is only chosen if its estimated memory fits in the free heap. The estimates are rough,
+ * in operations times a constant per operation, and only meant to rank the engines. The plan of
+ * every stratum can be written before any work starts with {@code explain=true}.
+ */
+public class MatchPlanner {
+  public static final String PLAN_FILE = "plan.txt";
+  public static final String PLAN_FILE_HEADER = "stratum\tcases\tcontrols\tdimensions\tengine"
+                                                + "\tbrute_seconds\tbrute_mb\tkdtree_seconds"
+                                                + "\tkdtree_mb\tann_seconds\tann_mb\treason";
+
+  /** nanoseconds per squared difference in the blocked distance loop */
+  static final double NANOS_PER_DIMENSION = 0.5;
+  /** cost of a tree visit relative to a brute force distance, for branching and pointer chasing */
+  static final double TREE_VISIT_FACTOR = 4;
+  /** an approximate index is used if it is estimated this many times faster than exact search */
+  static final double ANN_SPEEDUP = 10;
+  /** and the exact search is estimated to take at least this many seconds */
+  static final double ANN_MIN_SECONDS = 60;
+  /** fraction of the free heap a stratum's search may plan to use */
+  static final double HEAP_FRACTION = 0.8;
+
+  private MatchPlanner() {}
+
+  /** Estimated cost of searching a stratum with one engine */
+  public static class Estimate {
+    public final MatchEngine engine;
+    public final double seconds;
+    public final long bytes;
+
+    Estimate(MatchEngine engine, double seconds, long bytes) {
+      this.engine = engine;
+      this.seconds = seconds;
+      this.bytes = bytes;
+    }
+  }
+
+  /** The engine chosen for a stratum, with the estimates it was chosen from */
+  public static class StratumPlan {
+    public final Stratum stratum;
+    public final MatchEngine engine;
+    public final List<Estimate> estimates;
+    public final String reason;
+
+    StratumPlan(Stratum stratum, MatchEngine engine, List<Estimate> estimates, String reason) {
+      this.stratum = stratum;
+      this.engine = engine;
+      this.estimates = estimates;
+      this.reason = reason;
+    }
+
+    Estimate estimate(MatchEngine engine) {
+      for (Estimate estimate : estimates) {
+        if (estimate.engine == engine) {
+          return estimate;
+        }
+      }
+      return null;
+    }
+  }
+
+  /** @return bytes of heap that can still be allocated */
+  public static long availableHeapBytes() {
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+  }
+
+  /**
+   * @param threads number of threads the search will run on
+   * @return the engine of the options for the stratum, chosen from the estimates if it is
+   *         {@link MatchEngine#AUTO}
+   */
+  public static StratumPlan plan(Stratum stratum, int numCandidates, int threads,
+                                 MatchOptions options, long availableBytes) {
+    List<Estimate> estimates = estimates(stratum.numCases(), stratum.numControls(),
+                                         stratum.dimensions(), numCandidates, threads, options);
+    if (options.engine != MatchEngine.AUTO) {
+      return new StratumPlan(stratum, options.engine, estimates,
+                             "engine=" + options.engine.getArgName());
+    }
+    return choose(stratum, estimates, availableBytes);
+  }
+
+  /** @return the plan with the engine chosen from the estimates of {@link #estimates} */
+  static StratumPlan choose(Stratum stratum, List<Estimate> estimates, long availableBytes) {
+    long budget = (long) (HEAP_FRACTION * availableBytes);
+    Estimate brute = estimates.get(0);
+    Estimate tree = estimates.get(1);
+    Estimate ann = estimates.get(2);
+    Estimate exact = brute.seconds <= tree.seconds ? brute : tree;
+    Estimate other = exact == brute ? tree : brute;
+    if (exact.bytes > budget && other.bytes <= budget) {
+      exact = other;
+    }
+    if (exact.bytes > budget) {
+      // the index of the approximate search is larger still
+      Estimate smallest = brute.bytes <= tree.bytes ? brute : tree;
+      return new StratumPlan(stratum, smallest.engine, estimates,
+                             "no engine fits in the free heap, using the smallest");
+    }
+    if (exact.seconds >= ANN_MIN_SECONDS && exact.seconds >= ANN_SPEEDUP * ann.seconds
+        && ann.bytes <= budget) {
+      return new StratumPlan(stratum, MatchEngine.ANN, estimates,
+                             String.format("exact search estimated %.0fx slower",
+                                           exact.seconds / ann.seconds));
+    }
+    if (exact == brute) {
+      return new StratumPlan(stratum, MatchEngine.BRUTE, estimates,
+                             String.format("tree estimated %.1fx slower",
+                                           tree.seconds / Math.max(brute.seconds, 1e-9)));
+    }
+    String reason = brute.bytes > budget ? "brute force needs more than the free heap"
+                                         : String.format("brute force estimated %.1fx slower",
+                                                         brute.seconds
+                                                         / Math.max(tree.seconds, 1e-9));
+    return new StratumPlan(stratum, MatchEngine.KDTREE, estimates, reason);
+  }
+
+  /** @return the estimates of brute force, the k-d tree and the approximate index, in that order */
+  static List<Estimate> estimates(long cases, long controls, int dimensions, int k, int threads,
+                                  MatchOptions options) {
+    threads = Math.max(1, threads);
+    double perDistance = NANOS_PER_DIMENSION * Math.max(1, dimensions);
+    // every search stores k candidates per case
+    long candidateBytes = 12L * cases * k;
+    List<Estimate> estimates = new ArrayList<>();
+
+    double bruteNanos = cases * (double) controls * perDistance / threads;
+    estimates.add(new Estimate(MatchEngine.BRUTE, bruteNanos / 1e9,
+                               candidateBytes + 8L * controls * dimensions));
+
+    // a query visits about k plus a leaf of points, times a factor that doubles with every two
+    // dimensions, until it degrades to visiting every control
+    double log2Controls = Math.log(controls + 1.0) / Math.log(2);
+    double visits = Math.min(controls, (k + KDSearchTree.LEAF_SIZE)
+                                       * Math.pow(2, Math.min(dimensions, 60) / 2.0));
+    double treeNanos = controls * log2Controls * perDistance
+                       + cases * visits * perDistance * TREE_VISIT_FACTOR / threads;
+    long treeBytes = 16L * cases * (dimensions + 2) + 4L * controls
+                     + 2 * 8L * controls * (dimensions + 2);
+    estimates.add(new Estimate(MatchEngine.KDTREE, treeNanos / 1e9, candidateBytes + treeBytes));
+
+    // each tree projects every control once per level; a query descends every tree and ranks
+    // searchSize candidates
+    double levels = Math.max(1, Math.log(controls / (double) RandomProjectionForest.LEAF_SIZE + 1)
+                                / Math.log(2));
+    double annBuild = options.annTrees * controls * levels * perDistance / threads;
+    double annQuery = cases * (options.annTrees * levels + 2.0 * k * options.annSearchMultiplier)
+                      * perDistance * TREE_VISIT_FACTOR / threads;
+    long annBytes = 12L * controls * dimensions + 8L * options.annTrees * controls;
+    estimates.add(new Estimate(MatchEngine.ANN, (annBuild + annQuery) / 1e9,
+                               candidateBytes + annBytes));
+    return estimates;
+  }
+
+  /** @return the plan of every stratum, against the heap that is free now */
+  public static List<StratumPlan> planAll(List<Stratum> strata, int numCandidates, int threads,
+                                          MatchOptions options) {
+    long available = availableHeapBytes();
+    List<StratumPlan> plans = new ArrayList<>();
+    for (Stratum stratum : strata) {
+      plans.add(plan(stratum, numCandidates, threads, options, available));
+    }
+    return plans;
+  }
+
+  /** Log a summary of the plans and write every plan to file */
+  public static void explain(List<StratumPlan> plans, Path file, Logger log) throws IOException {
+    Map<MatchEngine, Integer> strataByEngine = new TreeMap<>();
+    Map<MatchEngine, Double> secondsByEngine = new TreeMap<>();
+    try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(file))) {
+      writer.println(PLAN_FILE_HEADER);
+      for (StratumPlan plan : plans) {
+        StringBuilder line = new StringBuilder();
+        line.append(plan.stratum.getKey()).append('\t').append(plan.stratum.numCases())
+            .append('\t').append(plan.stratum.numControls()).append('\t')
+            .append(plan.stratum.dimensions()).append('\t').append(plan.engine.getArgName());
+        for (Estimate estimate : plan.estimates) {
+          line.append('\t').append(String.format("%.3f", estimate.seconds)).append('\t')
+              .append(String.format("%.1f", estimate.bytes / (1024.0 * 1024)));
+        }
+        writer.println(line.append('\t').append(plan.reason));
+        strataByEngine.merge(plan.engine, 1, Integer::sum);
+        Estimate chosen = plan.estimate(plan.engine);
+        secondsByEngine.merge(plan.engine, chosen == null ? 0 : chosen.seconds, Double::sum);
+      }
+    }
+    for (Map.Entry<MatchEngine, Integer> entry : strataByEngine.entrySet()) {
+      log.info(String.format("Plan: %d strata with %s, estimated %.1f s of search",
+                             entry.getValue(), entry.getKey().getArgName(),
+                             secondsByEngine.get(entry.getKey())));
+    }
+    log.info("Wrote the plan of every stratum to " + file);
+  }
+}
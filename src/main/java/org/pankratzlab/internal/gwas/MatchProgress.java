@@ -0,0 +1,214 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Progress of a long matching run, such as samples parsed, cases searched per stratum and pairing
+ * steps, for telling a slow run from a hung one. The loops only increment counters; a background
+ * reporter samples them at a fixed interval, logs the running tasks with their rate and estimated
+ * time left, and rewrites a tab-delimited status file, {@value #STATUS_FILE}, that a scheduler can
+ * poll. The status file is replaced atomically, so it is never read half written.
+ * <p>
+ * Tasks of a single stratum are dropped when they finish, so only the tasks of the whole run and
+ * those still running are reported.
+ */
+public class MatchProgress implements AutoCloseable {
+  public static final String SAMPLES_PARSED = "samples_parsed";
+  /** cases whose nearest neighbors have been found */
+  public static final String CASES_SEARCHED = "cases_searched";
+  /** cases of the strata that are finished */
+  public static final String CASES_MATCHED = "cases_matched";
+  public static final String STRATA = "strata";
+  /** cases paired or dropped by {@link MatchSamples#matchPairs} */
+  public static final String PAIRING_STEPS = "pairing_steps";
+  /** cases visited by the passes of {@link DuplicateOptimizer}, out of all it may make */
+  public static final String OPTIMIZED_CASES = "optimized_cases";
+
+  public static final String STATUS_FILE = "progress.txt";
+  public static final String STATUS_FILE_HEADER = "task\tstratum\tdone\ttotal\tpercent\tper_second"
+                                                  + "\telapsed_seconds\teta_seconds\tstate";
+
+  /** A counted unit of work, with a total of 0 if it is not known in advance */
+  public class Task {
+    private final String name;
+    private final String stratum;
+    private final long total;
+    private final long startNanos = System.nanoTime();
+    /** tasks are reported in the order they were started */
+    private final long order = started.getAndIncrement();
+    private final LongAdder done = new LongAdder();
+    private volatile boolean finished = false;
+
+    private Task(String name, String stratum, long total) {
+      this.name = name;
+      this.stratum = stratum;
+      this.total = total;
+    }
+
+    public void add(long n) {
+      done.add(n);
+    }
+
+    public void increment() {
+      done.increment();
+    }
+
+    public long done() {
+      return done.sum();
+    }
+
+    /** Mark the task finished, filling it up to its total */
+    public void finish() {
+      long remaining = total - done.sum();
+      if (remaining > 0) {
+        done.add(remaining);
+      }
+      finished = true;
+      if (!stratum.equals(MatchMetrics.ALL_STRATA)) {
+        tasks.remove(name + "\t" + stratum, this);
+      }
+    }
+
+    private String state() {
+      return finished || (total > 0 && done.sum() >= total) ? "finished" : "running";
+    }
+  }
+
+  private final Map<String, Task> tasks = new ConcurrentHashMap<>();
+  private final AtomicLong started = new AtomicLong();
+  private ScheduledExecutorService reporter = null;
+  private Path statusFile;
+  private Logger log;
+
+  /** @return the task of the run with this name, started if it is new */
+  public Task task(String name, long total) {
+    return task(name, MatchMetrics.ALL_STRATA, total);
+  }
+
+  /** @return the task with this name and stratum, started with the given total if it is new */
+  public Task task(String name, String stratum, long total) {
+    return tasks.computeIfAbsent(name + "\t" + stratum, k -> new Task(name, stratum, total));
+  }
+
+  /**
+   * Start reporting every intervalSeconds to log and to statusFile, until {@link #close()}
+   * @param intervalSeconds 0 or less to report nothing
+   */
+  public synchronized void start(Path statusFile, long intervalSeconds, Logger log) {
+    if (intervalSeconds <= 0 || reporter != null) {
+      return;
+    }
+    reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "match-progress");
+      thread.setDaemon(true);
+      return thread;
+    });
+    this.statusFile = statusFile;
+    this.log = log;
+    reporter.scheduleAtFixedRate(this::report, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    log.info("Reporting progress every " + intervalSeconds + " s to " + statusFile);
+  }
+
+  /** Stop reporting, after writing the status file a last time */
+  @Override
+  public synchronized void close() {
+    if (reporter == null) {
+      return;
+    }
+    reporter.shutdownNow();
+    reporter = null;
+    writeStatus(statusFile, log);
+  }
+
+  private void report() {
+    for (Task task : sortedTasks()) {
+      if (task.state().equals("running")) {
+        log.info(describe(task));
+      }
+    }
+    writeStatus(statusFile, log);
+  }
+
+  private List<Task> sortedTasks() {
+    List<Task> sorted = new ArrayList<>(tasks.values());
+    sorted.sort((a, b) -> Long.compare(a.order, b.order));
+    return sorted;
+  }
+
+  /** @return e.g. "cases_searched 1_2: 1200 of 5000 (24.0%), 35.2/s, about 1m 48s left" */
+  static String describe(Task task) {
+    long done = task.done();
+    double seconds = elapsedSeconds(task);
+    double rate = seconds > 0 ? done / seconds : 0;
+    String description = task.name + " " + task.stratum + ": " + done;
+    if (task.total > 0) {
+      description += " of " + task.total + String.format(" (%.1f%%)", 100.0 * done / task.total);
+    }
+    description += String.format(", %.1f/s", rate);
+    long eta = etaSeconds(task, rate);
+    if (eta >= 0) {
+      description += ", about " + formatSeconds(eta) + " left";
+    } else {
+      description += ", running for " + formatSeconds((long) seconds);
+    }
+    return description;
+  }
+
+  private static double elapsedSeconds(Task task) {
+    return (System.nanoTime() - task.startNanos) / 1e9;
+  }
+
+  /** @return estimated seconds until the task is finished at its rate so far, or -1 if unknown */
+  private static long etaSeconds(Task task, double rate) {
+    if (task.total <= 0 || rate <= 0) {
+      return -1;
+    }
+    return (long) Math.ceil(Math.max(0, task.total - task.done()) / rate);
+  }
+
+  static String formatSeconds(long seconds) {
+    if (seconds >= 3600) {
+      return String.format("%dh %02dm", seconds / 3600, seconds % 3600 / 60);
+    } else if (seconds >= 60) {
+      return String.format("%dm %02ds", seconds / 60, seconds % 60);
+    }
+    return seconds + "s";
+  }
+
+  /** Write the status file of all tasks, logging any failure */
+  void writeStatus(Path file, Logger log) {
+    String temp = MatchOutput.tempFileFor(file.toString());
+    try {
+      try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(temp)))) {
+        writer.println(STATUS_FILE_HEADER);
+        for (Task task : sortedTasks()) {
+          long done = task.done();
+          double seconds = elapsedSeconds(task);
+          double rate = seconds > 0 ? done / seconds : 0;
+          writer.println(task.name + "\t" + task.stratum + "\t" + done + "\t" + task.total + "\t"
+                         + (task.total > 0 ? String.format("%.1f", 100.0 * done / task.total)
+                                           : "NA")
+                         + "\t" + String.format("%.2f", rate) + "\t" + (long) seconds + "\t"
+                         + etaSeconds(task, rate) + "\t" + task.state());
+        }
+      }
+      MatchOutput.moveAtomically(temp, file.toString());
+    } catch (IOException e) {
+      log.warning("Could not write progress to " + file + ": " + e.getMessage());
+    }
+  }
+}
@@ -6,15 +6,19 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Set;
 import java.util.Vector;
+import java.util.stream.IntStream;
 
 import org.pankratzlab.kdmatch.*;
 import org.pankratzlab.common.ArrayUtils;
@@ -26,14 +30,26 @@ import org.pankratzlab.common.Matrix;
 import org.pankratzlab.common.PSF;
 import org.pankratzlab.common.ext;
 import org.pankratzlab.common.mining.Distance;
-import org.pankratzlab.common.mining.Transformations;
-import org.pankratzlab.common.stats.Correlation;
-import org.pankratzlab.common.stats.Ttest;
 import org.pankratzlab.utils.gwas.Plink;
 
 import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Ints;
 
 public class MatchSamples {
+  /** Written in place of distances that are outside the caliper */
+  public static final String PRUNED_DISTANCE = "NA";
+  /** Suffix of the file listing the distance blocks of {@link #matchMakerStratified} */
+  public static final String BLOCK_INDEX_SUFFIX = "_blocks.xln";
+  /** pairing steps of {@link #matchPairs}, reported when {@link #main} is given an interval */
+  private static final MatchProgress PROGRESS = new MatchProgress();
+  /** phases of the current {@link #run}, {@link MatchMetrics#NONE} outside of one */
+  private static volatile MatchMetrics metrics = MatchMetrics.NONE;
+  /**
+   * memory shared by the distance matrices open at the same time, those that do not fit are mapped
+   * from a file in the run dir
+   */
+  private static volatile DistanceStore.Budget distanceBudget =
+      new DistanceStore.Budget(Runtime.getRuntime().maxMemory() / 2);
 
   private String dir;
   private String samplesFile;
@@ -42,6 +58,9 @@ public class MatchSamples {
   private String[] cols;
   private boolean skipAge;
   private double[] loadings;
+  private Caliper caliper = Caliper.NONE;
+  private String[] forceColumns = new String[0];
+  private KinshipIndex kinship = KinshipIndex.EMPTY;
   private Logger log;
 
   public MatchSamples(String directory, String samplesFile, String factors, String[] cols,
@@ -72,20 +91,69 @@ public class MatchSamples {
    * inputFileAnchor.toString()); }
    */
 
+  public void setCaliper(Caliper caliper) {
+    this.caliper = caliper;
+  }
+
+  /**
+   * @param forceColumns columns of the factors file that cases and controls must match on exactly,
+   *          see {@link #matchMakerStratified}
+   */
+  public void setForceColumns(String[] forceColumns) {
+    this.forceColumns = forceColumns;
+  }
+
+  /**
+   * @param kinship related samples, which {@link #matchPairs} never puts in the same case's set
+   */
+  public void setKinship(KinshipIndex kinship) {
+    this.kinship = kinship;
+  }
+
+  /**
+   * @param bytes memory, off the heap, for all case by control distance matrices of
+   *          {@link #matchMaker}, {@link #matchMakerStratified}, {@link #matchPairs} and
+   *          {@link #parseClusterfile} held at the same time, such as the blocks of strata
+   *          computed in parallel; a matrix that does not fit in what the open ones leave is mapped
+   *          from a temporary file in the directory of the run
+   */
+  public static void setDistanceRamBudget(long bytes) {
+    distanceBudget = new DistanceStore.Budget(bytes);
+  }
+
+  private static DistanceStore allocateDistances(String dir, long rows, long columns)
+      throws IOException {
+    DistanceStore.Budget budget = distanceBudget;
+    DistanceStore store = DistanceStore.allocate(rows, columns, budget, Paths.get(dir));
+    if (store.isMapped()) {
+      System.out.println("Mapping " + rows + " x " + columns + " distances from a file, as "
+                         + (budget.reserved() >> 20) + " MB of the memory budget of "
+                         + (budget.limit() >> 20) + " MB are in use");
+    }
+    return store;
+  }
+
   public static String matchMaker(String dir, String samplesFile, String factorfile,
                                   String[] factorTargets, double[] factorLoadings,
                                   boolean normalizeFactors) {
+    return matchMaker(dir, samplesFile, factorfile, factorTargets, factorLoadings,
+                      normalizeFactors, Caliper.NONE);
+  }
+
+  /**
+   * @param caliper distances beyond the caliper are written as {@link #PRUNED_DISTANCE} and can
+   *          never be selected by {@link #matchPairs}. The distance file stays a full matrix of
+   *          anchors by barnacles, which matchPairs and the other readers of the file expect, so
+   *          pruned pairs keep their cell rather than being left out.
+   */
+  @SuppressWarnings("try")
+  public static String matchMaker(String dir, String samplesFile, String factorfile,
+                                  String[] factorTargets, double[] factorLoadings,
+                                  boolean normalizeFactors, Caliper caliper) {
     BufferedReader reader;
-    PrintWriter writer;
     String[] line, cases, controls;
-    double[][] dists, newDists = null;
-    double[][] allData, caseData, controlData;
-    long time;
-    int[] factorIndices = null;
+    double[][] caseData, controlData;
     String filename;
-    int iAnch, iBarn;
-    String[] ids;
-    String[][] matrix;
 
     if (factorTargets.length != factorLoadings.length) {
       System.err.println("Error - mismatch in the number of factorTargets/factorLoadings");
@@ -97,106 +165,74 @@ public class MatchSamples {
       filename += (i == 0 ? "" : ",") + factorTargets[i] + "x"
                   + ext.formDeci(factorLoadings[i], 10);
     }
+    if (caliper.isSet()) {
+      filename += "_caliper" + caliper.label();
+    }
     filename += ".xln";
 
     if (!new File(dir + filename).exists()) {
       System.out.println("Creating " + filename);
-      time = new Date().getTime();
-      cases = samplesFileToStringArray(dir + samplesFile, dir + factorfile, 1);
-      caseData = new double[cases.length][];
-      controls = samplesFileToStringArray(dir + samplesFile, dir + factorfile, 0);
-      controlData = new double[controls.length][];
-
-      factorIndices = ext.indexFactors(factorTargets,
-                                       Files.getHeaderOfFile(dir + factorfile,
-                                                             PSF.Regex.GREEDY_WHITESPACE,
-                                                             new Logger()),
-                                       false);
-      ids = HashVec.loadFileToStringArray(dir + factorfile, true, new int[] {0}, false);
-      matrix = HashVec.loadFileToStringMatrix(dir + factorfile, true, factorIndices,
-                                              PSF.Regex.GREEDY_WHITESPACE, 1000, false);
-      allData = new double[factorIndices.length][];
-      for (int i = 0; i < factorTargets.length; i++) {
-        allData[i] = ArrayUtils.toDoubleArray(Matrix.extractColumn(matrix, i));
-        if (normalizeFactors) {
-          allData[i] = ArrayUtils.normalize(allData[i]);
-        }
+      try (MatchMetrics.Phase phase = metrics.start(MatchMetrics.PARSE)) {
+        cases = samplesFileToStringArray(dir + samplesFile, dir + factorfile, 1);
+        controls = samplesFileToStringArray(dir + samplesFile, dir + factorfile, 0);
+        double[][][] data = loadFactorData(dir, factorfile, factorTargets, factorLoadings,
+                                           normalizeFactors, cases, controls);
+        caseData = data[0];
+        controlData = data[1];
       }
-      for (int i = 0; i < ids.length; i++) {
-        iAnch = ext.indexOfStr(ids[i], cases);
-        iBarn = ext.indexOfStr(ids[i], controls);
-        if (iAnch >= 0) {
-          caseData[iAnch] = new double[factorIndices.length];
-          for (int j = 0; j < factorIndices.length; j++) {
-            caseData[iAnch][j] = allData[j][i] * factorLoadings[j];
-          }
-        } else if (iBarn >= 0) {
-          controlData[iBarn] = new double[factorIndices.length];
-          for (int j = 0; j < factorIndices.length; j++) {
-            controlData[iBarn][j] = allData[j][i] * factorLoadings[j];
+      // an absolute caliper is applied as each distance is computed; a caliper in SDs needs the
+      // running mean and variance of all distances first
+      double maxDistance = caliper.isInStandardDeviations() ? Double.POSITIVE_INFINITY
+                                                            : caliper.resolve(Double.NaN);
+      double mean = 0;
+      double m2 = 0;
+      long n = 0;
+      try (DistanceStore dists = allocateDistances(dir, cases.length, controls.length)) {
+        try (MatchMetrics.Phase phase = metrics.start(MatchMetrics.DISTANCES)
+                                                         .stratum(cases.length, controls.length)) {
+          for (int i = 0; i < cases.length; i++) {
+            for (int j = 0; j < controls.length; j++) {
+              double d = Distance.euclidean(caseData[i], controlData[j]);
+              n++;
+              double delta = d - mean;
+              mean += delta / n;
+              m2 += delta * (d - mean);
+              dists.set(i, j, d > maxDistance ? Double.POSITIVE_INFINITY : d);
+            }
           }
         }
-      }
-
-      for (int i = 0; i < cases.length; i++) {
-        if (caseData[i] == null) {
-          System.err.println("Error - data for anchor '" + cases[i] + "' not found in "
-                             + factorfile);
-        }
-      }
-      for (int i = 0; i < controls.length; i++) {
-        if (controlData[i] == null) {
-          System.err.println("Error - data for barnacle '" + controls[i] + "' not found in "
-                             + factorfile);
+        if (caliper.isSet() && caliper.isInStandardDeviations()) {
+          maxDistance = caliper.resolve(n < 2 ? 0 : Math.sqrt(m2 / (n - 1)));
+          for (int i = 0; i < cases.length; i++) {
+            for (int j = 0; j < controls.length; j++) {
+              if (dists.get(i, j) > maxDistance) {
+                dists.set(i, j, Double.POSITIVE_INFINITY);
+              }
+            }
+          }
         }
-      }
-
-      System.out.println("Initialized in " + ext.getTimeElapsed(time));
-      time = new Date().getTime();
-      dists = Matrix.doubleMatrix(cases.length, controls.length, -999);
-      for (int i = 0; i < cases.length; i++) {
-        for (int j = 0; j < controls.length; j++) {
-          dists[i][j] = Distance.euclidean(caseData[i], controlData[j]);
+        if (caliper.isSet()) {
+          System.out.println("Applied caliper " + caliper + " (distance " + maxDistance + ")");
+          reportCasesOutsideCaliper(cases, dists);
         }
-      }
-      System.out.println("Finished euclidean calculations in " + ext.getTimeElapsed(time));
-      time = new Date().getTime();
-
-      try {
-        writer = Files.openAppropriateWriter(dir + filename);
-        // writer = new PrintWriter(new
-        // FileWriter(dir+"distances_1-100.xln"));
-        writer.println(cases.length + "\t" + controls.length);
-        writer.println("Anchor\t" + ArrayUtils.toStr(controls));
-        for (int i = 0; i < cases.length; i++) {
-          writer.println(cases[i] + "\t" + ArrayUtils.toStr(dists[i]));
+        try (MatchMetrics.Phase phase = metrics.start(MatchMetrics.WRITE)) {
+          writeDistanceFile(dir + filename, cases, controls, dists, caliper.isSet());
         }
-        writer.close();
-      } catch (Exception e) {
-        System.err.println("Error writing distances");
-        e.printStackTrace();
+      } catch (IOException ioe) {
+        System.err.println("Error allocating distances for \"" + dir + filename + "\"");
+        ioe.printStackTrace();
+        System.exit(2);
       }
-      System.out.println("Finished writing distances_" + ArrayUtils.toStr(factorIndices, ",")
-                         + " in " + ext.getTimeElapsed(time));
+      System.out.println("Finished writing " + filename);
     } else {
-      time = new Date().getTime();
-
+      // the distances are read by matchPairs, only the size is checked here
       try {
         reader = new BufferedReader(new FileReader(dir + filename));
         line = reader.readLine().trim().split(PSF.Regex.GREEDY_WHITESPACE);
-        cases = new String[Integer.parseInt(line[0])];
-        controls = new String[Integer.parseInt(line[1])];
-        newDists = Matrix.doubleMatrix(cases.length, controls.length, -999);
-        line = reader.readLine().trim().split(PSF.Regex.GREEDY_WHITESPACE);
-        for (int i = 0; i < controls.length; i++) {
-          controls[i] = line[i + 1];
-        }
-        for (int i = 0; i < cases.length; i++) {
-          line = reader.readLine().trim().split(PSF.Regex.GREEDY_WHITESPACE);
-          cases[i] = line[0];
-          newDists[i] = ArrayUtils.toDoubleArray(ArrayUtils.subArray(line, 1));
-        }
         reader.close();
+        System.out.println("Using existing distances of " + Integer.parseInt(line[0])
+                           + " anchors and " + Integer.parseInt(line[1]) + " barnacles in "
+                           + filename);
       } catch (FileNotFoundException fnfe) {
         System.err.println("Error: file \"" + dir + filename + "\" not found in current directory");
         System.exit(1);
@@ -204,14 +240,342 @@ public class MatchSamples {
         System.err.println("Error reading file \"" + dir + filename + "\"");
         System.exit(2);
       }
-      System.out.println("Finished reading in " + ext.rootOf(filename) + " in "
-                         + ext.getTimeElapsed(time));
     }
-    time = new Date().getTime();
 
     return filename;
   }
 
+  /**
+   * Stratified version of {@link #matchMaker}: cases and controls are grouped into exact-match
+   * strata by their values in the force columns of the factors file, and distances are only
+   * computed and stored within each stratum. Every stratum gets its own small block file in the
+   * {@link #matchMaker} format, computed in parallel, and the blocks are listed in an index file
+   * for {@link #matchPairsStratified}. A caliper in standard deviations uses the distribution of
+   * all within-stratum distances.
+   * @param forceColumns columns of the factors file whose values must match exactly
+   * @return the name of the block index file
+   */
+  @SuppressWarnings("try")
+  public static String matchMakerStratified(String dir, String samplesFile, String factorfile,
+                                            String[] factorTargets, double[] factorLoadings,
+                                            String[] forceColumns, boolean normalizeFactors,
+                                            Caliper caliper) {
+    if (factorTargets.length != factorLoadings.length) {
+      System.err.println("Error - mismatch in the number of factorTargets/factorLoadings");
+      System.exit(1);
+    }
+    String base = "distances_";
+    for (int i = 0; i < factorTargets.length; i++) {
+      base += (i == 0 ? "" : ",") + factorTargets[i] + "x" + ext.formDeci(factorLoadings[i], 10);
+    }
+    base += "_by_" + ArrayUtils.toStr(forceColumns, ",");
+    if (caliper.isSet()) {
+      base += "_caliper" + caliper.label();
+    }
+    String indexFile = base + BLOCK_INDEX_SUFFIX;
+    if (new File(dir + indexFile).exists()) {
+      System.out.println("Using existing distance blocks listed in " + indexFile);
+      return indexFile;
+    }
+
+    System.out.println("Creating distance blocks for " + base);
+    String[][] samples;
+    double[][][] data;
+    HashMap<String, String> strataById = new HashMap<String, String>();
+    try (MatchMetrics.Phase phase = metrics.start(MatchMetrics.PARSE)) {
+      samples = new String[][] {samplesFileToStringArray(dir + samplesFile, dir + factorfile, 1),
+                                samplesFileToStringArray(dir + samplesFile, dir + factorfile, 0)};
+      data = loadFactorData(dir, factorfile, factorTargets, factorLoadings, normalizeFactors,
+                            samples[0], samples[1]);
+      int[] forceIndices = ext.indexFactors(forceColumns,
+                                            Files.getHeaderOfFile(dir + factorfile,
+                                                                  PSF.Regex.GREEDY_WHITESPACE,
+                                                                  new Logger()),
+                                            false);
+      String[] ids = HashVec.loadFileToStringArray(dir + factorfile, true, new int[] {0}, false);
+      String[][] forced = HashVec.loadFileToStringMatrix(dir + factorfile, true, forceIndices,
+                                                         PSF.Regex.GREEDY_WHITESPACE, 1000,
+                                                         false);
+      for (int i = 0; i < ids.length; i++) {
+        // samples without a value in every force column belong to no stratum
+        if (Arrays.stream(forced[i]).noneMatch(value -> value == null || value.isEmpty())) {
+          strataById.put(ids[i], ArrayUtils.toStr(forced[i], "_"));
+        }
+      }
+    }
+    String[] cases = samples[0];
+    String[] controls = samples[1];
+    double[][] caseData = data[0];
+    double[][] controlData = data[1];
+    // strata in order of their first case; controls in strata without cases are never needed
+    LinkedHashMap<String, List<Integer>> caseStrata = new LinkedHashMap<String, List<Integer>>();
+    for (int i = 0; i < cases.length; i++) {
+      String stratum = strataById.get(cases[i]);
+      if (stratum == null) {
+        System.out.println("No value of " + ArrayUtils.toStr(forceColumns, ",") + " for anchor "
+                           + cases[i] + ", which will not be matched");
+      } else {
+        caseStrata.computeIfAbsent(stratum, k -> new ArrayList<Integer>()).add(i);
+      }
+    }
+    HashMap<String, List<Integer>> controlStrata = new HashMap<String, List<Integer>>();
+    for (int j = 0; j < controls.length; j++) {
+      String stratum = strataById.get(controls[j]);
+      if (stratum != null) {
+        controlStrata.computeIfAbsent(stratum, k -> new ArrayList<Integer>()).add(j);
+      }
+    }
+    List<String> keys = new ArrayList<String>(caseStrata.keySet());
+    int[][] blockCases = new int[keys.size()][];
+    int[][] blockControls = new int[keys.size()][];
+    for (int b = 0; b < keys.size(); b++) {
+      blockCases[b] = Ints.toArray(caseStrata.get(keys.get(b)));
+      blockControls[b] = Ints.toArray(controlStrata.getOrDefault(keys.get(b),
+                                                                 new ArrayList<Integer>()));
+    }
+    System.out.println("Initialized " + keys.size() + " strata");
+
+    double absoluteMaxDistance = caliper.isInStandardDeviations() ? Double.POSITIVE_INFINITY
+                                                                  : caliper.resolve(Double.NaN);
+    // blocks computed in parallel share the memory budget, the rest are mapped from files
+    DistanceStore[] blocks = new DistanceStore[keys.size()];
+    String[] blockFiles = new String[keys.size()];
+    final String blockBase = base;
+    try {
+      // count, mean and sum of squared deviations of the distances of each block
+      double[][] moments = new double[keys.size()][3];
+      IntStream.range(0, keys.size()).parallel().forEach(b -> {
+        try {
+          blocks[b] = allocateDistances(dir, blockCases[b].length, blockControls[b].length);
+        } catch (IOException ioe) {
+          throw new UncheckedIOException(ioe);
+        }
+        double[] m = moments[b];
+        try (MatchMetrics.Phase phase = metrics.start(MatchMetrics.DISTANCES, keys.get(b))
+                                                         .stratum(blockCases[b].length,
+                                                                  blockControls[b].length)) {
+          for (int i = 0; i < blockCases[b].length; i++) {
+            for (int j = 0; j < blockControls[b].length; j++) {
+              double d = Distance.euclidean(caseData[blockCases[b][i]],
+                                            controlData[blockControls[b][j]]);
+              m[0]++;
+              double delta = d - m[1];
+              m[1] += delta / m[0];
+              m[2] += delta * (d - m[1]);
+              blocks[b].set(i, j, d > absoluteMaxDistance ? Double.POSITIVE_INFINITY : d);
+            }
+          }
+        }
+      });
+      double maxDistance = absoluteMaxDistance;
+      if (caliper.isSet() && caliper.isInStandardDeviations()) {
+        // combine the per-block moments (Chan et al.)
+        double n = 0;
+        double mean = 0;
+        double m2 = 0;
+        for (double[] m : moments) {
+          if (m[0] == 0) {
+            continue;
+          }
+          double delta = m[1] - mean;
+          double total = n + m[0];
+          mean += delta * m[0] / total;
+          m2 += m[2] + delta * delta * n * m[0] / total;
+          n = total;
+        }
+        maxDistance = caliper.resolve(n < 2 ? 0 : Math.sqrt(m2 / (n - 1)));
+        for (DistanceStore block : blocks) {
+          for (long i = 0; i < block.rows(); i++) {
+            for (long j = 0; j < block.columns(); j++) {
+              if (block.get(i, j) > maxDistance) {
+                block.set(i, j, Double.POSITIVE_INFINITY);
+              }
+            }
+          }
+        }
+      }
+      if (caliper.isSet()) {
+        System.out.println("Applied caliper " + caliper + " (distance " + maxDistance + ")");
+      }
+      long stored = 0;
+      for (int b = 0; b < keys.size(); b++) {
+        stored += (long) blockCases[b].length * blockControls[b].length;
+      }
+      System.out.println("Finished euclidean calculations for " + stored + " within-stratum pairs, "
+                         + "instead of " + ((long) cases.length * controls.length));
+
+      try (MatchMetrics.Phase phase = metrics.start(MatchMetrics.WRITE)) {
+        IntStream.range(0, keys.size()).parallel().forEach(b -> {
+          blockFiles[b] = blockBase + "_block" + (b + 1) + ".xln";
+          String[] bCases = Arrays.stream(blockCases[b]).mapToObj(i -> cases[i])
+                                  .toArray(String[]::new);
+          String[] bControls = Arrays.stream(blockControls[b]).mapToObj(j -> controls[j])
+                                     .toArray(String[]::new);
+          writeDistanceFile(dir + blockFiles[b], bCases, bControls, blocks[b], caliper.isSet());
+        });
+      }
+    } catch (UncheckedIOException uioe) {
+      System.err.println("Error allocating distances for \"" + dir + base + "\"");
+      uioe.getCause().printStackTrace();
+      System.exit(2);
+    } finally {
+      for (DistanceStore block : blocks) {
+        if (block != null) {
+          block.close();
+        }
+      }
+    }
+    try (PrintWriter writer = Files.openAppropriateWriter(dir + indexFile)) {
+      writer.println("Block\tStratum\tCases\tControls\tFile");
+      for (int b = 0; b < keys.size(); b++) {
+        if (blockControls[b].length == 0) {
+          System.out.println("No controls in stratum " + keys.get(b) + " for its "
+                             + blockCases[b].length + " anchors, which will not be matched");
+        }
+        writer.println((b + 1) + "\t" + keys.get(b) + "\t" + blockCases[b].length + "\t"
+                       + blockControls[b].length + "\t" + blockFiles[b]);
+      }
+    } catch (Exception e) {
+      System.err.println("Error writing distance block index " + indexFile);
+      e.printStackTrace();
+    }
+    System.out.println("Finished writing " + keys.size() + " distance blocks");
+    return indexFile;
+  }
+
+  /**
+   * Write a distance file in the {@link #matchMaker} format
+   * @param pruned write infinite distances as {@link #PRUNED_DISTANCE}
+   */
+  private static void writeDistanceFile(String file, String[] cases, String[] controls,
+                                        DistanceStore dists, boolean pruned) {
+    double[] row = new double[controls.length];
+    try (PrintWriter writer = Files.openAppropriateWriter(file)) {
+      writer.println(cases.length + "\t" + controls.length);
+      writer.println("Anchor\t" + ArrayUtils.toStr(controls));
+      for (int i = 0; i < cases.length; i++) {
+        dists.getRow(i, row);
+        writer.println(cases[i] + "\t" + (pruned ? distancesToStr(row) : ArrayUtils.toStr(row)));
+      }
+    } catch (Exception e) {
+      System.err.println("Error writing distances to " + file);
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Load the factor values of the cases and controls from the factors file, normalized if
+   * requested and multiplied by their loadings
+   * @return {caseData, controlData}, indexed like cases and controls
+   */
+  private static double[][][] loadFactorData(String dir, String factorfile,
+                                             String[] factorTargets, double[] factorLoadings,
+                                             boolean normalizeFactors, String[] cases,
+                                             String[] controls) {
+    double[][] caseData = new double[cases.length][];
+    double[][] controlData = new double[controls.length][];
+
+    int[] factorIndices = ext.indexFactors(factorTargets,
+                                     Files.getHeaderOfFile(dir + factorfile,
+                                                           PSF.Regex.GREEDY_WHITESPACE,
+                                                           new Logger()),
+                                     false);
+    String[] ids = HashVec.loadFileToStringArray(dir + factorfile, true, new int[] {0}, false);
+    String[][] matrix = HashVec.loadFileToStringMatrix(dir + factorfile, true, factorIndices,
+                                            PSF.Regex.GREEDY_WHITESPACE, 1000, false);
+    double[][] allData = new double[factorIndices.length][];
+    for (int i = 0; i < factorTargets.length; i++) {
+      allData[i] = ArrayUtils.toDoubleArray(Matrix.extractColumn(matrix, i));
+      if (normalizeFactors) {
+        allData[i] = ArrayUtils.normalize(allData[i]);
+      }
+    }
+    for (int i = 0; i < ids.length; i++) {
+      int iAnch = ext.indexOfStr(ids[i], cases);
+      int iBarn = ext.indexOfStr(ids[i], controls);
+      if (iAnch >= 0) {
+        caseData[iAnch] = new double[factorIndices.length];
+        for (int j = 0; j < factorIndices.length; j++) {
+          caseData[iAnch][j] = allData[j][i] * factorLoadings[j];
+        }
+      } else if (iBarn >= 0) {
+        controlData[iBarn] = new double[factorIndices.length];
+        for (int j = 0; j < factorIndices.length; j++) {
+          controlData[iBarn][j] = allData[j][i] * factorLoadings[j];
+        }
+      }
+    }
+
+    for (int i = 0; i < cases.length; i++) {
+      if (caseData[i] == null) {
+        System.err.println("Error - data for anchor '" + cases[i] + "' not found in "
+                           + factorfile);
+      }
+    }
+    for (int i = 0; i < controls.length; i++) {
+      if (controlData[i] == null) {
+        System.err.println("Error - data for barnacle '" + controls[i] + "' not found in "
+                           + factorfile);
+      }
+    }
+    return new double[][][] {caseData, controlData};
+  }
+
+  /**
+   * Write a row of distances, with pruned (infinite) distances as {@link #PRUNED_DISTANCE}
+   */
+  private static String distancesToStr(double[] distances) {
+    StringBuilder sb = new StringBuilder();
+    for (int j = 0; j < distances.length; j++) {
+      if (j > 0) {
+        sb.append('\t');
+      }
+      sb.append(Double.isInfinite(distances[j]) ? PRUNED_DISTANCE
+                                                : Double.toString(distances[j]));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Parse a row of distances, reading {@link #PRUNED_DISTANCE} as positive infinity
+   */
+  private static double[] parseDistances(String[] line, int offset) {
+    double[] distances = new double[line.length - offset];
+    for (int j = 0; j < distances.length; j++) {
+      String value = line[j + offset];
+      distances[j] = value.equals(PRUNED_DISTANCE) ? Double.POSITIVE_INFINITY
+                                                   : Double.parseDouble(value);
+    }
+    return distances;
+  }
+
+  /**
+   * Report cases without a single control inside the caliper, before any pairing is attempted
+   * @return per case, whether every distance is outside the caliper
+   */
+  private static boolean[] reportCasesOutsideCaliper(String[] cases, DistanceStore dists) {
+    boolean[] outside = new boolean[cases.length];
+    int count = 0;
+    for (int i = 0; i < cases.length; i++) {
+      outside[i] = true;
+      for (long j = 0; j < dists.columns(); j++) {
+        if (!Double.isInfinite(dists.get(i, j))) {
+          outside[i] = false;
+          break;
+        }
+      }
+      if (outside[i]) {
+        System.out.println("No control within caliper for anchor: " + cases[i]);
+        count++;
+      }
+    }
+    if (count > 0) {
+      System.out.println(count + " of " + cases.length
+                         + " anchors have no control within the caliper and will not be matched");
+    }
+    return outside;
+  }
+
   public static String[] samplesFileToStringArray(String samplesFile, String factorFile,
                                                   int caseOrControl) {
     Set<String> validSamples = new HashSet<String>();
@@ -248,164 +612,124 @@ public class MatchSamples {
     return v.toArray(new String[0]);
   }
 
+  /**
+   * Parse the anchor-barnacle pairs of a PLINK .genome file with {@link GenomeParser} and write
+   * 1 - pihat, 1 - DST and 3 - ratio of every pair to pihats.xln, dsts.xln and ratios.xln, in the
+   * {@link #matchMaker} format; pairs missing from the file are written as -999. The three
+   * matrices are open together and share the distance memory budget, so those that do not fit next
+   * to the others are mapped from files
+   */
   public static void parseClusterfile(String dir, String anchorList, String barnacleList,
                                       String clusterfile) {
     BufferedReader reader;
-    PrintWriter writer;
-    String[] line, anchors, barnacles;
-    int iAnch, iBarn;
+    String[] anchors, barnacles;
     long time;
-    double[][] pihats, dsts, ratios;
 
     time = new Date().getTime();
     anchors = HashVec.loadFileToStringArray(dir + anchorList, false, new int[] {0}, true);
     barnacles = HashVec.loadFileToStringArray(dir + barnacleList, false, new int[] {0}, true);
-    pihats = Matrix.doubleMatrix(anchors.length, barnacles.length, -999);
-    dsts = Matrix.doubleMatrix(anchors.length, barnacles.length, -999);
-    ratios = Matrix.doubleMatrix(anchors.length, barnacles.length, -999);
+    String[] files = {"pihats.xln", "dsts.xln", "ratios.xln"};
+    DistanceStore[] values = new DistanceStore[files.length];
     try {
       reader = new BufferedReader(new FileReader(dir + clusterfile));
       ext.checkHeader(reader.readLine().trim().split(PSF.Regex.GREEDY_WHITESPACE),
                       Plink.CLUSTER_HEADER, true);
-      while (reader.ready()) {
-        line = reader.readLine().trim().split(PSF.Regex.GREEDY_WHITESPACE);
-        iAnch = Math.max(ext.indexOfStr(line[1], anchors), ext.indexOfStr(line[3], anchors));
-        iBarn = Math.max(ext.indexOfStr(line[1], barnacles), ext.indexOfStr(line[3], barnacles));
-        if (iAnch != -1 && iBarn != -1) {
-          pihats[iAnch][iBarn] = 1 - Double.parseDouble(line[7]);
-          dsts[iAnch][iBarn] = 1 - Double.parseDouble(line[12]);
-          ratios[iAnch][iBarn] = 3 - Double.parseDouble(line[16]);
+      reader.close();
+      for (int v = 0; v < values.length; v++) {
+        values[v] = allocateDistances(dir, anchors.length, barnacles.length);
+        for (int i = 0; i < anchors.length; i++) {
+          values[v].fillRow(i, -999);
         }
       }
-      reader.close();
+      Path genome = Paths.get(dir + clusterfile);
+      GenomeParser.parse(genome, GenomeParser.dataStart(genome), anchors, barnacles, values[0],
+                         values[1], values[2]);
+      System.out.println("Finished parsing file in " + ext.getTimeElapsed(time));
+      time = new Date().getTime();
+
+      PrintWriter[] writers = new PrintWriter[files.length];
+      for (int v = 0; v < files.length; v++) {
+        writers[v] = Files.openAppropriateWriter(dir + files[v]);
+        writers[v].println(anchors.length + "\t" + barnacles.length);
+        writers[v].println("Anchor\t" + ArrayUtils.toStr(barnacles));
+      }
+      double[] row = new double[barnacles.length];
+      for (int i = 0; i < anchors.length; i++) {
+        for (int v = 0; v < files.length; v++) {
+          writers[v].println(anchors[i] + "\t" + ArrayUtils.toStr(values[v].getRow(i, row)));
+        }
+      }
+      for (PrintWriter writer : writers) {
+        writer.close();
+      }
+      System.out.println("Finished writing values in " + ext.getTimeElapsed(time));
     } catch (FileNotFoundException fnfe) {
       System.err.println("Error: file \"" + dir + clusterfile
                          + "\" not found in current directory");
       System.exit(1);
     } catch (IOException ioe) {
       System.err.println("Error reading file \"" + dir + clusterfile + "\"");
+      ioe.printStackTrace();
       System.exit(2);
-    }
-    System.out.println("Finished parsing file in " + ext.getTimeElapsed(time));
-    time = new Date().getTime();
-
-    try {
-      writer = Files.openAppropriateWriter(dir + "pihats.xln");
-      writer.println(anchors.length + "\t" + barnacles.length);
-      writer.println("Anchor\t" + ArrayUtils.toStr(barnacles));
-      for (int i = 0; i < anchors.length; i++) {
-        writer.println(anchors[i] + "\t" + ArrayUtils.toStr(pihats[i]));
-      }
-      writer.close();
-    } catch (Exception e) {
-      System.err.println("Error writing pihats");
-      e.printStackTrace();
-    }
-    try {
-      writer = Files.openAppropriateWriter(dir + "dsts.xln");
-      writer.println(anchors.length + "\t" + barnacles.length);
-      writer.println("Anchor\t" + ArrayUtils.toStr(barnacles));
-      for (int i = 0; i < anchors.length; i++) {
-        writer.println(anchors[i] + "\t" + ArrayUtils.toStr(dsts[i]));
+    } finally {
+      for (DistanceStore store : values) {
+        if (store != null) {
+          store.close();
+        }
       }
-      writer.close();
-    } catch (Exception e) {
-      System.err.println("Error writing dsts");
-      e.printStackTrace();
     }
-    try {
-      writer = Files.openAppropriateWriter(dir + "ratios.xln");
-      writer.println(anchors.length + "\t" + barnacles.length);
-      writer.println("Anchor\t" + ArrayUtils.toStr(barnacles));
-      for (int i = 0; i < anchors.length; i++) {
-        writer.println(anchors[i] + "\t" + ArrayUtils.toStr(ratios[i]));
-      }
-      writer.close();
-    } catch (Exception e) {
-      System.err.println("Error writing ratios");
-      e.printStackTrace();
-    }
-    System.out.println("Finished writing values in " + ext.getTimeElapsed(time));
-
   }
 
   public static void correlate(String dir, String file1, String file2) {
-    BufferedReader reader;
-    String[] line, anchors, barnacles;
-    double[][] values = new double[2][];
+    correlate(dir, file1, file2, false);
+  }
 
+  /**
+   * Print the t-test p-value and Pearson correlation of two distance files of the same anchors and
+   * barnacles, streamed by {@link DistanceCorrelation}; pruned distances are skipped
+   * @param ranks also print Spearman's rank correlation, which sorts the distances on disk in dir
+   */
+  public static void correlate(String dir, String file1, String file2, boolean ranks) {
     try {
-      reader = new BufferedReader(new FileReader(dir + file1));
-      line = reader.readLine().trim().split(PSF.Regex.GREEDY_WHITESPACE);
-      anchors = new String[Integer.parseInt(line[0])];
-      barnacles = new String[Integer.parseInt(line[1])];
-      values[0] = ArrayUtils.doubleArray(anchors.length * barnacles.length, -999);
-      line = reader.readLine().trim().split(PSF.Regex.GREEDY_WHITESPACE);
-      for (int i = 0; i < barnacles.length; i++) {
-        barnacles[i] = line[i + 1];
+      DistanceCorrelation.Result result = DistanceCorrelation.correlate(Paths.get(dir + file1),
+                                                                        Paths.get(dir + file2),
+                                                                        ranks, Paths.get(dir),
+                                                                        distanceBudget);
+      DistanceCorrelation.Moments values = result.values;
+      String line = ext.formStr(file1, 30, true) + ext.formStr(file2, 30, true) + " p="
+                    + ext.prettyP(values.ttestP()) + "\t" + values.correlation() + "\t"
+                    + values.correlationP();
+      if (ranks) {
+        line += "\tspearman=" + result.ranks.correlation() + "\t" + result.ranks.correlationP();
       }
-      for (int i = 0; i < anchors.length; i++) {
-        anchors[i] = line[0];
-        line = reader.readLine().trim().split(PSF.Regex.GREEDY_WHITESPACE);
-        for (int j = 0; j < barnacles.length; j++) {
-          values[0][i * barnacles.length + j] = Double.parseDouble(line[j + 1]);
-        }
-      }
-      reader.close();
-
-      reader = new BufferedReader(new FileReader(dir + file2));
-      line = reader.readLine().trim().split(PSF.Regex.GREEDY_WHITESPACE);
-      if (Integer.parseInt(line[0]) != anchors.length
-          || Integer.parseInt(line[1]) != barnacles.length) {
-        System.err.println("Error - the two files have different numbers of anchors and barnacles");
-        System.exit(1);
-      }
-      values[1] = ArrayUtils.doubleArray(anchors.length * barnacles.length, -999);
-      line = reader.readLine().trim().split(PSF.Regex.GREEDY_WHITESPACE);
-      for (int i = 0; i < barnacles.length; i++) {
-        if (!barnacles[i].equals(line[i + 1])) {
-          System.err.println("Error - the two files have different barnacles");
-          System.exit(1);
-        }
-      }
-      for (int i = 0; i < anchors.length; i++) {
-        if (!anchors[i].equals(line[0])) {
-          System.err.println("Error - the two files have different anchors");
-          System.exit(1);
-        }
-        line = reader.readLine().trim().split(PSF.Regex.GREEDY_WHITESPACE);
-        for (int j = 0; j < barnacles.length; j++) {
-          values[1][i * barnacles.length + j] = Double.parseDouble(line[j + 1]);
-        }
-      }
-      reader.close();
-
-      System.out.println(ext.formStr(file1, 30, true) + ext.formStr(file2, 30, true) + " p="
-                         + ext.prettyP(new Ttest(values).getPvalue()) + "\t"
-                         + ArrayUtils.toStr(Correlation.Pearson(values)));
-    } catch (FileNotFoundException fnfe) {
-      System.err.println("Error: file \"" + dir + file2 + "\" not found in current directory");
+      System.out.println(line);
+    } catch (IllegalArgumentException iae) {
+      System.err.println("Error - " + iae.getMessage());
       System.exit(1);
     } catch (IOException ioe) {
-      System.err.println("Error reading file \"" + dir + file2 + "\"");
+      System.err.println("Error reading files \"" + dir + file1 + "\" and \"" + dir + file2 + "\"");
+      ioe.printStackTrace();
       System.exit(2);
     }
-
   }
 
+  /**
+   * Percentile transform every distance of a {@link #matchMaker} file: each becomes its rank over
+   * the number of distances, ties getting their average rank. The ranks come from the external sort
+   * of {@link DistanceCorrelation.Ranker} and are held in a {@link DistanceStore}, so the number of
+   * distances is bounded by the disk rather than by the largest array.
+   */
   public static String normalizeDistances(String dir, String distanceFile, double min, double max) {
     BufferedReader reader;
     PrintWriter writer;
     String[] line, anchors, barnacles;
-    double[] dists;
 
     if (!new File(dir + ext.rootOf(distanceFile) + "_norm.xln").exists()) {
-      try {
+      try (DistanceCorrelation.Ranker ranker = new DistanceCorrelation.Ranker(Paths.get(dir))) {
         reader = new BufferedReader(new FileReader(dir + distanceFile));
         line = reader.readLine().trim().split(PSF.Regex.GREEDY_WHITESPACE);
         anchors = new String[Integer.parseInt(line[0])];
         barnacles = new String[Integer.parseInt(line[1])];
-        dists = new double[anchors.length * barnacles.length];
         line = reader.readLine().trim().split(PSF.Regex.GREEDY_WHITESPACE);
         for (int i = 0; i < barnacles.length; i++) {
           barnacles[i] = line[i + 1];
@@ -414,30 +738,34 @@ public class MatchSamples {
           line = reader.readLine().trim().split(PSF.Regex.GREEDY_WHITESPACE);
           anchors[i] = line[0];
           for (int j = 0; j < barnacles.length; j++) {
-            dists[i * barnacles.length + j] = Double.parseDouble(line[j + 1]);
+            ranker.add(Double.parseDouble(line[j + 1]));
           }
         }
         reader.close();
 
         System.out.print("Transforming data...");
-        dists = Transformations.percentileTransform(dists);
-        System.out.println("done");
-
-        try {
-          writer = Files.openAppropriateWriter(dir + ext.rootOf(distanceFile) + "_norm.xln");
-          writer.println(anchors.length + "\t" + barnacles.length);
-          writer.println("Anchor\t" + ArrayUtils.toStr(barnacles));
-          for (int i = 0; i < anchors.length; i++) {
-            writer.print(anchors[i]);
-            for (int j = 0; j < barnacles.length; j++) {
-              writer.print("\t" + dists[i * barnacles.length + j]);
+        long size = ranker.count();
+        try (DistanceStore dists = allocateDistances(dir, anchors.length, barnacles.length)) {
+          ranker.rank((index, rank) -> dists.set(index / barnacles.length,
+                                                 index % barnacles.length, rank / size));
+          System.out.println("done");
+
+          try {
+            writer = Files.openAppropriateWriter(dir + ext.rootOf(distanceFile) + "_norm.xln");
+            writer.println(anchors.length + "\t" + barnacles.length);
+            writer.println("Anchor\t" + ArrayUtils.toStr(barnacles));
+            for (int i = 0; i < anchors.length; i++) {
+              writer.print(anchors[i]);
+              for (int j = 0; j < barnacles.length; j++) {
+                writer.print("\t" + dists.get(i, j));
+              }
+              writer.println();
             }
-            writer.println();
+            writer.close();
+          } catch (Exception e) {
+            System.err.println("Error writing normalized distances");
+            e.printStackTrace();
           }
-          writer.close();
-        } catch (Exception e) {
-          System.err.println("Error writing normalized distances");
-          e.printStackTrace();
         }
       } catch (FileNotFoundException fnfe) {
         fnfe.printStackTrace();
@@ -467,33 +795,66 @@ public class MatchSamples {
    */
   public static String matchPairs(String dir, String distanceFile, boolean minMin_not_maxMin,
                                   boolean antiOptimal, int iterations) {
+    return matchPairs(dir, distanceFile, minMin_not_maxMin, antiOptimal, iterations,
+                      KinshipIndex.EMPTY);
+  }
+
+  /**
+   * {@link #matchPairs(String, String, boolean, boolean, int)}, never pairing a case with a control
+   * related to it or to a control it was paired with in an earlier iteration; such a pair is
+   * treated like one outside the caliper
+   * @param kinship related samples
+   */
+  public static String matchPairs(String dir, String distanceFile, boolean minMin_not_maxMin,
+                                  boolean antiOptimal, int iterations, KinshipIndex kinship) {
     BufferedReader reader;
     PrintWriter writer;
     String[] line, cases, controls;
-    double[][] dists;
-    long time;
+    DistanceStore dists = null;
     double[] mins;
     double[][] finalDists = null;
     int[][] matches = null;
     int iCase, iControl;
     Set<Integer> usedControls = new HashSet<Integer>();
-    time = new Date().getTime();
     try {
+      MatchMetrics.Phase parsing = metrics.start(MatchMetrics.PARSE, ext.rootOf(distanceFile));
       reader = new BufferedReader(new FileReader(dir + distanceFile));
       line = reader.readLine().trim().split(PSF.Regex.GREEDY_WHITESPACE);
       cases = new String[Integer.parseInt(line[0])];
       controls = new String[Integer.parseInt(line[1])];
-      dists = Matrix.doubleMatrix(cases.length, controls.length, -999);
+      dists = allocateDistances(dir, cases.length, controls.length);
       line = reader.readLine().trim().split(PSF.Regex.GREEDY_WHITESPACE);
       for (int i = 0; i < controls.length; i++) {
         controls[i] = line[i + 1];
       }
+      boolean pruned = false;
       for (int i = 0; i < cases.length; i++) {
         line = reader.readLine().trim().split(PSF.Regex.GREEDY_WHITESPACE);
         cases[i] = line[0];
-        dists[i] = ArrayUtils.toDoubleArray(ArrayUtils.subArray(line, 1));
+        double[] row = parseDistances(line, 1);
+        dists.setRow(i, row);
+        for (double d : row) {
+          pruned |= Double.isInfinite(d);
+        }
       }
       reader.close();
+      parsing.close();
+      // cases with nothing inside the caliper are set aside before pairing starts
+      boolean[] outsideCaliper = pruned ? reportCasesOutsideCaliper(cases, dists)
+                                        : new boolean[cases.length];
+      int[] caseKinship = kinship.sampleIndices(Arrays.asList(cases));
+      int[] controlKinship = kinship.sampleIndices(Arrays.asList(controls));
+      boolean related = kinship.numPairs() > 0;
+      if (pruned && antiOptimal) {
+        // pruned pairs must never be chosen as the maximum either
+        for (int i = 0; i < cases.length; i++) {
+          for (int j = 0; j < controls.length; j++) {
+            if (dists.get(i, j) == Double.POSITIVE_INFINITY) {
+              dists.set(i, j, Double.NEGATIVE_INFINITY);
+            }
+          }
+        }
+      }
       matches = new int[cases.length][iterations];
       for (int i = 0; i < matches.length; i++) {
         for (int j = 0; j < matches[i].length; j++) {
@@ -506,52 +867,71 @@ public class MatchSamples {
           finalDists[i][j] = -1;
         }
       }
+      // the distance file stands in for the stratum, as blocks are paired one file at a time
+      MatchProgress.Task steps = PROGRESS.task(MatchProgress.PAIRING_STEPS,
+                                               ext.rootOf(distanceFile),
+                                               (long) cases.length * iterations);
+      MatchMetrics.Phase pairing = metrics.start(MatchMetrics.PAIRING, ext.rootOf(distanceFile))
+                                          .stratum(cases.length, controls.length).k(iterations);
       for (int iter = 0; iter < iterations; iter++) {
 
         int numDropped = cases.length - controls.length;
+        double[] caseRow = new double[controls.length];
         while (findMinTwoD(matches) == -1) {
+          steps.increment();
           // System.out.println(Array.countIf(matches, -1));
           mins = new double[cases.length];
           for (int i = 0; i < cases.length; i++) {
+            boolean unmatched = matches[i][iter] == -1 && !outsideCaliper[i];
             if (antiOptimal) {
-              mins[i] = (matches[i][iter] == -1 ? findMinOrMaxIndex(dists[i], usedControls, false)
+              mins[i] = (unmatched ? findMinOrMaxIndex(dists, i, usedControls, false)
                                                 : (minMin_not_maxMin ? Double.NEGATIVE_INFINITY
                                                                      : Double.NEGATIVE_INFINITY));
             } else {
-              mins[i] = (matches[i][iter] == -1 ? findMinOrMaxIndex(dists[i], usedControls, true)
+              mins[i] = (unmatched ? findMinOrMaxIndex(dists, i, usedControls, true)
                                                 : (minMin_not_maxMin ? Double.POSITIVE_INFINITY
                                                                      : Double.NEGATIVE_INFINITY));
             }
           }
           if (antiOptimal) {
             iCase = ArrayUtils.maxIndex(mins);
-            iControl = ArrayUtils.maxIndex(dists[iCase]);
+            iControl = ArrayUtils.maxIndex(dists.getRow(iCase, caseRow));
           } else {
             iCase = minMin_not_maxMin ? ArrayUtils.minIndex(mins) : ArrayUtils.maxIndex(mins);
             if (iCase == -1) break;
-            iControl = ArrayUtils.minIndex(dists[iCase]);
+            iControl = ArrayUtils.minIndex(dists.getRow(iCase, caseRow));
             if (iControl == -1) break;
           }
+          if (related && isRelated(kinship, caseKinship[iCase], controlKinship, matches[iCase],
+                                   iControl)) {
+            // rule the pair out for this case and choose again
+            dists.set(iCase, iControl, antiOptimal ? Double.NEGATIVE_INFINITY
+                                                   : Double.POSITIVE_INFINITY);
+            continue;
+          }
+          if ((pruned || related) && Double.isInfinite(dists.get(iCase, iControl))) {
+            // every control still available to this case is outside the caliper
+            outsideCaliper[iCase] = true;
+            System.out.println("Dropped anchor: " + cases[iCase]
+                               + ". No unused control within caliper.");
+            continue;
+          }
           if ((!minMin_not_maxMin) && (numDropped > 0)) {
-            for (int i = 0; i < controls.length; i++) {
-              dists[iCase][i] = Double.NEGATIVE_INFINITY;
-            }
+            dists.fillRow(iCase, Double.NEGATIVE_INFINITY);
             System.out.println("Dropped anchor: " + cases[iCase] + ". More cases than controls.");
             numDropped--;
           } else {
             matches[iCase][iter] = iControl;
-            finalDists[iCase][iter] = dists[iCase][iControl];
-            for (int i = 0; i < cases.length; i++) {
-              if (antiOptimal) {
-                dists[i][iControl] = Double.NEGATIVE_INFINITY;
-              } else {
-                dists[i][iControl] = Double.POSITIVE_INFINITY;
-              }
-            }
+            finalDists[iCase][iter] = dists.get(iCase, iControl);
+            dists.fillColumn(iControl, antiOptimal ? Double.NEGATIVE_INFINITY
+                                                   : Double.POSITIVE_INFINITY);
           }
           usedControls.add(iControl);
         }
       }
+      pairing.close();
+      steps.finish();
+      MatchMetrics.Phase writing = metrics.start(MatchMetrics.WRITE);
       writer = Files.openAppropriateWriter(dir + ext.rootOf(distanceFile) + "_"
                                            + (minMin_not_maxMin ? "min" : "max") + "Min.xln");
       String header = "Case";
@@ -563,11 +943,16 @@ public class MatchSamples {
       for (int i = 0; i < cases.length; i++) {
         row = cases[i];
         for (int j = 0; j < iterations; j++) {
-          row += "\t" + controls[matches[i][j]] + "\t" + finalDists[i][j];
+          if (matches[i][j] == -1) {
+            row += "\t" + PRUNED_DISTANCE + "\t" + PRUNED_DISTANCE;
+          } else {
+            row += "\t" + controls[matches[i][j]] + "\t" + finalDists[i][j];
+          }
         }
         writer.println(row);
       }
       writer.close();
+      writing.close();
     } catch (FileNotFoundException fnfe) {
       fnfe.printStackTrace();
       System.exit(1);
@@ -575,14 +960,96 @@ public class MatchSamples {
       System.err.println("Error reading file \"" + dir + distanceFile + "\"");
       ioe.printStackTrace();
       System.exit(2);
+    } finally {
+      if (dists != null) {
+        dists.close();
+      }
     }
     System.out.println("Created " + ext.rootOf(distanceFile) + "_"
-                       + (minMin_not_maxMin ? "min" : "max") + "Min.xln" + " in "
-                       + ext.getTimeElapsed(time));
+                       + (minMin_not_maxMin ? "min" : "max") + "Min.xln");
 
     return ext.rootOf(distanceFile) + "_" + (minMin_not_maxMin ? "min" : "max") + "Min.xln";
   }
 
+  /**
+   * Run {@link #matchPairs} on every distance block listed by {@link #matchMakerStratified}, in
+   * parallel, and combine the pairings into a single file in the {@link #matchPairs} format.
+   * Anchors of strata without controls are written without matches.
+   * @return name of the combined pairings file
+   */
+  public static String matchPairsStratified(String dir, String blockIndexFile,
+                                            boolean minMin_not_maxMin, boolean antiOptimal,
+                                            int iterations) {
+    return matchPairsStratified(dir, blockIndexFile, minMin_not_maxMin, antiOptimal, iterations,
+                                KinshipIndex.EMPTY);
+  }
+
+  /**
+   * {@link #matchPairsStratified(String, String, boolean, boolean, int)}, keeping relatives apart
+   * within each stratum as {@link #matchPairs(String, String, boolean, boolean, int, KinshipIndex)}
+   * does
+   */
+  @SuppressWarnings("try")
+  public static String matchPairsStratified(String dir, String blockIndexFile,
+                                            boolean minMin_not_maxMin, boolean antiOptimal,
+                                            int iterations, KinshipIndex kinship) {
+    String[][] index = HashVec.loadFileToStringMatrix(dir + blockIndexFile, true,
+                                                      new int[] {0, 1, 2, 3, 4},
+                                                      PSF.Regex.GREEDY_WHITESPACE, 1000, false);
+    String[] pairFiles = new String[index.length];
+    IntStream.range(0, index.length).parallel().forEach(b -> {
+      if (Integer.parseInt(index[b][2]) > 0 && Integer.parseInt(index[b][3]) > 0) {
+        pairFiles[b] = matchPairs(dir, index[b][4], minMin_not_maxMin, antiOptimal, iterations,
+                                  kinship);
+      }
+    });
+
+    String suffix = "_" + (minMin_not_maxMin ? "min" : "max") + "Min.xln";
+    String output = blockIndexFile.substring(0, blockIndexFile.length()
+                                                - BLOCK_INDEX_SUFFIX.length())
+                    + suffix;
+    try (MatchMetrics.Phase phase = metrics.start(MatchMetrics.WRITE);
+        PrintWriter writer = Files.openAppropriateWriter(dir + output)) {
+      String header = "Case";
+      for (int i = 0; i < iterations; i++) {
+        header += "\tControlMatch\tDistance";
+      }
+      writer.println(header);
+      for (int b = 0; b < index.length; b++) {
+        if (pairFiles[b] != null) {
+          try (BufferedReader reader = Files.getAppropriateReader(dir + pairFiles[b])) {
+            reader.readLine();
+            String line = reader.readLine();
+            while (line != null) {
+              writer.println(line);
+              line = reader.readLine();
+            }
+          }
+        } else {
+          try (BufferedReader reader = Files.getAppropriateReader(dir + index[b][4])) {
+            reader.readLine();
+            reader.readLine();
+            String line = reader.readLine();
+            while (line != null) {
+              String row = line.trim().split(PSF.Regex.GREEDY_WHITESPACE)[0];
+              for (int i = 0; i < iterations; i++) {
+                row += "\t" + PRUNED_DISTANCE + "\t" + PRUNED_DISTANCE;
+              }
+              writer.println(row);
+              line = reader.readLine();
+            }
+          }
+        }
+      }
+    } catch (IOException ioe) {
+      System.err.println("Error combining pairings into \"" + dir + output + "\"");
+      ioe.printStackTrace();
+      System.exit(2);
+    }
+    System.out.println("Created " + output + " from " + index.length + " strata");
+    return output;
+  }
+
   public static double findMinOrMaxIndex(double[] distances, Set<Integer> skipIndices,
                                          boolean findMin) {
     int index = 0;
@@ -612,6 +1079,40 @@ public class MatchSamples {
     }
   }
 
+  /**
+   * @return true if the control is related to the case or to a control already paired with it
+   */
+  private static boolean isRelated(KinshipIndex kinship, int caseKinship, int[] controlKinship,
+                                   int[] caseMatches, int control) {
+    if (kinship.related(caseKinship, controlKinship[control])) {
+      return true;
+    }
+    for (int match : caseMatches) {
+      if (match != -1 && kinship.related(controlKinship[match], controlKinship[control])) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * {@link #findMinOrMaxIndex(double[], Set, boolean)} of a row of a {@link DistanceStore}
+   */
+  public static double findMinOrMaxIndex(DistanceStore distances, long row,
+                                         Set<Integer> skipIndices, boolean findMin) {
+    int index = 0;
+    double best = findMin ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < distances.columns(); i++) {
+      if (skipIndices.contains(i)) continue;
+      double cur = distances.get(row, i);
+      if (findMin ? cur < best : cur > best) {
+        best = cur;
+        index = i;
+      }
+    }
+    return index;
+  }
+
   public static int findMinTwoD(int[][] in) {
     int min = in[0][0];
     for (int i = 0; i < in.length; i++) {
@@ -1068,18 +1569,39 @@ public class MatchSamples {
   }
 
   public String run(int iterations, Logger log) {
+    return run(iterations, new MatchMetrics(), log);
+  }
+
+  /**
+   * Match the samples, collecting the phases of the run in metrics, which are written as
+   * {@value MatchMetrics#JSON_FILE} and {@value MatchMetrics#PROMETHEUS_FILE} next to the matches
+   * @return name of the pairings file in the matches directory
+   */
+  @SuppressWarnings("try")
+  public String run(int iterations, MatchMetrics metrics, Logger log) {
     String distanceMatrix, pairsFile = null;
     boolean minMin = (this.minOrMax.equalsIgnoreCase("minmin"));
+    String matchesDirectory = this.dir + "matches" + "/";
 
-    try {
-      String matchesDirectory = this.dir + "matches" + "/";
+    MatchSamples.metrics = metrics;
+    try (MatchMetrics.Phase phase = metrics.start(MatchMetrics.MATCH)) {
       Files.ensurePathExists(matchesDirectory);
-      distanceMatrix = MatchSamples.matchMaker(matchesDirectory, "/../" + this.samplesFile,
-                                               "/../" + this.factorsFile, this.cols, this.loadings,
-                                               true);
-
       String p;
-      pairsFile = MatchSamples.matchPairs(matchesDirectory, distanceMatrix, minMin, iterations);
+      if (this.forceColumns.length > 0) {
+        distanceMatrix = MatchSamples.matchMakerStratified(matchesDirectory,
+                                                           "/../" + this.samplesFile,
+                                                           "/../" + this.factorsFile, this.cols,
+                                                           this.loadings, this.forceColumns, true,
+                                                           this.caliper);
+        pairsFile = MatchSamples.matchPairsStratified(matchesDirectory, distanceMatrix, minMin,
+                                                      false, iterations, this.kinship);
+      } else {
+        distanceMatrix = MatchSamples.matchMaker(matchesDirectory, "/../" + this.samplesFile,
+                                                 "/../" + this.factorsFile, this.cols,
+                                                 this.loadings, true, this.caliper);
+        pairsFile = MatchSamples.matchPairs(matchesDirectory, distanceMatrix, minMin, false,
+                                            iterations, this.kinship);
+      }
 
       if (minMin == true) {
         p = pairsFile.split("_minMin")[0] + ".xln";
@@ -1094,7 +1616,11 @@ public class MatchSamples {
 
     } catch (Exception e) {
       e.printStackTrace();
+    } finally {
+      MatchSamples.metrics = MatchMetrics.NONE;
     }
+    metrics.write(Paths.get(matchesDirectory),
+                  java.util.logging.Logger.getLogger(MatchSamples.class.getName()));
     return pairsFile;
 
   }
@@ -1123,6 +1649,12 @@ public class MatchSamples {
 
     String clusterfile = "cluster.genome";
     int iterations = 1;
+    Caliper caliper = Caliper.NONE;
+    String[] forceColumns = new String[0];
+    long progressSeconds = 60;
+    long distanceRamMb = distanceBudget.limit() >> 20;
+    String kinshipFile = null;
+    double kinshipPihat = KinshipIndex.DEFAULT_PIHAT;
 
     String usage = "\n" + "gwas.MatchSamples requires 0-1 arguments\n"
                    + "   (0) directory (i.e. dir=" + d + " (default))\n"
@@ -1141,6 +1673,16 @@ public class MatchSamples {
                    + "   (11) resultsToVis - used with visOnly flag to point to results file.\n"
                    + ""
                    + "   (12) hideExtraControls - hide unmatched controls in visualizer (i.e. hideExtraControls=false (default)).\n"
+                   + "   (13) caliper - maximum case-control distance, absolute or in SDs of all distances (i.e. caliper=1.5 or caliper=0.5sd, default=none).\n"
+                   + "   (14) force - columns of the factors file that must match exactly; distances are only computed within each stratum (i.e. force=SEX,SITE, default=none).\n"
+                   + "   (15) progress - seconds between progress reports of the pairing to the console and to "
+                   + MatchProgress.STATUS_FILE + ", 0 for none (i.e. progress=" + progressSeconds
+                   + " (default)).\n"
+                   + "   (16) distanceRam - megabytes of distances to hold in memory at the same time; distance matrices beyond it are mapped from a file in dir (i.e. distanceRam="
+                   + distanceRamMb + " (default, half the max heap)).\n"
+                   + "   (17) kinship - PLINK .genome file of related samples; no anchor is paired with a relative or with two related controls (i.e. kinship=plink.genome, default=none).\n"
+                   + "   (18) kinshipPihat - pairs of the kinship file with at least this PI_HAT are related (i.e. kinshipPihat="
+                   + kinshipPihat + " (default)).\n"
                    + "";
 
     for (String arg : args) {
@@ -1183,6 +1725,24 @@ public class MatchSamples {
       } else if (arg.startsWith("hideExtraControls=")) {
         hideExtraControls = Boolean.parseBoolean(arg.split("=")[1]);
         numArgs--;
+      } else if (arg.startsWith("caliper=")) {
+        caliper = Caliper.parse(arg.split("=")[1]);
+        numArgs--;
+      } else if (arg.startsWith("force=")) {
+        forceColumns = arg.split("=")[1].split(",");
+        numArgs--;
+      } else if (arg.startsWith("progress=")) {
+        progressSeconds = Long.parseLong(arg.split("=")[1]);
+        numArgs--;
+      } else if (arg.startsWith("distanceRam=")) {
+        distanceRamMb = Long.parseLong(arg.split("=")[1]);
+        numArgs--;
+      } else if (arg.startsWith("kinship=")) {
+        kinshipFile = arg.split("=")[1];
+        numArgs--;
+      } else if (arg.startsWith("kinshipPihat=")) {
+        kinshipPihat = Double.parseDouble(arg.split("=")[1]);
+        numArgs--;
       }
     }
 
@@ -1235,8 +1795,30 @@ public class MatchSamples {
 
       MatchSamples match = new MatchSamples(d, samplesFile, factorsFile, factorNames,
                                             factorLoadings, minOrMax, skipVis, skipAge);
+      match.setCaliper(caliper);
+      match.setForceColumns(forceColumns);
+      setDistanceRamBudget(distanceRamMb << 20);
+      if (kinshipFile != null) {
+        try {
+          KinshipIndex kinship = KinshipIndex.load(Paths.get(kinshipFile), kinshipPihat);
+          System.out.println("Keeping apart " + kinship.numPairs() + " related pairs from "
+                             + kinshipFile);
+          match.setKinship(kinship);
+        } catch (IOException ioe) {
+          System.err.println("Error reading kinship file \"" + kinshipFile + "\"");
+          ioe.printStackTrace();
+          System.exit(2);
+        }
+      }
       Logger log = new Logger();
-      String pairs = match.run(iterations, log);
+      PROGRESS.start(Paths.get(d, MatchProgress.STATUS_FILE), progressSeconds,
+                     java.util.logging.Logger.getLogger(MatchSamples.class.getName()));
+      String pairs;
+      try {
+        pairs = match.run(iterations, log);
+      } finally {
+        PROGRESS.close();
+      }
 
       if (!skipVis) {
         String visFile;
@@ -0,0 +1,383 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Long-running matching server, so that repeated {@link MatchMaker} and {@link REval} runs of an
+ * interactive session skip JVM start-up, input parsing and index construction. It listens on the
+ * loopback interface only and takes the same key=value arguments as the command line, as a query
+ * string or a form-encoded POST body:
+ * <ul>
+ * <li>{@code /match} matches into {@code dir}, with {@code samples}, {@code factors},
+ * {@code iterations}, {@code multiplier}, {@code normalize}, {@code skipOptimization},
+ * {@code threads} and every {@link MatchOptions#parseArg matching option}; {@code dir} is resolved
+ * against the output root of the server and must lie within it, so that a request cannot replace
+ * files elsewhere, and existing output in {@code dir} is only replaced with
+ * {@code overwrite=true}; requests for the same {@code dir} are handled one at a time</li>
+ * <li>{@code /eval} evaluates a status file as {@link REval} does and returns its table; its
+ * {@code dir} and files must lie within the output root as well</li>
+ * <li>{@code /stats} reports the cache</li>
+ * </ul>
+ * Prepared cohorts, in-project control indexes, phenotype tables and the results of identical
+ * requests are kept in one {@link MatchCache}. Inputs are identified by path, size and modification
+ * time, so a changed file is read again. A repeated match request is answered from the cache as
+ * long as the output files it wrote are unchanged. Control indexes are the k-d trees of the
+ * in-project search, used with a caliper or adaptive depth, and the random projection forests of
+ * {@code engine=ann}; the cell trees of partitioned strata are built again for every request.
+ */
+public class MatchServer {
+  public static final int DEFAULT_PORT = 8471;
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final MatchCache cache;
+  private final Path workDir;
+  private final Path outputRoot;
+  /** one lock per output directory, held while a match request reads or writes it */
+  private final Map<Path, ReentrantLock> dirLocks = new ConcurrentHashMap<>();
+  private final Logger log;
+
+  /**
+   * @param port port on the loopback interface, 0 for any free port
+   * @param budgetBytes memory budget of the cache
+   * @param threads number of requests handled at the same time
+   * @param workDir directory for the normalized samples files of prepared cohorts
+   * @param outputRoot directory that every output directory of a match request must lie in
+   */
+  public MatchServer(int port, long budgetBytes, int threads, Path workDir, Path outputRoot,
+                     Logger log) throws IOException {
+    this.cache = new MatchCache(budgetBytes);
+    this.workDir = workDir;
+    this.log = log;
+    Files.createDirectories(workDir);
+    Files.createDirectories(outputRoot);
+    this.outputRoot = outputRoot.toRealPath();
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    executor = Executors.newFixedThreadPool(threads);
+    server.setExecutor(executor);
+    server.createContext("/match", exchange -> respond(exchange, this::match));
+    server.createContext("/eval", exchange -> respond(exchange, this::eval));
+    server.createContext("/stats", exchange -> respond(exchange, params -> cache.stats()));
+  }
+
+  public void start() {
+    server.start();
+    log.info("Matching server listening on " + server.getAddress());
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  private void respond(HttpExchange exchange, Function<Map<String, String>, String> handler) {
+    int status = 200;
+    String response;
+    try {
+      response = handler.apply(parameters(exchange));
+    } catch (IllegalArgumentException e) {
+      status = 400;
+      response = "Error: " + e.getMessage() + "\n";
+    } catch (RuntimeException e) {
+      log.warning("Request " + exchange.getRequestURI() + " failed: " + e);
+      status = 500;
+      response = "Error: " + e + "\n";
+    }
+    byte[] body = response.getBytes(StandardCharsets.UTF_8);
+    try (OutputStream out = exchange.getResponseBody()) {
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+      exchange.sendResponseHeaders(status, body.length);
+      out.write(body);
+    } catch (IOException e) {
+      log.warning("Unable to answer " + exchange.getRequestURI() + ": " + e);
+    }
+  }
+
+  /**
+   * @return the key=value pairs of the query string and of a form-encoded body, sorted by key
+   */
+  static Map<String, String> parameters(HttpExchange exchange) {
+    Map<String, String> params = new TreeMap<>();
+    String query = exchange.getRequestURI().getRawQuery();
+    try (InputStream in = exchange.getRequestBody()) {
+      String body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+      for (String part : new String[] {query, body}) {
+        if (part == null || part.isBlank()) {
+          continue;
+        }
+        for (String pair : part.trim().split("&")) {
+          int eq = pair.indexOf('=');
+          if (eq <= 0) {
+            throw new IllegalArgumentException("Expected key=value, found " + pair);
+          }
+          params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                     URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return params;
+  }
+
+  private String match(Map<String, String> params) {
+    Path dir = outputDir(required(params, "dir"));
+    // concurrent requests for one directory would delete and write the same output files
+    ReentrantLock lock = dirLocks.computeIfAbsent(dir, d -> new ReentrantLock());
+    lock.lock();
+    try {
+      return match(dir, params);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private String match(Path dir, Map<String, String> params) {
+    Map<String, String> remaining = new TreeMap<>(params);
+    Path samples = Paths.get(remaining.getOrDefault("samples", "samples.txt"));
+    if (!samples.isAbsolute()) {
+      samples = dir.resolve(samples);
+    }
+    String factorsArg = required(remaining, "factors");
+    FactorLoadings factorLoadings = new FactorLoadings(factorsArg);
+    int finalNumSelect = Integer.parseInt(remaining.getOrDefault("iterations", "4"));
+    int multiplier = Integer.parseInt(remaining.getOrDefault("multiplier", "5"));
+    boolean normalize = Boolean.parseBoolean(remaining.getOrDefault("normalize", "true"));
+    boolean skipOptimization = Boolean.parseBoolean(remaining.getOrDefault("skipOptimization",
+                                                                           "false"));
+    int threads = Integer.parseInt(remaining.getOrDefault("threads",
+                                                          Integer.toString(Runtime.getRuntime()
+                                                                                  .availableProcessors())));
+    boolean overwrite = Boolean.parseBoolean(remaining.getOrDefault("overwrite", "false"));
+    for (String key : List.of("dir", "samples", "factors", "iterations", "multiplier", "normalize",
+                              "skipOptimization", "threads", "overwrite")) {
+      remaining.remove(key);
+    }
+    MatchOptions options = new MatchOptions();
+    for (Entry<String, String> e : remaining.entrySet()) {
+      if (!options.parseArg(e.getKey() + "=" + e.getValue())) {
+        throw new IllegalArgumentException("Unknown argument " + e.getKey());
+      }
+    }
+    options.cache = cache;
+
+    String resultKey = "match|" + fingerprint(samples) + "|" + params;
+    if (options.kinshipFile != null) {
+      resultKey += "|" + fingerprint(options.kinshipFile);
+    }
+    Map<Path, String> written = cache.getIfPresent(resultKey);
+    if (written != null && written.entrySet().stream()
+                                  .allMatch(e -> Files.exists(e.getKey())
+                                                 && fingerprint(e.getKey()).equals(e.getValue()))) {
+      return "cached\ttrue\n" + outputList(written.keySet());
+    }
+    long start = System.nanoTime();
+    try {
+      for (String name : MatchMaker.OUTPUT_FILES) {
+        Path output = dir.resolve(name);
+        if (Files.exists(output)) {
+          if (!overwrite) {
+            throw new IllegalArgumentException("Output already exists in " + dir
+                                               + ", use overwrite=true to replace it");
+          }
+          Files.delete(output);
+        }
+      }
+      Path cohortSamples = samples;
+      String cohortKey = "cohort|" + fingerprint(samples) + "|" + factorsArg + "|" + normalize;
+      PreparedCohort cohort = cache.get(cohortKey, () -> {
+        try {
+          Path cohortDir = workDir.resolve("cohort_"
+                                           + Integer.toHexString(cohortKey.hashCode()));
+          Files.createDirectories(cohortDir);
+          return MatchMaker.prepareCohort(cohortDir, cohortSamples, factorLoadings, normalize,
+                                          log);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }, PreparedCohort::estimatedBytes);
+      Files.createDirectories(dir);
+      MatchMaker.runMatching(dir, cohort, factorLoadings, finalNumSelect * multiplier,
+                             finalNumSelect, threads, skipOptimization, options, log);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    // the answer stays valid only while the output files are unchanged
+    written = new LinkedHashMap<>();
+    for (String name : MatchMaker.OUTPUT_FILES) {
+      if (Files.exists(dir.resolve(name))) {
+        written.put(dir.resolve(name), fingerprint(dir.resolve(name)));
+      }
+    }
+    cache.put(resultKey, written, 512L * written.size());
+    return "cached\tfalse\nseconds\t" + (System.nanoTime() - start) / 1e9 + "\n"
+           + outputList(written.keySet());
+  }
+
+  /**
+   * @return dir resolved against the output root
+   * @throws IllegalArgumentException if dir, or the closest existing directory above it, is
+   *           outside the output root
+   */
+  private Path outputDir(String dir) {
+    return withinRoot(outputRoot.resolve(dir), dir);
+  }
+
+  /**
+   * @param arg the argument resolved is named by in an error
+   * @return resolved
+   * @throws IllegalArgumentException if resolved, or the closest existing path above it, is
+   *           outside the output root
+   */
+  private Path withinRoot(Path resolved, String arg) {
+    resolved = resolved.normalize();
+    // symbolic links are followed for the part of the path that already exists
+    Path existing = resolved;
+    while (existing != null && !Files.exists(existing)) {
+      existing = existing.getParent();
+    }
+    try {
+      if (existing == null || !existing.toRealPath().startsWith(outputRoot)) {
+        throw new IllegalArgumentException(arg + " is outside the output root " + outputRoot);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return resolved;
+  }
+
+  private String eval(Map<String, String> params) {
+    Path dir = outputDir(params.getOrDefault("dir", "./"));
+    String status = params.getOrDefault("status", "status.optimized.txt");
+    String phenotype = required(params, "phenotype");
+    File statusFile = withinRoot(dir.resolve(status), status).toFile();
+    File phenotypeFile = withinRoot(dir.resolve(phenotype), phenotype).toFile();
+    String matchingVars = required(params, "matchingVars");
+    String resultKey = "eval|" + fingerprint(statusFile.toPath()) + "|"
+                       + fingerprint(phenotypeFile.toPath()) + "|" + matchingVars;
+    String table = cache.getIfPresent(resultKey);
+    if (table != null) {
+      return table;
+    }
+    REval.PhenotypeTable phenotypes = cache.get("phenotypes|"
+                                                + fingerprint(phenotypeFile.toPath()),
+                                                () -> readPhenotypes(phenotypeFile),
+                                                REval.PhenotypeTable::estimatedBytes);
+    try {
+      REval rEval = new REval(MatchingVariable.fromCommaSeparatedString(matchingVars), statusFile,
+                              phenotypeFile);
+      rEval.readPhenotypeTable(phenotypes);
+      table = rEval.getTableOutput();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    cache.put(resultKey, table, 2L * table.length());
+    return table;
+  }
+
+  private static REval.PhenotypeTable readPhenotypes(File phenotypeFile) {
+    try {
+      return REval.PhenotypeTable.read(phenotypeFile);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static String required(Map<String, String> params, String key) {
+    String value = params.get(key);
+    if (value == null) {
+      throw new IllegalArgumentException("Missing required argument " + key);
+    }
+    return value;
+  }
+
+  /** @return path, size and modification time of a file, which change whenever it is rewritten */
+  private static String fingerprint(Path file) {
+    try {
+      return file.toAbsolutePath().normalize() + ":" + Files.size(file) + ":"
+             + Files.getLastModifiedTime(file).toMillis();
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Unable to read " + file);
+    }
+  }
+
+  private static String outputList(Collection<Path> outputs) {
+    StringBuilder list = new StringBuilder();
+    for (Path output : outputs) {
+      list.append("output\t").append(output).append('\n');
+    }
+    return list.toString();
+  }
+
+  public static void main(String[] args) throws IOException {
+    int port = DEFAULT_PORT;
+    long memoryMb = Runtime.getRuntime().maxMemory() / 4 / (1024 * 1024);
+    int threads = 4;
+    Path workDir = Paths.get(System.getProperty("java.io.tmpdir"), "matchserver");
+    Path outputRoot = Paths.get("").toAbsolutePath();
+
+    String usage = "\n" + "gwas.MatchServer requires 0-5 arguments\n"
+                   + "(1) Port on the loopback interface (e.g. port=" + DEFAULT_PORT
+                   + " (default))\n"
+                   + "(2) Cache memory budget in megabytes (e.g. memory=" + memoryMb
+                   + " (default, a quarter of the maximum heap))\n"
+                   + "(3) Number of requests handled at the same time (e.g. threads=4 (default))\n"
+                   + "(4) Directory for the normalized samples of cached cohorts (e.g. workDir="
+                   + workDir + " (default))\n"
+                   + "(5) Directory that match requests may write output to, at any depth (e.g. outputRoot="
+                   + outputRoot + " (default, the working directory))\n";
+
+    for (String arg : args) {
+      if (arg.equals("-h") || arg.equals("-help") || arg.equals("/h") || arg.equals("/help")) {
+        System.err.println(usage);
+        System.exit(1);
+      } else if (arg.startsWith("port=")) {
+        port = Integer.parseInt(arg.split("=")[1]);
+      } else if (arg.startsWith("memory=")) {
+        memoryMb = Long.parseLong(arg.split("=")[1]);
+      } else if (arg.startsWith("threads=")) {
+        threads = Integer.parseInt(arg.split("=")[1]);
+      } else if (arg.startsWith("workDir=")) {
+        workDir = Paths.get(arg.split("=")[1]);
+      } else if (arg.startsWith("outputRoot=")) {
+        outputRoot = Paths.get(arg.split("=")[1]);
+      } else {
+        System.err.println("Unknown argument " + arg);
+        System.err.println(usage);
+        System.exit(1);
+      }
+    }
+    new MatchServer(port, memoryMb * 1024 * 1024, threads, workDir, outputRoot,
+                    Logger.getLogger(MatchServer.class.getName())).start();
+  }
+}
@@ -0,0 +1,123 @@
+package org.pankratzlab.internal.gwas;
+
+/**
+ * Result of a nearest neighbor query: point indices with their distances, nearest first.
+ */
+public class Neighbors {
+  public static final Neighbors EMPTY = new Neighbors(new int[0], new double[0]);
+
+  private final int[] indices;
+  private final double[] distances;
+
+  public Neighbors(int[] indices, double[] distances) {
+    this.indices = indices;
+    this.distances = distances;
+  }
+
+  public int size() {
+    return indices.length;
+  }
+
+  public int getIndex(int i) {
+    return indices[i];
+  }
+
+  public double getDistance(int i) {
+    return distances[i];
+  }
+
+  /**
+   * Bounded max-heap on squared distance, used to collect the k nearest points seen so far.
+   */
+  static class Heap {
+    private final int[] indices;
+    private final double[] squaredDistances;
+    private final double maxSquaredDistance;
+    private int size = 0;
+
+    Heap(int k, double maxDistance) {
+      this.indices = new int[k];
+      this.squaredDistances = new double[k];
+      this.maxSquaredDistance = maxDistance * maxDistance;
+    }
+
+    /** @return the squared distance a point must beat to be added */
+    double bound() {
+      return size < indices.length ? maxSquaredDistance : squaredDistances[0];
+    }
+
+    void offer(int index, double squaredDistance) {
+      if (indices.length == 0 || squaredDistance > bound()
+          || (size == indices.length && squaredDistance == bound())) {
+        return;
+      }
+      int i;
+      if (size < indices.length) {
+        i = size++;
+        while (i > 0 && squaredDistances[(i - 1) / 2] < squaredDistance) {
+          indices[i] = indices[(i - 1) / 2];
+          squaredDistances[i] = squaredDistances[(i - 1) / 2];
+          i = (i - 1) / 2;
+        }
+      } else {
+        i = 0;
+        while (true) {
+          int child = 2 * i + 1;
+          if (child >= size) {
+            break;
+          }
+          if (child + 1 < size && squaredDistances[child + 1] > squaredDistances[child]) {
+            child++;
+          }
+          if (squaredDistances[child] <= squaredDistance) {
+            break;
+          }
+          indices[i] = indices[child];
+          squaredDistances[i] = squaredDistances[child];
+          i = child;
+        }
+      }
+      indices[i] = index;
+      squaredDistances[i] = squaredDistance;
+    }
+
+    /** @return the collected points, nearest first; the heap is emptied */
+    Neighbors toNeighbors() {
+      int n = size;
+      int[] sortedIndices = new int[n];
+      double[] sortedDistances = new double[n];
+      for (int out = n - 1; out >= 0; out--) {
+        sortedIndices[out] = indices[0];
+        sortedDistances[out] = Math.sqrt(squaredDistances[0]);
+        removeTop();
+      }
+      return new Neighbors(sortedIndices, sortedDistances);
+    }
+
+    private void removeTop() {
+      size--;
+      int lastIndex = indices[size];
+      double last = squaredDistances[size];
+      int i = 0;
+      while (true) {
+        int child = 2 * i + 1;
+        if (child >= size) {
+          break;
+        }
+        if (child + 1 < size && squaredDistances[child + 1] > squaredDistances[child]) {
+          child++;
+        }
+        if (squaredDistances[child] <= last) {
+          break;
+        }
+        indices[i] = indices[child];
+        squaredDistances[i] = squaredDistances[child];
+        i = child;
+      }
+      if (size > 0) {
+        indices[i] = lastIndex;
+        squaredDistances[i] = last;
+      }
+    }
+  }
+}
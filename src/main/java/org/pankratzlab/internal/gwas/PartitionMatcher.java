@@ -0,0 +1,370 @@
+package org.pankratzlab.internal.gwas;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+/**
+ * Matching for a single very large stratum by spatial partitioning. The stratum is cut at the
+ * median of its widest dimension until every cell holds at most a given number of samples. Each
+ * cell is then matched on its own, in parallel:
+ * <ol>
+ * <li>the cases of the cell are queried against a tree of the cell's own controls</li>
+ * <li>the k-th neighbor distance found for a case bounds how far any true neighbor can be, so the
+ * controls of other cells within that distance of the case form its halo, which is queried too and
+ * merged in; the candidates are therefore exactly those of an unpartitioned search. Cases needing
+ * a similar radius share a halo, found through the bounding boxes of the controls of each cell,
+ * and cases short of core neighbors try a radius that doubles until they are filled</li>
+ * <li>duplicates among the cell's candidates are resolved greedily</li>
+ * </ol>
+ * Halo controls can be selected in more than one cell, so a final stitching pass keeps each such
+ * control for its closest case and gives the other cases their nearest remaining candidates.
+ */
+public class PartitionMatcher {
+  /** factor by which the halo radius of a case grows while it is short of candidates */
+  static final double HALO_GROWTH = 2;
+  /**
+   * halos of up to this many times the samples of their cell get a tree, larger ones are scanned
+   */
+  static final int MAX_HALO_FACTOR = 4;
+
+  private PartitionMatcher() {}
+
+  /**
+   * A cell of the partition, holding the stratum indices of its cases and of its own and halo
+   * controls
+   */
+  static class Cell {
+    final int[] cases;
+    final int[] controls;
+    /** halo controls queried for the cases of this cell, over all rounds */
+    long haloSize = 0;
+
+    Cell(int[] cases, int[] controls) {
+      this.cases = cases;
+      this.controls = controls;
+    }
+  }
+
+  /**
+   * @return cells holding at most maxCellSize cases and controls each, unless a cell cannot be split
+   *         because all of its samples have the same coordinates
+   */
+  static List<Cell> partition(Stratum stratum, int maxCellSize) {
+    int numCases = stratum.numCases();
+    int[] samples = IntStream.range(0, numCases + stratum.numControls()).toArray();
+    List<Cell> cells = new ArrayList<>();
+    // explicit stack of ranges instead of recursion
+    List<int[]> ranges = new ArrayList<>();
+    ranges.add(new int[] {0, samples.length});
+    while (!ranges.isEmpty()) {
+      int[] range = ranges.remove(ranges.size() - 1);
+      int from = range[0];
+      int to = range[1];
+      int splitDim = to - from > maxCellSize ? widestDimension(stratum, samples, from, to) : -1;
+      if (splitDim < 0) {
+        int[] cases = IntStream.range(from, to).map(i -> samples[i]).filter(s -> s < numCases)
+                               .toArray();
+        int[] controls = IntStream.range(from, to).map(i -> samples[i])
+                                  .filter(s -> s >= numCases).map(s -> s - numCases).toArray();
+        // cells without cases are kept, their controls can be halo controls of other cells
+        cells.add(new Cell(cases, controls));
+        continue;
+      }
+      int mid = (from + to) >>> 1;
+      select(stratum, samples, from, to - 1, mid, splitDim);
+      ranges.add(new int[] {from, mid});
+      ranges.add(new int[] {mid, to});
+    }
+    return cells;
+  }
+
+  /**
+   * @return up to numCandidates nearest controls within the caliper for every case, identical to
+   *         {@link TreeMatcher#findCandidates} except for the order of ties
+   */
+  static StratumMatches findCandidates(Stratum stratum, List<Cell> cells, int numCandidates,
+                                       Caliper caliper, Logger log) {
+    double maxDistance = TreeMatcher.resolveCaliper(stratum, caliper);
+    // the bounding box of the controls of every cell, so halos only scan the cells they reach
+    double[][][] controlBoxes = new double[cells.size()][][];
+    for (int i = 0; i < cells.size(); i++) {
+      if (cells.get(i).controls.length > 0) {
+        controlBoxes[i] = SpaceFillingCurve.bounds(controlCoords(stratum, cells.get(i).controls));
+      }
+    }
+    StratumMatches candidates = new StratumMatches(stratum, numCandidates);
+    IntStream.range(0, cells.size()).parallel().forEach(i -> {
+      Cell cell = cells.get(i);
+      if (cell.cases.length == 0) {
+        return;
+      }
+      double[][] caseCoords = Arrays.stream(cell.cases).mapToObj(stratum::getCaseCoords)
+                                    .toArray(double[][]::new);
+      KDSearchTree core = controlTree(stratum, cell.controls);
+      Neighbors[] coreNeighbors = new Neighbors[cell.cases.length];
+      // the halo radius each case needs, known exactly once it has numCandidates core neighbors
+      double[] needed = new double[cell.cases.length];
+      double cellSize = diagonal(SpaceFillingCurve.bounds(caseCoords,
+                                                          controlCoords(stratum, cell.controls)));
+      List<Integer> pending = new ArrayList<>();
+      for (int c = 0; c < cell.cases.length; c++) {
+        coreNeighbors[c] = core.nearest(caseCoords[c], numCandidates, maxDistance);
+        int found = coreNeighbors[c].size();
+        needed[c] = found == numCandidates ? coreNeighbors[c].getDistance(found - 1)
+                                           : grow(found > 0 ? coreNeighbors[c].getDistance(found
+                                                                                          - 1)
+                                                            : 0,
+                                                  cellSize);
+        pending.add(c);
+      }
+      int budget = MAX_HALO_FACTOR * (cell.cases.length + cell.controls.length);
+      while (!pending.isEmpty()) {
+        // cases needing a similar radius share a halo, so one far case does not widen the halo of
+        // the others
+        double smallest = pending.stream().mapToDouble(c -> needed[c]).min().getAsDouble();
+        int[] group = pending.stream().mapToInt(Integer::intValue)
+                             .filter(c -> needed[c] <= HALO_GROWTH * smallest).toArray();
+        double radius = Math.min(maxDistance,
+                                 Arrays.stream(group).mapToDouble(c -> needed[c]).max()
+                                       .getAsDouble());
+        double[][] box = SpaceFillingCurve.bounds(Arrays.stream(group)
+                                                        .mapToObj(c -> caseCoords[c])
+                                                        .toArray(double[][]::new));
+        int[] reached = IntStream.range(0, cells.size())
+                                 .filter(j -> j != i && controlBoxes[j] != null
+                                              && squaredDistanceBetweenBoxes(controlBoxes[j], box)
+                                                 <= radius * radius)
+                                 .toArray();
+        int[] halo = Arrays.stream(reached).flatMap(j -> Arrays.stream(cells.get(j).controls))
+                           .filter(control -> squaredDistanceToBox(stratum.getControlCoords(control),
+                                                                   box) <= radius * radius)
+                           .toArray();
+        cell.haloSize += halo.length;
+        boolean complete = radius >= maxDistance
+                           || halo.length == stratum.numControls() - cell.controls.length;
+        // a halo larger than the budget is scanned instead, which keeps memory bounded for the few
+        // cases far from every control
+        KDSearchTree haloTree = halo.length <= budget ? controlTree(stratum, halo) : null;
+        for (int c : group) {
+          Neighbors.Heap merged = new Neighbors.Heap(numCandidates, maxDistance);
+          Neighbors fromCore = coreNeighbors[c];
+          for (int n = 0; n < fromCore.size(); n++) {
+            merged.offer(cell.controls[fromCore.getIndex(n)],
+                         fromCore.getDistance(n) * fromCore.getDistance(n));
+          }
+          if (haloTree != null) {
+            Neighbors fromHalo = haloTree.nearest(caseCoords[c], numCandidates, maxDistance);
+            for (int n = 0; n < fromHalo.size(); n++) {
+              merged.offer(halo[fromHalo.getIndex(n)],
+                           fromHalo.getDistance(n) * fromHalo.getDistance(n));
+            }
+          } else {
+            for (int control : halo) {
+              merged.offer(control, KDSearchTree.squaredDistance(caseCoords[c],
+                                                                 stratum.getControlCoords(control)));
+            }
+          }
+          Neighbors neighbors = merged.toNeighbors();
+          int found = neighbors.size();
+          // every control closer than the k-th neighbor is within the radius, so in the halo
+          if (complete || found == numCandidates && neighbors.getDistance(found - 1) <= radius) {
+            for (int n = 0; n < found; n++) {
+              candidates.set(cell.cases[c], n, neighbors.getIndex(n), neighbors.getDistance(n));
+            }
+            pending.remove(Integer.valueOf(c));
+          } else {
+            needed[c] = found == numCandidates ? neighbors.getDistance(found - 1)
+                                               : grow(radius, cellSize);
+          }
+        }
+      }
+    });
+    long haloSize = cells.stream().mapToLong(c -> c.haloSize).sum();
+    log.info("Matched " + stratum.getKey() + " in " + cells.size() + " cells with "
+             + haloSize + " halo controls in total");
+    return candidates;
+  }
+
+  /** @return the next halo radius of a case that is still short of candidates at radius */
+  private static double grow(double radius, double cellSize) {
+    if (radius > 0) {
+      return HALO_GROWTH * radius;
+    }
+    return cellSize > 0 ? cellSize : Double.POSITIVE_INFINITY;
+  }
+
+  private static double diagonal(double[][] box) {
+    double sum = 0;
+    for (int d = 0; d < box[0].length; d++) {
+      sum += (box[1][d] - box[0][d]) * (box[1][d] - box[0][d]);
+    }
+    return Math.sqrt(sum);
+  }
+
+  /**
+   * Resolve duplicates greedily within each cell in parallel, then stitch: a control selected in
+   * more than one cell stays with the case it is closest to, and cases that lose a control are
+   * filled from their remaining candidates, nearest pairs first.
+   */
+  static StratumMatches resolve(StratumMatches candidates, List<Cell> cells, int numSelect,
+                                Logger log) {
+    Stratum stratum = candidates.getStratum();
+    StratumMatches resolved = new StratumMatches(stratum, numSelect);
+    IntStream.range(0, cells.size()).parallel().forEach(i -> {
+      int[] cases = cells.get(i).cases;
+      Set<Integer> used = new HashSet<>();
+      int[] filled = new int[cases.length];
+      IndexSort.forEachPair(candidates, cases, (c, slot) -> {
+        int control = candidates.getControl(cases[c], slot);
+        if (filled[c] < numSelect && used.add(control)) {
+          resolved.set(cases[c], filled[c]++, control, candidates.getDistance(cases[c], slot));
+        }
+      });
+    });
+
+    // stitch: find the closest claim on every control
+    int[] owner = new int[stratum.numControls()];
+    double[] ownerDistance = new double[stratum.numControls()];
+    Arrays.fill(owner, StratumMatches.NO_MATCH);
+    for (int c = 0; c < stratum.numCases(); c++) {
+      for (int s = 0; s < numSelect; s++) {
+        int control = resolved.getControl(c, s);
+        if (control != StratumMatches.NO_MATCH
+            && (owner[control] == StratumMatches.NO_MATCH
+                || resolved.getDistance(c, s) < ownerDistance[control])) {
+          owner[control] = c;
+          ownerDistance[control] = resolved.getDistance(c, s);
+        }
+      }
+    }
+    List<Integer> losers = new ArrayList<>();
+    int[] filled = new int[stratum.numCases()];
+    int conflicts = 0;
+    for (int c = 0; c < stratum.numCases(); c++) {
+      int kept = 0;
+      boolean lost = false;
+      for (int s = 0; s < numSelect; s++) {
+        int control = resolved.getControl(c, s);
+        if (control == StratumMatches.NO_MATCH) {
+          continue;
+        }
+        if (owner[control] == c) {
+          // compact the kept controls to the front, they remain in distance order
+          resolved.set(c, kept++, control, resolved.getDistance(c, s));
+        } else {
+          lost = true;
+          conflicts++;
+        }
+      }
+      for (int s = kept; s < numSelect; s++) {
+        resolved.set(c, s, StratumMatches.NO_MATCH, Double.NaN);
+      }
+      filled[c] = kept;
+      if (lost) {
+        losers.add(c);
+      }
+    }
+    if (conflicts > 0) {
+      int[] loserCases = losers.stream().mapToInt(Integer::intValue).toArray();
+      IndexSort.forEachPair(candidates, loserCases, (position, slot) -> {
+        int c = loserCases[position];
+        int control = candidates.getControl(c, slot);
+        if (filled[c] < numSelect && owner[control] == StratumMatches.NO_MATCH) {
+          owner[control] = c;
+          resolved.set(c, filled[c]++, control, candidates.getDistance(c, slot));
+        }
+      });
+      log.info("Stitching " + stratum.getKey() + " reassigned " + conflicts
+               + " controls selected in more than one cell");
+    }
+    return resolved;
+  }
+
+  private static KDSearchTree controlTree(Stratum stratum, int[] controls) {
+    return new KDSearchTree(controlCoords(stratum, controls));
+  }
+
+  private static double[][] controlCoords(Stratum stratum, int[] controls) {
+    return Arrays.stream(controls).mapToObj(stratum::getControlCoords).toArray(double[][]::new);
+  }
+
+  private static double squaredDistanceBetweenBoxes(double[][] a, double[][] b) {
+    double sum = 0;
+    for (int d = 0; d < a[0].length; d++) {
+      double diff = Math.max(0, Math.max(a[0][d] - b[1][d], b[0][d] - a[1][d]));
+      sum += diff * diff;
+    }
+    return sum;
+  }
+
+  private static double squaredDistanceToBox(double[] point, double[][] box) {
+    double sum = 0;
+    for (int d = 0; d < point.length; d++) {
+      double diff = Math.max(0, Math.max(box[0][d] - point[d], point[d] - box[1][d]));
+      sum += diff * diff;
+    }
+    return sum;
+  }
+
+  private static double[] coords(Stratum stratum, int sample) {
+    return sample < stratum.numCases() ? stratum.getCaseCoords(sample)
+                                       : stratum.getControlCoords(sample - stratum.numCases());
+  }
+
+  /** @return the dimension with the largest spread in samples[from, to), or -1 if there is none */
+  private static int widestDimension(Stratum stratum, int[] samples, int from, int to) {
+    int dimensions = stratum.dimensions();
+    int widest = -1;
+    double widestSpread = 0;
+    for (int d = 0; d < dimensions; d++) {
+      double lo = Double.POSITIVE_INFINITY;
+      double hi = Double.NEGATIVE_INFINITY;
+      for (int i = from; i < to; i++) {
+        double v = coords(stratum, samples[i])[d];
+        lo = Math.min(lo, v);
+        hi = Math.max(hi, v);
+      }
+      if (hi - lo > widestSpread) {
+        widestSpread = hi - lo;
+        widest = d;
+      }
+    }
+    return widest;
+  }
+
+  /** quickselect of samples[from..to] on dimension dim, as in {@link KDSearchTree} */
+  private static void select(Stratum stratum, int[] samples, int from, int to, int k, int dim) {
+    while (to > from) {
+      double pivot = coords(stratum, samples[(from + to) >>> 1])[dim];
+      int i = from;
+      int j = to;
+      while (i <= j) {
+        while (coords(stratum, samples[i])[dim] < pivot) {
+          i++;
+        }
+        while (coords(stratum, samples[j])[dim] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          int tmp = samples[i];
+          samples[i] = samples[j];
+          samples[j] = tmp;
+          i++;
+          j--;
+        }
+      }
+      if (k <= j) {
+        to = j;
+      } else if (k >= i) {
+        from = i;
+      } else {
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,45 @@
+package org.pankratzlab.internal.gwas;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A samples file ready for matching: factors normalized and nominal factors expanded, and the
+ * samples grouped into the strata that have both cases and controls. Built by
+ * {@link MatchMaker#prepareCohort} and independent of the matching settings, so one prepared cohort
+ * can be matched any number of times.
+ */
+public class PreparedCohort {
+  /** the samples file the strata were read from, after normalization */
+  final Path inputSamples;
+  /** (index of factor in header) -> (factor loading) of the numeric factors */
+  final HashMap<Integer, Double> numericColumns;
+  final List<Stratum> strata;
+
+  PreparedCohort(Path inputSamples, HashMap<Integer, Double> numericColumns,
+                 List<Stratum> strata) {
+    this.inputSamples = inputSamples;
+    this.numericColumns = numericColumns;
+    this.strata = strata;
+  }
+
+  public Path getInputSamples() {
+    return inputSamples;
+  }
+
+  public List<Stratum> getStrata() {
+    return strata;
+  }
+
+  /** @return a rough size in memory, for caches with a memory budget */
+  public long estimatedBytes() {
+    long bytes = 0;
+    for (Stratum stratum : strata) {
+      long samples = (long) stratum.numCases() + stratum.numControls();
+      // coordinate array and id string per sample, plus list overhead
+      bytes += samples * (16 + 8L * stratum.dimensions() + 64 + 16);
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,244 @@
+package org.pankratzlab.internal.gwas;
+
+import java.util.Arrays;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+import org.pankratzlab.common.stats.LogisticRegression;
+import org.pankratzlab.common.stats.RegressionModel;
+
+/**
+ * Propensity score matching. A logistic model of case status is fit over all matching factors of
+ * a stratum, and each case is then matched on the logit of its score to the nearest unused controls
+ * within a caliper. Because the score is one dimensional, controls only need to be sorted once;
+ * each lookup is a binary search followed by a two-pointer sweep outwards, giving O(n log n)
+ * matching overall.
+ */
+public class PropensityMatcher {
+  /** Default caliper, in standard deviations of the logit score (Austin 2011) */
+  public static final double DEFAULT_CALIPER_SD = 0.2;
+
+  private PropensityMatcher() {}
+
+  /**
+   * @param stratum the cases and controls to match
+   * @param numSelect number of controls to select for each case
+   * @param caliperSd maximum allowed logit distance, in standard deviations of the logit score of
+   *          the stratum. Use {@link Double#POSITIVE_INFINITY} for no caliper.
+   * @param withReplacement if true, each case independently takes its nearest controls, and a
+   *          control may be selected by any number of cases
+   * @return the selected controls; distances are absolute differences in logit score
+   */
+  public static StratumMatches match(Stratum stratum, int numSelect, double caliperSd,
+                                     boolean withReplacement, Logger log) {
+    StratumMatches matches = new StratumMatches(stratum, numSelect);
+    if (stratum.numCases() == 0 || stratum.numControls() == 0) {
+      return matches;
+    }
+    double[] betas = fitPropensityModel(stratum);
+    double[] caseScores = new double[stratum.numCases()];
+    double[] controlScores = new double[stratum.numControls()];
+    for (int i = 0; i < caseScores.length; i++) {
+      caseScores[i] = logit(betas, stratum.getCaseCoords(i));
+    }
+    for (int i = 0; i < controlScores.length; i++) {
+      controlScores[i] = logit(betas, stratum.getControlCoords(i));
+    }
+    return matchScores(stratum, caseScores, controlScores, numSelect, caliperSd, withReplacement,
+                       log);
+  }
+
+  /**
+   * Match on precomputed logit scores, indexed like the cases and controls of the stratum
+   */
+  static StratumMatches matchScores(Stratum stratum, double[] caseScores, double[] controlScores,
+                                    int numSelect, double caliperSd, boolean withReplacement,
+                                    Logger log) {
+    StratumMatches matches = new StratumMatches(stratum, numSelect);
+    double caliper = caliperSd * standardDeviation(caseScores, controlScores);
+    log.info("Propensity caliper for " + stratum.getKey() + " is " + caliper + " logit units");
+
+    // controls sorted by score, so nearest neighbors are found by binary search
+    int[] sortedControls = IndexSort.order(controlScores);
+    double[] sortedScores = new double[sortedControls.length];
+    for (int i = 0; i < sortedControls.length; i++) {
+      sortedScores[i] = controlScores[sortedControls[i]];
+    }
+
+    if (withReplacement) {
+      IntStream.range(0, caseScores.length).parallel()
+               .forEach(c -> selectNearest(c, caseScores[c], sortedControls, sortedScores,
+                                           numSelect, caliper, matches));
+      return matches;
+    }
+
+    UnusedControls unused = new UnusedControls(sortedControls.length);
+
+    // Cases with the highest scores have the fewest comparable controls, so they choose first
+    int[] caseOrder = IndexSort.order(caseScores);
+    int dropped = 0;
+    for (int slot = 0; slot < numSelect; slot++) {
+      for (int o = caseOrder.length - 1; o >= 0; o--) {
+        int caseIndex = caseOrder[o];
+        if (slot > 0 && matches.getControl(caseIndex, slot - 1) == StratumMatches.NO_MATCH) {
+          continue;
+        }
+        double score = caseScores[caseIndex];
+        int insertion = Arrays.binarySearch(sortedScores, score);
+        if (insertion < 0) {
+          insertion = -insertion - 1;
+        }
+        int left = unused.previous(insertion - 1);
+        int right = unused.next(insertion);
+        int best;
+        if (left < 0 && right >= sortedScores.length) {
+          best = -1;
+        } else if (left < 0) {
+          best = right;
+        } else if (right >= sortedScores.length) {
+          best = left;
+        } else {
+          best = score - sortedScores[left] <= sortedScores[right] - score ? left : right;
+        }
+        if (best == -1 || Math.abs(sortedScores[best] - score) > caliper) {
+          dropped++;
+          continue;
+        }
+        unused.remove(best);
+        matches.set(caseIndex, slot, sortedControls[best], Math.abs(sortedScores[best] - score));
+      }
+    }
+    if (dropped > 0) {
+      log.info(dropped + " case selections in " + stratum.getKey()
+               + " had no unused control within the caliper");
+    }
+    return matches;
+  }
+
+  /**
+   * Take the nearest {@code numSelect} controls within the caliper, sweeping outwards from the
+   * case's position in the sorted scores with one pointer on each side.
+   */
+  private static void selectNearest(int caseIndex, double score, int[] sortedControls,
+                                    double[] sortedScores, int numSelect, double caliper,
+                                    StratumMatches matches) {
+    int insertion = Arrays.binarySearch(sortedScores, score);
+    if (insertion < 0) {
+      insertion = -insertion - 1;
+    }
+    int left = insertion - 1;
+    int right = insertion;
+    for (int slot = 0; slot < numSelect; slot++) {
+      double leftDistance = left >= 0 ? score - sortedScores[left] : Double.POSITIVE_INFINITY;
+      double rightDistance = right < sortedScores.length ? sortedScores[right] - score
+                                                         : Double.POSITIVE_INFINITY;
+      double distance = Math.min(leftDistance, rightDistance);
+      if (distance > caliper || distance == Double.POSITIVE_INFINITY) {
+        return;
+      }
+      if (leftDistance <= rightDistance) {
+        matches.set(caseIndex, slot, sortedControls[left--], distance);
+      } else {
+        matches.set(caseIndex, slot, sortedControls[right++], distance);
+      }
+    }
+  }
+
+  /**
+   * Fit case status against all matching factors of the stratum.
+   * @return the model coefficients, intercept first
+   */
+  public static double[] fitPropensityModel(Stratum stratum) {
+    int numSamples = stratum.numCases() + stratum.numControls();
+    double[] deps = new double[numSamples];
+    double[][] indeps = new double[numSamples][];
+    for (int i = 0; i < stratum.numCases(); i++) {
+      deps[i] = 1;
+      indeps[i] = stratum.getCaseCoords(i);
+    }
+    for (int i = 0; i < stratum.numControls(); i++) {
+      indeps[stratum.numCases() + i] = stratum.getControlCoords(i);
+    }
+    String[] names = IntStream.range(0, stratum.dimensions()).mapToObj(i -> "factor" + i)
+                              .toArray(String[]::new);
+    RegressionModel model = new LogisticRegression(deps, indeps, names, false, false);
+    double[] betas = model.getBetas();
+    if (betas == null || betas.length != names.length + 1
+        || Arrays.stream(betas).anyMatch(b -> !Double.isFinite(b))) {
+      throw new IllegalStateException("Unable to fit propensity model for stratum "
+                                      + stratum.getKey()
+                                      + "; factors may be colinear or perfectly separate cases from controls.");
+    }
+    return betas;
+  }
+
+  public static double logit(double[] betas, double[] coords) {
+    double logit = betas[0];
+    for (int i = 0; i < coords.length; i++) {
+      logit += betas[i + 1] * coords[i];
+    }
+    return logit;
+  }
+
+  private static double standardDeviation(double[] a, double[] b) {
+    double sum = 0;
+    double sumSq = 0;
+    for (double[] values : new double[][] {a, b}) {
+      for (double v : values) {
+        sum += v;
+        sumSq += v * v;
+      }
+    }
+    int n = a.length + b.length;
+    double mean = sum / n;
+    return n < 2 ? 0 : Math.sqrt(Math.max(0, (sumSq - n * mean * mean) / (n - 1)));
+  }
+
+  /**
+   * Tracks which positions in the sorted control array are still available. Removed positions are
+   * linked to their neighbors, with path compression, so the two pointers skip used controls in
+   * amortized near-constant time.
+   */
+  static class UnusedControls {
+    // slot i + 1 refers to sorted position i; slots 0 and size + 1 are never-removed sentinels
+    private final int[] nextSlot;
+    private final int[] previousSlot;
+
+    UnusedControls(int size) {
+      nextSlot = new int[size + 2];
+      previousSlot = new int[size + 2];
+      for (int i = 0; i < size + 2; i++) {
+        nextSlot[i] = i;
+        previousSlot[i] = i;
+      }
+    }
+
+    /** @return the first unused position at or after {@code position}, or size if none */
+    int next(int position) {
+      return find(nextSlot, position + 1) - 1;
+    }
+
+    /** @return the last unused position at or before {@code position}, or -1 if none */
+    int previous(int position) {
+      return find(previousSlot, position + 1) - 1;
+    }
+
+    void remove(int position) {
+      nextSlot[position + 1] = position + 2;
+      previousSlot[position + 1] = position;
+    }
+
+    private static int find(int[] links, int slot) {
+      int root = slot;
+      while (links[root] != root) {
+        root = links[root];
+      }
+      while (links[slot] != root) {
+        int following = links[slot];
+        links[slot] = root;
+        slot = following;
+      }
+      return root;
+    }
+  }
+}
@@ -6,25 +6,31 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
 
 import org.pankratzlab.common.Files;
 import org.pankratzlab.common.PSF;
 import org.pankratzlab.kdmatch.KDMatch;
 
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Multimap;
+
 import static java.lang.System.exit;
 
 public class REval {
+  private static final String TABLE_HEADER = "variable_name\tcase_avg\tcontrol_avg\tconcordance\tunivariate_p\tmultivariate_p";
   final MatchingVariable[] matchingVariables;
   final File statusFile;
   final File phenotypeFile;
-  final Map<String, String> controlCasePairings;
+  final Multimap<String, String> controlCasePairings;
   private boolean haveReadPhenotype = false;
 
   private final DataBox dataBox;
+  private MatchMetrics metrics = MatchMetrics.NONE;
+  private String metricsLabel = MatchMetrics.ALL_STRATA;
 
   public REval(MatchingVariable[] matchingVariables, File statusFile,
                File phenotypeFile) throws IOException {
@@ -55,10 +61,47 @@ public class REval {
     this.dataBox = new DataBox(matchingVariables, controlCasePairings);
   }
 
-  public void readPhenotypeFile() throws IOException {
-    BufferedReader phenoReader = Files.getAppropriateReader(phenotypeFile.toString());
-    String[] phenoHeader = splitTsvLine(phenoReader.readLine());
+  /**
+   * The rows of a phenotype file split into columns, so that one read can serve any number of
+   * evaluations, as in a {@link MatchServer}
+   */
+  public static class PhenotypeTable {
+    final String[] header;
+    final List<String[]> rows = new ArrayList<>();
+
+    private PhenotypeTable(String[] header) {
+      this.header = header;
+    }
+
+    public static PhenotypeTable read(File phenotypeFile) throws IOException {
+      try (BufferedReader reader = Files.getAppropriateReader(phenotypeFile.toString())) {
+        PhenotypeTable table = new PhenotypeTable(splitTsvLine(reader.readLine()));
+        String inputLine = reader.readLine();
+        while (inputLine != null) {
+          table.rows.add(splitTsvLine(inputLine));
+          inputLine = reader.readLine();
+        }
+        return table;
+      }
+    }
 
+    /** @return a rough size in memory, for caches with a memory budget */
+    public long estimatedBytes() {
+      // a string of about 8 characters per column, plus the array
+      return (long) rows.size() * (16 + header.length * (8 + 56));
+    }
+  }
+
+  /** Read the phenotypes from a table instead of the phenotype file */
+  public void readPhenotypeTable(PhenotypeTable table) {
+    findColumns(table.header);
+    for (String[] line : table.rows) {
+      dataBox.recordData(line);
+    }
+    haveReadPhenotype = true;
+  }
+
+  private void findColumns(String[] phenoHeader) {
     // figure out which column corresponds to each matching variable
     for (MatchingVariable mv : matchingVariables) {
       int i = mv.findIndexInHeader(phenoHeader);
@@ -67,6 +110,29 @@ public class REval {
                                         + mv.headerName);
       }
     }
+  }
+
+  /**
+   * Record the time spent reading phenotypes and computing each statistic in metrics, under the
+   * given label in place of a stratum
+   */
+  public void setMetrics(MatchMetrics metrics, String label) {
+    this.metrics = metrics;
+    this.metricsLabel = label;
+    dataBox.setMetrics(metrics, label);
+  }
+
+  @SuppressWarnings("try")
+  public void readPhenotypeFile() throws IOException {
+    try (MatchMetrics.Phase phase = metrics.start(MatchMetrics.EVAL_READ, metricsLabel)) {
+      readPhenotypes();
+    }
+  }
+
+  private void readPhenotypes() throws IOException {
+    BufferedReader phenoReader = Files.getAppropriateReader(phenotypeFile.toString());
+    String[] phenoHeader = splitTsvLine(phenoReader.readLine());
+    findColumns(phenoHeader);
 
     String[] line;
     String inputLine = phenoReader.readLine();
@@ -85,23 +151,30 @@ public class REval {
     if (outputFile.exists()) {
       throw new IllegalArgumentException("Provided output file already exists!");
     }
-    String header = "variable_name\tcase_avg\tcontrol_avg\tconcordance\tunivariate_p\tmultivariate_p";
-
     try (PrintWriter writer = new PrintWriter(outputFile)) {
-      writer.println(header);
-      for (MatchingVariable mv : matchingVariables) {
-        writer.println(mv.getTableLine());
-      }
+      writer.print(getTableOutput());
+    }
+  }
+
+  /** @return the table written by {@link #writeTableOutputToFile}, reading phenotypes if needed */
+  public String getTableOutput() throws IOException {
+    if (!haveReadPhenotype) {
+      readPhenotypeFile();
+    }
+    StringBuilder table = new StringBuilder(TABLE_HEADER).append(System.lineSeparator());
+    for (MatchingVariable mv : matchingVariables) {
+      table.append(mv.getTableLine()).append(System.lineSeparator());
     }
+    return table.toString();
   }
 
-  private Map<String, String> readPairings() throws IOException {
-    // id -> matched case
-    Map<String, String> pairings = new HashMap<>();
-    String expectedHeader = KDMatch.STATUS_FILE_HEADER;
+  private Multimap<String, String> readPairings() throws IOException {
+    // id -> matched case(s); a control only has several cases when matched with replacement
+    Multimap<String, String> pairings = LinkedHashMultimap.create();
     BufferedReader reader = Files.getAppropriateReader(statusFile.toString());
     String actualHeader = reader.readLine().strip();
-    if (!actualHeader.equals(expectedHeader)) {
+    if (!actualHeader.equals(KDMatch.STATUS_FILE_HEADER)
+        && !actualHeader.equals(MatchOutput.WEIGHTED_STATUS_FILE_HEADER)) {
       throw new IllegalStateException("Status file header does not match expected header.");
     }
 
@@ -0,0 +1,333 @@
+package org.pankratzlab.internal.gwas;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Approximate nearest neighbor index: a forest of trees that each split their points at the median
+ * of a projection onto a random direction. Unlike axis-aligned k-d tree splits, random projections
+ * stay informative when there are many dimensions, where an exact k-d tree search degrades toward
+ * brute force.
+ * <p>
+ * A query searches all trees together, always expanding the node whose splitting planes are
+ * farthest on the query's side, until it has gathered a fixed number of candidate points. More
+ * trees and more candidates trade speed for recall. Coordinates are held as floats; candidates are
+ * ranked on those and, optionally, the best are re-ranked with exact double distances so that
+ * reported distances are exact.
+ */
+public class RandomProjectionForest {
+  static final int LEAF_SIZE = 32;
+  /** With exact re-ranking, this many times k of the float-ranked candidates are re-ranked */
+  static final int RERANK_FACTOR = 2;
+
+  private final double[][] points;
+  private final int dimensions;
+  private final float[] flat;
+  private final Tree[] trees;
+  // points gathered by the current query of each thread, cleared again when the query ends
+  private final ThreadLocal<BitSet> gathered;
+
+  /**
+   * @param points coordinates of each point; the forest keeps a reference to this array for exact
+   *          re-ranking
+   * @param numTrees number of trees, more trees give better recall at the cost of memory and
+   *          build time
+   * @param seed seed for the random projections
+   */
+  public RandomProjectionForest(double[][] points, int numTrees, long seed) {
+    if (numTrees < 1) {
+      throw new IllegalArgumentException("At least one tree is required, found " + numTrees);
+    }
+    this.points = points;
+    this.dimensions = points.length == 0 ? 0 : points[0].length;
+    this.flat = new float[points.length * dimensions];
+    for (int i = 0; i < points.length; i++) {
+      for (int d = 0; d < dimensions; d++) {
+        flat[i * dimensions + d] = (float) points[i][d];
+      }
+    }
+    this.trees = IntStream.range(0, numTrees).parallel()
+                          .mapToObj(t -> new Tree(new Random(seed + t)))
+                          .toArray(Tree[]::new);
+    this.gathered = ThreadLocal.withInitial(() -> new BitSet(points.length));
+  }
+
+  public int size() {
+    return points.length;
+  }
+
+  /** @return an estimate of the memory held by the forest, including the points it refers to */
+  long estimatedBytes() {
+    long nodes = 4L * points.length / LEAF_SIZE + 1;
+    // every node has bounds, children, an offset and, unless it is a leaf, a normal
+    return 8L * points.length * (dimensions + 2) + 4L * flat.length
+           + trees.length * (4L * points.length + nodes * (4 * 4 + 8 + 16 + 4L * dimensions));
+  }
+
+  /**
+   * @param point the query coordinates
+   * @param k maximum number of neighbors to return
+   * @param searchSize number of candidate points to gather before ranking, at least k; larger
+   *          values raise recall
+   * @param maxDistance only points at most this far away are returned
+   * @param exactRerank re-rank the best candidates with exact distances
+   * @return up to k approximately nearest points within maxDistance, nearest first
+   */
+  public Neighbors nearest(double[] point, int k, int searchSize, double maxDistance,
+                           boolean exactRerank) {
+    if (points.length == 0 || k <= 0) {
+      return Neighbors.EMPTY;
+    }
+    int[] candidates = gatherCandidates(point, Math.max(k, searchSize));
+    float[] query = new float[dimensions];
+    for (int d = 0; d < dimensions; d++) {
+      query[d] = (float) point[d];
+    }
+    if (!exactRerank) {
+      Neighbors.Heap heap = new Neighbors.Heap(k, maxDistance);
+      for (int c : candidates) {
+        heap.offer(c, floatSquaredDistance(query, c));
+      }
+      return heap.toNeighbors();
+    }
+    // the float stage only preselects, so give it a little slack at the caliper boundary
+    Neighbors.Heap preselect = new Neighbors.Heap(RERANK_FACTOR * k, maxDistance * (1 + 1e-5));
+    for (int c : candidates) {
+      preselect.offer(c, floatSquaredDistance(query, c));
+    }
+    Neighbors approximate = preselect.toNeighbors();
+    Neighbors.Heap heap = new Neighbors.Heap(k, maxDistance);
+    for (int i = 0; i < approximate.size(); i++) {
+      int c = approximate.getIndex(i);
+      heap.offer(c, KDSearchTree.squaredDistance(point, points[c]));
+    }
+    return heap.toNeighbors();
+  }
+
+  /**
+   * @return at least searchSize distinct points, or all of them if there are fewer; a point
+   *         returned by several trees counts once
+   */
+  private int[] gatherCandidates(double[] point, int searchSize) {
+    int[] found = new int[Math.min(points.length, searchSize) + LEAF_SIZE];
+    int numFound = 0;
+    BitSet visited = gathered.get();
+    PriorityQueue<Frontier> queue = new PriorityQueue<>();
+    for (int t = 0; t < trees.length; t++) {
+      queue.add(new Frontier(t, 0, Double.POSITIVE_INFINITY));
+    }
+    while (numFound < searchSize && !queue.isEmpty()) {
+      Frontier next = queue.poll();
+      Tree tree = trees[next.tree];
+      int node = next.node;
+      while (tree.left[node] >= 0) {
+        double margin = tree.margin(node, point);
+        int near = margin <= 0 ? tree.left[node] : tree.right[node];
+        int far = margin <= 0 ? tree.right[node] : tree.left[node];
+        queue.add(new Frontier(next.tree, far, Math.min(next.priority, -Math.abs(margin))));
+        node = near;
+      }
+      for (int i = tree.start[node]; i < tree.end[node]; i++) {
+        int index = tree.order[i];
+        if (visited.get(index)) {
+          continue;
+        }
+        visited.set(index);
+        if (numFound == found.length) {
+          found = Arrays.copyOf(found, found.length * 2);
+        }
+        found[numFound++] = index;
+      }
+    }
+    for (int i = 0; i < numFound; i++) {
+      visited.clear(found[i]);
+    }
+    return Arrays.copyOf(found, numFound);
+  }
+
+  private double floatSquaredDistance(float[] query, int index) {
+    double sum = 0;
+    int offset = index * dimensions;
+    for (int d = 0; d < dimensions; d++) {
+      double diff = query[d] - flat[offset + d];
+      sum += diff * diff;
+    }
+    return sum;
+  }
+
+  /**
+   * A node still to be searched; nodes on the far side of a split are searched in order of how
+   * close the query is to the splitting plane, closest first
+   */
+  private static class Frontier implements Comparable<Frontier> {
+    final int tree;
+    final int node;
+    final double priority;
+
+    Frontier(int tree, int node, double priority) {
+      this.tree = tree;
+      this.node = node;
+      this.priority = priority;
+    }
+
+    @Override
+    public int compareTo(Frontier o) {
+      return Double.compare(o.priority, priority);
+    }
+  }
+
+  private class Tree {
+    private final int[] order;
+    private int numNodes = 0;
+    private int[] start;
+    private int[] end;
+    private int[] left;
+    private int[] right;
+    private float[][] normals;
+    private double[] offsets;
+
+    Tree(Random random) {
+      order = IntStream.range(0, points.length).toArray();
+      int capacity = Math.max(1, 4 * points.length / LEAF_SIZE + 1);
+      start = new int[capacity];
+      end = new int[capacity];
+      left = new int[capacity];
+      right = new int[capacity];
+      normals = new float[capacity][];
+      offsets = new double[capacity];
+      if (points.length > 0) {
+        build(0, points.length, random);
+      }
+    }
+
+    /** @return signed distance along the node normal of the point from the splitting plane */
+    double margin(int node, double[] point) {
+      float[] normal = normals[node];
+      double dot = 0;
+      for (int d = 0; d < dimensions; d++) {
+        dot += normal[d] * point[d];
+      }
+      return dot - offsets[node];
+    }
+
+    private int build(int from, int to, Random random) {
+      int node = newNode(from, to);
+      if (to - from <= LEAF_SIZE) {
+        return node;
+      }
+      float[] normal = randomNormal(from, to, random);
+      // projections[i] is that of order[from + i]
+      double[] projections = new double[to - from];
+      double min = Double.POSITIVE_INFINITY;
+      double max = Double.NEGATIVE_INFINITY;
+      for (int i = from; i < to; i++) {
+        double dot = 0;
+        for (int d = 0; d < dimensions; d++) {
+          dot += normal[d] * flat[order[i] * dimensions + d];
+        }
+        projections[i - from] = dot;
+        min = Math.min(min, dot);
+        max = Math.max(max, dot);
+      }
+      if (min == max) {
+        // every point projects to the same value, there is nothing to split on
+        return node;
+      }
+      int mid = (from + to) >>> 1;
+      int k = mid - from;
+      select(projections, from, k);
+      double leftMax = Double.NEGATIVE_INFINITY;
+      for (int i = 0; i < k; i++) {
+        leftMax = Math.max(leftMax, projections[i]);
+      }
+      normals[node] = normal;
+      offsets[node] = (leftMax + projections[k]) / 2;
+      int l = build(from, mid, random);
+      int r = build(mid, to, random);
+      left[node] = l;
+      right[node] = r;
+      return node;
+    }
+
+    /**
+     * Partially sort projections, and order[from..] along with them, so that position k holds the
+     * k-th smallest projection, with no larger ones before it and no smaller ones after it
+     */
+    private void select(double[] projections, int from, int k) {
+      int lo = 0;
+      int hi = projections.length - 1;
+      while (hi > lo) {
+        double pivot = projections[(lo + hi) >>> 1];
+        int i = lo;
+        int j = hi;
+        while (i <= j) {
+          while (projections[i] < pivot) {
+            i++;
+          }
+          while (projections[j] > pivot) {
+            j--;
+          }
+          if (i <= j) {
+            double p = projections[i];
+            projections[i] = projections[j];
+            projections[j] = p;
+            int o = order[from + i];
+            order[from + i] = order[from + j];
+            order[from + j] = o;
+            i++;
+            j--;
+          }
+        }
+        if (k <= j) {
+          hi = j;
+        } else if (k >= i) {
+          lo = i;
+        } else {
+          return;
+        }
+      }
+    }
+
+    /**
+     * @return the direction between two random points of the range, as in Annoy, which follows
+     *         the spread of the data; falls back to a random Gaussian direction if they coincide
+     */
+    private float[] randomNormal(int from, int to, Random random) {
+      int a = order[from + random.nextInt(to - from)];
+      int b = order[from + random.nextInt(to - from)];
+      float[] normal = new float[dimensions];
+      double norm = 0;
+      for (int d = 0; d < dimensions; d++) {
+        normal[d] = flat[a * dimensions + d] - flat[b * dimensions + d];
+        norm += normal[d] * normal[d];
+      }
+      if (norm == 0) {
+        for (int d = 0; d < dimensions; d++) {
+          normal[d] = (float) random.nextGaussian();
+        }
+      }
+      return normal;
+    }
+
+    private int newNode(int from, int to) {
+      if (numNodes == start.length) {
+        int capacity = start.length * 2;
+        start = Arrays.copyOf(start, capacity);
+        end = Arrays.copyOf(end, capacity);
+        left = Arrays.copyOf(left, capacity);
+        right = Arrays.copyOf(right, capacity);
+        normals = Arrays.copyOf(normals, capacity);
+        offsets = Arrays.copyOf(offsets, capacity);
+      }
+      int node = numNodes++;
+      start[node] = from;
+      end[node] = to;
+      left[node] = -1;
+      right[node] = -1;
+      return node;
+    }
+  }
+}
@@ -0,0 +1,231 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Runs the strata of a {@link MatchMaker} job in separate worker JVMs, so a job is no longer bound
+ * by the heap and cores of one process. The strata are split into shards of similar size, and each
+ * shard gets a directory under {@value #DIRECTORY} holding the keys of its strata. A worker is
+ * {@link MatchMaker#main} itself, started with {@link ProcessBuilder} on this host or through ssh
+ * on another host that sees the same filesystem and Java installation; it reads the full samples
+ * file, matches only the strata of its shard with checkpoints and writes its match and status files
+ * to the shard directory. A worker that exits abnormally or leaves no output is started again,
+ * resuming from its checkpoints, and once every shard is done the shard outputs are merged into the
+ * job directory.
+ */
+public class ShardCoordinator {
+  static final String DIRECTORY = "shards";
+  static final String STRATA_FILE = "strata.txt";
+  static final String WORKER_LOG = "worker.log";
+
+  private ShardCoordinator() {}
+
+  /**
+   * @param strata the matchable strata of the job
+   * @param expectedFiles output files every successful worker writes
+   * @param outputFiles every output file a worker can write, merged into baseDir
+   */
+  public static void run(Path baseDir, List<Stratum> strata, List<String> expectedFiles,
+                         List<String> outputFiles, MatchOptions options,
+                         Logger log) throws IOException {
+    List<List<Stratum>> shards = assign(strata, options.shards);
+    List<Path> shardDirs = new ArrayList<>();
+    for (int i = 0; i < shards.size(); i++) {
+      Path shardDir = baseDir.resolve(DIRECTORY).resolve("shard_" + (i + 1)).toAbsolutePath();
+      Files.createDirectories(shardDir);
+      Files.write(shardDir.resolve(STRATA_FILE),
+                  shards.get(i).stream().map(Stratum::getKey).collect(Collectors.toList()));
+      log.info("Shard " + (i + 1) + " has " + shards.get(i).size() + " strata with "
+               + shards.get(i).stream().mapToLong(ShardCoordinator::cost).sum() + " samples");
+      shardDirs.add(shardDir);
+    }
+    runShards(shardDirs, shardDir -> workerCommand(shardDir, shardDirs.indexOf(shardDir), options),
+              expectedFiles, options.shardRetries, log);
+
+    Map<String, String> merged = new LinkedHashMap<>();
+    for (String fileName : outputFiles) {
+      List<Path> parts = shardDirs.stream().map(d -> d.resolve(fileName)).filter(Files::exists)
+                                  .collect(Collectors.toList());
+      if (!parts.isEmpty()) {
+        String target = baseDir.resolve(fileName).toString();
+        String tempFile = MatchOutput.tempFileFor(target);
+        MatchOutput.concatenate(parts, tempFile);
+        merged.put(tempFile, target);
+      }
+    }
+    for (Entry<String, String> e : merged.entrySet()) {
+      MatchOutput.moveAtomically(e.getKey(), e.getValue());
+    }
+    log.info("Merged the output of " + shardDirs.size() + " shards into " + merged.values());
+  }
+
+  /**
+   * Split the strata into at most numShards shards, largest strata first onto the shard with the
+   * fewest samples so far. Shards that receive no strata are dropped.
+   */
+  static List<List<Stratum>> assign(List<Stratum> strata, int numShards) {
+    List<List<Stratum>> shards = new ArrayList<>();
+    long[] loads = new long[numShards];
+    for (int i = 0; i < numShards; i++) {
+      shards.add(new ArrayList<>());
+    }
+    List<Stratum> bySize = new ArrayList<>(strata);
+    bySize.sort(Comparator.comparingLong(ShardCoordinator::cost).reversed());
+    for (Stratum stratum : bySize) {
+      int lightest = 0;
+      for (int i = 1; i < numShards; i++) {
+        if (loads[i] < loads[lightest]) {
+          lightest = i;
+        }
+      }
+      shards.get(lightest).add(stratum);
+      loads[lightest] += cost(stratum);
+    }
+    shards.removeIf(List::isEmpty);
+    return shards;
+  }
+
+  /**
+   * @param args the arguments of the job
+   * @return the arguments workers read the same samples and settings with; everything about output
+   *         and evaluation is theirs, and paths read by workers are forwarded absolute, since each
+   *         worker runs in its shard directory
+   */
+  static List<String> workerArgs(String[] args, MatchOptions options) {
+    List<String> workerArgs = new ArrayList<>();
+    for (String arg : args) {
+      if (!arg.startsWith("dir=") && !arg.startsWith("samples=") && !arg.startsWith("shards=")
+          && !arg.startsWith("shardHosts=") && !arg.startsWith("shardRetries=")
+          && !arg.startsWith("workerJvm=") && !arg.startsWith("strata=")
+          && !arg.startsWith("checkpoint=") && !arg.startsWith("vis=")
+          && !arg.startsWith("onlyBuildVisFiles=") && !arg.startsWith("skipEval=")
+          && !arg.startsWith("eval=") && !arg.startsWith("kinship=")
+          && !arg.startsWith("snapshotDir=")) {
+        workerArgs.add(arg);
+      }
+    }
+    if (options.kinshipFile != null) {
+      workerArgs.add("kinship=" + options.kinshipFile);
+    }
+    if (options.snapshotDir != null) {
+      workerArgs.add("snapshotDir=" + options.snapshotDir);
+    }
+    return workerArgs;
+  }
+
+  /**
+   * Run one worker process per shard directory concurrently, starting a worker again up to
+   * retries times when it fails
+   * @param command the command line of the worker for a shard directory
+   * @param expectedFiles files a successful worker leaves in its shard directory
+   * @throws IOException if a shard still fails after all retries
+   */
+  static void runShards(List<Path> shardDirs, Function<Path, List<String>> command,
+                        List<String> expectedFiles, int retries,
+                        Logger log) throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(shardDirs.size());
+    try {
+      List<Future<Boolean>> results = new ArrayList<>();
+      for (Path shardDir : shardDirs) {
+        results.add(executor.submit(() -> runShard(shardDir, command.apply(shardDir),
+                                                   expectedFiles, retries, log)));
+      }
+      List<Path> failed = new ArrayList<>();
+      for (int i = 0; i < shardDirs.size(); i++) {
+        if (!results.get(i).get()) {
+          failed.add(shardDirs.get(i));
+        }
+      }
+      if (!failed.isEmpty()) {
+        throw new IOException("Workers failed for " + failed + " after " + (retries + 1)
+                              + " attempts, see " + WORKER_LOG + " in each");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for workers", e);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static boolean runShard(Path shardDir, List<String> command, List<String> expectedFiles,
+                                  int retries, Logger log) throws IOException,
+                                                           InterruptedException {
+    File workerLog = shardDir.resolve(WORKER_LOG).toFile();
+    for (int attempt = 1; attempt <= retries + 1; attempt++) {
+      log.info("Starting worker for " + shardDir + ", attempt " + attempt);
+      Process process = new ProcessBuilder(command).directory(shardDir.toFile())
+                                                   .redirectErrorStream(true)
+                                                   .redirectOutput(ProcessBuilder.Redirect.appendTo(workerLog))
+                                                   .start();
+      int exitCode;
+      try {
+        exitCode = process.waitFor();
+      } catch (InterruptedException e) {
+        process.destroyForcibly();
+        throw e;
+      }
+      boolean complete = expectedFiles.stream().allMatch(f -> Files.exists(shardDir.resolve(f)));
+      if (exitCode == 0 && complete) {
+        log.info("Worker for " + shardDir + " finished");
+        return true;
+      }
+      log.warning("Worker for " + shardDir + " " + (exitCode == 0 ? "left no output"
+                                                                  : "exited with " + exitCode));
+    }
+    return false;
+  }
+
+  /**
+   * @return the command line of a worker: this JVM's java and class path running
+   *         {@link MatchMaker#main} on the shard, through ssh if hosts are given
+   */
+  private static List<String> workerCommand(Path shardDir, int shard, MatchOptions options) {
+    List<String> command = new ArrayList<>();
+    command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+    command.addAll(options.workerJvmArgs);
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(MatchMaker.class.getName());
+    command.addAll(options.workerArgs);
+    command.add("dir=" + shardDir);
+    command.add("strata=" + shardDir.resolve(STRATA_FILE));
+    command.add("checkpoint=true");
+    command.add("skipEval=true");
+    command.add("vis=false");
+    if (options.shardHosts.isEmpty()) {
+      return command;
+    }
+    String host = options.shardHosts.get(shard % options.shardHosts.size());
+    String remote = command.stream().map(ShardCoordinator::quote)
+                           .collect(Collectors.joining(" "));
+    return List.of("ssh", host, "cd " + quote(shardDir.toString()) + " && " + remote);
+  }
+
+  private static String quote(String arg) {
+    return "'" + arg.replace("'", "'\\''") + "'";
+  }
+
+  private static long cost(Stratum stratum) {
+    return (long) stratum.numCases() + stratum.numControls();
+  }
+}
@@ -0,0 +1,132 @@
+package org.pankratzlab.internal.gwas;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Orders points along a space-filling curve over their quantized coordinates, so that points close
+ * in the ordering are also close in space. Building and querying a tree in this order keeps
+ * consecutive operations on the same parts of the tree, which is kinder to caches and branch
+ * prediction than file order.
+ */
+public enum SpaceFillingCurve {
+  /** keep the input order */
+  NONE,
+  /** Z-order: interleaved coordinate bits */
+  MORTON,
+  /** Hilbert order, which unlike Morton never jumps between distant cells */
+  HILBERT;
+
+  /** Maximum bits per dimension; the key is limited to 63 bits in total */
+  static final int MAX_BITS = 16;
+  private static final int KEY_BITS = 63;
+
+  public static SpaceFillingCurve fromArg(String arg) {
+    return valueOf(arg.strip().toUpperCase());
+  }
+
+  /**
+   * @param points coordinates to order
+   * @param min lower bound of each dimension, shared by every set of points that should be ordered
+   *          consistently
+   * @param max upper bound of each dimension
+   * @return indices into {@code points} in curve order
+   */
+  public int[] order(double[][] points, double[] min, double[] max) {
+    if (this == NONE || points.length == 0) {
+      return IntStream.range(0, points.length).toArray();
+    }
+    int dims = Math.min(min.length, KEY_BITS);
+    int bits = Math.max(1, Math.min(MAX_BITS, KEY_BITS / Math.max(1, dims)));
+    long[] keys = new long[points.length];
+    IntStream.range(0, points.length).parallel().forEach(i -> {
+      long[] cell = quantize(points[i], min, max, dims, bits);
+      keys[i] = this == HILBERT ? hilbertKey(cell, bits) : mortonKey(cell, bits);
+    });
+    return IndexSort.order(keys);
+  }
+
+  /**
+   * @return the per-dimension minimum and maximum over all provided point sets
+   */
+  public static double[][] bounds(double[][]... pointSets) {
+    double[] min = null;
+    double[] max = null;
+    for (double[][] points : pointSets) {
+      for (double[] p : points) {
+        if (min == null) {
+          min = p.clone();
+          max = p.clone();
+        }
+        for (int d = 0; d < p.length; d++) {
+          min[d] = Math.min(min[d], p[d]);
+          max[d] = Math.max(max[d], p[d]);
+        }
+      }
+    }
+    return min == null ? new double[][] {new double[0], new double[0]}
+                       : new double[][] {min, max};
+  }
+
+  static long[] quantize(double[] point, double[] min, double[] max, int dims, int bits) {
+    long cells = 1L << bits;
+    long[] cell = new long[dims];
+    for (int d = 0; d < dims; d++) {
+      double range = max[d] - min[d];
+      long c = range > 0 ? (long) ((point[d] - min[d]) / range * cells) : 0;
+      cell[d] = Math.max(0, Math.min(cells - 1, c));
+    }
+    return cell;
+  }
+
+  static long mortonKey(long[] cell, int bits) {
+    return interleave(cell, bits);
+  }
+
+  /**
+   * Skilling's transform ("Programming the Hilbert curve", 2004) from axes to the transposed
+   * Hilbert index, followed by bit interleaving.
+   */
+  static long hilbertKey(long[] cell, int bits) {
+    long[] x = Arrays.copyOf(cell, cell.length);
+    int n = x.length;
+    long m = 1L << (bits - 1);
+    // inverse undo
+    for (long q = m; q > 1; q >>= 1) {
+      long p = q - 1;
+      for (int i = 0; i < n; i++) {
+        if ((x[i] & q) != 0) {
+          x[0] ^= p;
+        } else {
+          long t = (x[0] ^ x[i]) & p;
+          x[0] ^= t;
+          x[i] ^= t;
+        }
+      }
+    }
+    // Gray encode
+    for (int i = 1; i < n; i++) {
+      x[i] ^= x[i - 1];
+    }
+    long t = 0;
+    for (long q = m; q > 1; q >>= 1) {
+      if ((x[n - 1] & q) != 0) {
+        t ^= q - 1;
+      }
+    }
+    for (int i = 0; i < n; i++) {
+      x[i] ^= t;
+    }
+    return interleave(x, bits);
+  }
+
+  private static long interleave(long[] cell, int bits) {
+    long key = 0;
+    for (int b = bits - 1; b >= 0; b--) {
+      for (long c : cell) {
+        key = (key << 1) | ((c >> b) & 1);
+      }
+    }
+    return key;
+  }
+}
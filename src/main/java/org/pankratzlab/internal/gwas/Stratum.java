@@ -0,0 +1,96 @@
+package org.pankratzlab.internal.gwas;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.pankratzlab.kdmatch.Sample;
+
+/**
+ * All cases and controls that share the same values for the "force" factors. Matching only ever
+ * happens within a stratum, so each one can be handed to a matching engine independently.
+ */
+public class Stratum {
+  public static final int CASE_STATUS = 1;
+  public static final int CONTROL_STATUS = 0;
+
+  private final String key;
+  private final List<String> caseIds = new ArrayList<>();
+  private final List<double[]> caseCoords = new ArrayList<>();
+  private final List<String> controlIds = new ArrayList<>();
+  private final List<double[]> controlCoords = new ArrayList<>();
+
+  public Stratum(String key) {
+    this.key = key;
+  }
+
+  /**
+   * Add a sample to this stratum. Samples with a status other than case (1) or control (0) are
+   * ignored.
+   */
+  public void add(String id, double[] coords, int status) {
+    if (status == CASE_STATUS) {
+      caseIds.add(id);
+      caseCoords.add(coords);
+    } else if (status == CONTROL_STATUS) {
+      controlIds.add(id);
+      controlCoords.add(coords);
+    }
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public int numCases() {
+    return caseIds.size();
+  }
+
+  public int numControls() {
+    return controlIds.size();
+  }
+
+  public int dimensions() {
+    if (!caseCoords.isEmpty()) {
+      return caseCoords.get(0).length;
+    }
+    return controlCoords.isEmpty() ? 0 : controlCoords.get(0).length;
+  }
+
+  public String getCaseId(int caseIndex) {
+    return caseIds.get(caseIndex);
+  }
+
+  public String getControlId(int controlIndex) {
+    return controlIds.get(controlIndex);
+  }
+
+  public double[] getCaseCoords(int caseIndex) {
+    return caseCoords.get(caseIndex);
+  }
+
+  public double[] getControlCoords(int controlIndex) {
+    return controlCoords.get(controlIndex);
+  }
+
+  /**
+   * @return the cases of this stratum as {@link Sample}s, for use with the kdmatch library
+   */
+  public List<Sample> getCaseSamples() {
+    List<Sample> samples = new ArrayList<>(caseIds.size());
+    for (int i = 0; i < caseIds.size(); i++) {
+      samples.add(new Sample(caseIds.get(i), caseCoords.get(i), CASE_STATUS, key));
+    }
+    return samples;
+  }
+
+  /**
+   * @return the controls of this stratum as {@link Sample}s, for use with the kdmatch library
+   */
+  public List<Sample> getControlSamples() {
+    List<Sample> samples = new ArrayList<>(controlIds.size());
+    for (int i = 0; i < controlIds.size(); i++) {
+      samples.add(new Sample(controlIds.get(i), controlCoords.get(i), CONTROL_STATUS, key));
+    }
+    return samples;
+  }
+}
@@ -0,0 +1,86 @@
+package org.pankratzlab.internal.gwas;
+
+import java.util.Arrays;
+
+/**
+ * The controls selected for each case of a {@link Stratum}. Controls are stored by their index in
+ * the stratum, ordered from closest to farthest; unfilled slots hold {@link #NO_MATCH}. Cases may
+ * hold different numbers of slots, see {@link #setDepth}.
+ */
+public class StratumMatches {
+  public static final int NO_MATCH = -1;
+
+  private final Stratum stratum;
+  private final int[][] controls;
+  private final double[][] distances;
+  private int numSelect;
+
+  public StratumMatches(Stratum stratum, int numSelect) {
+    this.stratum = stratum;
+    this.controls = new int[stratum.numCases()][];
+    this.distances = new double[stratum.numCases()][];
+    this.numSelect = numSelect;
+    for (int i = 0; i < controls.length; i++) {
+      setDepth(i, numSelect);
+    }
+  }
+
+  public Stratum getStratum() {
+    return stratum;
+  }
+
+  /**
+   * @return the largest number of slots of any case
+   */
+  public int numSelect() {
+    return numSelect;
+  }
+
+  /**
+   * @return the number of slots of a case
+   */
+  public int getDepth(int caseIndex) {
+    return controls[caseIndex].length;
+  }
+
+  /**
+   * Replace the slots of a case with {@code depth} empty slots
+   */
+  public void setDepth(int caseIndex, int depth) {
+    controls[caseIndex] = new int[depth];
+    distances[caseIndex] = new double[depth];
+    Arrays.fill(controls[caseIndex], NO_MATCH);
+    Arrays.fill(distances[caseIndex], Double.NaN);
+    numSelect = Math.max(numSelect, depth);
+  }
+
+  public void set(int caseIndex, int slot, int controlIndex, double distance) {
+    controls[caseIndex][slot] = controlIndex;
+    distances[caseIndex][slot] = distance;
+  }
+
+  /**
+   * @return the control in the slot, or {@link #NO_MATCH} if the slot is empty or beyond the depth
+   *         of this case
+   */
+  public int getControl(int caseIndex, int slot) {
+    return slot < controls[caseIndex].length ? controls[caseIndex][slot] : NO_MATCH;
+  }
+
+  public double getDistance(int caseIndex, int slot) {
+    return slot < distances[caseIndex].length ? distances[caseIndex][slot] : Double.NaN;
+  }
+
+  /**
+   * @return the number of cases that received at least one control
+   */
+  public int numMatchedCases() {
+    int matched = 0;
+    for (int[] c : controls) {
+      if (c.length > 0 && c[0] != NO_MATCH) {
+        matched++;
+      }
+    }
+    return matched;
+  }
+}
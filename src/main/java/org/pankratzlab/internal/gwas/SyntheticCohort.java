@@ -0,0 +1,218 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+import java.util.StringJoiner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.pankratzlab.common.ext;
+
+/**
+ * Generates cohorts of any size for scale and regression testing, in the layouts read by
+ * {@link MatchMaker} and {@link REval}. Every sample has standard normal principal components,
+ * shifted for cases, a binary sex factor, a nominal batch factor and a continuous age, so that sex
+ * and batch can be forced and batch can also be matched as a nominal factor.
+ * <p>
+ * Rows are generated in chunks of {@value #CHUNK_SIZE}, each from its own seed derived from the
+ * cohort seed, so the output is identical for any number of threads. Chunks are formatted on
+ * several threads and written in order.
+ */
+public class SyntheticCohort {
+  static final int CHUNK_SIZE = 1 << 16;
+  public static final String SEX = "sex";
+  public static final String BATCH = "batch";
+  public static final String AGE = "age";
+
+  public long samples = 1000;
+  public int pcs = 10;
+  /** fraction of samples that are cases */
+  public double caseFraction = 0.2;
+  /** shift of the principal components of cases, in standard deviations */
+  public double caseShift = 0.5;
+  /** number of levels of the nominal batch factor */
+  public int batches = 4;
+  public long seed = 42;
+  public int threads = Runtime.getRuntime().availableProcessors();
+
+  /** @return PC1,...,PCn */
+  public String[] pcNames() {
+    String[] names = new String[pcs];
+    for (int i = 0; i < pcs; i++) {
+      names[i] = "PC" + (i + 1);
+    }
+    return names;
+  }
+
+  /**
+   * @return the factors argument of {@link MatchMaker} for the principal components, with sex and
+   *         batch forced or batch matched as a nominal factor as requested
+   */
+  public String factorsArg(boolean forceSex, boolean forceBatch, boolean nominalBatch) {
+    StringJoiner factors = new StringJoiner(",");
+    for (String name : pcNames()) {
+      factors.add(name + ":1");
+    }
+    if (forceSex) {
+      factors.add(SEX + ":force");
+    }
+    if (forceBatch) {
+      factors.add(BATCH + ":force");
+    } else if (nominalBatch) {
+      factors.add(BATCH + ":nominal");
+    }
+    return factors.toString();
+  }
+
+  /** Write a {@link MatchMaker} samples file: id, status, the principal components, sex and batch */
+  public void writeSamples(Path file) throws IOException {
+    write(file, true);
+  }
+
+  /** Write an {@link REval} phenotype file: id, the principal components, sex, batch and age */
+  public void writePhenotypes(Path file) throws IOException {
+    write(file, false);
+  }
+
+  private void write(Path file, boolean samplesLayout) throws IOException {
+    long chunks = (samples + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 20)) {
+      out.write(header(samplesLayout).getBytes(StandardCharsets.UTF_8));
+      // keep a few chunks per thread in flight, so memory stays bounded at any cohort size
+      Deque<Future<byte[]>> pending = new ArrayDeque<>();
+      for (long chunk = 0; chunk < chunks; chunk++) {
+        final long c = chunk;
+        pending.add(executor.submit(() -> formatChunk(c, samplesLayout)));
+        if (pending.size() >= 2 * Math.max(1, threads)) {
+          out.write(pending.poll().get());
+        }
+      }
+      while (!pending.isEmpty()) {
+        out.write(pending.poll().get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while writing " + file, e);
+    } catch (ExecutionException e) {
+      throw new IOException("Could not generate " + file, e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private String header(boolean samplesLayout) {
+    StringJoiner header = new StringJoiner("\t", "", "\n");
+    header.add("id");
+    if (samplesLayout) {
+      header.add("status");
+    }
+    for (String name : pcNames()) {
+      header.add(name);
+    }
+    header.add(SEX).add(BATCH);
+    if (!samplesLayout) {
+      header.add(AGE);
+    }
+    return header.toString();
+  }
+
+  private byte[] formatChunk(long chunk, boolean samplesLayout) {
+    // every chunk draws from its own generator, so its rows do not depend on the other chunks
+    Random random = new Random(seed + chunk * 0x9E3779B97F4A7C15L);
+    long start = chunk * CHUNK_SIZE;
+    long end = Math.min(samples, start + CHUNK_SIZE);
+    StringBuilder rows = new StringBuilder((int) (end - start) * (12 + 20 * pcs));
+    for (long i = start; i < end; i++) {
+      int status = random.nextDouble() < caseFraction ? Stratum.CASE_STATUS
+                                                      : Stratum.CONTROL_STATUS;
+      rows.append('s').append(i);
+      if (samplesLayout) {
+        rows.append('\t').append(status);
+      }
+      double shift = status == Stratum.CASE_STATUS ? caseShift : 0;
+      for (int p = 0; p < pcs; p++) {
+        rows.append('\t').append(random.nextGaussian() + shift);
+      }
+      rows.append('\t').append(random.nextInt(2));
+      rows.append("\tb").append(random.nextInt(batches));
+      double age = 50 + 10 * random.nextGaussian();
+      if (!samplesLayout) {
+        rows.append('\t').append(Math.round(age * 10) / 10.0);
+      }
+      rows.append('\n');
+    }
+    return rows.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  public static void main(String[] args) throws IOException {
+    SyntheticCohort cohort = new SyntheticCohort();
+    String samplesFile = "synthetic_samples.txt";
+    String phenotypeFile = "synthetic_phenotypes.txt";
+
+    String usage = "\n" + "gwas.SyntheticCohort requires 0-9 arguments\n"
+                   + "(1) Number of samples (e.g. samples=" + cohort.samples + " (default))\n"
+                   + "(2) Number of principal components (e.g. pcs=" + cohort.pcs
+                   + " (default))\n" + "(3) Fraction of samples that are cases (e.g. caseFraction="
+                   + cohort.caseFraction + " (default))\n"
+                   + "(4) Shift of the principal components of cases in SDs (e.g. caseShift="
+                   + cohort.caseShift + " (default))\n"
+                   + "(5) Number of levels of the nominal batch factor (e.g. batches="
+                   + cohort.batches + " (default))\n" + "(6) Random seed (e.g. seed=" + cohort.seed
+                   + " (default))\n" + "(7) Number of threads (e.g. threads=" + cohort.threads
+                   + " (default))\n" + "(8) MatchMaker samples file, or none (e.g. out="
+                   + samplesFile + " (default))\n" + "(9) REval phenotype file, or none (e.g. pheno="
+                   + phenotypeFile + " (default))\n";
+
+    for (String arg : args) {
+      if (arg.equals("-h") || arg.equals("-help") || arg.equals("/h") || arg.equals("/help")) {
+        System.err.println(usage);
+        System.exit(1);
+      } else if (arg.startsWith("samples=")) {
+        cohort.samples = Long.parseLong(arg.split("=")[1]);
+      } else if (arg.startsWith("pcs=")) {
+        cohort.pcs = Integer.parseInt(arg.split("=")[1]);
+      } else if (arg.startsWith("caseFraction=")) {
+        cohort.caseFraction = Double.parseDouble(arg.split("=")[1]);
+      } else if (arg.startsWith("caseShift=")) {
+        cohort.caseShift = Double.parseDouble(arg.split("=")[1]);
+      } else if (arg.startsWith("batches=")) {
+        cohort.batches = Integer.parseInt(arg.split("=")[1]);
+      } else if (arg.startsWith("seed=")) {
+        cohort.seed = Long.parseLong(arg.split("=")[1]);
+      } else if (arg.startsWith("threads=")) {
+        cohort.threads = Integer.parseInt(arg.split("=")[1]);
+      } else if (arg.startsWith("out=")) {
+        samplesFile = arg.split("=")[1];
+      } else if (arg.startsWith("pheno=")) {
+        phenotypeFile = arg.split("=")[1];
+      } else {
+        System.err.println("Error - invalid argument: " + arg);
+        System.exit(1);
+      }
+    }
+
+    long time = System.currentTimeMillis();
+    if (!samplesFile.equals("none")) {
+      cohort.writeSamples(Paths.get(samplesFile));
+      System.out.println("Wrote " + cohort.samples + " samples to " + samplesFile);
+    }
+    if (!phenotypeFile.equals("none")) {
+      cohort.writePhenotypes(Paths.get(phenotypeFile));
+      System.out.println("Wrote " + cohort.samples + " phenotypes to " + phenotypeFile);
+    }
+    System.out.println("Factors for MatchMaker: factors="
+                       + cohort.factorsArg(false, true, false));
+    System.out.println("Finished in " + ext.getTimeElapsed(time));
+  }
+}
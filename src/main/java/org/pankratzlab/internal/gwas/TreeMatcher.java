@@ -0,0 +1,359 @@
+package org.pankratzlab.internal.gwas;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntUnaryOperator;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
+
+/**
+ * Nearest neighbor matching of a {@link Stratum} using the in-project {@link KDSearchTree}, which
+ * supports a {@link Caliper}: candidates farther than the caliper are pruned during the tree
+ * query, so they are never stored, and cases left without any candidate are reported before
+ * duplicates are resolved.
+ */
+public class TreeMatcher {
+  /** Number of random case-control pairs used to estimate the distance standard deviation */
+  static final int DISTANCE_SD_SAMPLE_SIZE = 10000;
+  private static final long SEED = 42;
+  private static final int MAX_IDS_REPORTED = 20;
+  /** With adaptive depth, cases start with this many times the controls wanted as candidates */
+  static final int ADAPTIVE_START_MULTIPLIER = 2;
+
+  private TreeMatcher() {}
+
+  /**
+   * @return up to {@code numCandidates} nearest controls within the caliper for every case
+   */
+  public static StratumMatches findCandidates(Stratum stratum, int numCandidates, Caliper caliper,
+                                              Logger log) {
+    return findCandidates(stratum, numCandidates, caliper, SpaceFillingCurve.HILBERT, log);
+  }
+
+  /**
+   * @param curve order in which controls are laid out in the tree and cases are queried; results
+   *          are always indexed by the original case and control positions in the stratum
+   * @return up to {@code numCandidates} nearest controls within the caliper for every case
+   */
+  public static StratumMatches findCandidates(Stratum stratum, int numCandidates, Caliper caliper,
+                                              SpaceFillingCurve curve, Logger log) {
+    return findCandidates(stratum, numCandidates, caliper, curve, TreeSearch.AUTO, log);
+  }
+
+  /**
+   * @param curve order in which controls are laid out in the tree and cases are queried; results
+   *          are always indexed by the original case and control positions in the stratum
+   * @param search whether to query each case on its own or traverse a case tree together with the
+   *          control tree
+   * @return up to {@code numCandidates} nearest controls within the caliper for every case
+   */
+  public static StratumMatches findCandidates(Stratum stratum, int numCandidates, Caliper caliper,
+                                              SpaceFillingCurve curve, TreeSearch search,
+                                              Logger log) {
+    return findCandidates(stratum, numCandidates, caliper, curve, search, null, log);
+  }
+
+  /**
+   * @param cache cache of control indexes to use and fill, or null to always build the index
+   * @return up to {@code numCandidates} nearest controls within the caliper for every case
+   */
+  public static StratumMatches findCandidates(Stratum stratum, int numCandidates, Caliper caliper,
+                                              SpaceFillingCurve curve, TreeSearch search,
+                                              MatchCache cache, Logger log) {
+    ControlSearch controls = controlSearch(stratum, caliper, curve, cache, log);
+    StratumMatches candidates = new StratumMatches(stratum, numCandidates);
+    controls.queryAll(candidates, numCandidates, search, log);
+    reportUnmatchable(candidates, caliper, log);
+    return candidates;
+  }
+
+  /**
+   * Adaptive candidate depth: every case starts with a few candidates, duplicates are resolved, and
+   * only cases left short because all of their candidates went to other cases are queried again
+   * with twice the depth, reusing the same tree, until every case is filled, runs out of controls
+   * within the caliper, or reaches {@code maxCandidates}.
+   * @param numSelect number of controls wanted per case
+   * @param maxCandidates the most candidates any case may be given
+   * @return candidates for every case, with a depth that varies by case
+   */
+  public static StratumMatches findAdaptiveCandidates(Stratum stratum, int numSelect,
+                                                      int maxCandidates, Caliper caliper,
+                                                      SpaceFillingCurve curve, TreeSearch search,
+                                                      Logger log) {
+    return findAdaptiveCandidates(stratum, numSelect, maxCandidates, caliper, curve, search, null,
+                                  log);
+  }
+
+  /**
+   * @param cache cache of control indexes to use and fill, or null to always build the index
+   * @see #findAdaptiveCandidates(Stratum, int, int, Caliper, SpaceFillingCurve, TreeSearch, Logger)
+   */
+  public static StratumMatches findAdaptiveCandidates(Stratum stratum, int numSelect,
+                                                      int maxCandidates, Caliper caliper,
+                                                      SpaceFillingCurve curve, TreeSearch search,
+                                                      MatchCache cache, Logger log) {
+    ControlSearch controls = controlSearch(stratum, caliper, curve, cache, log);
+    int depth = Math.max(1, Math.min(maxCandidates, ADAPTIVE_START_MULTIPLIER * numSelect));
+    StratumMatches candidates = new StratumMatches(stratum, depth);
+    controls.queryAll(candidates, depth, search, log);
+    reportUnmatchable(candidates, caliper, log);
+
+    int round = 0;
+    while (true) {
+      int[] filled = new int[stratum.numCases()];
+      resolve(candidates, numSelect, filled);
+      // a case whose last slot is empty already has every control within the caliper
+      int[] exhausted = IntStream.range(0, stratum.numCases())
+                                 .filter(c -> filled[c] < numSelect
+                                              && candidates.getDepth(c) < maxCandidates
+                                              && candidates.getControl(c,
+                                                                       candidates.getDepth(c) - 1)
+                                                 != StratumMatches.NO_MATCH)
+                                 .toArray();
+      if (exhausted.length == 0) {
+        break;
+      }
+      round++;
+      log.info("Round " + round + ": querying " + exhausted.length + " contested cases in "
+               + stratum.getKey() + " again with twice the candidates");
+      controls.query(candidates, exhausted,
+                     c -> Math.min(maxCandidates, 2 * candidates.getDepth(c)));
+    }
+    return candidates;
+  }
+
+  /**
+   * @param numTrees trees in the {@link RandomProjectionForest}
+   * @param searchMultiplier candidates gathered per case as a multiple of numCandidates
+   * @param exactRerank re-rank the candidates with exact distances
+   * @param cache cache of forests to use and fill, or null to always build the forest
+   * @return up to {@code numCandidates} approximately nearest controls within the caliper for
+   *         every case
+   */
+  public static StratumMatches findApproximateCandidates(Stratum stratum, int numCandidates,
+                                                         Caliper caliper, int numTrees,
+                                                         int searchMultiplier,
+                                                         boolean exactRerank, MatchCache cache,
+                                                         Logger log) {
+    RandomProjectionForest forest;
+    if (cache == null) {
+      forest = buildForest(stratum, numTrees, log);
+    } else {
+      String key = "forest|" + MatchCheckpoint.hash(stratum) + "|" + numTrees;
+      forest = cache.get(key, () -> buildForest(stratum, numTrees, log),
+                         RandomProjectionForest::estimatedBytes);
+    }
+    double maxDistance = resolveCaliper(stratum, caliper);
+    if (caliper.isSet()) {
+      log.info("Caliper for " + stratum.getKey() + " is a distance of " + maxDistance);
+    }
+    int searchSize = numCandidates * searchMultiplier;
+    StratumMatches candidates = new StratumMatches(stratum, numCandidates);
+    IntStream.range(0, stratum.numCases()).parallel().forEach(c -> {
+      Neighbors neighbors = forest.nearest(stratum.getCaseCoords(c), numCandidates, searchSize,
+                                           maxDistance, exactRerank);
+      for (int i = 0; i < neighbors.size(); i++) {
+        candidates.set(c, i, neighbors.getIndex(i), neighbors.getDistance(i));
+      }
+    });
+    reportUnmatchable(candidates, caliper, log);
+    return candidates;
+  }
+
+  private static RandomProjectionForest buildForest(Stratum stratum, int numTrees, Logger log) {
+    double[][] controlCoords = IntStream.range(0, stratum.numControls())
+                                        .mapToObj(stratum::getControlCoords)
+                                        .toArray(double[][]::new);
+    log.info("Building " + numTrees + " random projection trees for " + stratum.getKey());
+    return new RandomProjectionForest(controlCoords, numTrees, SEED);
+  }
+
+  /**
+   * Greedily resolve controls that are candidates for more than one case: all case-candidate pairs
+   * are taken in order of increasing distance, and a pair is kept if the control is still unused
+   * and the case still needs controls.
+   */
+  public static StratumMatches resolveDuplicates(StratumMatches candidates, int numSelect,
+                                                 Logger log) {
+    Stratum stratum = candidates.getStratum();
+    int[] filled = new int[stratum.numCases()];
+    StratumMatches resolved = resolve(candidates, numSelect, filled);
+    int shortCases = 0;
+    for (int f : filled) {
+      if (f < numSelect) {
+        shortCases++;
+      }
+    }
+    if (shortCases > 0) {
+      log.info(shortCases + " cases in " + stratum.getKey() + " received fewer than " + numSelect
+               + " controls after resolving duplicates");
+    }
+    return resolved;
+  }
+
+  static StratumMatches resolve(StratumMatches candidates, int numSelect, int[] filled) {
+    Stratum stratum = candidates.getStratum();
+    StratumMatches resolved = new StratumMatches(stratum, numSelect);
+    boolean[] used = new boolean[stratum.numControls()];
+    int[] cases = IntStream.range(0, stratum.numCases()).toArray();
+    IndexSort.forEachPair(candidates, cases, (c, slot) -> {
+      int control = candidates.getControl(c, slot);
+      if (filled[c] < numSelect && !used[control]) {
+        used[control] = true;
+        resolved.set(c, filled[c]++, control, candidates.getDistance(c, slot));
+      }
+    });
+    return resolved;
+  }
+
+  /**
+   * @return the caliper as an absolute distance for this stratum
+   */
+  static double resolveCaliper(Stratum stratum, Caliper caliper) {
+    if (!caliper.isSet() || !caliper.isInStandardDeviations()) {
+      return caliper.resolve(Double.NaN);
+    }
+    return caliper.resolve(estimateDistanceSd(stratum));
+  }
+
+  /**
+   * Estimate the standard deviation of case-control distances in the stratum from a fixed-seed
+   * random sample of pairs, or from all pairs if there are fewer than
+   * {@link #DISTANCE_SD_SAMPLE_SIZE}.
+   */
+  static double estimateDistanceSd(Stratum stratum) {
+    long totalPairs = (long) stratum.numCases() * stratum.numControls();
+    Random random = new Random(SEED);
+    int n = (int) Math.min(totalPairs, DISTANCE_SD_SAMPLE_SIZE);
+    double mean = 0;
+    double m2 = 0;
+    for (int i = 0; i < n; i++) {
+      int c;
+      int control;
+      if (totalPairs <= DISTANCE_SD_SAMPLE_SIZE) {
+        c = i / stratum.numControls();
+        control = i % stratum.numControls();
+      } else {
+        c = random.nextInt(stratum.numCases());
+        control = random.nextInt(stratum.numControls());
+      }
+      double d = Math.sqrt(KDSearchTree.squaredDistance(stratum.getCaseCoords(c),
+                                                        stratum.getControlCoords(control)));
+      // Welford's running variance
+      double delta = d - mean;
+      mean += delta / (i + 1);
+      m2 += delta * (d - mean);
+    }
+    return n < 2 ? 0 : Math.sqrt(m2 / (n - 1));
+  }
+
+  /**
+   * The control tree of a stratum, laid out in curve order, with the caliper resolved to a
+   * distance
+   */
+  private static ControlSearch controlSearch(Stratum stratum, Caliper caliper,
+                                             SpaceFillingCurve curve, MatchCache cache,
+                                             Logger log) {
+    if (cache == null) {
+      return new ControlSearch(stratum, caliper, curve, log);
+    }
+    // the caliper distance depends on the cases too, so the whole stratum is part of the key
+    String key = "index|" + MatchCheckpoint.hash(stratum) + "|" + caliper + "|" + curve;
+    return cache.get(key, () -> new ControlSearch(stratum, caliper, curve, log),
+                     ControlSearch::estimatedBytes);
+  }
+
+  /**
+   * The controls of a stratum in a {@link KDSearchTree}, in curve order, with the case coordinates
+   * to query. Queries do not modify it, so it can be shared by concurrent searches.
+   */
+  static class ControlSearch {
+    private final double[][] caseCoords;
+    private final double[][] bounds;
+    private final int[] controlOrder;
+    private final KDSearchTree tree;
+    private final SpaceFillingCurve curve;
+    private final double maxDistance;
+
+    ControlSearch(Stratum stratum, Caliper caliper, SpaceFillingCurve curve, Logger log) {
+      this.curve = curve;
+      caseCoords = IntStream.range(0, stratum.numCases()).mapToObj(stratum::getCaseCoords)
+                            .toArray(double[][]::new);
+      double[][] controlCoords = IntStream.range(0, stratum.numControls())
+                                          .mapToObj(stratum::getControlCoords)
+                                          .toArray(double[][]::new);
+      // both sides are quantized over the same bounds so that their curve positions agree
+      bounds = SpaceFillingCurve.bounds(caseCoords, controlCoords);
+      controlOrder = curve.order(controlCoords, bounds[0], bounds[1]);
+      tree = new KDSearchTree(IntStream.of(controlOrder).mapToObj(i -> controlCoords[i])
+                                       .toArray(double[][]::new));
+      maxDistance = resolveCaliper(stratum, caliper);
+      if (caliper.isSet()) {
+        log.info("Caliper for " + stratum.getKey() + " is a distance of " + maxDistance);
+      }
+    }
+
+    void queryAll(StratumMatches candidates, int depth, TreeSearch search, Logger log) {
+      Stratum stratum = candidates.getStratum();
+      if (search.useDualTree(stratum)) {
+        log.info("Using dual-tree search for " + stratum.getKey());
+        Neighbors[] all = DualTreeSearch.allNearest(new KDSearchTree(caseCoords), tree, depth,
+                                                    maxDistance);
+        for (int c = 0; c < all.length; c++) {
+          store(candidates, c, all[c]);
+        }
+      } else {
+        query(candidates, curve.order(caseCoords, bounds[0], bounds[1]), c -> depth);
+      }
+    }
+
+    /**
+     * Query the cases, replacing their candidates with as many new slots as depthOf gives for each
+     */
+    void query(StratumMatches candidates, int[] cases, IntUnaryOperator depthOf) {
+      for (int c : cases) {
+        candidates.setDepth(c, depthOf.applyAsInt(c));
+      }
+      // parallel streams split the range into contiguous chunks, so each thread works on its own
+      // region of the curve when the cases are in curve order
+      IntStream.range(0, cases.length).parallel().forEach(q -> {
+        int c = cases[q];
+        store(candidates, c, tree.nearest(caseCoords[c], candidates.getDepth(c), maxDistance));
+      });
+    }
+
+    long estimatedBytes() {
+      int dimensions = caseCoords.length > 0 ? caseCoords[0].length : 0;
+      // the tree keeps a copy of the control coordinates next to its nodes
+      return 16L * caseCoords.length * (dimensions + 2) + 4L * controlOrder.length
+             + 2 * 8L * controlOrder.length * (dimensions + 2);
+    }
+
+    private void store(StratumMatches candidates, int c, Neighbors neighbors) {
+      for (int i = 0; i < neighbors.size(); i++) {
+        candidates.set(c, i, controlOrder[neighbors.getIndex(i)], neighbors.getDistance(i));
+      }
+    }
+  }
+
+  static void reportUnmatchable(StratumMatches candidates, Caliper caliper, Logger log) {
+    Stratum stratum = candidates.getStratum();
+    List<String> unmatchable = new ArrayList<>();
+    for (int c = 0; c < stratum.numCases(); c++) {
+      if (candidates.numSelect() > 0
+          && candidates.getControl(c, 0) == StratumMatches.NO_MATCH) {
+        unmatchable.add(stratum.getCaseId(c));
+      }
+    }
+    if (!unmatchable.isEmpty()) {
+      String ids = String.join(",", unmatchable.subList(0, Math.min(unmatchable.size(),
+                                                                     MAX_IDS_REPORTED)));
+      log.warning(unmatchable.size() + " cases in " + stratum.getKey()
+                  + " have no control " + (caliper.isSet() ? "within the caliper of " + caliper
+                                                          : "candidate")
+                  + " and will not be matched: " + ids
+                  + (unmatchable.size() > MAX_IDS_REPORTED ? ",..." : ""));
+    }
+  }
+}
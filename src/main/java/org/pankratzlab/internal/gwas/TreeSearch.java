@@ -0,0 +1,52 @@
+package org.pankratzlab.internal.gwas;
+
+/**
+ * How {@link TreeMatcher} finds the nearest controls of all cases in a stratum.
+ */
+public enum TreeSearch {
+  /** dual-tree when the cases are a sizeable fraction of the controls, single-tree otherwise */
+  AUTO("auto"),
+  /** an independent query of the control tree for every case */
+  SINGLE("single"),
+  /** one traversal of a case tree and the control tree together, see {@link DualTreeSearch} */
+  DUAL("dual");
+
+  /**
+   * With {@link #AUTO}, dual-tree search is used when there are at least this many cases per
+   * control; with far fewer cases most of the control tree is never shared between queries
+   */
+  static final double AUTO_MIN_CASE_CONTROL_RATIO = 0.05;
+
+  private final String argName;
+
+  TreeSearch(String argName) {
+    this.argName = argName;
+  }
+
+  public String getArgName() {
+    return argName;
+  }
+
+  /**
+   * @return true if the dual-tree search should be used for this stratum
+   */
+  public boolean useDualTree(Stratum stratum) {
+    switch (this) {
+      case DUAL:
+        return true;
+      case SINGLE:
+        return false;
+      default:
+        return stratum.numCases() >= AUTO_MIN_CASE_CONTROL_RATIO * stratum.numControls();
+    }
+  }
+
+  public static TreeSearch fromArg(String arg) {
+    for (TreeSearch search : values()) {
+      if (search.argName.equalsIgnoreCase(arg)) {
+        return search;
+      }
+    }
+    throw new IllegalArgumentException("Unknown tree search: " + arg);
+  }
+}
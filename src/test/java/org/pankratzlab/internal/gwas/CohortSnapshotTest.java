@@ -0,0 +1,83 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.pankratzlab.internal.gwas.Fixtures.LOG;
+
+public class CohortSnapshotTest {
+  @Test
+  public void testRoundTripUntilSamplesChange() throws IOException {
+    Path dir = Files.createTempDirectory("snapshot");
+    Path samples = dir.resolve("samples.txt");
+    Files.write(samples, List.of("id\tstatus\tPC1\tsex", "a\t1\t0.5\t1", "b\t0\t0.25\t1"));
+    Stratum stratum = new Stratum("[1]");
+    stratum.add("a", new double[] {0.5, 2}, Stratum.CASE_STATUS);
+    stratum.add("b", new double[] {0.25, -1}, Stratum.CONTROL_STATUS);
+    stratum.add("c", new double[] {1, 1}, Stratum.CONTROL_STATUS);
+    HashMap<Integer, Double> columns = new HashMap<>();
+    columns.put(2, 1.5);
+    Path snapshot = dir.resolve("cohort" + CohortSnapshot.EXTENSION);
+    CohortSnapshot.write(new PreparedCohort(samples, columns, List.of(stratum)), snapshot);
+
+    PreparedCohort read = CohortSnapshot.read(snapshot);
+    assertEquals(samples.toAbsolutePath(), read.getInputSamples());
+    assertEquals(columns, read.numericColumns);
+    Stratum readStratum = read.getStrata().get(0);
+    assertEquals("[1]", readStratum.getKey());
+    assertEquals(1, readStratum.numCases());
+    assertEquals("c", readStratum.getControlId(1));
+    assertArrayEquals(new double[] {0.25, -1}, readStratum.getControlCoords(0));
+
+    FactorLoadings factors = new FactorLoadings("PC1:1.5,sex:force");
+    String key = CohortSnapshot.key(samples, factors, false);
+    assertNotEquals(key, CohortSnapshot.key(samples, factors, true));
+    Files.write(samples, List.of("c\t0\t1\t1"), java.nio.file.StandardOpenOption.APPEND);
+    assertNotEquals(key, CohortSnapshot.key(samples, factors, false));
+    assertNull(CohortSnapshot.read(snapshot));
+  }
+
+  @Test
+  public void testUnwritableSnapshotDirStillMatches() throws IOException {
+    Path dir = Files.createTempDirectory("snapshot");
+    Path samples = dir.resolve("samples.txt");
+    Files.write(samples, List.of("id\tstatus\tPC1", "a\t1\t0.5", "b\t0\t0.25"));
+    // a file where the snapshot directory should be, so it cannot be created
+    Path snapshotDir = Files.createFile(dir.resolve("snapshots"));
+    PreparedCohort cohort = CohortSnapshot.loadOrPrepare(dir, samples,
+                                                         new FactorLoadings("PC1:1"), false,
+                                                         snapshotDir, Long.MAX_VALUE,
+                                                         MatchMetrics.NONE, new MatchProgress(),
+                                                         LOG);
+    assertEquals(1, cohort.getStrata().size());
+    assertEquals(1, cohort.getStrata().get(0).numCases());
+  }
+
+  @Test
+  public void testPruneRemovesLeastRecentlyUsed() throws IOException {
+    Path dir = Files.createTempDirectory("snapshots");
+    Path[] snapshots = new Path[3];
+    for (int i = 0; i < snapshots.length; i++) {
+      snapshots[i] = dir.resolve(i + CohortSnapshot.EXTENSION);
+      Files.write(snapshots[i], new byte[100]);
+      Files.setLastModifiedTime(snapshots[i], FileTime.fromMillis(1_000_000L * (i + 1)));
+    }
+    // the oldest is kept regardless, since it was just written
+    CohortSnapshot.prune(dir, 150, snapshots[0], LOG);
+    assertTrue(Files.exists(snapshots[0]));
+    assertFalse(Files.exists(snapshots[1]));
+    assertTrue(Files.exists(snapshots[2]));
+  }
+}
@@ -0,0 +1,192 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.pankratzlab.common.stats.Correlation;
+import org.pankratzlab.common.stats.Ttest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DistanceCorrelationTest {
+
+  private static double pearson(double[] x, double[] y) {
+    double mx = Arrays.stream(x).average().getAsDouble();
+    double my = Arrays.stream(y).average().getAsDouble();
+    double sxy = 0;
+    double sxx = 0;
+    double syy = 0;
+    for (int i = 0; i < x.length; i++) {
+      sxy += (x[i] - mx) * (y[i] - my);
+      sxx += (x[i] - mx) * (x[i] - mx);
+      syy += (y[i] - my) * (y[i] - my);
+    }
+    return sxy / Math.sqrt(sxx * syy);
+  }
+
+  private static double[] averageRanks(double[] values) {
+    double[] ranks = new double[values.length];
+    for (int i = 0; i < values.length; i++) {
+      int less = 0;
+      int equal = 0;
+      for (double v : values) {
+        if (v < values[i]) {
+          less++;
+        } else if (v == values[i]) {
+          equal++;
+        }
+      }
+      ranks[i] = less + (equal + 1) / 2.0;
+    }
+    return ranks;
+  }
+
+  private static void writeMatrix(Path file, String[] anchors, String[] barnacles,
+                                  String[][] values) throws IOException {
+    List<String> lines = new ArrayList<>();
+    lines.add(anchors.length + "\t" + barnacles.length);
+    lines.add("Anchor\t" + String.join("\t", barnacles));
+    for (int i = 0; i < anchors.length; i++) {
+      lines.add(anchors[i] + "\t" + String.join("\t", values[i]));
+    }
+    Files.write(file, lines);
+  }
+
+  @Test
+  public void testMomentsStayAccurateFarFromZero() {
+    Random random = new Random(2);
+    int n = 100000;
+    double[] x = new double[n];
+    double[] y = new double[n];
+    DistanceCorrelation.Moments moments = new DistanceCorrelation.Moments();
+    for (int i = 0; i < n; i++) {
+      x[i] = 1e9 + random.nextGaussian();
+      y[i] = 1e9 + 0.5 * (x[i] - 1e9) + random.nextGaussian();
+      moments.add(x[i], y[i]);
+    }
+    assertEquals(n, moments.n());
+    assertEquals(pearson(x, y), moments.correlation(), 1e-6);
+    assertEquals(1, moments.varianceX(), 0.02);
+  }
+
+  @Test
+  public void testSortMovesIndicesAlong() {
+    Random random = new Random(3);
+    double[] values = new double[5000];
+    long[] indices = new long[values.length];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = random.nextInt(300);
+      indices[i] = i;
+    }
+    double[] original = values.clone();
+    DistanceCorrelation.sort(values, indices, 0, values.length);
+    for (int i = 0; i < values.length; i++) {
+      assertTrue(i == 0 || values[i - 1] <= values[i]);
+      assertEquals(original[(int) indices[i]], values[i]);
+    }
+  }
+
+  @Test
+  public void testStreamedCorrelationsMatchInMemory() throws IOException {
+    Random random = new Random(7);
+    String[] anchors = {"c0", "c1", "c2", "c3", "c4", "c5"};
+    String[] barnacles = {"k0", "k1", "k2", "k3", "k4", "k5", "k6", "k7", "k8"};
+    String[][] text1 = new String[anchors.length][barnacles.length];
+    String[][] text2 = new String[anchors.length][barnacles.length];
+    List<double[]> pairs = new ArrayList<>();
+    for (int i = 0; i < anchors.length; i++) {
+      for (int j = 0; j < barnacles.length; j++) {
+        // few distinct values, so there are many ties
+        double x = random.nextInt(6);
+        double y = x + random.nextInt(4);
+        text1[i][j] = Double.toString(x);
+        text2[i][j] = Double.toString(y);
+        if (j == 3 && i % 2 == 0) {
+          text2[i][j] = MatchSamples.PRUNED_DISTANCE;
+        } else {
+          pairs.add(new double[] {x, y});
+        }
+      }
+    }
+    Path dir = Files.createTempDirectory("correlate");
+    writeMatrix(dir.resolve("a.xln"), anchors, barnacles, text1);
+    writeMatrix(dir.resolve("b.xln"), anchors, barnacles, text2);
+    double[] x = pairs.stream().mapToDouble(p -> p[0]).toArray();
+    double[] y = pairs.stream().mapToDouble(p -> p[1]).toArray();
+
+    for (long ramBudget : new long[] {Long.MAX_VALUE, 0}) {
+      // a fan-in of 2 merges the 8 runs of each matrix over two passes
+      for (int fanIn : new int[] {DistanceCorrelation.MERGE_FAN_IN, 2}) {
+        DistanceStore.Budget budget = new DistanceStore.Budget(ramBudget);
+        DistanceCorrelation.Result result = DistanceCorrelation.correlate(dir.resolve("a.xln"),
+                                                                          dir.resolve("b.xln"),
+                                                                          true, dir, budget, 7,
+                                                                          fanIn);
+        assertEquals(pairs.size(), result.values.n());
+        assertEquals(pearson(x, y), result.values.correlation(), 1e-12);
+        assertEquals(pearson(averageRanks(x), averageRanks(y)), result.ranks.correlation(),
+                     1e-12);
+      }
+    }
+    // the sorted runs and ranks are removed
+    try (Stream<Path> files = Files.list(dir)) {
+      assertEquals(2, files.count());
+    }
+  }
+
+  @Test
+  public void testMatchesTheInMemoryHelpers() throws IOException {
+    Random random = new Random(11);
+    String[] anchors = {"c0", "c1", "c2", "c3"};
+    String[] barnacles = {"k0", "k1", "k2", "k3", "k4", "k5"};
+    int n = anchors.length * barnacles.length;
+    double[] x = new double[n];
+    for (int i = 0; i < n; i++) {
+      x[i] = 1 + random.nextDouble();
+    }
+    // a smaller spread than x, so a pooled and a Welch test would disagree
+    double[] y = new double[n];
+    for (int i = 0; i < n; i++) {
+      y[i] = 1.2 + 0.3 * x[i] + 0.1 * random.nextGaussian();
+    }
+    String[][] text1 = new String[anchors.length][barnacles.length];
+    String[][] text2 = new String[anchors.length][barnacles.length];
+    for (int i = 0; i < n; i++) {
+      text1[i / barnacles.length][i % barnacles.length] = Double.toString(x[i]);
+      text2[i / barnacles.length][i % barnacles.length] = Double.toString(y[i]);
+    }
+    Path dir = Files.createTempDirectory("correlate");
+    writeMatrix(dir.resolve("a.xln"), anchors, barnacles, text1);
+    writeMatrix(dir.resolve("b.xln"), anchors, barnacles, text2);
+
+    DistanceCorrelation.Result result = DistanceCorrelation.correlate(dir.resolve("a.xln"),
+                                                                      dir.resolve("b.xln"), true,
+                                                                      dir, Long.MAX_VALUE);
+    double[][] values = {x, y};
+    double[] pearson = Correlation.Pearson(values);
+    assertEquals(pearson[0], result.values.correlation(), 1e-9);
+    assertEquals(pearson[1], result.values.correlationP(), 1e-6);
+    assertEquals(new Ttest(values).getPvalue(), result.values.ttestP(), 1e-6);
+    assertEquals(Correlation.Spearman(values)[0], result.ranks.correlation(), 1e-9);
+  }
+
+  @Test
+  public void testDifferentAnchorsAreRejected() throws IOException {
+    Path dir = Files.createTempDirectory("correlate");
+    String[][] values = {{"1", "2"}};
+    writeMatrix(dir.resolve("a.xln"), new String[] {"c0"}, new String[] {"k0", "k1"}, values);
+    writeMatrix(dir.resolve("b.xln"), new String[] {"c9"}, new String[] {"k0", "k1"}, values);
+    assertThrows(IllegalArgumentException.class,
+                 () -> DistanceCorrelation.correlate(dir.resolve("a.xln"), dir.resolve("b.xln"),
+                                                     false, dir, Long.MAX_VALUE));
+  }
+}
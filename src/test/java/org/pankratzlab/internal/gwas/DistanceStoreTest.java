@@ -0,0 +1,104 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DistanceStoreTest {
+
+  private static void fillAndCheck(DistanceStore store) {
+    for (long i = 0; i < store.rows(); i++) {
+      for (long j = 0; j < store.columns(); j++) {
+        store.set(i, j, i * 1000 + j);
+      }
+    }
+    for (long i = 0; i < store.rows(); i++) {
+      for (long j = 0; j < store.columns(); j++) {
+        assertEquals(i * 1000 + j, store.get(i, j));
+      }
+    }
+  }
+
+  private static long countFiles(Path dir) throws IOException {
+    try (Stream<Path> files = Files.list(dir)) {
+      return files.count();
+    }
+  }
+
+  @Test
+  public void testEntriesAcrossSegments() throws IOException {
+    Path dir = Files.createTempDirectory("distances");
+    // 16 doubles per segment, so rows of 7 straddle segments
+    try (DistanceStore store = DistanceStore.allocate(13, 7, Long.MAX_VALUE, dir, 4)) {
+      assertFalse(store.isMapped());
+      fillAndCheck(store);
+      assertArrayEquals(new double[] {2000, 2001, 2002, 2003, 2004, 2005, 2006},
+                        store.getRow(2, new double[7]));
+    }
+    assertEquals(0, countFiles(dir));
+  }
+
+  @Test
+  public void testSpillsToMappedFileOverBudget() throws IOException {
+    Path dir = Files.createTempDirectory("distances");
+    try (DistanceStore store = DistanceStore.allocate(13, 7, 8 * 13 * 7 - 1, dir, 4)) {
+      assertTrue(store.isMapped());
+      assertEquals(1, countFiles(dir));
+      fillAndCheck(store);
+      store.fillColumn(3, Double.POSITIVE_INFINITY);
+      store.fillRow(5, Double.NEGATIVE_INFINITY);
+      assertEquals(Double.POSITIVE_INFINITY, store.get(12, 3));
+      assertEquals(Double.NEGATIVE_INFINITY, store.get(5, 3));
+      assertEquals(4006, store.get(4, 6));
+    }
+    assertEquals(0, countFiles(dir));
+  }
+
+  @Test
+  public void testStoresShareTheirBudget() throws IOException {
+    Path dir = Files.createTempDirectory("distances");
+    DistanceStore.Budget budget = new DistanceStore.Budget(8 * 10 * 10 + 8 * 5 * 5);
+    DistanceStore first = DistanceStore.allocate(10, 10, budget, dir);
+    try (DistanceStore second = DistanceStore.allocate(10, 10, budget, dir)) {
+      // each fits on its own, but not next to the first
+      assertFalse(first.isMapped());
+      assertTrue(second.isMapped());
+      assertEquals(8 * 10 * 10, budget.reserved());
+      try (DistanceStore third = DistanceStore.allocate(5, 5, budget, dir)) {
+        assertFalse(third.isMapped());
+      }
+      first.close();
+      first.close();
+      assertEquals(0, budget.reserved());
+      try (DistanceStore fourth = DistanceStore.allocate(10, 10, budget, dir)) {
+        assertFalse(fourth.isMapped());
+      }
+    }
+    assertEquals(0, budget.reserved());
+    assertEquals(0, countFiles(dir));
+  }
+
+  @Test
+  public void testFindMinOrMaxIndexOfStoreRow() throws IOException {
+    double[] row = {3, 1, 4, 1, 5, 9, 2, 6};
+    try (DistanceStore store = DistanceStore.allocate(1, row.length, Long.MAX_VALUE,
+                                                      Files.createTempDirectory("distances"))) {
+      store.setRow(0, row);
+      for (Set<Integer> skip : Set.of(Set.<Integer> of(), Set.of(1, 5), Set.of(3))) {
+        for (boolean findMin : new boolean[] {true, false}) {
+          assertEquals(MatchSamples.findMinOrMaxIndex(row, skip, findMin),
+                       MatchSamples.findMinOrMaxIndex(store, 0, skip, findMin));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,47 @@
+package org.pankratzlab.internal.gwas;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class DistributionsTest {
+
+  @Test
+  public void testStudentP() {
+    // critical values of the t distribution
+    assertEquals(0.05, Distributions.studentTwoSidedP(2.228139, 10), 1e-6);
+    assertEquals(0.01, Distributions.studentTwoSidedP(-2.763262, 28), 1e-6);
+    assertEquals(0.5, Distributions.studentTwoSidedP(1, 1), 1e-12);
+    assertEquals(1, Distributions.studentTwoSidedP(0, 5), 1e-12);
+    // on either side of the switch to the normal distribution
+    assertEquals(0.05, Distributions.studentTwoSidedP(1.959964, 1e9), 1e-6);
+    assertEquals(0.05, Distributions.studentTwoSidedP(1.959966, 9e5), 1e-6);
+  }
+
+  @Test
+  public void testRegularizedBeta() {
+    // I_x(a, b) of integer a and b is a binomial tail: P(Binomial(a + b - 1, x) >= a)
+    assertEquals(11 / 16.0, Distributions.regularizedBeta(0.5, 2, 3), 1e-12);
+    assertEquals(1 - Math.pow(0.7, 4), Distributions.regularizedBeta(0.3, 1, 4), 1e-12);
+    assertEquals(0.2, Distributions.regularizedBeta(0.2, 1, 1), 1e-12);
+    assertEquals(0, Distributions.regularizedBeta(0, 2, 2), 0);
+    assertEquals(1, Distributions.regularizedBeta(1, 2, 2), 0);
+  }
+
+  @Test
+  public void testLogGamma() {
+    assertEquals(Math.log(24), Distributions.logGamma(5), 1e-12);
+    assertEquals(0.5 * Math.log(Math.PI), Distributions.logGamma(0.5), 1e-12);
+    assertEquals(0, Distributions.logGamma(1), 1e-12);
+    assertEquals(Math.log(Math.PI / Math.sin(Math.PI * 0.25)) - Distributions.logGamma(0.75),
+                 Distributions.logGamma(0.25), 1e-12);
+  }
+
+  @Test
+  public void testErfc() {
+    assertEquals(1, Distributions.erfc(0), 2e-7);
+    assertEquals(0.15729920705028513, Distributions.erfc(1), 2e-7);
+    assertEquals(1.8427007929497148, Distributions.erfc(-1), 2e-7);
+    assertEquals(0.004677734981047266, Distributions.erfc(2), 2e-7);
+  }
+}
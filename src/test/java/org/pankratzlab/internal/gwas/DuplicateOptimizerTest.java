@@ -0,0 +1,242 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.pankratzlab.internal.gwas.Fixtures.LOG;
+import static org.pankratzlab.internal.gwas.Fixtures.randomStratum;
+import static org.pankratzlab.internal.gwas.Fixtures.stratum;
+
+public class DuplicateOptimizerTest {
+  @Test
+  public void testAugmentingPathFillsShortCase() {
+    // greedy gives control 0 to case 0, leaving case 1 without any candidate
+    Stratum stratum = stratum("test", new double[2], new double[2]);
+    StratumMatches candidates = new StratumMatches(stratum, 2);
+    candidates.set(0, 0, 0, 1.0);
+    candidates.set(0, 1, 1, 1.1);
+    candidates.set(1, 0, 0, 1.05);
+
+    StratumMatches greedy = TreeMatcher.resolveDuplicates(candidates, 1, LOG);
+    assertEquals(StratumMatches.NO_MATCH, greedy.getControl(1, 0));
+
+    StratumMatches optimized = DuplicateOptimizer.optimize(candidates, 1, Long.MAX_VALUE, 10,
+                                                           LOG);
+    assertEquals(1, optimized.getControl(0, 0));
+    assertEquals(1.1, optimized.getDistance(0, 0));
+    assertEquals(0, optimized.getControl(1, 0));
+  }
+
+  @Test
+  public void testCheckpointReceivesImprovedAssignment() {
+    Stratum stratum = stratum("test", new double[2], new double[2]);
+    StratumMatches candidates = new StratumMatches(stratum, 2);
+    candidates.set(0, 0, 0, 1.0);
+    candidates.set(0, 1, 1, 1.1);
+    candidates.set(1, 0, 0, 1.05);
+
+    List<StratumMatches> checkpoints = new ArrayList<>();
+    DuplicateOptimizer.optimize(candidates, 1, Long.MAX_VALUE, 10, KinshipIndex.EMPTY,
+                                checkpoints::add, LOG);
+    // only the first pass improves the greedy assignment
+    assertEquals(1, checkpoints.size());
+    assertEquals(1, checkpoints.get(0).getControl(0, 0));
+    assertEquals(0, checkpoints.get(0).getControl(1, 0));
+  }
+
+  @Test
+  public void testEveryPassEmitsAnEvent() throws IOException {
+    Stratum stratum = stratum("test", new double[2], new double[2]);
+    StratumMatches candidates = new StratumMatches(stratum, 2);
+    candidates.set(0, 0, 0, 1.0);
+    candidates.set(0, 1, 1, 1.1);
+    candidates.set(1, 0, 0, 1.05);
+
+    Path file = Files.createTempDirectory("optimizer").resolve("passes.jfr");
+    try (Recording recording = new Recording()) {
+      recording.enable(MatchEvent.NAME).withThreshold(Duration.ZERO);
+      recording.start();
+      DuplicateOptimizer.optimize(candidates, 1, Long.MAX_VALUE, 10, LOG);
+      recording.stop();
+      recording.dump(file);
+    }
+    List<RecordedEvent> passes = RecordingFile.readAllEvents(file).stream()
+                                              .filter(e -> e.getEventType().getName()
+                                                            .equals(MatchEvent.NAME))
+                                              .collect(Collectors.toList());
+    // the first pass improves the assignment and the second finds nothing more to do
+    assertEquals(2, passes.size());
+    for (int i = 0; i < passes.size(); i++) {
+      assertEquals(MatchMetrics.OPTIMIZE_PASS, passes.get(i).getString("phase"));
+      assertEquals("test", passes.get(i).getString("stratum"));
+      assertEquals(i + 1, passes.get(i).getInt("pass"));
+      assertEquals(2, passes.get(i).getLong("cases"));
+    }
+  }
+
+  @Test
+  public void testPassesAreRecordedInTheRunMetrics() throws IOException {
+    Stratum stratum = stratum("test", new double[2], new double[2]);
+    StratumMatches candidates = new StratumMatches(stratum, 2);
+    candidates.set(0, 0, 0, 1.0);
+    candidates.set(0, 1, 1, 1.1);
+    candidates.set(1, 0, 0, 1.05);
+
+    MatchMetrics metrics = new MatchMetrics();
+    DuplicateOptimizer.optimize(candidates, 1, Long.MAX_VALUE, 10, KinshipIndex.EMPTY, best -> {},
+                                new MatchProgress(), metrics, LOG);
+    Path file = Files.createTempDirectory("optimizer").resolve(MatchMetrics.JSON_FILE);
+    metrics.writeJson(file);
+    String json = Files.readString(file);
+    assertTrue(json.contains("{\"phase\": \"optimize_pass\", \"stratum\": \"test\", \"calls\": 2"));
+  }
+
+  @Test
+  public void testProgressCountsVisitedCases() {
+    Stratum stratum = stratum("test", new double[2], new double[2]);
+    StratumMatches candidates = new StratumMatches(stratum, 2);
+    candidates.set(0, 0, 0, 1.0);
+    candidates.set(0, 1, 1, 1.1);
+    candidates.set(1, 0, 0, 1.05);
+
+    MatchProgress progress = new MatchProgress();
+    List<Long> visited = new ArrayList<>();
+    DuplicateOptimizer.optimize(candidates, 1, Long.MAX_VALUE, 10, KinshipIndex.EMPTY,
+                                best -> visited.add(progress.task(MatchProgress.OPTIMIZED_CASES,
+                                                                  "test", 0)
+                                                            .done()),
+                                progress, LOG);
+    // both cases were visited by the first pass, which improved the assignment
+    assertEquals(List.of(2L), visited);
+  }
+
+  @Test
+  public void testPassedDeadlineKeepsGreedyAssignment() {
+    Stratum stratum = stratum("test", new double[2], new double[2]);
+    StratumMatches candidates = new StratumMatches(stratum, 2);
+    candidates.set(0, 0, 0, 1.0);
+    candidates.set(0, 1, 1, 1.1);
+    candidates.set(1, 0, 0, 1.05);
+
+    StratumMatches optimized = DuplicateOptimizer.optimize(candidates, 1, System.nanoTime() - 1,
+                                                           10, LOG);
+    assertEquals(0, optimized.getControl(0, 0));
+    assertEquals(StratumMatches.NO_MATCH, optimized.getControl(1, 0));
+  }
+
+  @Test
+  public void testRelativesAreKeptApart() {
+    Stratum stratum = randomStratum("related", 300, 2, 3, 4);
+    // related neighbors in the sample order, which the nearest candidates often share
+    KinshipIndex kinship = new KinshipIndex();
+    for (int i = 0; i < 300; i += 2) {
+      kinship.add("s" + i, "s" + (i + 1));
+      kinship.add("s" + i, "s" + (i + 4));
+    }
+    int numSelect = 3;
+    StratumMatches candidates = TreeMatcher.findCandidates(stratum, 12, Caliper.NONE, LOG);
+    StratumMatches optimized = DuplicateOptimizer.optimize(candidates, numSelect, Long.MAX_VALUE,
+                                                           100, kinship, LOG);
+
+    Set<Integer> used = new HashSet<>();
+    int matched = 0;
+    for (int c = 0; c < stratum.numCases(); c++) {
+      for (int s = 0; s < numSelect; s++) {
+        int control = optimized.getControl(c, s);
+        if (control == StratumMatches.NO_MATCH) {
+          continue;
+        }
+        matched++;
+        assertTrue(used.add(control));
+        String id = stratum.getControlId(control);
+        assertFalse(kinship.related(stratum.getCaseId(c), id));
+        for (int t = s + 1; t < numSelect; t++) {
+          int other = optimized.getControl(c, t);
+          if (other != StratumMatches.NO_MATCH) {
+            assertFalse(kinship.related(id, stratum.getControlId(other)));
+          }
+        }
+      }
+    }
+    // the constraint costs few matches
+    StratumMatches unconstrained = DuplicateOptimizer.optimize(candidates, numSelect,
+                                                               Long.MAX_VALUE, 100, LOG);
+    int unconstrainedMatched = 0;
+    for (int c = 0; c < stratum.numCases(); c++) {
+      for (int s = 0; s < numSelect; s++) {
+        if (unconstrained.getControl(c, s) != StratumMatches.NO_MATCH) {
+          unconstrainedMatched++;
+        }
+      }
+    }
+    assertTrue(matched > 0.9 * unconstrainedMatched);
+  }
+
+  @Test
+  public void testNeverWorseThanGreedy() {
+    Random random = new Random(9);
+    Stratum stratum = new Stratum("random");
+    for (int i = 0; i < 900; i++) {
+      boolean isCase = i % 3 == 0;
+      double scale = isCase ? 0.4 : 1;
+      stratum.add("s" + i, new double[] {scale * random.nextGaussian(),
+                                         scale * random.nextGaussian()},
+                  isCase ? Stratum.CASE_STATUS : Stratum.CONTROL_STATUS);
+    }
+    int numSelect = 2;
+    StratumMatches candidates = TreeMatcher.findCandidates(stratum, 6, Caliper.NONE, LOG);
+    StratumMatches greedy = TreeMatcher.resolveDuplicates(candidates, numSelect, LOG);
+    StratumMatches optimized = DuplicateOptimizer.optimize(candidates, numSelect, Long.MAX_VALUE,
+                                                           100, LOG);
+
+    Set<Integer> used = new HashSet<>();
+    int greedyMatched = 0;
+    int optimizedMatched = 0;
+    for (int c = 0; c < stratum.numCases(); c++) {
+      for (int s = 0; s < numSelect; s++) {
+        if (greedy.getControl(c, s) != StratumMatches.NO_MATCH) {
+          greedyMatched++;
+        }
+        int control = optimized.getControl(c, s);
+        if (control != StratumMatches.NO_MATCH) {
+          optimizedMatched++;
+          assertTrue(used.add(control), "control " + control + " used twice");
+          if (s > 0) {
+            assertTrue(optimized.getDistance(c, s - 1) <= optimized.getDistance(c, s));
+          }
+        }
+      }
+    }
+    assertTrue(optimizedMatched >= greedyMatched);
+    assertTrue(optimizedMatched > greedyMatched || total(optimized) <= total(greedy) + 1e-9);
+  }
+
+  private static double total(StratumMatches matches) {
+    double total = 0;
+    for (int c = 0; c < matches.getStratum().numCases(); c++) {
+      for (int s = 0; s < matches.numSelect(); s++) {
+        if (matches.getControl(c, s) != StratumMatches.NO_MATCH) {
+          total += matches.getDistance(c, s);
+        }
+      }
+    }
+    return total;
+  }
+}
@@ -0,0 +1,47 @@
+package org.pankratzlab.internal.gwas;
+
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Strata and the logger shared by the tests of the matchers, so that each test class does not
+ * carry its own copy of them
+ */
+final class Fixtures {
+  static final Logger LOG = Logger.getAnonymousLogger();
+
+  private Fixtures() {}
+
+  /**
+   * @return a stratum of one-dimensional samples, cases case0, case1, ... and controls control0,
+   *         control1, ... at the given coordinates
+   */
+  static Stratum stratum(String key, double[] caseCoords, double[] controlCoords) {
+    Stratum stratum = new Stratum(key);
+    for (int i = 0; i < caseCoords.length; i++) {
+      stratum.add("case" + i, new double[] {caseCoords[i]}, Stratum.CASE_STATUS);
+    }
+    for (int i = 0; i < controlCoords.length; i++) {
+      stratum.add("control" + i, new double[] {controlCoords[i]}, Stratum.CONTROL_STATUS);
+    }
+    return stratum;
+  }
+
+  /**
+   * @return a stratum of samples s0, s1, ... with standard normal coordinates, of which every
+   *         {@code caseEvery}-th sample, starting with s0, is a case
+   */
+  static Stratum randomStratum(String key, int size, int dimensions, int caseEvery, long seed) {
+    Random random = new Random(seed);
+    Stratum stratum = new Stratum(key);
+    for (int i = 0; i < size; i++) {
+      double[] coords = new double[dimensions];
+      for (int d = 0; d < dimensions; d++) {
+        coords[d] = random.nextGaussian();
+      }
+      stratum.add("s" + i, coords,
+                  i % caseEvery == 0 ? Stratum.CASE_STATUS : Stratum.CONTROL_STATUS);
+    }
+    return stratum;
+  }
+}
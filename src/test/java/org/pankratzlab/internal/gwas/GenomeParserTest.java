@@ -0,0 +1,118 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class GenomeParserTest {
+  private static final String HEADER = "FID1 IID1 FID2 IID2 RT EZ Z0 Z1 Z2 PI_HAT PHE DST PPC RATIO"
+                                       + " A B C";
+
+  private static String genomeLine(String id1, String id2, double pihat, double dst,
+                                   double ratio) {
+    String[] fields = new String[GenomeParser.RATIO_COLUMN + 1];
+    for (int i = 0; i < fields.length; i++) {
+      fields[i] = "0";
+    }
+    fields[GenomeParser.ID1_COLUMN] = id1;
+    fields[GenomeParser.ID2_COLUMN] = id2;
+    fields[GenomeParser.PIHAT_COLUMN] = Double.toString(pihat);
+    fields[GenomeParser.DST_COLUMN] = Double.toString(dst);
+    fields[GenomeParser.RATIO_COLUMN] = Double.toString(ratio);
+    return "  " + String.join("  ", fields);
+  }
+
+  private static DistanceStore store(int rows, int columns) throws IOException {
+    DistanceStore store = DistanceStore.allocate(rows, columns, Long.MAX_VALUE, null);
+    for (int i = 0; i < rows; i++) {
+      store.fillRow(i, -999);
+    }
+    return store;
+  }
+
+  @Test
+  public void testParsesAnchorBarnaclePairsInEveryChunk() throws IOException {
+    String[] anchors = {"a0", "a1", "a2"};
+    String[] barnacles = {"b0", "b1", "b2", "b3"};
+    Random random = new Random(5);
+    double[][][] expected = new double[3][anchors.length][barnacles.length];
+    List<String> lines = new ArrayList<>();
+    lines.add(HEADER);
+    // pairs in either order, pairs of two anchors or two barnacles, unknown samples and a pair
+    // listed twice, whose last values are kept
+    for (int repeat = 0; repeat < 2; repeat++) {
+      for (int i = 0; i < anchors.length; i++) {
+        for (int j = 0; j < barnacles.length; j++) {
+          if ((i + j) % 3 == 0 && repeat == 1 && !(i == 0 && j == 0)) {
+            continue;
+          }
+          double pihat = random.nextDouble();
+          double dst = random.nextDouble();
+          double ratio = random.nextDouble();
+          boolean swap = random.nextBoolean();
+          lines.add(genomeLine(swap ? barnacles[j] : anchors[i], swap ? anchors[i] : barnacles[j],
+                               pihat, dst, ratio));
+          expected[0][i][j] = 1 - pihat;
+          expected[1][i][j] = 1 - dst;
+          expected[2][i][j] = 3 - ratio;
+        }
+        lines.add(genomeLine(anchors[i], "x" + i, 0.5, 0.5, 0.5));
+        lines.add("");
+      }
+      lines.add(genomeLine("a0", "a1", 0.5, 0.5, 0.5));
+      lines.add(genomeLine("b0", "b1", 0.5, 0.5, 0.5));
+    }
+    Path file = Files.createTempDirectory("genome").resolve("test.genome");
+    Files.write(file, lines);
+
+    for (int chunkBytes : new int[] {1, 100, 1 << 20}) {
+      DistanceStore[] values = {store(3, 4), store(3, 4), store(3, 4)};
+      GenomeParser.parse(file, GenomeParser.dataStart(file), anchors, barnacles, values[0],
+                         values[1], values[2], chunkBytes);
+      for (int v = 0; v < values.length; v++) {
+        for (int i = 0; i < anchors.length; i++) {
+          for (int j = 0; j < barnacles.length; j++) {
+            assertEquals(expected[v][i][j], values[v].get(i, j), 1e-12);
+          }
+        }
+        values[v].close();
+      }
+    }
+  }
+
+  @Test
+  public void testMissingPairKeepsDefault() throws IOException {
+    Path file = Files.createTempDirectory("genome").resolve("test.genome");
+    Files.write(file, List.of(HEADER, genomeLine("a0", "b1", 0.25, 0.5, 1)));
+    try (DistanceStore pihats = store(1, 2); DistanceStore dsts = store(1, 2);
+         DistanceStore ratios = store(1, 2)) {
+      GenomeParser.parse(file, GenomeParser.dataStart(file), new String[] {"a0"},
+                         new String[] {"b0", "b1"}, pihats, dsts, ratios);
+      assertEquals(-999, pihats.get(0, 0));
+      assertEquals(0.75, pihats.get(0, 1));
+      assertEquals(0.5, dsts.get(0, 1));
+      assertEquals(2, ratios.get(0, 1));
+    }
+  }
+
+  @Test
+  public void testShortLineIsRejected() throws IOException {
+    Path file = Files.createTempDirectory("genome").resolve("test.genome");
+    Files.write(file, List.of(HEADER, "1 a0 1 b0 0"));
+    try (DistanceStore pihats = store(1, 1); DistanceStore dsts = store(1, 1);
+         DistanceStore ratios = store(1, 1)) {
+      assertThrows(IOException.class,
+                   () -> GenomeParser.parse(file, GenomeParser.dataStart(file),
+                                            new String[] {"a0"}, new String[] {"b0"}, pihats,
+                                            dsts, ratios));
+    }
+  }
+}
@@ -0,0 +1,50 @@
+package org.pankratzlab.internal.gwas;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.pankratzlab.internal.gwas.Fixtures.stratum;
+
+public class IndexSortTest {
+
+  @Test
+  public void testOrderMatchesAStableSort() {
+    Random random = new Random(42);
+    double[] values = new double[5000];
+    for (int i = 0; i < values.length; i++) {
+      // few distinct values, so most of them are ties
+      values[i] = random.nextInt(50) - 25;
+    }
+    values[7] = Double.NaN;
+    values[8] = -0.0;
+    values[9] = Double.NEGATIVE_INFINITY;
+    int[] expected = IntStream.range(0, values.length).boxed()
+                              .sorted(Comparator.comparingDouble(i -> values[i]))
+                              .mapToInt(Integer::intValue).toArray();
+    assertArrayEquals(expected, IndexSort.order(values));
+  }
+
+  @Test
+  public void testPairsAreVisitedByDistanceThenCaseThenSlot() {
+    Stratum stratum = stratum("test", new double[3], new double[4]);
+    StratumMatches candidates = new StratumMatches(stratum, 3);
+    candidates.set(0, 0, 0, 2.0);
+    candidates.set(0, 1, 1, 1.0);
+    candidates.set(1, 0, 2, 1.0);
+    candidates.set(1, 2, 3, 0.5);
+    candidates.set(2, 0, 0, 1.0);
+    candidates.set(2, 1, 1, 1.0);
+
+    List<String> visited = new ArrayList<>();
+    IndexSort.forEachPair(candidates, new int[] {2, 0, 1},
+                          (position, slot) -> visited.add(position + ":" + slot));
+    assertEquals(List.of("2:2", "0:0", "0:1", "1:1", "2:0", "1:0"), visited);
+  }
+}
@@ -0,0 +1,222 @@
+package org.pankratzlab.internal.gwas;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.pankratzlab.internal.gwas.Fixtures.LOG;
+import static org.pankratzlab.internal.gwas.Fixtures.randomStratum;
+
+public class KDSearchTreeTest {
+
+  @Test
+  public void testNearestMatchesBruteForce() {
+    Random random = new Random(1);
+    double[][] points = new double[500][3];
+    for (double[] p : points) {
+      for (int d = 0; d < p.length; d++) {
+        p[d] = random.nextGaussian();
+      }
+    }
+    KDSearchTree tree = new KDSearchTree(points);
+
+    for (int q = 0; q < 50; q++) {
+      double[] query = new double[] {random.nextGaussian(), random.nextGaussian(),
+                                     random.nextGaussian()};
+      int[] expected = IntStream.range(0, points.length).boxed()
+                                .sorted(Comparator.comparingDouble(i -> KDSearchTree.squaredDistance(query,
+                                                                                                     points[i])))
+                                .limit(10).mapToInt(Integer::intValue).toArray();
+      Neighbors neighbors = tree.nearest(query, 10, Double.POSITIVE_INFINITY);
+      int[] actual = IntStream.range(0, neighbors.size()).map(neighbors::getIndex).toArray();
+      assertArrayEquals(expected, actual);
+    }
+  }
+
+  @Test
+  public void testNearestRespectsMaxDistance() {
+    double[][] points = new double[][] {{0}, {1}, {2}, {3}, {10}};
+    KDSearchTree tree = new KDSearchTree(points);
+
+    Neighbors neighbors = tree.nearest(new double[] {0.4}, 5, 1.5);
+    assertEquals(2, neighbors.size());
+    assertEquals(0, neighbors.getIndex(0));
+    assertEquals(1, neighbors.getIndex(1));
+    assertEquals(0.6, neighbors.getDistance(1), 1e-12);
+
+    assertEquals(0, tree.nearest(new double[] {6}, 3, 2).size());
+  }
+
+  @Test
+  public void testCaliperParsing() {
+    Caliper absolute = Caliper.parse("1.5");
+    assertFalse(absolute.isInStandardDeviations());
+    assertEquals(1.5, absolute.resolve(10));
+
+    Caliper sd = Caliper.parse("0.5sd");
+    assertTrue(sd.isInStandardDeviations());
+    assertEquals(2.0, sd.resolve(4));
+    assertEquals("0.5sd", sd.label());
+
+    assertFalse(Caliper.parse("none").isSet());
+    assertThrows(IllegalArgumentException.class, () -> Caliper.parse("-1"));
+    assertThrows(IllegalArgumentException.class, () -> Caliper.parse("wide"));
+  }
+
+  @Test
+  public void testHilbertOrderVisitsAdjacentCells() {
+    int bits = 3;
+    int side = 1 << bits;
+    double[][] grid = new double[side * side * side][];
+    int n = 0;
+    for (int x = 0; x < side; x++) {
+      for (int y = 0; y < side; y++) {
+        for (int z = 0; z < side; z++) {
+          grid[n++] = new double[] {x, y, z};
+        }
+      }
+    }
+    long[] keys = Arrays.stream(grid)
+                        .mapToLong(p -> SpaceFillingCurve.hilbertKey(new long[] {(long) p[0],
+                                                                                 (long) p[1],
+                                                                                 (long) p[2]},
+                                                                     bits))
+                        .toArray();
+    int[] order = IntStream.range(0, grid.length).boxed()
+                           .sorted(Comparator.comparingLong(i -> keys[i]))
+                           .mapToInt(Integer::intValue).toArray();
+    assertEquals(grid.length, Arrays.stream(keys).distinct().count());
+    for (int i = 1; i < order.length; i++) {
+      double[] a = grid[order[i - 1]];
+      double[] b = grid[order[i]];
+      assertEquals(1.0, KDSearchTree.squaredDistance(a, b), 1e-12);
+    }
+  }
+
+  @Test
+  public void testCandidatesIndependentOfSampleOrder() {
+    Stratum stratum = randomStratum("all", 400, 2, 4, 7);
+    StratumMatches fileOrder = TreeMatcher.findCandidates(stratum, 5, Caliper.NONE,
+                                                          SpaceFillingCurve.NONE, LOG);
+    for (SpaceFillingCurve curve : new SpaceFillingCurve[] {SpaceFillingCurve.MORTON,
+                                                            SpaceFillingCurve.HILBERT}) {
+      StratumMatches reordered = TreeMatcher.findCandidates(stratum, 5, Caliper.NONE, curve,
+                                                            TreeSearch.SINGLE, LOG);
+      for (int c = 0; c < stratum.numCases(); c++) {
+        for (int i = 0; i < 5; i++) {
+          assertEquals(fileOrder.getControl(c, i), reordered.getControl(c, i));
+          assertEquals(fileOrder.getDistance(c, i), reordered.getDistance(c, i));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testDualTreeMatchesSingleTree() {
+    Random random = new Random(3);
+    double[][] queries = new double[3000][3];
+    double[][] references = new double[2000][3];
+    for (double[][] points : new double[][][] {queries, references}) {
+      for (double[] p : points) {
+        for (int d = 0; d < p.length; d++) {
+          p[d] = random.nextGaussian();
+        }
+      }
+    }
+    KDSearchTree referenceTree = new KDSearchTree(references);
+    for (double maxDistance : new double[] {Double.POSITIVE_INFINITY, 0.3}) {
+      Neighbors[] all = DualTreeSearch.allNearest(new KDSearchTree(queries), referenceTree, 7,
+                                                  maxDistance);
+      for (int q = 0; q < queries.length; q++) {
+        Neighbors expected = referenceTree.nearest(queries[q], 7, maxDistance);
+        assertEquals(expected.size(), all[q].size());
+        for (int i = 0; i < expected.size(); i++) {
+          assertEquals(expected.getIndex(i), all[q].getIndex(i));
+          assertEquals(expected.getDistance(i), all[q].getDistance(i), 1e-12);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testRandomProjectionForestRecall() {
+    Random random = new Random(11);
+    double[][] points = new double[3000][12];
+    for (double[] p : points) {
+      for (int d = 0; d < p.length; d++) {
+        p[d] = random.nextGaussian();
+      }
+    }
+    KDSearchTree exact = new KDSearchTree(points);
+    RandomProjectionForest forest = new RandomProjectionForest(points, 10, 5);
+    int k = 10;
+    int found = 0;
+    int numQueries = 100;
+    for (int q = 0; q < numQueries; q++) {
+      double[] query = points[random.nextInt(points.length)].clone();
+      query[0] += 0.1;
+      Neighbors expected = exact.nearest(query, k, Double.POSITIVE_INFINITY);
+      Neighbors approximate = forest.nearest(query, k, 50 * k, Double.POSITIVE_INFINITY, true);
+      for (int i = 0; i < approximate.size(); i++) {
+        int index = approximate.getIndex(i);
+        assertEquals(Math.sqrt(KDSearchTree.squaredDistance(query, points[index])),
+                     approximate.getDistance(i), 1e-12);
+        for (int j = 0; j < expected.size(); j++) {
+          if (expected.getIndex(j) == index) {
+            found++;
+          }
+        }
+      }
+      // gathering every point makes the search exact
+      Neighbors all = forest.nearest(query, k, points.length, Double.POSITIVE_INFINITY, true);
+      for (int i = 0; i < k; i++) {
+        assertEquals(expected.getIndex(i), all.getIndex(i));
+      }
+    }
+    assertTrue(found >= 0.8 * k * numQueries, "recall was " + found / (double) (k * numQueries));
+  }
+
+  @Test
+  public void testAdaptiveDepthResolvesLikeFixedDepth() {
+    Random random = new Random(5);
+    Stratum stratum = new Stratum("all");
+    for (int i = 0; i < 1200; i++) {
+      // cases crowd one corner, so their nearest controls are contested
+      boolean isCase = i % 3 == 0;
+      double scale = isCase ? 0.3 : 1;
+      stratum.add("s" + i, new double[] {scale * random.nextGaussian(),
+                                         scale * random.nextGaussian()},
+                  isCase ? Stratum.CASE_STATUS : Stratum.CONTROL_STATUS);
+    }
+    int numSelect = 2;
+    int maxCandidates = 40;
+    StratumMatches fixed = TreeMatcher.resolveDuplicates(TreeMatcher.findCandidates(stratum,
+                                                                                    maxCandidates,
+                                                                                    Caliper.NONE,
+                                                                                    LOG),
+                                                         numSelect, LOG);
+    StratumMatches adaptiveCandidates = TreeMatcher.findAdaptiveCandidates(stratum, numSelect,
+                                                                           maxCandidates,
+                                                                           Caliper.NONE,
+                                                                           SpaceFillingCurve.HILBERT,
+                                                                           TreeSearch.AUTO, LOG);
+    StratumMatches adaptive = TreeMatcher.resolveDuplicates(adaptiveCandidates, numSelect, LOG);
+    int stored = 0;
+    for (int c = 0; c < stratum.numCases(); c++) {
+      stored += adaptiveCandidates.getDepth(c);
+      for (int i = 0; i < numSelect; i++) {
+        assertEquals(fixed.getControl(c, i), adaptive.getControl(c, i));
+      }
+    }
+    assertTrue(stored < maxCandidates * stratum.numCases());
+    assertTrue(adaptiveCandidates.numSelect() > TreeMatcher.ADAPTIVE_START_MULTIPLIER * numSelect);
+  }
+}
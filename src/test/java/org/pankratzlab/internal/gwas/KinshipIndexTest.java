@@ -0,0 +1,59 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class KinshipIndexTest {
+
+  @Test
+  public void testPairsAreSymmetricAndGrowPastTheTable() {
+    KinshipIndex kinship = new KinshipIndex();
+    for (int i = 0; i < 5000; i++) {
+      kinship.add("s" + i, "s" + (i + 1));
+    }
+    kinship.add("s1", "s0");
+    kinship.add("s7", "s7");
+    assertEquals(5000, kinship.numPairs());
+    assertEquals(5001, kinship.numSamples());
+    for (int i = 0; i < 5000; i++) {
+      assertTrue(kinship.related("s" + i, "s" + (i + 1)));
+      assertTrue(kinship.related("s" + (i + 1), "s" + i));
+      assertFalse(kinship.related("s" + i, "s" + (i + 2)));
+    }
+    assertFalse(kinship.related("s7", "s7"));
+    assertFalse(kinship.related("s7", "unrelated"));
+    assertEquals(-1, kinship.sampleIndex("unrelated"));
+    assertFalse(kinship.related(-1, kinship.sampleIndex("s3")));
+  }
+
+  @Test
+  public void testEmptyIndexCannotChange() {
+    assertFalse(KinshipIndex.EMPTY.related("a", "b"));
+    assertThrows(UnsupportedOperationException.class, () -> KinshipIndex.EMPTY.add("a", "b"));
+  }
+
+  @Test
+  public void testLoadsPairsAtOrAboveThreshold() throws IOException {
+    Path file = Files.createTempDirectory("kinship").resolve("test.genome");
+    Files.write(file,
+                List.of("   FID1   IID1   FID2   IID2 RT  EZ  Z0  Z1  Z2  PI_HAT PHE  DST  PPC  RATIO",
+                        "  f1  a  f1  b  OT  0  0.0  1.0  0.0  0.5000  -1  0.8  1.0  NA",
+                        "  f2  c  f3  d  UN  NA  1.0  0.0  0.0  0.0100  -1  0.6  0.1  1.5",
+                        "",
+                        "  f2  c  f4  e  UN  NA  0.6  0.4  0.0  0.1875  -1  0.7  0.9  2.0"));
+    KinshipIndex kinship = KinshipIndex.load(file, KinshipIndex.DEFAULT_PIHAT);
+    assertEquals(2, kinship.numPairs());
+    assertTrue(kinship.related("b", "a"));
+    assertTrue(kinship.related("c", "e"));
+    assertFalse(kinship.related("c", "d"));
+  }
+}
@@ -0,0 +1,49 @@
+package org.pankratzlab.internal.gwas;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.pankratzlab.internal.gwas.Fixtures.LOG;
+
+public class MatchCacheTest {
+
+  @Test
+  public void testLeastRecentlyUsedEvictedOverBudget() {
+    MatchCache cache = new MatchCache(3 * 1024);
+    AtomicInteger loads = new AtomicInteger();
+    for (String key : new String[] {"a", "b", "c"}) {
+      cache.get(key, () -> key + loads.incrementAndGet(), v -> 1024);
+    }
+    // touch a, so b is the least recently used when d pushes the cache over its budget
+    assertEquals("a1", cache.get("a", () -> "reloaded", v -> 1024));
+    cache.get("d", () -> "d" + loads.incrementAndGet(), v -> 1024);
+    assertNull(cache.getIfPresent("b"));
+    assertEquals("a1", cache.getIfPresent("a"));
+    assertEquals(4, loads.get());
+  }
+
+  @Test
+  public void testServerAnswersStatsAndRejectsBadRequests() throws Exception {
+    Path workDir = Files.createTempDirectory("matchServer");
+    MatchServer server = new MatchServer(0, 1024 * 1024, 2, workDir, workDir, LOG);
+    server.start();
+    try {
+      MatchClient client = new MatchClient("localhost", server.getPort());
+      assertTrue(client.send("stats", List.of()).contains("budgetBytes\t1048576"));
+      assertThrows(java.io.IOException.class,
+                   () -> client.send("match", List.of("factors=PC1:1")));
+      String load = client.loadTest("stats", List.of(), 20, 4);
+      assertTrue(load.contains("errors\t0"));
+    } finally {
+      server.stop();
+    }
+  }
+}
@@ -0,0 +1,43 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.pankratzlab.internal.gwas.Fixtures.LOG;
+import static org.pankratzlab.internal.gwas.Fixtures.stratum;
+
+public class MatchCheckpointTest {
+
+  @Test
+  public void testResumeSkipsOnlyUnchangedStrata() throws IOException {
+    Path dir = Files.createTempDirectory("checkpoint");
+    Stratum a = stratum("a", new double[] {0}, new double[] {1});
+    Stratum b = stratum("b", new double[] {5}, new double[] {6});
+    MatchCheckpoint checkpoint = MatchCheckpoint.open(dir, "settings", LOG);
+    Files.write(checkpoint.prepare(a).resolve("match.txt"),
+                List.of("id\tcontrol_1_id\tcontrol_1_distance", "case0\tcontrol0\t1.0"));
+    checkpoint.markFinished(a);
+    Files.write(checkpoint.prepare(b).resolve("match.txt"),
+                List.of("id\tcontrol_1_id\tcontrol_1_distance\tcontrol_2_id\tcontrol_2_distance",
+                        "case0\tcontrol0\t2.0\tNA\tNA"));
+    checkpoint.markFinished(b);
+
+    MatchCheckpoint resumed = MatchCheckpoint.open(dir, "settings", LOG);
+    assertTrue(resumed.isFinished(a));
+    assertFalse(resumed.isFinished(stratum("b", new double[] {6}, new double[] {7})));
+    assertFalse(MatchCheckpoint.open(dir, "other settings", LOG).isFinished(a));
+
+    resumed.merge(List.of(a, b), List.of("match.txt", "missing.txt"), dir, LOG);
+    List<String> merged = Files.readAllLines(dir.resolve("match.txt"));
+    assertEquals(3, merged.size());
+    assertEquals("case0\tcontrol0\t1.0\tNA\tNA", merged.get(1));
+    assertFalse(Files.exists(dir.resolve("missing.txt")));
+  }
+}
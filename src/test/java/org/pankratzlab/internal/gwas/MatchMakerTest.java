@@ -0,0 +1,136 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.pankratzlab.internal.gwas.Fixtures.LOG;
+import static org.pankratzlab.internal.gwas.Fixtures.stratum;
+
+public class MatchMakerTest {
+  /** case0 was matched to control0 in the finished run; case1 is new and closest to it too */
+  private static Stratum cohort() {
+    return stratum("a", new double[] {0, 0.05}, new double[] {0.1, 0.3, 5});
+  }
+
+  private static Path finishedRun() throws IOException {
+    Path dir = Files.createTempDirectory("incremental");
+    Stratum finished = stratum("a", new double[] {0}, new double[] {0.1});
+    // the naive output lists every candidate, of which case0 only had one
+    StratumMatches candidates = new StratumMatches(finished, 2);
+    candidates.set(0, 0, 0, 0.1);
+    MatchOutput.writeMatchFile(List.of(candidates), dir.resolve("match.naive.txt").toString(), 2);
+    MatchOutput.writeStatusFile(List.of(candidates), dir.resolve("status.naive.txt").toString(),
+                                false);
+    StratumMatches optimized = new StratumMatches(finished, 1);
+    optimized.set(0, 0, 0, 0.1);
+    MatchOutput.writeMatchFile(List.of(optimized), dir.resolve("match.optimized.txt").toString(),
+                               1);
+    MatchOutput.writeStatusFile(List.of(optimized), dir.resolve("status.optimized.txt").toString(),
+                                false);
+    return dir;
+  }
+
+  private static void matchIncrementally(Path dir) throws IOException {
+    MatchOptions options = new MatchOptions();
+    options.incremental = true;
+    PreparedCohort cohort = new PreparedCohort(dir.resolve("samples.txt"), new HashMap<>(),
+                                               List.of(cohort()));
+    MatchMaker.runMatching(dir, cohort, null, 2, 1, 1, false, options, LOG);
+  }
+
+  @Test
+  public void testIncrementalMatchAppendsNewCasesWithUnusedControls() throws IOException {
+    Path dir = finishedRun();
+    matchIncrementally(dir);
+    List<String> naive = Files.readAllLines(dir.resolve("match.naive.txt"));
+    assertEquals(List.of("case0\tcontrol0\t0.1\tNA\tNA", "case1\tcontrol1\t0.25\tcontrol2\t4.95"),
+                 naive.subList(1, naive.size()));
+    // control0 is taken by case0, so case1 gets the next closest control
+    List<String> optimized = Files.readAllLines(dir.resolve("match.optimized.txt"));
+    assertEquals(List.of("case0\tcontrol0\t0.1", "case1\tcontrol1\t0.25"),
+                 optimized.subList(1, optimized.size()));
+    List<String> status = Files.readAllLines(dir.resolve("status.optimized.txt"));
+    assertEquals(List.of("case0", "control0", "case1", "control1"),
+                 status.stream().skip(1).map(l -> l.split("\t")[0])
+                       .collect(Collectors.toList()));
+    try (Stream<Path> files = Files.list(dir)) {
+      assertTrue(files.noneMatch(f -> f.getFileName().toString().startsWith("partial.")));
+    }
+
+    // a second run finds no new cases and leaves the output as it is
+    List<String> before = Files.readAllLines(dir.resolve("match.optimized.txt"));
+    matchIncrementally(dir);
+    assertEquals(before, Files.readAllLines(dir.resolve("match.optimized.txt")));
+  }
+
+  @Test
+  public void testInterruptedMovesAreFinishedFirst() throws IOException {
+    Path dir = finishedRun();
+    matchIncrementally(dir);
+    // as if the run had stopped after writing every file, with only some of them moved
+    List<String> updated = Files.readAllLines(dir.resolve("match.optimized.txt"));
+    Path partial = dir.resolve("partial.match.optimized.txt");
+    Files.move(dir.resolve("match.optimized.txt"), partial);
+    Files.write(dir.resolve("match.optimized.txt"), updated.subList(0, 2));
+    Files.write(dir.resolve(MatchMaker.PENDING_MOVES_TXT),
+                List.of(dir.resolve("partial.match.naive.txt") + "\t"
+                        + dir.resolve("match.naive.txt"),
+                        partial + "\t" + dir.resolve("match.optimized.txt")));
+
+    matchIncrementally(dir);
+    assertEquals(updated, Files.readAllLines(dir.resolve("match.optimized.txt")));
+    assertFalse(Files.exists(partial));
+    assertFalse(Files.exists(dir.resolve(MatchMaker.PENDING_MOVES_TXT)));
+  }
+
+  @Test
+  public void testManyCasesPerControlUseTheDualTreeSearch() throws IOException {
+    Path dir = Files.createTempDirectory("dual");
+    PreparedCohort cohort = new PreparedCohort(dir.resolve("samples.txt"), new HashMap<>(),
+                                               List.of(cohort()));
+    // the kdmatch tree has no dual-tree search, so the in-project tree matches the stratum
+    assertTrue(TreeSearch.AUTO.useDualTree(cohort()));
+    MatchMaker.runMatching(dir, cohort, null, 2, 1, 1, false, new MatchOptions(), LOG);
+    List<String> naive = Files.readAllLines(dir.resolve("match.naive.txt"));
+    assertEquals(List.of("case0\tcontrol0\t0.1\tcontrol1\t0.3",
+                         "case1\tcontrol0\t0.05\tcontrol1\t0.25"),
+                 naive.subList(1, naive.size()));
+    assertTrue(Files.exists(dir.resolve("match.optimized.txt")));
+  }
+
+  @Test
+  public void testKinshipIsRejectedForPropensityMatching() throws IOException {
+    Path dir = Files.createTempDirectory("propensity");
+    MatchOptions options = new MatchOptions();
+    options.engine = MatchEngine.PROPENSITY;
+    options.kinship = new KinshipIndex();
+    options.kinship.add("case0", "control0");
+    PreparedCohort cohort = new PreparedCohort(dir.resolve("samples.txt"), new HashMap<>(),
+                                               List.of(cohort()));
+    assertThrows(IllegalArgumentException.class,
+                 () -> MatchMaker.runMatching(dir, cohort, null, 2, 1, 1, false, options, LOG));
+  }
+
+  @Test
+  public void testSettingsChangeWithTheKinshipFile() throws IOException {
+    Path kinship = Files.createTempDirectory("kinship").resolve("plink.genome");
+    Files.write(kinship, List.of("FID1 IID1 FID2 IID2"));
+    MatchOptions options = new MatchOptions();
+    options.kinshipFile = kinship;
+    String before = options.toString();
+    Files.write(kinship, List.of("FID1 IID1 FID2 IID2", "a case0 a control0"));
+    assertNotEquals(before, options.toString());
+  }
+}
@@ -0,0 +1,89 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.pankratzlab.internal.gwas.Fixtures.LOG;
+
+public class MatchMetricsTest {
+
+  @Test
+  @SuppressWarnings("try")
+  public void testPhasesAndCountersWritten() throws IOException {
+    MatchMetrics metrics = new MatchMetrics();
+    for (int i = 0; i < 2; i++) {
+      try (MatchMetrics.Phase phase = metrics.start(MatchMetrics.KNN, "sex=\"1\"")) {
+        double[] allocated = new double[1000];
+        assertEquals(0, allocated[0]);
+      }
+    }
+    metrics.count(MatchMetrics.CANDIDATES, "a", 5);
+    metrics.count(MatchMetrics.CANDIDATES, "b", 7);
+    assertEquals(12, metrics.count(MatchMetrics.CANDIDATES));
+    assertTrue(metrics.wallNanos(MatchMetrics.KNN) > 0);
+
+    Path dir = Files.createTempDirectory("metrics");
+    metrics.write(dir, LOG);
+    String json = Files.readString(dir.resolve(MatchMetrics.JSON_FILE));
+    assertTrue(json.contains("{\"phase\": \"knn\", \"stratum\": \"sex=\\\"1\\\"\", \"calls\": 2"));
+    assertTrue(json.contains("{\"counter\": \"candidates\", \"stratum\": \"b\", \"value\": 7}"));
+    String prometheus = Files.readString(dir.resolve(MatchMetrics.PROMETHEUS_FILE));
+    assertTrue(prometheus.contains("matchmaker_phase_calls_total{phase=\"knn\",stratum=\"sex=\\\"1\\\"\"} 2.0"));
+    assertTrue(prometheus.contains("matchmaker_count_total{counter=\"candidates\",stratum=\"a\"} 5"));
+  }
+
+  @Test
+  @SuppressWarnings("try")
+  public void testNoneRecordsNothing() throws IOException {
+    try (MatchMetrics.Phase phase = MatchMetrics.NONE.start(MatchMetrics.PARSE)) {
+      MatchMetrics.NONE.count(MatchMetrics.CASES, MatchMetrics.ALL_STRATA, 1);
+    }
+    assertEquals(0, MatchMetrics.NONE.count(MatchMetrics.CASES));
+    Path dir = Files.createTempDirectory("metrics");
+    MatchMetrics.NONE.write(dir, LOG);
+    assertFalse(Files.exists(dir.resolve(MatchMetrics.JSON_FILE)));
+  }
+
+  @Test
+  @SuppressWarnings("try")
+  public void testPhaseEmitsFlightRecorderEvent() throws IOException {
+    Path file = Files.createTempDirectory("metrics").resolve("phases.jfr");
+    try (Recording recording = new Recording()) {
+      recording.enable(MatchEvent.NAME).withThreshold(Duration.ZERO);
+      recording.start();
+      // metrics are not collected, but the event is still emitted
+      try (MatchMetrics.Phase phase = MatchMetrics.NONE.start(MatchMetrics.OPTIMIZE, "1_2")
+                                                       .stratum(10, 40).k(3)
+                                                       .contestedControls(7)) {
+        assertEquals(0, MatchMetrics.NONE.wallNanos(MatchMetrics.OPTIMIZE));
+      }
+      recording.stop();
+      recording.dump(file);
+    }
+    List<RecordedEvent> events = RecordingFile.readAllEvents(file).stream()
+                                              .filter(e -> e.getEventType().getName()
+                                                            .equals(MatchEvent.NAME))
+                                              .collect(Collectors.toList());
+    assertEquals(1, events.size());
+    RecordedEvent event = events.get(0);
+    assertEquals(MatchMetrics.OPTIMIZE, event.getString("phase"));
+    assertEquals("1_2", event.getString("stratum"));
+    assertEquals(10, event.getLong("cases"));
+    assertEquals(40, event.getLong("controls"));
+    assertEquals(3, event.getInt("k"));
+    assertEquals(7, event.getLong("contestedControls"));
+  }
+}
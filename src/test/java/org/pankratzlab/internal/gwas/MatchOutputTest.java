@@ -0,0 +1,53 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MatchOutputTest {
+
+  @Test
+  public void testAppendKeepsExistingMatches() throws IOException {
+    Path dir = Files.createTempDirectory("matchOutput");
+    Stratum first = new Stratum("a");
+    first.add("case1", new double[] {0}, Stratum.CASE_STATUS);
+    first.add("control1", new double[] {1}, Stratum.CONTROL_STATUS);
+    first.add("control2", new double[] {2}, Stratum.CONTROL_STATUS);
+    StratumMatches existing = new StratumMatches(first, 2);
+    existing.set(0, 0, 0, 1.0);
+    String matchFile = dir.resolve("match.optimized.txt").toString();
+    String statusFile = dir.resolve("status.optimized.txt").toString();
+    MatchOutput.writeMatchFile(List.of(existing), matchFile, 2);
+    MatchOutput.writeStatusFile(List.of(existing), statusFile, false);
+
+    Set<String> matched = MatchOutput.readStatusFileIds(statusFile);
+    assertEquals(Set.of("case1", "control1"), matched);
+
+    Stratum added = new Stratum("a");
+    added.add("case2", new double[] {2.5}, Stratum.CASE_STATUS);
+    added.add("control2", new double[] {2}, Stratum.CONTROL_STATUS);
+    StratumMatches appended = new StratumMatches(added, 1);
+    appended.set(0, 0, 0, 0.5);
+    String tempMatchFile = MatchOutput.appendToMatchFile(List.of(appended), matchFile);
+    String tempStatusFile = MatchOutput.appendToStatusFile(List.of(appended), statusFile);
+    MatchOutput.moveAtomically(tempMatchFile, matchFile);
+    MatchOutput.moveAtomically(tempStatusFile, statusFile);
+
+    List<String> lines = Files.readAllLines(Path.of(matchFile));
+    assertEquals(3, lines.size());
+    assertTrue(lines.get(1).startsWith("case1\tcontrol1"));
+    // the new line is padded to the width of the existing header
+    assertEquals("case2\tcontrol2\t0.5\tNA\tNA", lines.get(2));
+    assertEquals(Set.of("case1", "control1", "case2", "control2"),
+                 MatchOutput.readStatusFileIds(statusFile));
+    assertFalse(Files.exists(Path.of(tempMatchFile)));
+  }
+}
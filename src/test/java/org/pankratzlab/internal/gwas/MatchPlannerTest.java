@@ -0,0 +1,88 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.pankratzlab.internal.gwas.Fixtures.LOG;
+import static org.pankratzlab.internal.gwas.Fixtures.randomStratum;
+
+public class MatchPlannerTest {
+  private static final long HEAP = 8L << 30;
+  /** the estimates scale with the threads, so the tests do not depend on the machine */
+  private static final int THREADS = 8;
+
+  private static MatchEngine choose(long cases, long controls, int dimensions, long heap) {
+    MatchOptions options = new MatchOptions();
+    options.engine = MatchEngine.AUTO;
+    return MatchPlanner.choose(null, MatchPlanner.estimates(cases, controls, dimensions, 20,
+                                                            THREADS, options),
+                               heap).engine;
+  }
+
+  @Test
+  public void testBruteForceFindsTheTreeCandidates() {
+    Stratum stratum = randomStratum("s", 2000, 5, 4, 1);
+    for (Caliper caliper : new Caliper[] {Caliper.NONE, Caliper.parse("0.3sd")}) {
+      StratumMatches expected = TreeMatcher.findCandidates(stratum, 6, caliper, LOG);
+      StratumMatches brute = BruteForceMatcher.findCandidates(stratum, 6, caliper, LOG);
+      for (int c = 0; c < stratum.numCases(); c++) {
+        for (int i = 0; i < 6; i++) {
+          assertEquals(expected.getControl(c, i), brute.getControl(c, i));
+          assertEquals(expected.getDistance(c, i), brute.getDistance(c, i), 1e-9);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testEngineBySize() {
+    assertEquals(MatchEngine.BRUTE, choose(5, 40, 10, HEAP));
+    assertEquals(MatchEngine.KDTREE, choose(20000, 200000, 4, HEAP));
+    assertEquals(MatchEngine.ANN, choose(500000, 5000000, 30, HEAP));
+    // a tree that does not fit in the heap falls back to brute force, which only copies the
+    // controls, and with no room for any engine the smallest is used
+    assertEquals(MatchEngine.BRUTE, choose(20000, 200000, 4, 20L << 20));
+    assertEquals(MatchEngine.BRUTE, choose(20000, 200000, 4, 1L << 20));
+  }
+
+  @Test
+  public void testEstimatesUseTheConfiguredThreads() {
+    MatchOptions options = new MatchOptions();
+    List<MatchPlanner.Estimate> one = MatchPlanner.estimates(1000, 10000, 4, 20, 1, options);
+    List<MatchPlanner.Estimate> many = MatchPlanner.estimates(1000, 10000, 4, 20, THREADS,
+                                                              options);
+    assertEquals(one.get(0).seconds / THREADS, many.get(0).seconds, 1e-12);
+    assertEquals(one.get(0).bytes, many.get(0).bytes);
+  }
+
+  @Test
+  public void testFixedEngineIsKept() {
+    MatchOptions options = new MatchOptions();
+    options.engine = MatchEngine.ANN;
+    Stratum stratum = randomStratum("s", 50, 3, 4, 2);
+    MatchPlanner.StratumPlan plan = MatchPlanner.plan(stratum, 10, THREADS, options, HEAP);
+    assertEquals(MatchEngine.ANN, plan.engine);
+    assertEquals("engine=ann", plan.reason);
+  }
+
+  @Test
+  public void testExplainWritesEveryStratum() throws IOException {
+    MatchOptions options = new MatchOptions();
+    options.engine = MatchEngine.AUTO;
+    List<Stratum> strata = List.of(randomStratum("s", 100, 3, 4, 3),
+                                   randomStratum("s", 400, 3, 4, 4));
+    List<MatchPlanner.StratumPlan> plans = MatchPlanner.planAll(strata, 10, THREADS, options);
+    Path file = Files.createTempDirectory("plan").resolve(MatchPlanner.PLAN_FILE);
+    MatchPlanner.explain(plans, file, LOG);
+    List<String> lines = Files.readAllLines(file);
+    assertEquals(MatchPlanner.PLAN_FILE_HEADER, lines.get(0));
+    assertEquals(3, lines.size());
+    assertTrue(lines.get(1).startsWith("s\t25\t75\t3\tbrute\t"));
+  }
+}
@@ -0,0 +1,65 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.pankratzlab.internal.gwas.Fixtures.LOG;
+
+public class MatchProgressTest {
+
+  @Test
+  public void testStatusFileListsRunTasksAndRunningStrata() throws IOException {
+    MatchProgress progress = new MatchProgress();
+    MatchProgress.Task matched = progress.task(MatchProgress.CASES_MATCHED, 100);
+    matched.add(40);
+    assertEquals(40, progress.task(MatchProgress.CASES_MATCHED, 0).done());
+    MatchProgress.Task running = progress.task(MatchProgress.CASES_SEARCHED, "1_2", 10);
+    running.increment();
+    progress.task(MatchProgress.CASES_SEARCHED, "2_2", 5).finish();
+    progress.task(MatchProgress.SAMPLES_PARSED, 0).add(500);
+
+    Path file = Files.createTempDirectory("progress").resolve(MatchProgress.STATUS_FILE);
+    progress.writeStatus(file, LOG);
+    List<String> lines = Files.readAllLines(file);
+    assertEquals(MatchProgress.STATUS_FILE_HEADER, lines.get(0));
+    // the finished stratum is dropped
+    assertEquals(4, lines.size());
+    assertTrue(lines.get(1).startsWith("cases_matched\tall\t40\t100\t40.0\t"));
+    assertTrue(lines.get(1).endsWith("\trunning"));
+    assertTrue(lines.get(2).startsWith("cases_searched\t1_2\t1\t10\t10.0\t"));
+    assertTrue(lines.get(3).startsWith("samples_parsed\tall\t500\t0\tNA\t"));
+    assertTrue(lines.get(3).endsWith("\t-1\trunning"));
+  }
+
+  @Test
+  public void testDescribe() {
+    MatchProgress progress = new MatchProgress();
+    MatchProgress.Task task = progress.task(MatchProgress.PAIRING_STEPS, "distances", 1000);
+    task.add(250);
+    String description = MatchProgress.describe(task);
+    assertTrue(description.startsWith("pairing_steps distances: 250 of 1000 (25.0%), "));
+    assertTrue(description.endsWith(" left"));
+    assertEquals("59s", MatchProgress.formatSeconds(59));
+    assertEquals("2m 05s", MatchProgress.formatSeconds(125));
+    assertEquals("10h 00m", MatchProgress.formatSeconds(36000));
+  }
+
+  @Test
+  public void testReporterWritesStatusFileUntilClosed() throws IOException {
+    Path file = Files.createTempDirectory("progress").resolve(MatchProgress.STATUS_FILE);
+    try (MatchProgress progress = new MatchProgress()) {
+      progress.start(file, 1, LOG);
+      progress.task(MatchProgress.STRATA, 3).add(3);
+    }
+    List<String> lines = Files.readAllLines(file);
+    assertEquals(2, lines.size());
+    assertTrue(lines.get(1).startsWith("strata\tall\t3\t3\t100.0\t"));
+    assertTrue(lines.get(1).endsWith("\tfinished"));
+  }
+}
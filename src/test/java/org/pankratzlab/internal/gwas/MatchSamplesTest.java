@@ -0,0 +1,288 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MatchSamplesTest {
+  /** id, status, PC1, PC2, sex */
+  private static final String[][] SAMPLES = {{"c1", "1", "0", "0", "M"},
+                                             {"c2", "1", "4", "0", "M"},
+                                             {"c3", "1", "0", "0", "F"},
+                                             {"c4", "1", "9", "9", "U"},
+                                             {"k1", "0", "0.5", "0", "M"},
+                                             {"k2", "0", "3", "1", "M"},
+                                             {"k3", "0", "7", "2", "M"},
+                                             {"k4", "0", "0.2", "0.1", "F"},
+                                             {"k5", "0", "6", "5", "F"},
+                                             {"k6", "0", "0.1", "0", "U2"}};
+
+  /**
+   * Write the samples and factors files of {@link #SAMPLES} to a new directory
+   * @return the directory, ending in a separator as {@link MatchSamples} expects
+   */
+  private static String writeInputs(String[][] samples, List<String> extraSamples,
+                                    List<String> extraFactors) throws IOException {
+    Path dir = Files.createTempDirectory("stratified");
+    List<String> samplesLines = new ArrayList<>();
+    List<String> factorLines = new ArrayList<>();
+    samplesLines.add("id\tstatus");
+    factorLines.add("id\tPC1\tPC2\tsex");
+    for (String[] sample : samples) {
+      samplesLines.add(sample[0] + "\t" + sample[1]);
+      factorLines.add(sample[0] + "\t" + sample[2] + "\t" + sample[3] + "\t" + sample[4]);
+    }
+    samplesLines.addAll(extraSamples);
+    factorLines.addAll(extraFactors);
+    Files.write(dir.resolve("samples.txt"), samplesLines);
+    Files.write(dir.resolve("factors.txt"), factorLines);
+    return dir.toString() + File.separator;
+  }
+
+  private static String stratify(String dir, Caliper caliper) {
+    return MatchSamples.matchMakerStratified(dir, "samples.txt", "factors.txt",
+                                             new String[] {"PC1", "PC2"}, new double[] {1, 1},
+                                             new String[] {"sex"}, false, caliper);
+  }
+
+  private static List<String[]> readRows(String file) throws IOException {
+    List<String[]> rows = new ArrayList<>();
+    for (String line : Files.readAllLines(new File(file).toPath())) {
+      rows.add(line.split("\t"));
+    }
+    return rows;
+  }
+
+  private static double distance(String[] a, String[] b) {
+    return Math.hypot(Double.parseDouble(a[2]) - Double.parseDouble(b[2]),
+                      Double.parseDouble(a[3]) - Double.parseDouble(b[3]));
+  }
+
+  private static Map<String, String[]> byId() {
+    Map<String, String[]> samples = new HashMap<>();
+    for (String[] sample : SAMPLES) {
+      samples.put(sample[0], sample);
+    }
+    return samples;
+  }
+
+  @Test
+  public void testBlocksGroupByForceColumns() throws IOException {
+    String dir = writeInputs(SAMPLES, List.of(), List.of());
+    String indexFile = stratify(dir, Caliper.NONE);
+    List<String[]> index = readRows(dir + indexFile);
+    assertEquals(4, index.size());
+    // strata in order of their first case, with the controls of that stratum only
+    String[][] expected = {{"M", "2", "3"}, {"F", "1", "2"}, {"U", "1", "0"}};
+    Map<String, String[]> samples = byId();
+    for (int b = 0; b < expected.length; b++) {
+      String[] row = index.get(b + 1);
+      assertEquals(expected[b][0], row[1]);
+      assertEquals(expected[b][1], row[2]);
+      assertEquals(expected[b][2], row[3]);
+      List<String[]> block = readRows(dir + row[4]);
+      String[] controls = block.get(1);
+      for (int i = 2; i < block.size(); i++) {
+        String[] anchor = samples.get(block.get(i)[0]);
+        assertEquals(expected[b][0], anchor[4]);
+        for (int j = 1; j < controls.length; j++) {
+          String[] control = samples.get(controls[j]);
+          assertEquals(expected[b][0], control[4]);
+          assertEquals(distance(anchor, control), Double.parseDouble(block.get(i)[j]), 1e-12);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testBlocksOverTheMemoryBudgetAreMapped() throws IOException {
+    String dir = writeInputs(SAMPLES, List.of(), List.of());
+    List<String> expected = new ArrayList<>();
+    List<String[]> index = readRows(dir + stratify(dir, new Caliper(1, true)));
+    for (String[] row : index.subList(1, index.size())) {
+      expected.addAll(Files.readAllLines(new File(dir + row[4]).toPath()));
+    }
+    String mappedDir = writeInputs(SAMPLES, List.of(), List.of());
+    MatchSamples.setDistanceRamBudget(8 * 4);
+    List<String> mapped = new ArrayList<>();
+    try {
+      List<String[]> mappedIndex = readRows(mappedDir
+                                            + stratify(mappedDir, new Caliper(1, true)));
+      for (String[] row : mappedIndex.subList(1, mappedIndex.size())) {
+        mapped.addAll(Files.readAllLines(new File(mappedDir + row[4]).toPath()));
+      }
+    } finally {
+      MatchSamples.setDistanceRamBudget(Runtime.getRuntime().maxMemory() / 2);
+    }
+    assertEquals(expected, mapped);
+    try (Stream<Path> files = Files.list(Path.of(mappedDir))) {
+      assertTrue(files.noneMatch(f -> f.getFileName().toString()
+                                      .startsWith(DistanceStore.SPILL_PREFIX)
+                                      && f.toString().endsWith(".bin")));
+    }
+  }
+
+  @Test
+  public void testClusterfileMatricesShareTheBudget() throws IOException {
+    Path dir = Files.createTempDirectory("clusterfile");
+    Files.write(dir.resolve("anchors.txt"), List.of("a0", "a1", "a2"));
+    Files.write(dir.resolve("barnacles.txt"), List.of("b0", "b1"));
+    List<String> genome = new ArrayList<>();
+    genome.add("FID1 IID1 FID2 IID2 RT EZ Z0 Z1 Z2 PI_HAT PHE DST PPC RATIO A B C");
+    for (String[] pair : new String[][] {{"a0", "b1"}, {"b0", "a2"}}) {
+      String[] fields = new String[GenomeParser.RATIO_COLUMN + 1];
+      Arrays.fill(fields, "0.5");
+      fields[GenomeParser.ID1_COLUMN] = pair[0];
+      fields[GenomeParser.ID2_COLUMN] = pair[1];
+      genome.add(String.join(" ", fields));
+    }
+    Files.write(dir.resolve("cluster.genome"), genome);
+    String[] files = {"pihats.xln", "dsts.xln", "ratios.xln"};
+
+    String prefix = dir.toString() + File.separator;
+    MatchSamples.parseClusterfile(prefix, "anchors.txt", "barnacles.txt", "cluster.genome");
+    List<List<String>> expected = new ArrayList<>();
+    for (String file : files) {
+      expected.add(Files.readAllLines(dir.resolve(file)));
+    }
+    assertEquals(5, expected.get(0).size());
+    assertTrue(expected.get(0).get(3).startsWith("a1\t-999"), expected.get(0).get(3));
+    // room for one matrix, so the other two are mapped from files
+    MatchSamples.setDistanceRamBudget(8 * 3 * 2);
+    try {
+      MatchSamples.parseClusterfile(prefix, "anchors.txt", "barnacles.txt", "cluster.genome");
+    } finally {
+      MatchSamples.setDistanceRamBudget(Runtime.getRuntime().maxMemory() / 2);
+    }
+    for (int v = 0; v < files.length; v++) {
+      assertEquals(expected.get(v), Files.readAllLines(dir.resolve(files[v])));
+    }
+    try (Stream<Path> spilled = Files.list(dir)) {
+      assertTrue(spilled.noneMatch(f -> f.toString().endsWith(".bin")));
+    }
+  }
+
+  @Test
+  public void testNormalizedDistancesArePercentilesOfRanks() throws IOException {
+    // 6 distances with one tie, ranked 1, 5, 3.5, 2, 6, 3.5
+    List<String> matrix = List.of("3\t2", "Anchor\tk0\tk1", "c0\t0.1\t2.5", "c1\t1.5\t0.2",
+                                  "c2\t3\t1.5");
+    String[] expected = {"c0\t" + 1 / 6.0 + "\t" + 5 / 6.0, "c1\t" + 3.5 / 6 + "\t" + 2 / 6.0,
+                         "c2\t" + 1.0 + "\t" + 3.5 / 6};
+    for (long budget : new long[] {Runtime.getRuntime().maxMemory() / 2, 0}) {
+      Path dir = Files.createTempDirectory("normalize");
+      Files.write(dir.resolve("dists.xln"), matrix);
+      MatchSamples.setDistanceRamBudget(budget);
+      String normalized;
+      try {
+        normalized = MatchSamples.normalizeDistances(dir.toString() + File.separator, "dists.xln",
+                                                     0, 100);
+      } finally {
+        MatchSamples.setDistanceRamBudget(Runtime.getRuntime().maxMemory() / 2);
+      }
+      List<String> lines = Files.readAllLines(dir.resolve(normalized));
+      assertEquals(matrix.subList(0, 2), lines.subList(0, 2));
+      assertEquals(Arrays.asList(expected), lines.subList(2, lines.size()));
+      // only the input and the output are left
+      try (Stream<Path> files = Files.list(dir)) {
+        assertEquals(2, files.count());
+      }
+    }
+  }
+
+  @Test
+  public void testCaliperInSdPoolsAllBlocks() throws IOException {
+    String dir = writeInputs(SAMPLES, List.of(), List.of());
+    String indexFile = stratify(dir, new Caliper(1, true));
+    Map<String, String[]> samples = byId();
+    List<String[]> index = readRows(dir + indexFile);
+    // the sd of every within-stratum distance, not of the distances of each block
+    List<Double> all = new ArrayList<>();
+    for (String[] row : index.subList(1, index.size())) {
+      List<String[]> block = readRows(dir + row[4]);
+      for (String[] line : block.subList(2, block.size())) {
+        for (int j = 1; j < line.length; j++) {
+          all.add(distance(samples.get(line[0]), samples.get(block.get(1)[j])));
+        }
+      }
+    }
+    double mean = all.stream().mapToDouble(Double::doubleValue).average().getAsDouble();
+    double sd = Math.sqrt(all.stream().mapToDouble(d -> (d - mean) * (d - mean)).sum()
+                          / (all.size() - 1));
+    int pruned = 0;
+    for (String[] row : index.subList(1, index.size())) {
+      List<String[]> block = readRows(dir + row[4]);
+      for (String[] line : block.subList(2, block.size())) {
+        for (int j = 1; j < line.length; j++) {
+          double d = distance(samples.get(line[0]), samples.get(block.get(1)[j]));
+          if (d > sd) {
+            assertEquals(MatchSamples.PRUNED_DISTANCE, line[j]);
+            pruned++;
+          } else {
+            assertEquals(d, Double.parseDouble(line[j]), 1e-12);
+          }
+        }
+      }
+    }
+    assertTrue(pruned > 0);
+  }
+
+  @Test
+  public void testPairsOfBlocksAreCombined() throws IOException {
+    String dir = writeInputs(SAMPLES, List.of(), List.of());
+    String indexFile = stratify(dir, Caliper.NONE);
+    String pairsFile = MatchSamples.matchPairsStratified(dir, indexFile, true, false, 1);
+    List<String[]> pairs = readRows(dir + pairsFile);
+    assertEquals(5, pairs.size());
+    assertEquals("Case", pairs.get(0)[0]);
+    Map<String, String[]> samples = byId();
+    Map<String, String> matched = new HashMap<>();
+    for (String[] row : pairs.subList(1, pairs.size())) {
+      matched.put(row[0], row[1]);
+      if (!row[1].equals(MatchSamples.PRUNED_DISTANCE)) {
+        assertEquals(distance(samples.get(row[0]), samples.get(row[1])),
+                     Double.parseDouble(row[2]), 1e-12);
+      }
+    }
+    assertEquals("k1", matched.get("c1"));
+    assertEquals("k2", matched.get("c2"));
+    // k6 is the closest control to c3 overall, but in another stratum
+    assertEquals("k4", matched.get("c3"));
+    // the stratum of c4 has no controls
+    assertEquals(MatchSamples.PRUNED_DISTANCE, matched.get("c4"));
+  }
+
+  @Test
+  public void testSamplesWithoutForceValuesAreLeftOut() throws IOException {
+    // c5 has no sex and ghost is not in the factors file at all
+    String dir = writeInputs(SAMPLES, List.of("c5\t1", "k7\t0", "ghost\t1"),
+                             List.of("c5\t0\t0", "k7\t0\t0"));
+    String indexFile = stratify(dir, Caliper.NONE);
+    List<String[]> index = readRows(dir + indexFile);
+    assertEquals(4, index.size());
+    int cases = 0;
+    for (String[] row : index.subList(1, index.size())) {
+      assertFalse(row[1].contains("null"), row[1]);
+      cases += Integer.parseInt(row[2]);
+    }
+    assertEquals(4, cases);
+    String pairsFile = MatchSamples.matchPairsStratified(dir, indexFile, true, false, 1);
+    for (String[] row : readRows(dir + pairsFile)) {
+      assertFalse(row[0].equals("c5") || row[0].equals("ghost"), row[0]);
+      assertFalse(row[1].equals("k7"), row[1]);
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.pankratzlab.internal.gwas.Fixtures.LOG;
+
+public class MatchServerTest {
+  private static Path writeSamples(Path dir) throws IOException {
+    List<String> lines = new ArrayList<>();
+    lines.add("id\tstatus\tPC1\tPC2");
+    for (int i = 0; i < 20; i++) {
+      lines.add("s" + i + "\t" + (i % 4 == 0 ? 1 : 0) + "\t" + i * 0.5 + "\t" + (i % 3));
+    }
+    Path samples = dir.resolve("samples.txt");
+    Files.write(samples, lines);
+    return samples;
+  }
+
+  /** @return the value of the first line of a response that starts with key */
+  private static String value(String response, String key) {
+    for (String line : response.split("\n")) {
+      if (line.startsWith(key + "\t")) {
+        return line.substring(key.length() + 1);
+      }
+    }
+    return null;
+  }
+
+  @Test
+  public void testMatchEvalAndStatsOverLoopback() throws IOException, InterruptedException {
+    Path root = Files.createTempDirectory("server");
+    Path samples = writeSamples(root);
+    MatchServer server = new MatchServer(0, 64L << 20, 2, root.resolve("work"), root, LOG);
+    server.start();
+    try {
+      MatchClient client = new MatchClient("localhost", server.getPort());
+      List<String> match = List.of("dir=out", "samples=" + samples, "factors=PC1:1,PC2:1",
+                                   "iterations=1", "multiplier=2", "normalize=false",
+                                   "engine=ann");
+      String first = client.send("match", match);
+      assertEquals("false", value(first, "cached"));
+      assertTrue(Files.exists(root.resolve("out").resolve("match.optimized.txt")), first);
+
+      String repeated = client.send("match", match);
+      assertEquals("true", value(repeated, "cached"));
+      assertEquals(value(first, "output"), value(repeated, "output"));
+
+      String stats = client.send("stats", List.of());
+      assertTrue(Long.parseLong(value(stats, "entries")) >= 3, stats);
+      assertTrue(Long.parseLong(value(stats, "hits")) >= 1, stats);
+
+      Path resources = Paths.get("src/test/resources");
+      Path evalDir = Files.createDirectories(root.resolve("eval"));
+      for (String file : List.of("status.tsv", "phenotype.tsv")) {
+        Files.copy(resources.resolve(file), evalDir.resolve(file));
+      }
+      List<String> eval = List.of("dir=eval", "status=status.tsv", "phenotype=phenotype.tsv",
+                                  "matchingVars=foo,bar");
+      String table = client.send("eval", eval);
+      assertTrue(table.contains("foo"), table);
+      assertEquals(table, client.send("eval", eval));
+    } finally {
+      server.stop();
+    }
+  }
+
+  @Test
+  public void testOutputOutsideRootIsRejected() throws IOException, InterruptedException {
+    Path root = Files.createTempDirectory("server");
+    Path samples = writeSamples(root);
+    Path outside = Files.createTempDirectory("elsewhere");
+    MatchServer server = new MatchServer(0, 64L << 20, 1, root.resolve("work"),
+                                         root.resolve("work"), LOG);
+    server.start();
+    try {
+      MatchClient client = new MatchClient("localhost", server.getPort());
+      for (String dir : List.of(outside.toString(), "../elsewhere", root.toString())) {
+        IOException e = assertThrows(IOException.class,
+                                     () -> client.send("match",
+                                                       List.of("dir=" + dir, "samples=" + samples,
+                                                               "factors=PC1:1", "engine=ann",
+                                                               "overwrite=true")));
+        assertTrue(e.getMessage().contains("400"), e.getMessage());
+      }
+    } finally {
+      server.stop();
+    }
+  }
+
+  @Test
+  public void testEvalOutsideRootIsRejected() throws IOException {
+    Path root = Files.createTempDirectory("server");
+    MatchServer server = new MatchServer(0, 64L << 20, 1, root.resolve("work"), root, LOG);
+    server.start();
+    try {
+      MatchClient client = new MatchClient("localhost", server.getPort());
+      Path resources = Paths.get("src/test/resources").toAbsolutePath();
+      for (List<String> eval : List.of(List.of("dir=" + resources, "status=status.tsv",
+                                               "phenotype=phenotype.tsv", "matchingVars=foo"),
+                                       List.of("status=" + resources.resolve("status.tsv"),
+                                               "phenotype=phenotype.tsv", "matchingVars=foo"))) {
+        IOException e = assertThrows(IOException.class, () -> client.send("eval", eval));
+        assertTrue(e.getMessage().contains("400"), e.getMessage());
+      }
+    } finally {
+      server.stop();
+    }
+  }
+}
@@ -5,6 +5,8 @@ import java.util.Map;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.function.Executable;
 
+import com.google.common.collect.ImmutableSetMultimap;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
@@ -108,4 +110,29 @@ public class MatchingVariableAndDataBoxTest {
 
     assertFalse(mv.isBinary());
   }
+
+  @Test
+  public void testControlsWeightedByNumberOfPairings() {
+    MatchingVariable binary = new MatchingVariable("foo");
+    MatchingVariable continuous = new MatchingVariable("bar");
+    String[] header = new String[] {"id", "foo", "bar"};
+    binary.findIndexInHeader(header);
+    continuous.findIndexInHeader(header);
+
+    // cont1 was matched with replacement to both cases
+    ImmutableSetMultimap<String, String> pairings = ImmutableSetMultimap.of("cont1", "case1",
+                                                                            "cont1", "case2",
+                                                                            "cont2", "case2");
+    DataBox dataBox = new DataBox(new MatchingVariable[] {binary, continuous}, pairings);
+
+    dataBox.recordData(new String[] {"cont1", "1", "3.0"});
+    dataBox.recordData(new String[] {"cont2", "0", "6.0"});
+    dataBox.recordData(new String[] {"case1", "1", "1.5"});
+    dataBox.recordData(new String[] {"case2", "0", "2.5"});
+
+    assertEquals(4.0, continuous.getControlAvg());
+    assertEquals(2.0, continuous.getCaseAvg());
+    // cont1-case1 and cont2-case2 agree, cont1-case2 does not
+    assertEquals(2.0 / 3, binary.getConcordance());
+  }
 }
@@ -0,0 +1,98 @@
+package org.pankratzlab.internal.gwas;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.pankratzlab.internal.gwas.Fixtures.LOG;
+import static org.pankratzlab.internal.gwas.Fixtures.randomStratum;
+
+public class PartitionMatcherTest {
+  @Test
+  public void testCellCandidatesMatchUnpartitionedSearch() {
+    Stratum stratum = randomStratum("large", 3000, 3, 5, 1);
+    List<PartitionMatcher.Cell> cells = PartitionMatcher.partition(stratum, 400);
+    assertTrue(cells.size() >= 8);
+    int numCases = 0;
+    for (PartitionMatcher.Cell cell : cells) {
+      assertTrue(cell.cases.length + cell.controls.length <= 400);
+      numCases += cell.cases.length;
+    }
+    assertEquals(stratum.numCases(), numCases);
+
+    StratumMatches expected = TreeMatcher.findCandidates(stratum, 8, Caliper.NONE, LOG);
+    StratumMatches partitioned = PartitionMatcher.findCandidates(stratum, cells, 8, Caliper.NONE,
+                                                                 LOG);
+    for (int c = 0; c < stratum.numCases(); c++) {
+      for (int i = 0; i < 8; i++) {
+        assertEquals(expected.getControl(c, i), partitioned.getControl(c, i));
+      }
+    }
+  }
+
+  @Test
+  public void testHaloOfCasesFarFromControlsStaysBounded() {
+    Stratum stratum = randomStratum("large", 3000, 3, 5, 3);
+    // a cluster of cases without controls of their own, so no case in its cell fills up from the
+    // cell
+    Random random = new Random(4);
+    for (int i = 0; i < 150; i++) {
+      stratum.add("far" + i, new double[] {8 + 0.1 * random.nextGaussian(),
+                                           8 + 0.1 * random.nextGaussian(), 0},
+                  Stratum.CASE_STATUS);
+    }
+    List<PartitionMatcher.Cell> cells = PartitionMatcher.partition(stratum, 100);
+    StratumMatches expected = TreeMatcher.findCandidates(stratum, 8, Caliper.NONE, LOG);
+    StratumMatches partitioned = PartitionMatcher.findCandidates(stratum, cells, 8, Caliper.NONE,
+                                                                 LOG);
+    for (int c = 0; c < stratum.numCases(); c++) {
+      for (int i = 0; i < 8; i++) {
+        assertEquals(expected.getControl(c, i), partitioned.getControl(c, i));
+      }
+    }
+    // the cell of the cluster only needs the controls closest to it, not every control
+    List<PartitionMatcher.Cell> withoutControls = cells.stream()
+                                                       .filter(cell -> cell.controls.length == 0)
+                                                       .collect(Collectors.toList());
+    assertFalse(withoutControls.isEmpty());
+    for (PartitionMatcher.Cell cell : withoutControls) {
+      assertTrue(cell.haloSize < stratum.numControls() / 10, cell.haloSize + " halo controls");
+    }
+  }
+
+  @Test
+  public void testStitchedAssignmentIsValid() {
+    Stratum stratum = randomStratum("large", 3000, 3, 5, 2);
+    List<PartitionMatcher.Cell> cells = PartitionMatcher.partition(stratum, 300);
+    StratumMatches candidates = PartitionMatcher.findCandidates(stratum, cells, 10, Caliper.NONE,
+                                                                LOG);
+    StratumMatches resolved = PartitionMatcher.resolve(candidates, cells, 3, LOG);
+    StratumMatches global = TreeMatcher.resolveDuplicates(candidates, 3, LOG);
+    Set<Integer> used = new HashSet<>();
+    int matched = 0;
+    int globalMatched = 0;
+    for (int c = 0; c < stratum.numCases(); c++) {
+      for (int s = 0; s < 3; s++) {
+        int control = resolved.getControl(c, s);
+        if (control != StratumMatches.NO_MATCH) {
+          matched++;
+          assertTrue(used.add(control), "control " + control + " used twice");
+        }
+        if (global.getControl(c, s) != StratumMatches.NO_MATCH) {
+          globalMatched++;
+        }
+      }
+    }
+    // stitching only refills from the remaining candidates, so it may leave slightly more cases
+    // short than resolving the whole stratum at once
+    assertTrue(matched >= 0.98 * globalMatched, matched + " matched, " + globalMatched
+                                                + " without partitioning");
+  }
+}
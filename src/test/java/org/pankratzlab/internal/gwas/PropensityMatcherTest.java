@@ -0,0 +1,90 @@
+package org.pankratzlab.internal.gwas;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.pankratzlab.internal.gwas.Fixtures.LOG;
+import static org.pankratzlab.internal.gwas.Fixtures.stratum;
+
+public class PropensityMatcherTest {
+  private static final double[] CASE_SCORES = {0, 0.1, 5};
+  private static final double[] CONTROL_SCORES = {0.05, 0.02, 10, -0.1, 0.2};
+
+  /** @return the caliper in standard deviations that is one logit unit for the test scores */
+  private static double oneLogitUnit() {
+    double sum = 0;
+    double sumSq = 0;
+    int n = CASE_SCORES.length + CONTROL_SCORES.length;
+    for (double[] scores : new double[][] {CASE_SCORES, CONTROL_SCORES}) {
+      for (double score : scores) {
+        sum += score;
+        sumSq += score * score;
+      }
+    }
+    double mean = sum / n;
+    return 1 / Math.sqrt((sumSq - n * mean * mean) / (n - 1));
+  }
+
+  @Test
+  public void testMatchingWithoutReplacementRespectsCaliper() {
+    Stratum stratum = stratum("s", CASE_SCORES, CONTROL_SCORES);
+    StratumMatches matches = PropensityMatcher.matchScores(stratum, CASE_SCORES, CONTROL_SCORES, 2,
+                                                           oneLogitUnit(), false, LOG);
+    Set<Integer> used = new HashSet<>();
+    for (int c = 0; c < 2; c++) {
+      for (int slot = 0; slot < 2; slot++) {
+        int control = matches.getControl(c, slot);
+        assertTrue(control != StratumMatches.NO_MATCH);
+        assertTrue(used.add(control), "control " + control + " was used twice");
+        assertEquals(Math.abs(CASE_SCORES[c] - CONTROL_SCORES[control]),
+                     matches.getDistance(c, slot), 1e-12);
+        assertTrue(matches.getDistance(c, slot) <= 1);
+      }
+    }
+    // the only control near the last case is farther than the caliper
+    assertEquals(StratumMatches.NO_MATCH, matches.getControl(2, 0));
+    assertFalse(used.contains(2));
+    assertEquals(2, matches.numMatchedCases());
+  }
+
+  @Test
+  public void testMatchingWithReplacementTakesNearestControls() {
+    Stratum stratum = stratum("s", CASE_SCORES, CONTROL_SCORES);
+    StratumMatches matches = PropensityMatcher.matchScores(stratum, CASE_SCORES, CONTROL_SCORES, 2,
+                                                           oneLogitUnit(), true, LOG);
+    assertEquals(1, matches.getControl(0, 0));
+    assertEquals(0, matches.getControl(0, 1));
+    assertEquals(0, matches.getControl(1, 0));
+    assertEquals(1, matches.getControl(1, 1));
+    assertEquals(StratumMatches.NO_MATCH, matches.getControl(2, 0));
+  }
+
+  @Test
+  public void testUnusedControlsSkipRemovedPositions() {
+    PropensityMatcher.UnusedControls unused = new PropensityMatcher.UnusedControls(5);
+    assertEquals(2, unused.next(2));
+    assertEquals(2, unused.previous(2));
+
+    unused.remove(2);
+    unused.remove(3);
+    assertEquals(4, unused.next(2));
+    assertEquals(1, unused.previous(3));
+
+    unused.remove(4);
+    assertEquals(5, unused.next(2));
+    unused.remove(0);
+    unused.remove(1);
+    assertEquals(-1, unused.previous(4));
+  }
+
+  @Test
+  public void testLogit() {
+    double[] betas = new double[] {0.5, 2, -1};
+    assertEquals(0.5 + 2 * 3 - 1 * 4, PropensityMatcher.logit(betas, new double[] {3, 4}));
+  }
+}
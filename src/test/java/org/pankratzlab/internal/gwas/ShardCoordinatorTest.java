@@ -0,0 +1,84 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.pankratzlab.internal.gwas.Fixtures.LOG;
+
+public class ShardCoordinatorTest {
+  @Test
+  public void testAssignBalancesShards() {
+    List<Stratum> strata = new ArrayList<>();
+    for (int size : new int[] {50, 40, 30, 20, 10, 10}) {
+      Stratum stratum = new Stratum("s" + size + "_" + strata.size());
+      for (int i = 0; i < size; i++) {
+        stratum.add("id" + i, new double[] {i}, i % 2);
+      }
+      strata.add(stratum);
+    }
+    List<List<Stratum>> shards = ShardCoordinator.assign(strata, 2);
+    assertEquals(2, shards.size());
+    for (List<Stratum> shard : shards) {
+      assertEquals(80, shard.stream().mapToInt(s -> s.numCases() + s.numControls()).sum());
+    }
+    assertEquals(1, ShardCoordinator.assign(strata.subList(0, 1), 3).size());
+  }
+
+  @Test
+  public void testDeadWorkerIsStartedAgain() throws IOException {
+    Path base = Files.createTempDirectory("shards");
+    List<Path> shardDirs = List.of(Files.createDirectories(base.resolve("shard_1")),
+                                   Files.createDirectories(base.resolve("shard_2")));
+    // each worker dies on its first attempt and writes its output on the second
+    String script = "if [ -f attempted ]; then echo done > match.txt;"
+                    + " else touch attempted; exit 3; fi";
+    ShardCoordinator.runShards(shardDirs, d -> List.of("sh", "-c", script), List.of("match.txt"),
+                               1, LOG);
+    for (Path shardDir : shardDirs) {
+      assertTrue(Files.exists(shardDir.resolve("match.txt")));
+    }
+
+    Path failing = Files.createDirectories(base.resolve("shard_3"));
+    assertThrows(IOException.class,
+                 () -> ShardCoordinator.runShards(List.of(failing),
+                                                  d -> List.of("sh", "-c", "exit 1"),
+                                                  List.of("match.txt"), 1, LOG));
+  }
+
+  @Test
+  public void testRelativeKinshipIsForwardedAbsolute() {
+    String[] args = {"dir=out", "samples=samples.txt", "engine=kdtree",
+                     "kinship=related/plink.genome"};
+    MatchOptions options = new MatchOptions();
+    for (String arg : args) {
+      options.parseArg(arg);
+    }
+    List<String> workerArgs = ShardCoordinator.workerArgs(args, options);
+    assertEquals(List.of("engine=kdtree", "kinship=" + options.kinshipFile), workerArgs);
+    // a worker in its shard directory reads the same file
+    MatchOptions worker = new MatchOptions();
+    workerArgs.forEach(worker::parseArg);
+    assertTrue(worker.kinshipFile.isAbsolute());
+    assertEquals(Path.of("related/plink.genome").toAbsolutePath(), worker.kinshipFile);
+  }
+
+  @Test
+  public void testRelativeSnapshotDirIsSharedByWorkers() {
+    String[] args = {"dir=out", "snapshots=true", "snapshotDir=snapshots"};
+    MatchOptions options = new MatchOptions();
+    for (String arg : args) {
+      options.parseArg(arg);
+    }
+    List<String> workerArgs = ShardCoordinator.workerArgs(args, options);
+    assertEquals(List.of("snapshots=true", "snapshotDir=" + Path.of("snapshots").toAbsolutePath()),
+                 workerArgs);
+  }
+}
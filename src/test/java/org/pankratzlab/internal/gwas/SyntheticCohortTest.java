@@ -0,0 +1,51 @@
+package org.pankratzlab.internal.gwas;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SyntheticCohortTest {
+
+  @Test
+  public void testSameOutputForAnyNumberOfThreads() throws IOException {
+    Path dir = Files.createTempDirectory("synthetic");
+    SyntheticCohort cohort = new SyntheticCohort();
+    cohort.samples = 3 * SyntheticCohort.CHUNK_SIZE + 17;
+    cohort.pcs = 3;
+    cohort.caseFraction = 0.1;
+    cohort.threads = 1;
+    cohort.writeSamples(dir.resolve("one.txt"));
+    cohort.threads = 4;
+    cohort.writeSamples(dir.resolve("four.txt"));
+
+    List<String> lines = Files.readAllLines(dir.resolve("four.txt"));
+    assertEquals(Files.readAllLines(dir.resolve("one.txt")), lines);
+    assertEquals("id\tstatus\tPC1\tPC2\tPC3\tsex\tbatch", lines.get(0));
+    assertEquals(cohort.samples + 1, lines.size());
+    long cases = lines.stream().skip(1).filter(l -> l.split("\t")[1].equals("1")).count();
+    assertTrue(Math.abs(cases / (double) cohort.samples - 0.1) < 0.01);
+  }
+
+  @Test
+  public void testPhenotypesMatchSamples() throws IOException {
+    Path dir = Files.createTempDirectory("synthetic");
+    SyntheticCohort cohort = new SyntheticCohort();
+    cohort.samples = 100;
+    cohort.writeSamples(dir.resolve("samples.txt"));
+    cohort.writePhenotypes(dir.resolve("phenotypes.txt"));
+
+    String[] sample = Files.readAllLines(dir.resolve("samples.txt")).get(5).split("\t");
+    String[] phenotype = Files.readAllLines(dir.resolve("phenotypes.txt")).get(5).split("\t");
+    assertEquals(sample[0], phenotype[0]);
+    assertEquals(sample[2], phenotype[1]);
+    assertEquals(sample[sample.length - 1], phenotype[phenotype.length - 2]);
+    assertEquals("PC1:1,PC2:1,PC3:1,PC4:1,PC5:1,PC6:1,PC7:1,PC8:1,PC9:1,PC10:1,sex:force,batch:nominal",
+                 cohort.factorsArg(true, false, true));
+  }
+}